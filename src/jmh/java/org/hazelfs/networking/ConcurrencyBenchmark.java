@@ -0,0 +1,107 @@
+package org.hazelfs.networking;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Small downloads over a growing number of connections to a single listener.
+ * Every invocation sends one request on each of the connections at the same
+ * time and waits for all of them, so the sample time is the latency of the
+ * slowest request at that concurrency and the request counter the throughput
+ * of the listener.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class ConcurrencyBenchmark {
+
+	private static final String PATH = "object";
+
+	@Param({ "1", "4", "16", "64", "256", "1024" })
+	public int connections;
+
+	@Param({ "4096" })
+	public int size;
+
+	private LoopbackNode node;
+	private final List<HazeFSClient> clients = new ArrayList<HazeFSClient>();
+	private final List<Callable<ByteBuffer>> requests = new ArrayList<Callable<ByteBuffer>>();
+	private ExecutorService pool;
+
+	/**
+	 * Counts the requests, JMH reports them per time unit next to the rounds
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	public static class Requests {
+		public long requests;
+	}
+
+	@Setup(Level.Trial)
+	public void start() throws IOException {
+		node = new LoopbackNode();
+		HazeFSClient uploader = node.connect();
+		try {
+			uploader.create(PATH, new PatternInputStream(size), size);
+		} finally {
+			uploader.disconnect();
+		}
+		pool = Executors.newFixedThreadPool(connections);
+		for (int i = 0; i < connections; i++) {
+			final HazeFSClient client = node.connect();
+			clients.add(client);
+			requests.add(new Callable<ByteBuffer>() {
+				@Override
+				public ByteBuffer call() throws IOException {
+					return client.read(PATH, 0, size);
+				}
+			});
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void stop() throws IOException {
+		pool.shutdownNow();
+		for (HazeFSClient client : clients) {
+			client.disconnect();
+		}
+		clients.clear();
+		requests.clear();
+		node.close();
+	}
+
+	@Benchmark
+	public void round(Requests counter) throws Exception {
+		for (Future<ByteBuffer> f : pool.invokeAll(requests)) {
+			if (f.get().remaining() != size) {
+				throw new IOException("Got " + f.get().remaining() + " of " + size + " bytes");
+			}
+		}
+		counter.requests += connections;
+	}
+}
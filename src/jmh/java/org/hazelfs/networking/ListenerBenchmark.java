@@ -0,0 +1,103 @@
+package org.hazelfs.networking;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Uploads and downloads of a single file per request against a listener in
+ * the same JVM, over loopback, for objects of 1 KB up to 1 GB. Every JMH
+ * thread has its own connection, run with -t to load the listener from more
+ * than one client.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class ListenerBenchmark {
+
+	private static final String DOWNLOAD = "download";
+	private static final String UPLOAD_PREFIX = "upload-";
+
+	@Param({ "1024", "65536", "1048576", "67108864", "1073741824" })
+	public long size;
+
+	private LoopbackNode node;
+	private final AtomicLong uploads = new AtomicLong();
+
+	@State(Scope.Thread)
+	public static class Client {
+		private HazeFSClient client;
+		private final ByteBuffer buf = ByteBuffer.allocateDirect(BufferPool.SLAB_SIZE);
+
+		@Setup(Level.Trial)
+		public void connect(ListenerBenchmark benchmark) throws IOException {
+			client = benchmark.node.connect();
+		}
+
+		@TearDown(Level.Trial)
+		public void disconnect() throws IOException {
+			client.disconnect();
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void start() throws IOException {
+		node = new LoopbackNode();
+		HazeFSClient client = node.connect();
+		try {
+			client.create(DOWNLOAD, new PatternInputStream(size), size);
+		} finally {
+			client.disconnect();
+		}
+	}
+
+	@TearDown(Level.Iteration)
+	public void removeUploads() throws IOException {
+		node.removeAll(UPLOAD_PREFIX);
+	}
+
+	@TearDown(Level.Trial)
+	public void stop() throws IOException {
+		node.close();
+	}
+
+	@Benchmark
+	public void put(Client c) throws IOException {
+		c.client.create(UPLOAD_PREFIX + uploads.incrementAndGet(), new PatternInputStream(size), size);
+	}
+
+	@Benchmark
+	public long get(Client c) throws IOException {
+		HazeFSReadChannel ch = c.client.openChannel(DOWNLOAD);
+		long read = 0;
+		try {
+			int n;
+			do {
+				c.buf.clear();
+				n = ch.read(c.buf);
+				read += Math.max(n, 0);
+			} while (n != -1);
+		} finally {
+			ch.close();
+		}
+		return read;
+	}
+}
@@ -0,0 +1,86 @@
+package org.hazelfs.networking;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.hazelfs.services.PosixStorageService;
+
+/**
+ * A {@link HazelFSListener} over a {@link PosixStorageService} in a temporary
+ * directory, listening on a free port for clients in the same JVM
+ */
+class LoopbackNode implements Closeable {
+
+	private final PosixStorageService storage;
+	private final HazelFSListener listener;
+	private final ExecutorService executor = Executors.newSingleThreadExecutor();
+	private final int port;
+
+	LoopbackNode() throws IOException {
+		super();
+		storage = new PosixStorageService(Files.createTempDirectory("hazelfs-jmh").toString());
+		storage.initStorage();
+		port = freePort();
+		listener = new HazelFSListener(port, storage);
+		executor.submit(listener);
+	}
+
+	private static int freePort() throws IOException {
+		ServerSocket socket = new ServerSocket(0);
+		try {
+			return socket.getLocalPort();
+		} finally {
+			socket.close();
+		}
+	}
+
+	/**
+	 * @return a client connected to the node, waits for the listener to be
+	 *         bound
+	 */
+	HazeFSClient connect() throws IOException {
+		HazeFSClient client = new HazeFSClient(port, "localhost");
+		for (int attempt = 0;; attempt++) {
+			try {
+				client.connect();
+				return client;
+			} catch (ConnectException e) {
+				if (attempt == 50) {
+					throw e;
+				}
+				try {
+					Thread.sleep(100);
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					throw e;
+				}
+			}
+		}
+	}
+
+	PosixStorageService getStorage() {
+		return storage;
+	}
+
+	/**
+	 * Delete the files written by a benchmark, so the disk does not fill up
+	 * over the iterations
+	 */
+	void removeAll(String prefix) throws IOException {
+		for (String path : storage.list(prefix)) {
+			storage.delete(path);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		listener.shutdown();
+		executor.shutdownNow();
+		storage.format();
+	}
+}
@@ -0,0 +1,44 @@
+package org.hazelfs.networking;
+
+import java.io.InputStream;
+import java.util.Random;
+
+/**
+ * An input stream of the given length repeating a block of random bytes, so
+ * uploads of a gigabyte do not need a gigabyte of heap
+ */
+class PatternInputStream extends InputStream {
+
+	private static final byte[] PATTERN = new byte[1024 * 1024];
+	static {
+		new Random(42).nextBytes(PATTERN);
+	}
+
+	private final long length;
+	private long position = 0;
+
+	PatternInputStream(long length) {
+		super();
+		this.length = length;
+	}
+
+	@Override
+	public int read() {
+		if (position == length) {
+			return -1;
+		}
+		return PATTERN[(int) (position++ % PATTERN.length)] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) {
+		if (position == length) {
+			return -1;
+		}
+		int offset = (int) (position % PATTERN.length);
+		int n = (int) Math.min(Math.min(len, PATTERN.length - offset), length - position);
+		System.arraycopy(PATTERN, offset, b, off, n);
+		position += n;
+		return n;
+	}
+}
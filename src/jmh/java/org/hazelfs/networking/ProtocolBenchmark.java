@@ -0,0 +1,94 @@
+package org.hazelfs.networking;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.hazelfs.services.Crc32c;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The CPU cost of what the reactor and the client do per request besides
+ * moving the payload: encoding and decoding headers and params, and the
+ * checksum of an upload slab.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProtocolBenchmark {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String PATH = "backups/2013/02/hazelfs-node-0042/segment-000123.bin";
+
+	private final CharsetDecoder decoder = UTF8.newDecoder();
+	private final ByteBuffer header = ByteBuffer.allocate(Constants.PROTO_HEADER_SIZE);
+	private final ByteBuffer encoded = ByteBuffer.allocate(Constants.PROTO_HEADER_SIZE);
+	private final ByteBuffer slab = ByteBuffer.allocateDirect(BufferPool.SLAB_SIZE);
+	private ByteBuffer path;
+	private ByteBuffer replicatedParam;
+	private final Request request = new Request();
+
+	@Setup
+	public void prepare() throws IOException {
+		new FrameHeader(Constants.PROTO_CREATE_FILE, Constants.FLAG_CHECKSUMS, 42, PATH.length(), 1024).encode(encoded);
+		encoded.flip();
+		path = ByteBuffer.wrap(PATH.getBytes(UTF8));
+		replicatedParam = ByteBuffer.wrap(ReplicaStream.encodeParam(PATH, 2,
+				Arrays.asList("10.0.0.2:4901", "10.0.0.3:4901")));
+		request.setHeader(FrameHeader.decode(encoded.duplicate()));
+		byte[] random = new byte[slab.capacity()];
+		new Random(42).nextBytes(random);
+		slab.put(random).flip();
+	}
+
+	@Benchmark
+	public ByteBuffer encodeHeader() {
+		header.clear();
+		new FrameHeader(Constants.PROTO_REQUEST_FILE, Constants.FLAG_CHECKSUMS, 42, PATH.length(), 0).encode(header);
+		return header;
+	}
+
+	@Benchmark
+	public FrameHeader decodeHeader() throws IOException {
+		return FrameHeader.decode(encoded.duplicate());
+	}
+
+	@Benchmark
+	public String decodePath() throws CharacterCodingException {
+		return decoder.decode(path.duplicate()).toString();
+	}
+
+	@Benchmark
+	public byte[] encodeReplicatedParam() {
+		return ReplicaStream.encodeParam(PATH, 2, Arrays.asList("10.0.0.2:4901", "10.0.0.3:4901"));
+	}
+
+	@Benchmark
+	public String decodeReplicatedParam() throws IOException {
+		ByteBuffer buf = replicatedParam.duplicate();
+		ReplicaStream.decodeParam(buf, request);
+		return decoder.decode(buf).toString();
+	}
+
+	@Benchmark
+	public int checksumSlab() {
+		return Crc32c.compute(slab);
+	}
+}
@@ -0,0 +1,105 @@
+package org.hazelfs.services;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The metadata operations of a {@link PosixStorageService} with a populated
+ * index, without the network in front of it
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class PosixStorageBenchmark {
+
+	@Param({ "10000" })
+	public int files;
+
+	@Param({ "4096" })
+	public int size;
+
+	private PosixStorageService storage;
+	private ByteBuffer content;
+	private final AtomicLong created = new AtomicLong();
+
+	@Setup(Level.Trial)
+	public void populate() throws IOException {
+		storage = new PosixStorageService(Files.createTempDirectory("hazelfs-jmh").toString());
+		storage.initStorage();
+		content = ByteBuffer.allocateDirect(size);
+		for (int i = 0; i < files; i++) {
+			write("existing-" + i);
+		}
+	}
+
+	@TearDown(Level.Iteration)
+	public void removeCreated() throws IOException {
+		for (String path : storage.list("created-")) {
+			storage.delete(path);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void remove() throws IOException {
+		storage.shutdown();
+		storage.format();
+	}
+
+	private void write(String path) throws IOException {
+		FileChannel ch = storage.create(path, size);
+		try {
+			ByteBuffer src = content.duplicate();
+			while (src.hasRemaining()) {
+				ch.write(src, src.position());
+			}
+		} finally {
+			ch.close();
+		}
+	}
+
+	private String existing() {
+		return "existing-" + ThreadLocalRandom.current().nextInt(files);
+	}
+
+	@Benchmark
+	public void create() throws IOException {
+		write("created-" + created.incrementAndGet());
+	}
+
+	@Benchmark
+	public long open() throws IOException {
+		FileChannel ch = storage.open(existing());
+		try {
+			return ch.size();
+		} finally {
+			ch.close();
+		}
+	}
+
+	@Benchmark
+	public long getSize() throws IOException {
+		return storage.getSize(existing());
+	}
+}
@@ -0,0 +1,105 @@
+package org.hazelfs.networking;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * A request of the {@link HazeFSAsyncClient} together with the future it
+ * completes and how the result is taken from the response
+ */
+abstract class AsyncCall<V> {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final int opcode;
+	private final short flags;
+	private final String path;
+	private final byte[] param;
+	private final ByteBuffer[] payload;
+	private final HazeFSFuture<V> future = new HazeFSFuture<V>();
+
+	AsyncCall(int opcode, short flags, String path, ByteBuffer... payload) {
+		this(opcode, flags, path, path.getBytes(UTF8), payload);
+	}
+
+	AsyncCall(int opcode, short flags, String path, byte[] param, ByteBuffer... payload) {
+		super();
+		this.opcode = opcode;
+		this.flags = flags;
+		this.path = path;
+		this.param = param;
+		this.payload = payload;
+	}
+
+	/**
+	 * @return the result of a successful response
+	 */
+	protected abstract V result(byte[] param, ByteBuffer payload) throws IOException;
+
+	/**
+	 * Complete the future from the response
+	 */
+	void finish(String node, FrameHeader header, byte[] param, ByteBuffer payload) {
+		try {
+			switch (header.getStatus()) {
+			case Constants.STATUS_OK:
+				future.complete(result(param, payload));
+				break;
+			case Constants.STATUS_NOT_FOUND:
+				throw new FileNotFoundException("File hazefs://" + node + "/" + path + " does not exist");
+			default:
+				throw new IOException("Request for hazefs://" + node + "/" + path + " failed: "
+						+ new String(param, UTF8));
+			}
+		} catch (IOException e) {
+			future.fail(e);
+		}
+	}
+
+	/**
+	 * Fill the buffer with the header and param of the request
+	 */
+	void encode(ByteBuffer buf, int requestId) {
+		new FrameHeader(opcode, flags, requestId, param.length, getPayloadLength()).encode(buf);
+		buf.put(param);
+	}
+
+	int getHeaderSize() {
+		return Constants.PROTO_HEADER_SIZE + param.length;
+	}
+
+	long getPayloadLength() {
+		long length = 0;
+		for (ByteBuffer buf : payload) {
+			length += buf.remaining();
+		}
+		return length;
+	}
+
+	/**
+	 * @return the payload to send after the header, every call gets its own
+	 *         views of the buffers
+	 */
+	ByteBuffer[] getPayload() {
+		ByteBuffer[] views = new ByteBuffer[payload.length];
+		for (int i = 0; i < payload.length; i++) {
+			views[i] = payload[i].duplicate();
+		}
+		return views;
+	}
+
+	String getPath() {
+		return path;
+	}
+
+	HazeFSFuture<V> getFuture() {
+		return future;
+	}
+
+	@Override
+	public String toString() {
+		return "request " + opcode + " for " + path;
+	}
+}
@@ -0,0 +1,209 @@
+package org.hazelfs.networking;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A non-blocking connection of a {@link NodePool}, carrying one call at a
+ * time. Only the I/O thread of the {@link HazeFSAsyncClient} touches it.
+ */
+class AsyncConnection {
+
+	private static final Logger LOG = LoggerFactory.getLogger(AsyncConnection.class);
+
+	private final NodePool pool;
+	private final SocketChannel channel;
+	private final SelectionKey key;
+	private final long created = System.currentTimeMillis();
+	private final ByteBuffer header = ByteBuffer.allocate(Constants.PROTO_HEADER_SIZE);
+	private boolean connected;
+	private boolean closed = false;
+	private long lastUsed = created;
+	private long lastActive = created;
+	private int nextRequestId = 0;
+	// the state of the call in progress
+	private AsyncCall<?> call;
+	private int requestId;
+	private ByteBuffer[] out;
+	private FrameHeader response;
+	private ByteBuffer param;
+	private ByteBuffer payload;
+
+	AsyncConnection(NodePool pool, Selector selector) throws IOException {
+		super();
+		this.pool = pool;
+		this.channel = SocketChannel.open();
+		try {
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+			connected = channel.connect(pool.getAddress());
+			key = channel.register(selector, connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, this);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	boolean isConnected() {
+		return connected;
+	}
+
+	/**
+	 * @return the time the connection has been opened at in milliseconds
+	 */
+	long getCreated() {
+		return created;
+	}
+
+	/**
+	 * @return the time the last call other than a health check has been
+	 *         started at in milliseconds
+	 */
+	long getLastUsed() {
+		return lastUsed;
+	}
+
+	/**
+	 * @return the time the last call has been finished at in milliseconds
+	 */
+	long getLastActive() {
+		return lastActive;
+	}
+
+	/**
+	 * Send the request of a call, the connection has to be idle
+	 *
+	 * @param healthCheck
+	 *            whether the call only checks the connection, which does not
+	 *            keep it from being closed when idle
+	 */
+	void start(AsyncCall<?> call, boolean healthCheck) {
+		this.call = call;
+		this.requestId = nextRequestId++;
+		ByteBuffer head = ByteBuffer.allocate(call.getHeaderSize());
+		call.encode(head, requestId);
+		head.flip();
+		ByteBuffer[] data = call.getPayload();
+		out = new ByteBuffer[1 + data.length];
+		out[0] = head;
+		System.arraycopy(data, 0, out, 1, data.length);
+		header.clear();
+		response = null;
+		if (!healthCheck) {
+			lastUsed = System.currentTimeMillis();
+		}
+		key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+	}
+
+	/**
+	 * Carry on with whatever the selector found the connection ready for
+	 */
+	void handle() throws IOException {
+		if (key.isConnectable()) {
+			channel.finishConnect();
+			connected = true;
+			key.interestOps(SelectionKey.OP_READ);
+			LOG.debug("Connected to {}", pool);
+			pool.released(this);
+			return;
+		}
+		if (key.isWritable()) {
+			write();
+		}
+		if (key.isValid() && key.isReadable()) {
+			read();
+		}
+	}
+
+	private void write() throws IOException {
+		channel.write(out);
+		if (!out[out.length - 1].hasRemaining()) {
+			out = null;
+			key.interestOps(SelectionKey.OP_READ);
+		}
+	}
+
+	private void read() throws IOException {
+		if (call == null) {
+			// an idle connection only becomes readable when the server goes away
+			if (channel.read(header) == -1) {
+				throw new EOFException("Connection closed by server " + pool);
+			}
+			throw new ProtocolException("Unexpected data from server " + pool);
+		}
+		if (response == null) {
+			if (!fill(header)) {
+				return;
+			}
+			header.flip();
+			response = FrameHeader.decode(header);
+			if (response.getRequestId() != requestId) {
+				throw new ProtocolException("Expected response to request " + requestId + " but got "
+						+ response.getRequestId());
+			}
+			if (response.getPayloadLength() > Integer.MAX_VALUE) {
+				throw new IOException("Response of " + response.getPayloadLength() + " bytes for "
+						+ call.getPath() + " is too large to be kept in memory");
+			}
+			param = ByteBuffer.allocate(response.getParamLength());
+			payload = ByteBuffer.allocate((int) response.getPayloadLength());
+		}
+		if (!fill(param) || !fill(payload)) {
+			return;
+		}
+		payload.flip();
+		AsyncCall<?> done = call;
+		call = null;
+		out = null;
+		lastActive = System.currentTimeMillis();
+		done.finish(pool.toString(), response, param.array(), payload);
+		param = null;
+		payload = null;
+		pool.released(this);
+	}
+
+	/**
+	 * @return true if the buffer has been filled
+	 */
+	private boolean fill(ByteBuffer dst) throws IOException {
+		while (dst.hasRemaining()) {
+			int read = channel.read(dst);
+			if (read == -1) {
+				throw new EOFException("Connection closed by server " + pool);
+			}
+			if (read == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Close the connection, failing the call in progress
+	 */
+	void close(IOException failure) {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		key.cancel();
+		try {
+			channel.close();
+		} catch (IOException e) {
+			LOG.debug("Unable to close connection to {}: {}", pool, e.getMessage());
+		}
+		if (call != null) {
+			call.getFuture().fail(failure);
+			call = null;
+		}
+		pool.closed(this, failure);
+	}
+}
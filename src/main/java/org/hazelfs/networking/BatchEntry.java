@@ -0,0 +1,56 @@
+package org.hazelfs.networking;
+
+import java.io.IOException;
+
+/**
+ * A file read by {@link HazeFSClient#getAll(java.util.Collection)}
+ */
+public class BatchEntry {
+
+	private final String path;
+	private final short status;
+	private final byte[] content;
+	private final IOException failure;
+
+	BatchEntry(String path, short status, byte[] content, IOException failure) {
+		super();
+		this.path = path;
+		this.status = status;
+		this.content = content;
+		this.failure = failure;
+	}
+
+	public String getPath() {
+		return path;
+	}
+
+	/**
+	 * @return the STATUS_* code the server answered for the file with
+	 */
+	public short getStatus() {
+		return status;
+	}
+
+	public boolean isFound() {
+		return status == Constants.STATUS_OK;
+	}
+
+	/**
+	 * @return the content of the file
+	 * @throws java.io.FileNotFoundException
+	 *             if the file does not exist
+	 * @throws IOException
+	 *             if the server was unable to read the file
+	 */
+	public byte[] getContent() throws IOException {
+		if (failure != null) {
+			throw failure;
+		}
+		return content;
+	}
+
+	@Override
+	public String toString() {
+		return path + (isFound() ? " (" + content.length + " bytes)" : " (status " + status + ")");
+	}
+}
@@ -0,0 +1,329 @@
+package org.hazelfs.networking;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A read-only {@link FileChannel} over the response stream of a
+ * {@link Constants#PROTO_GET_BATCH} request. Every entry is a header of
+ * {@link #ENTRY_HEADER_SIZE} bytes:
+ *
+ * <pre>
+ * short status           STATUS_* code of the file
+ * int   checksums        number of checksums following the header
+ * long  length           length of the content or error message
+ * </pre>
+ *
+ * followed by the checksums of the chunks of the file as ints, if asked for
+ * with FLAG_CHECKSUMS and known, and the content of the file or the error
+ * message. Files go from their own channels to the socket so they are still
+ * sent by the kernel, and a transfer carries on with the next entry as long as
+ * the socket takes everything.
+ */
+class BatchResponseChannel extends FileChannel {
+
+	static final int ENTRY_HEADER_SIZE = 14;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	// an entry is made of a part in memory followed by a part in a file or not
+	private final List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+	private final List<FileChannel> files = new ArrayList<FileChannel>();
+	private final List<Long> starts = new ArrayList<Long>();
+	private final List<Long> lengths = new ArrayList<Long>();
+	// what the content in memory belongs to, closed with this channel
+	private final List<Closeable> owners = new ArrayList<Closeable>();
+	private int entries = 0;
+	private long size = 0;
+	private long position = 0;
+	// the part the last transfer ended in, transfers mostly go forward
+	private int index = 0;
+
+	/**
+	 * @return the paths of the param of a batch download
+	 */
+	static List<String> decodePaths(ByteBuffer param) throws ProtocolException {
+		List<String> paths = new ArrayList<String>();
+		while (param.hasRemaining()) {
+			if (param.remaining() < 2) {
+				throw new ProtocolException("Batch param ends within the length of a path");
+			}
+			int length = param.getShort() & 0xFFFF;
+			if (length > param.remaining()) {
+				throw new ProtocolException("Batch param ends within a path of " + length + " bytes");
+			}
+			byte[] name = new byte[length];
+			param.get(name);
+			paths.add(new String(name, UTF8));
+		}
+		return paths;
+	}
+
+	void addNotFound() {
+		entries++;
+		addMemory(header(Constants.STATUS_NOT_FOUND, null, 0));
+	}
+
+	void addError(String message) {
+		byte[] text = String.valueOf(message).getBytes(UTF8);
+		entries++;
+		addMemory(header(Constants.STATUS_ERROR, null, text.length));
+		addMemory(ByteBuffer.wrap(text));
+	}
+
+	/**
+	 * Add a file whose content is in memory, the owner of the content is
+	 * closed with this channel
+	 */
+	void addContent(ByteBuffer content, int[] checksums, Closeable owner) {
+		owners.add(owner);
+		entries++;
+		addMemory(header(Constants.STATUS_OK, checksums, content.remaining()));
+		addMemory(content.slice());
+	}
+
+	/**
+	 * Add the first length bytes of an open file, the channel is closed with
+	 * this one
+	 */
+	void addFile(FileChannel file, long length, int[] checksums) {
+		entries++;
+		addMemory(header(Constants.STATUS_OK, checksums, length));
+		add(null, file, length);
+	}
+
+	/**
+	 * @return the number of entries added so far
+	 */
+	int getEntries() {
+		return entries;
+	}
+
+	private static ByteBuffer header(short status, int[] checksums, long length) {
+		int count = checksums == null ? 0 : checksums.length;
+		ByteBuffer buf = ByteBuffer.allocate(ENTRY_HEADER_SIZE + 4 * count);
+		buf.putShort(status).putInt(count).putLong(length);
+		for (int i = 0; i < count; i++) {
+			buf.putInt(checksums[i]);
+		}
+		buf.flip();
+		return buf;
+	}
+
+	private void addMemory(ByteBuffer buf) {
+		if (buf.hasRemaining()) {
+			add(buf, null, buf.remaining());
+		}
+	}
+
+	private void add(ByteBuffer buf, FileChannel file, long length) {
+		buffers.add(buf);
+		files.add(file);
+		starts.add(size);
+		lengths.add(length);
+		size += length;
+	}
+
+	/**
+	 * @return the part the given position falls into
+	 */
+	private int indexOf(long position) {
+		if (index >= starts.size() || starts.get(index) > position) {
+			index = 0;
+		}
+		while (starts.get(index) + lengths.get(index) <= position) {
+			index++;
+		}
+		return index;
+	}
+
+	@Override
+	public int read(ByteBuffer dst) throws IOException {
+		int read = read(dst, position);
+		if (read > 0) {
+			position += read;
+		}
+		return read;
+	}
+
+	@Override
+	public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+		long total = 0;
+		for (int i = offset; i < offset + length; i++) {
+			int read = read(dsts[i]);
+			if (read == -1) {
+				return total == 0 ? -1 : total;
+			}
+			total += read;
+			if (dsts[i].hasRemaining()) {
+				break;
+			}
+		}
+		return total;
+	}
+
+	@Override
+	public synchronized int read(ByteBuffer dst, long position) throws IOException {
+		ensureOpen();
+		if (position >= size) {
+			return -1;
+		}
+		int i = indexOf(position);
+		long offset = position - starts.get(i);
+		ByteBuffer window = dst.duplicate();
+		window.limit((int) Math.min(window.limit(), window.position() + lengths.get(i) - offset));
+		int read;
+		if (buffers.get(i) != null) {
+			ByteBuffer src = buffers.get(i).duplicate();
+			src.position(src.position() + (int) offset);
+			src.limit(src.position() + window.remaining());
+			read = src.remaining();
+			window.put(src);
+		} else {
+			read = files.get(i).read(window, offset);
+			if (read == -1) {
+				throw new IOException("File has been truncated while sending it in a batch");
+			}
+		}
+		dst.position(dst.position() + read);
+		return read;
+	}
+
+	@Override
+	public int write(ByteBuffer src) throws IOException {
+		throw new NonWritableChannelException();
+	}
+
+	@Override
+	public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+		throw new NonWritableChannelException();
+	}
+
+	@Override
+	public int write(ByteBuffer src, long position) throws IOException {
+		throw new NonWritableChannelException();
+	}
+
+	@Override
+	public long position() throws IOException {
+		return position;
+	}
+
+	@Override
+	public FileChannel position(long newPosition) throws IOException {
+		if (newPosition < 0) {
+			throw new IllegalArgumentException("Negative position " + newPosition);
+		}
+		this.position = newPosition;
+		return this;
+	}
+
+	@Override
+	public long size() throws IOException {
+		ensureOpen();
+		return size;
+	}
+
+	@Override
+	public FileChannel truncate(long size) throws IOException {
+		throw new NonWritableChannelException();
+	}
+
+	@Override
+	public void force(boolean metaData) throws IOException {
+		ensureOpen();
+	}
+
+	@Override
+	public synchronized long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+		ensureOpen();
+		long transferred = 0;
+		while (transferred < count && position + transferred < size) {
+			int i = indexOf(position + transferred);
+			long offset = position + transferred - starts.get(i);
+			long length = Math.min(count - transferred, lengths.get(i) - offset);
+			long written;
+			if (buffers.get(i) != null) {
+				ByteBuffer src = buffers.get(i).duplicate();
+				src.position(src.position() + (int) offset);
+				src.limit(src.position() + (int) length);
+				written = target.write(src);
+			} else {
+				FileChannel file = files.get(i);
+				written = file.transferTo(offset, length, target);
+				if (written == 0 && file.size() < lengths.get(i)) {
+					throw new IOException("File has been truncated while sending it in a batch");
+				}
+			}
+			transferred += written;
+			if (written < length) {
+				// the socket is full
+				break;
+			}
+		}
+		return transferred;
+	}
+
+	@Override
+	public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+		throw new NonWritableChannelException();
+	}
+
+	@Override
+	public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+		throw new IOException("Batches cannot be mapped");
+	}
+
+	@Override
+	public FileLock lock(long position, long size, boolean shared) throws IOException {
+		throw new IOException("Batches cannot be locked");
+	}
+
+	@Override
+	public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+		throw new IOException("Batches cannot be locked");
+	}
+
+	private void ensureOpen() throws IOException {
+		if (!isOpen()) {
+			throw new ClosedChannelException();
+		}
+	}
+
+	@Override
+	protected synchronized void implCloseChannel() throws IOException {
+		IOException failure = null;
+		for (Closeable owner : owners) {
+			try {
+				owner.close();
+			} catch (IOException e) {
+				failure = e;
+			}
+		}
+		for (FileChannel file : files) {
+			if (file == null) {
+				continue;
+			}
+			try {
+				file.close();
+			} catch (IOException e) {
+				failure = e;
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+}
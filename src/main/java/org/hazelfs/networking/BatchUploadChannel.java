@@ -0,0 +1,249 @@
+package org.hazelfs.networking;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.hazelfs.services.ChunkedCrc32c;
+import org.hazelfs.services.Crc32c;
+import org.hazelfs.services.SequentialWriteChannel;
+import org.hazelfs.services.StorageService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stores the files of a {@link Constants#PROTO_PUT_BATCH} upload as the
+ * payload passes by. Every entry of the payload is:
+ *
+ * <pre>
+ * short path length
+ * byte[] path            UTF-8
+ * long  length           length of the content
+ * int[] checksums        of the chunks of the content, with FLAG_CHECKSUMS only
+ * byte[] content
+ * </pre>
+ *
+ * The content is checked against its checksums while it is written, so the
+ * checksums come first. An entry which cannot be stored is removed and its
+ * content skipped, the entries after it are stored anyway. Once the channel is
+ * closed {@link #getStatuses()} has an entry for every file: a short STATUS_*
+ * code and an int length followed by the error message.
+ */
+class BatchUploadChannel extends SequentialWriteChannel {
+
+	private static final Logger LOG = LoggerFactory.getLogger(BatchUploadChannel.class);
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final StorageService storage;
+	private final boolean checksums;
+	// the error message of every entry so far, null if it has been stored
+	private final List<byte[]> messages = new ArrayList<byte[]>();
+	// the part of the entry header being read, null while reading content
+	private ByteBuffer header = ByteBuffer.allocate(2);
+	// the bytes of the payload not consumed yet
+	private long left;
+	private int pathLength = -1;
+	private String path;
+	private long length;
+	private long remaining;
+	private FileChannel output;
+	private ChunkedCrc32c crc;
+	private IOException entryFailure;
+	private ByteBuffer statuses;
+
+	/**
+	 * @param size
+	 *            the length of the payload, no entry may reach beyond it
+	 */
+	BatchUploadChannel(StorageService storage, boolean checksums, long size) {
+		super();
+		this.storage = storage;
+		this.checksums = checksums;
+		this.left = size;
+	}
+
+	@Override
+	protected void consume(ByteBuffer src) throws IOException {
+		while (src.hasRemaining()) {
+			if (header != null) {
+				int before = src.remaining();
+				boolean filled = fill(header, src);
+				left -= before - src.remaining();
+				if (filled) {
+					readHeader();
+				}
+			} else {
+				int count = (int) Math.min(remaining, src.remaining());
+				left -= count;
+				ByteBuffer part = src.duplicate();
+				part.limit(part.position() + count);
+				src.position(part.limit());
+				store(part);
+				remaining -= count;
+				if (remaining == 0) {
+					finishEntry();
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return true if the buffer has been filled
+	 */
+	private static boolean fill(ByteBuffer dst, ByteBuffer src) {
+		int count = Math.min(dst.remaining(), src.remaining());
+		ByteBuffer part = src.duplicate();
+		part.limit(part.position() + count);
+		dst.put(part);
+		src.position(src.position() + count);
+		return !dst.hasRemaining();
+	}
+
+	/**
+	 * Move on to the next part of the header of the current entry, or start
+	 * storing its content once the header is complete
+	 */
+	private void readHeader() throws IOException {
+		header.flip();
+		if (pathLength == -1) {
+			pathLength = header.getShort() & 0xFFFF;
+			if (pathLength == 0) {
+				throw new ProtocolException("Batch entry " + messages.size() + " without a path");
+			}
+			header = ByteBuffer.allocate(pathLength + 8);
+			return;
+		}
+		if (path == null) {
+			byte[] name = new byte[pathLength];
+			header.get(name);
+			path = new String(name, UTF8);
+			length = header.getLong();
+			long chunks = length < 0 ? 0 : Crc32c.chunks(length);
+			if (length < 0 || length + (checksums ? 4 * chunks : 0) > left || chunks > Integer.MAX_VALUE / 4) {
+				throw new ProtocolException("Invalid length " + length + " of batch entry " + path + " with "
+						+ left + " bytes of the payload left");
+			}
+			if (checksums && chunks > 0) {
+				header = ByteBuffer.allocate(4 * (int) chunks);
+				return;
+			}
+			startEntry(null);
+			return;
+		}
+		int[] expected = new int[header.remaining() / 4];
+		header.asIntBuffer().get(expected);
+		startEntry(expected);
+	}
+
+	private void startEntry(int[] expected) throws IOException {
+		header = null;
+		remaining = length;
+		try {
+			crc = expected == null ? new ChunkedCrc32c(path, length) : new ChunkedCrc32c(path, length, expected);
+			output = storage.create(path, length);
+		} catch (IOException e) {
+			// e.g. the file exists, which must not be removed
+			LOG.warn("Unable to create {} of a batch: {}", path, e.getMessage());
+			entryFailure = e;
+		}
+		if (remaining == 0) {
+			finishEntry();
+		}
+	}
+
+	private void store(ByteBuffer part) {
+		if (entryFailure != null) {
+			return;
+		}
+		try {
+			crc.update(part);
+			long position = length - remaining - part.position();
+			while (part.hasRemaining()) {
+				output.write(part, position + part.position());
+			}
+		} catch (IOException e) {
+			fail(e);
+		}
+	}
+
+	private void finishEntry() {
+		if (entryFailure == null) {
+			try {
+				storage.putChecksums(path, crc.getChecksums());
+				FileChannel ch = output;
+				output = null;
+				ch.close();
+			} catch (IOException e) {
+				fail(e);
+			}
+		}
+		messages.add(entryFailure == null ? null : String.valueOf(entryFailure.getMessage()).getBytes(UTF8));
+		header = ByteBuffer.allocate(2);
+		pathLength = -1;
+		path = null;
+		crc = null;
+		entryFailure = null;
+	}
+
+	/**
+	 * Drop the current entry, removing what has been stored of it
+	 */
+	private void fail(IOException e) {
+		LOG.warn("Unable to store {} of a batch: {}", path, e.getMessage());
+		entryFailure = e;
+		if (output == null) {
+			return;
+		}
+		try {
+			output.close();
+		} catch (IOException ignored) {
+			// removed anyway
+		}
+		output = null;
+		try {
+			storage.delete(path);
+		} catch (IOException removal) {
+			LOG.warn("Unable to remove partial upload {}", path, removal);
+		}
+	}
+
+	@Override
+	protected void finish(IOException failure) throws IOException {
+		boolean complete = header != null && pathLength == -1 && header.position() == 0;
+		IOException cutOff = null;
+		if (!complete) {
+			cutOff = new IOException("Batch upload ended within " + (path == null ? "an entry" : path));
+			fail(cutOff);
+		}
+		int size = 0;
+		for (byte[] message : messages) {
+			size += 6 + (message == null ? 0 : message.length);
+		}
+		ByteBuffer buf = ByteBuffer.allocate(size);
+		for (byte[] message : messages) {
+			buf.putShort(message == null ? Constants.STATUS_OK : Constants.STATUS_ERROR);
+			buf.putInt(message == null ? 0 : message.length);
+			if (message != null) {
+				buf.put(message);
+			}
+		}
+		buf.flip();
+		statuses = buf;
+		if (failure == null && cutOff != null) {
+			throw cutOff;
+		}
+	}
+
+	/**
+	 * @return the status of every entry of the upload in order, once the
+	 *         channel has been closed
+	 */
+	ByteBuffer getStatuses() {
+		return statuses;
+	}
+}
@@ -0,0 +1,216 @@
+package org.hazelfs.networking;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.hazelfs.services.Crc32c;
+import org.hazelfs.services.StripedCounter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A size classed pool of direct {@link ByteBuffer}s. A pool is not thread safe,
+ * every reactor owns its own instance and client code uses the one bound to the
+ * current thread via {@link #local()}.
+ *
+ * When debug logging is enabled for this class every buffer handed out is
+ * tracked until it is released, and {@link #reportLeaks()} logs the places
+ * where the buffers still outstanding have been acquired.
+ */
+public class BufferPool {
+
+	private static final Logger LOG = LoggerFactory.getLogger(BufferPool.class);
+
+	/**
+	 * The slab size used for streaming file contents, a slab of an upload is
+	 * exactly one checksummed chunk
+	 */
+	public static final int SLAB_SIZE = Crc32c.CHUNK_SIZE;
+
+	private static final int[] SIZE_CLASSES = { 64, 4096, 64 * 1024, SLAB_SIZE };
+	private static final int[] MAX_POOLED = { 64, 32, 16, 4 };
+
+	private static final boolean LEAK_DETECTION = LOG.isDebugEnabled();
+	private static final Map<ByteBuffer, Throwable> OUTSTANDING = new IdentityHashMap<ByteBuffer, Throwable>();
+
+	// every reactor acquires buffers for every request, the counters are shared
+	private static final StripedCounter HITS = new StripedCounter();
+	private static final StripedCounter MISSES = new StripedCounter();
+	private static final StripedCounter ALLOCATED_BYTES = new StripedCounter();
+	private static final StripedCounter USED_BYTES = new StripedCounter();
+	private static final StripedCounter POOLED_BYTES = new StripedCounter();
+
+	private static final ThreadLocal<BufferPool> LOCAL = new ThreadLocal<BufferPool>() {
+		@Override
+		protected BufferPool initialValue() {
+			return new BufferPool();
+		}
+	};
+
+	private final ArrayDeque<ByteBuffer>[] free;
+	// buffers given back by other threads, taken over on the next acquire
+	private final Queue<ByteBuffer> returned = new ConcurrentLinkedQueue<ByteBuffer>();
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public BufferPool() {
+		free = new ArrayDeque[SIZE_CLASSES.length];
+		for (int i = 0; i < SIZE_CLASSES.length; i++) {
+			free[i] = new ArrayDeque<ByteBuffer>();
+		}
+	}
+
+	/**
+	 * @return the pool bound to the calling thread
+	 */
+	public static BufferPool local() {
+		return LOCAL.get();
+	}
+
+	/**
+	 * Get a cleared direct buffer with its limit set to the requested size.
+	 * Requests larger than the biggest size class are served by an unpooled
+	 * buffer.
+	 */
+	public ByteBuffer acquire(int size) {
+		ByteBuffer back;
+		while ((back = returned.poll()) != null) {
+			keep(back);
+		}
+		int sizeClass = sizeClass(size);
+		ByteBuffer buf = null;
+		if (sizeClass >= 0) {
+			buf = free[sizeClass].pollFirst();
+		}
+		if (buf == null) {
+			MISSES.increment();
+			int capacity = sizeClass >= 0 ? SIZE_CLASSES[sizeClass] : size;
+			ALLOCATED_BYTES.add(capacity);
+			buf = ByteBuffer.allocateDirect(capacity);
+		} else {
+			HITS.increment();
+			POOLED_BYTES.add(-buf.capacity());
+		}
+		USED_BYTES.add(buf.capacity());
+		buf.clear();
+		buf.limit(size);
+		if (LEAK_DETECTION) {
+			synchronized (OUTSTANDING) {
+				OUTSTANDING.put(buf, new Throwable("Buffer of " + size + " bytes acquired here"));
+			}
+		}
+		return buf;
+	}
+
+	/**
+	 * Return a buffer obtained by {@link #acquire(int)} to the pool. Releasing
+	 * null is a no-op.
+	 */
+	public void release(ByteBuffer buf) {
+		if (unused(buf)) {
+			keep(buf);
+		}
+	}
+
+	/**
+	 * Return a buffer obtained by {@link #acquire(int)} from a thread other than
+	 * the one the pool belongs to
+	 */
+	public void giveBack(ByteBuffer buf) {
+		if (unused(buf)) {
+			returned.add(buf);
+		}
+	}
+
+	private boolean unused(ByteBuffer buf) {
+		if (buf == null) {
+			return false;
+		}
+		if (LEAK_DETECTION) {
+			synchronized (OUTSTANDING) {
+				if (OUTSTANDING.remove(buf) == null) {
+					LOG.warn("Releasing a buffer that has not been acquired or has already been released",
+							new Throwable());
+					return false;
+				}
+			}
+		}
+		USED_BYTES.add(-buf.capacity());
+		return true;
+	}
+
+	private void keep(ByteBuffer buf) {
+		int sizeClass = sizeClass(buf.capacity());
+		if (sizeClass >= 0 && SIZE_CLASSES[sizeClass] == buf.capacity() && buf.isDirect()
+				&& free[sizeClass].size() < MAX_POOLED[sizeClass]) {
+			free[sizeClass].addFirst(buf);
+			POOLED_BYTES.add(buf.capacity());
+		}
+	}
+
+	private static int sizeClass(int size) {
+		for (int i = 0; i < SIZE_CLASSES.length; i++) {
+			if (size <= SIZE_CLASSES[i]) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the number of buffers served from a pool
+	 */
+	public static long getHits() {
+		return HITS.sum();
+	}
+
+	/**
+	 * @return the number of buffers that had to be allocated
+	 */
+	public static long getMisses() {
+		return MISSES.sum();
+	}
+
+	/**
+	 * @return the number of bytes allocated for direct buffers by all pools
+	 */
+	public static long getAllocatedBytes() {
+		return ALLOCATED_BYTES.sum();
+	}
+
+	/**
+	 * @return the number of bytes of the buffers handed out by all pools and not
+	 *         released yet
+	 */
+	public static long getUsedBytes() {
+		return USED_BYTES.sum();
+	}
+
+	/**
+	 * @return the number of bytes of the buffers kept by all pools for reuse
+	 */
+	public static long getPooledBytes() {
+		return POOLED_BYTES.sum();
+	}
+
+	/**
+	 * Log every buffer that has been acquired but not released yet. Only works
+	 * when debug logging is enabled for this class.
+	 *
+	 * @return the number of outstanding buffers
+	 */
+	public static int reportLeaks() {
+		if (!LEAK_DETECTION) {
+			return 0;
+		}
+		synchronized (OUTSTANDING) {
+			for (Throwable t : OUTSTANDING.values()) {
+				LOG.warn("Buffer has not been released", t);
+			}
+			return OUTSTANDING.size();
+		}
+	}
+}
@@ -0,0 +1,258 @@
+package org.hazelfs.networking;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Per connection state of a {@link HazelFSReactor}. An instance is attached to
+ * the connection's {@link SelectionKey} and owns the request currently being
+ * read and the responses waiting to be written together with their buffers
+ * and channels.
+ *
+ * While storage work of the connection is in progress on the
+ * {@link DiskExecutor} the reactor suspends reading or writing, which keeps the
+ * connection from producing more work than the disks can take.
+ */
+class Connection {
+
+	private static final Logger LOG = LoggerFactory.getLogger(Connection.class);
+
+	/** The number of responses a client may have queued before we stop reading */
+	static final int MAX_PIPELINED_REQUESTS = 64;
+
+	private final SocketChannel channel;
+	private final SelectionKey key;
+	private final String remoteAddress;
+	private final BufferPool pool;
+	private final ArrayDeque<Response> pending = new ArrayDeque<Response>();
+	private Request request;
+	private Response current;
+	private int headBypassed = 0;
+	private int preparing = 0;
+	private boolean readSuspended = false;
+	private boolean writeSuspended = false;
+
+	Connection(SocketChannel channel, SelectionKey key, BufferPool pool) throws IOException {
+		super();
+		this.channel = channel;
+		this.key = key;
+		this.pool = pool;
+		this.remoteAddress = String.valueOf(channel.getRemoteAddress());
+		this.request = newRequest();
+	}
+
+	private Request newRequest() {
+		Request req = new Request();
+		req.setBuffer(pool.acquire(Constants.PROTO_HEADER_SIZE));
+		return req;
+	}
+
+	public SocketChannel getChannel() {
+		return channel;
+	}
+
+	public Request getRequest() {
+		return request;
+	}
+
+	public boolean isOpen() {
+		return request != null;
+	}
+
+	/**
+	 * @return true if another request may be read before the client has
+	 *         consumed some of the queued responses
+	 */
+	public boolean canAcceptRequest() {
+		return isOpen() && !readSuspended && pending.size() + preparing < MAX_PIPELINED_REQUESTS;
+	}
+
+	/**
+	 * Start reading the next request from the client
+	 */
+	public void expectRequest() {
+		pool.release(request.getBuffer());
+		this.request = newRequest();
+		this.readSuspended = false;
+		updateInterestOps();
+	}
+
+	/**
+	 * Announce a response that is being prepared on a disk thread, it counts
+	 * against the pipelining limit until it is passed to
+	 * {@link #respond(Response)}
+	 */
+	public void prepareResponse() {
+		preparing++;
+		updateInterestOps();
+	}
+
+	/**
+	 * Drop a response announced by {@link #prepareResponse()} without
+	 * responding, e.g. because the connection has been closed
+	 */
+	public void abandonResponse() {
+		preparing--;
+		updateInterestOps();
+	}
+
+	/**
+	 * Queue a response for writing. Responses are not necessarily written in the
+	 * order they are queued in.
+	 */
+	public void respond(Response resp) {
+		resp.prepare(pool.acquire(resp.getHeaderSize()));
+		pending.add(resp);
+		updateInterestOps();
+	}
+
+	/**
+	 * Queue a response announced by {@link #prepareResponse()}
+	 */
+	public void respondPrepared(Response resp) {
+		preparing--;
+		respond(resp);
+	}
+
+	/**
+	 * Stop or resume reading from the client
+	 */
+	public void setReadSuspended(boolean readSuspended) {
+		this.readSuspended = readSuspended;
+		updateInterestOps();
+	}
+
+	/**
+	 * Stop or resume writing to the client
+	 */
+	public void setWriteSuspended(boolean writeSuspended) {
+		this.writeSuspended = writeSuspended;
+		updateInterestOps();
+	}
+
+	public boolean isWriteSuspended() {
+		return writeSuspended;
+	}
+
+	/**
+	 * @return the response to write next or null if there is nothing to write
+	 */
+	public Response currentResponse() {
+		if (current == null && !pending.isEmpty()) {
+			current = nextResponse();
+		}
+		return current;
+	}
+
+	/**
+	 * Pick the queued response with the smallest stream so that small requests
+	 * do not wait behind a large download. A response that has been passed over
+	 * for too long is written regardless of its size.
+	 */
+	private Response nextResponse() {
+		Response head = pending.peekFirst();
+		Response next = head;
+		if (headBypassed < MAX_PIPELINED_REQUESTS) {
+			for (Response resp : pending) {
+				if (resp.getStreamSize() < next.getStreamSize()) {
+					next = resp;
+				}
+			}
+		}
+		headBypassed = next == head ? 0 : headBypassed + 1;
+		pending.remove(next);
+		return next;
+	}
+
+	/**
+	 * @return the bytes of the stream of the response being written that have
+	 *         not been sent yet
+	 */
+	public long getUnsentBytes() {
+		if (current == null || current.getState() != Response.State.WRITE_STREAM) {
+			return 0;
+		}
+		return current.getStreamSize() - current.getBytesWritten();
+	}
+
+	/**
+	 * Release the resources of the response that has just been written
+	 */
+	public void finishResponse() {
+		release(current);
+		current = null;
+		updateInterestOps();
+	}
+
+	private void release(Response resp) {
+		closeQuietly(resp.getSrc());
+		resp.setSrc(null);
+		resp.setData(null);
+		closeQuietly(resp.getDataOwner());
+		resp.setDataOwner(null);
+		pool.release(resp.getBuffer());
+		resp.setBuffer(null);
+	}
+
+	private void updateInterestOps() {
+		if (!key.isValid()) {
+			return;
+		}
+		int ops = 0;
+		if (!readSuspended && pending.size() + preparing < MAX_PIPELINED_REQUESTS) {
+			ops |= SelectionKey.OP_READ;
+		}
+		if (!writeSuspended && (current != null || !pending.isEmpty())) {
+			ops |= SelectionKey.OP_WRITE;
+		}
+		key.interestOps(ops);
+	}
+
+	/**
+	 * Release everything held by this connection and close the socket. An
+	 * upload in progress is left to the reactor, which removes the partial file
+	 * once its pending writes are done.
+	 */
+	public void close() {
+		if (request == null) {
+			return;
+		}
+		key.attach(null);
+		key.cancel();
+		pool.release(request.getBuffer());
+		request.setBuffer(null);
+		request = null;
+		if (current != null) {
+			release(current);
+			current = null;
+		}
+		for (Response resp : pending) {
+			release(resp);
+		}
+		pending.clear();
+		closeQuietly(channel);
+		LOG.debug("Closed connection from {}", remoteAddress);
+	}
+
+	private static void closeQuietly(Closeable c) {
+		if (c == null) {
+			return;
+		}
+		try {
+			c.close();
+		} catch (IOException e) {
+			LOG.warn("Unable to close {}", c, e);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return remoteAddress;
+	}
+}
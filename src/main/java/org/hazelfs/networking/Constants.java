@@ -1,9 +1,83 @@
 package org.hazelfs.networking;
 
-import java.nio.charset.Charset;
-import java.nio.charset.CharsetEncoder;
-
+/**
+ * Wire protocol constants. Every request and response starts with a fixed
+ * header of {@link #PROTO_HEADER_SIZE} bytes:
+ * 
+ * <pre>
+ * int   magic            PROTO_MAGIC
+ * byte  version          PROTO_VERSION
+ * byte  opcode           PROTO_*
+ * short flags            FLAG_* of requests, the STATUS_* code in responses
+ * int   request id       chosen by the client, echoed in the response
+ * int   param length     length of the parameter following the header
+ * long  payload length   length of the stream following the parameter
+ * </pre>
+ * 
+ * Clients may pipeline requests, the server answers them in any order and
+ * the client matches the responses by their request id.
+ */
 public class Constants {
+	public static final int PROTO_MAGIC = 0x485A4653;
+	public static final byte PROTO_VERSION = 2;
+	public static final int PROTO_HEADER_SIZE = 24;
+	public static final int PROTO_MAX_PARAM_SIZE = 64 * 1024;
+
 	public static final int PROTO_REQUEST_FILE = 1;
 	public static final int PROTO_CREATE_FILE = 2;
+	/** Like PROTO_REQUEST_FILE, the param starts with a long offset and a long length */
+	public static final int PROTO_REQUEST_RANGE = 3;
+	/** Answered with the size of a file as a long in the response param */
+	public static final int PROTO_STAT = 4;
+	/**
+	 * Upload to a node storing chunks, see
+	 * {@link org.hazelfs.services.DedupStorageService}. The param is the long
+	 * size of the file followed by its path, the payload the chunk records of
+	 * the file.
+	 */
+	public static final int PROTO_CREATE_CHUNKS = 5;
+	/**
+	 * Ask a node which chunks it stores. The param is a sequence of chunk
+	 * hashes, the response param has a byte per hash which is 1 if the chunk is
+	 * stored.
+	 */
+	public static final int PROTO_HAS_CHUNKS = 6;
+	/**
+	 * Download a number of files at once. The param is a sequence of paths,
+	 * each preceded by its length in bytes as a short. The response stream has
+	 * an entry per path in the same order, see {@link BatchResponseChannel}.
+	 */
+	public static final int PROTO_GET_BATCH = 7;
+	/**
+	 * The most files a PROTO_GET_BATCH request may ask for, the node keeps all
+	 * of them open until the response has been sent
+	 */
+	public static final int PROTO_MAX_BATCH_FILES = 1024;
+	/**
+	 * Upload a number of files at once. The payload is a sequence of entries
+	 * and the response stream has the status of every entry in the same order,
+	 * see {@link BatchUploadChannel}. An entry which cannot be stored does not
+	 * keep the others from being stored.
+	 */
+	public static final int PROTO_PUT_BATCH = 8;
+	/** Remove the file at the path in the param */
+	public static final int PROTO_DELETE = 9;
+
+	/**
+	 * Flag of a PROTO_CREATE_FILE request whose param starts with a write quorum
+	 * and the nodes to pass the upload on to, see {@link ReplicaStream}
+	 */
+	public static final short FLAG_REPLICATE = 1;
+	/**
+	 * Flag of a PROTO_CREATE_FILE request whose data is followed by the CRC32C
+	 * of every {@link org.hazelfs.services.Crc32c#CHUNK_SIZE} bytes as ints, the
+	 * payload length covers both. A PROTO_REQUEST_FILE request with this flag
+	 * is answered with the checksums kept for the file in the response param.
+	 * The entries of batches carry the checksums of their files instead.
+	 */
+	public static final short FLAG_CHECKSUMS = 2;
+
+	public static final short STATUS_OK = 0;
+	public static final short STATUS_NOT_FOUND = 1;
+	public static final short STATUS_ERROR = 2;
 }
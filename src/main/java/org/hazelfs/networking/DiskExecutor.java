@@ -0,0 +1,78 @@
+package org.hazelfs.networking;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A fixed set of threads doing the blocking storage work of the reactors of a
+ * listener. The queue in front of the threads is bounded, a reactor that finds
+ * it full has to hold the work back and stop reading from the connections
+ * producing it. The time every task keeps a thread busy is recorded in the
+ * listener's {@link ListenerMetrics}.
+ */
+class DiskExecutor {
+
+	private static final Logger LOG = LoggerFactory.getLogger(DiskExecutor.class);
+
+	private final ThreadPoolExecutor executor;
+
+	DiskExecutor(final String name, int threads, int queueSize, final ListenerMetrics metrics) {
+		super();
+		if (threads < 1 || queueSize < 1) {
+			throw new IllegalArgumentException("A disk executor needs at least one thread and one queue slot");
+		}
+		this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger();
+
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "hazelfs-disk-" + name + "-" + count.getAndIncrement());
+						t.setDaemon(true);
+						return t;
+					}
+				}) {
+			@Override
+			protected void afterExecute(Runnable r, Throwable t) {
+				if (r instanceof DiskTask) {
+					metrics.getDiskTasks().record(((DiskTask) r).getExecuteNanos());
+				}
+			}
+		};
+		this.executor.prestartAllCoreThreads();
+	}
+
+	/**
+	 * @return false if the queue is full and the task has not been accepted
+	 */
+	boolean trySubmit(Runnable task) {
+		try {
+			executor.execute(task);
+			return true;
+		} catch (RejectedExecutionException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * @return the number of tasks waiting for a thread
+	 */
+	int getQueueDepth() {
+		return executor.getQueue().size();
+	}
+
+	void shutdown() throws InterruptedException {
+		executor.shutdown();
+		if (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+			LOG.warn("Disk executor did not finish its pending work in time");
+			executor.shutdownNow();
+		}
+	}
+}
@@ -0,0 +1,66 @@
+package org.hazelfs.networking;
+
+import java.io.IOException;
+
+/**
+ * A piece of blocking storage work of a connection. {@link #execute()} runs on
+ * a thread of the {@link DiskExecutor}, afterwards the task is handed back to
+ * its reactor which calls {@link #complete(IOException)} on the selector
+ * thread, so only the reactor ever touches the connection state.
+ */
+abstract class DiskTask implements Runnable {
+
+	private final HazelFSReactor reactor;
+	private final Connection conn;
+	private IOException failure;
+	private long executeNanos;
+
+	DiskTask(HazelFSReactor reactor, Connection conn) {
+		super();
+		this.reactor = reactor;
+		this.conn = conn;
+	}
+
+	/**
+	 * Do the blocking work, called on a disk thread
+	 */
+	protected abstract void execute() throws IOException;
+
+	/**
+	 * Apply the result to the connection, called on the reactor thread. The
+	 * connection might have been closed in the meantime.
+	 *
+	 * @param failure
+	 *            the error thrown by {@link #execute()} or null
+	 */
+	protected abstract void complete(IOException failure) throws IOException;
+
+	@Override
+	public final void run() {
+		long start = System.nanoTime();
+		try {
+			execute();
+		} catch (IOException e) {
+			failure = e;
+		} catch (RuntimeException e) {
+			failure = new IOException(e);
+		}
+		executeNanos = System.nanoTime() - start;
+		reactor.completed(this);
+	}
+
+	public Connection getConnection() {
+		return conn;
+	}
+
+	public IOException getFailure() {
+		return failure;
+	}
+
+	/**
+	 * @return the time {@link #execute()} took, available once it has returned
+	 */
+	public long getExecuteNanos() {
+		return executeNanos;
+	}
+}
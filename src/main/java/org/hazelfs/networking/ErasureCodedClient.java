@@ -0,0 +1,531 @@
+package org.hazelfs.networking;
+
+import java.io.EOFException;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.hazelfs.services.Node;
+import org.hazelfs.services.NodePlacement;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stores large, rarely changing files erasure coded instead of copied. A file
+ * is cut into stripes of dataShards cells, every stripe gets parityShards
+ * parity cells computed by a {@link ReedSolomon} code, and cell i of every
+ * stripe goes to shard i. The dataShards + parityShards shards are uploaded
+ * concurrently as ordinary files to as many different nodes, the ones the
+ * {@link NodePlacement} puts the file on. A shard starts with the size of the
+ * file as a long.
+ *
+ * Reads fetch the data shards in parallel. A shard that cannot be read is
+ * replaced by a parity shard from the stripe on, and the missing cells are
+ * decoded, so a file survives the loss of up to parityShards nodes. The
+ * rebalancer moves a shard like any other file, it is looked for on the owner
+ * of its own path as well.
+ */
+public class ErasureCodedClient {
+
+	private static final Logger LOG = LoggerFactory.getLogger(ErasureCodedClient.class);
+
+	/** The size of the header in front of every shard */
+	private static final int HEADER_SIZE = 8;
+
+	private final NodePlacement placement;
+	private final ReedSolomon codec;
+	private final int dataShards;
+	private final int totalShards;
+	private int cellSize = 1024 * 1024;
+	private final ExecutorService executor;
+
+	public ErasureCodedClient(NodePlacement placement, int dataShards, int parityShards) {
+		super();
+		this.placement = placement;
+		this.codec = new ReedSolomon(dataShards, parityShards);
+		this.dataShards = dataShards;
+		this.totalShards = dataShards + parityShards;
+		this.executor = Executors.newCachedThreadPool(new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "hazelfs-erasure-" + count.getAndIncrement());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Set the number of bytes of a file in a cell, defaults to 1 MB. Files have
+	 * to be read with the cell size they have been written with.
+	 */
+	public void setCellSize(int cellSize) {
+		this.cellSize = cellSize;
+	}
+
+	/**
+	 * @return the path a shard of a file is stored under
+	 */
+	String shardPath(String path, int shard) {
+		return path + ".rs" + dataShards + "-" + (totalShards - dataShards) + "." + shard;
+	}
+
+	public void create(String path, InputStream data, long size) throws IOException {
+		List<Node> nodes = placement.locate(path, totalShards);
+		if (nodes.size() < totalShards) {
+			throw new IOException("Storing " + path + " needs " + totalShards + " nodes but there are only "
+					+ nodes.size());
+		}
+		long stripeSize = (long) dataShards * cellSize;
+		long stripes = (size + stripeSize - 1) / stripeSize;
+		long shardSize = HEADER_SIZE + stripes * cellSize;
+		ShardPipe[] pipes = new ShardPipe[totalShards];
+		List<Future<Void>> uploads = new ArrayList<Future<Void>>(totalShards);
+		for (int i = 0; i < totalShards; i++) {
+			pipes[i] = new ShardPipe();
+			uploads.add(executor.submit(new ShardUpload(nodes.get(i), shardPath(path, i), pipes[i], shardSize)));
+			pipes[i].upload = uploads.get(i);
+		}
+		try {
+			byte[] header = ByteBuffer.allocate(HEADER_SIZE).putLong(size).array();
+			for (ShardPipe pipe : pipes) {
+				pipe.put(header);
+			}
+			long remaining = size;
+			for (long s = 0; s < stripes; s++) {
+				// every cell goes to another pipe, so each stripe gets fresh arrays
+				byte[][] shards = new byte[totalShards][cellSize];
+				for (int j = 0; j < dataShards && remaining > 0; j++) {
+					int length = (int) Math.min(cellSize, remaining);
+					readFully(data, shards[j], length);
+					remaining -= length;
+				}
+				codec.encode(shards, 0, cellSize);
+				for (int i = 0; i < totalShards; i++) {
+					pipes[i].put(shards[i]);
+				}
+			}
+			for (ShardPipe pipe : pipes) {
+				pipe.put(ShardPipe.END);
+			}
+			for (Future<Void> upload : uploads) {
+				await(upload);
+			}
+		} catch (IOException e) {
+			for (ShardPipe pipe : pipes) {
+				pipe.abort();
+			}
+			throw e;
+		}
+		LOG.debug("stored {} bytes of {} in {} shards", size, path, totalShards);
+	}
+
+	private static void readFully(InputStream in, byte[] dst, int length) throws IOException {
+		int read = 0;
+		while (read < length) {
+			int n = in.read(dst, read, length - read);
+			if (n == -1) {
+				throw new EOFException("Stream ended " + (length - read) + " bytes early");
+			}
+			read += n;
+		}
+	}
+
+	private static void await(Future<Void> upload) throws IOException {
+		try {
+			upload.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException("Shard upload failed", e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while storing shards");
+		}
+	}
+
+	private class ShardUpload implements Callable<Void> {
+		private final Node node;
+		private final String shardPath;
+		private final ShardPipe pipe;
+		private final long shardSize;
+
+		ShardUpload(Node node, String shardPath, ShardPipe pipe, long shardSize) {
+			this.node = node;
+			this.shardPath = shardPath;
+			this.pipe = pipe;
+			this.shardSize = shardSize;
+		}
+
+		@Override
+		public Void call() throws IOException {
+			HazeFSClient client = new HazeFSClient(node.getUri().getPort(), node.getUri().getHost());
+			client.connect();
+			try {
+				client.create(shardPath, pipe, shardSize);
+			} finally {
+				client.disconnect();
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Hands the cells of a shard from the encoding thread to the thread
+	 * uploading the shard. Only a few cells are buffered, so the encoder runs at
+	 * the speed of the slowest upload.
+	 */
+	private static class ShardPipe extends InputStream {
+		static final byte[] END = new byte[0];
+
+		private final BlockingQueue<byte[]> chunks = new ArrayBlockingQueue<byte[]>(2);
+		private volatile Future<Void> upload;
+		private byte[] current;
+		private int position;
+
+		void put(byte[] chunk) throws IOException {
+			try {
+				while (!chunks.offer(chunk, 100, TimeUnit.MILLISECONDS)) {
+					if (upload.isDone()) {
+						// the actual failure is reported by the upload
+						await(upload);
+						throw new IOException("Shard upload ended early");
+					}
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while storing shards");
+			}
+		}
+
+		/**
+		 * End the stream early, the upload fails and its partial shard is
+		 * removed by the node
+		 */
+		void abort() {
+			chunks.clear();
+			chunks.offer(END);
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			while (current == null || position == current.length) {
+				if (current == END) {
+					return -1;
+				}
+				try {
+					current = chunks.take();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted while waiting for cells");
+				}
+				position = 0;
+			}
+			int n = Math.min(len, current.length - position);
+			System.arraycopy(current, position, b, off, n);
+			position += n;
+			return n;
+		}
+	}
+
+	/**
+	 * @return the size of an erasure coded file
+	 */
+	public long getSize(String path) throws IOException {
+		List<Node> nodes = placement.locate(path, totalShards);
+		for (int i = 0; i < totalShards; i++) {
+			for (Node n : shardNodes(nodes, path, i)) {
+				HazeFSClient client = new HazeFSClient(n.getUri().getPort(), n.getUri().getHost());
+				try {
+					client.connect();
+					try {
+						return client.read(shardPath(path, i), 0, HEADER_SIZE).getLong();
+					} finally {
+						client.disconnect();
+					}
+				} catch (IOException e) {
+					LOG.debug("Unable to read shard {} of {} from node {}: {}", i, path, n.getId(), e.getMessage());
+				}
+			}
+		}
+		throw new FileNotFoundException("No shard of " + path + " can be read");
+	}
+
+	/**
+	 * @return the nodes a shard can be found on, the one it has been written to
+	 *         first
+	 */
+	private List<Node> shardNodes(List<Node> nodes, String path, int shard) {
+		List<Node> candidates = new ArrayList<Node>(2);
+		if (shard < nodes.size()) {
+			candidates.add(nodes.get(shard));
+		}
+		Node owner = placement.locate(shardPath(path, shard));
+		if (owner != null && !candidates.contains(owner)) {
+			candidates.add(owner);
+		}
+		return candidates;
+	}
+
+	/**
+	 * Open an erasure coded file for reading
+	 */
+	public InputStream open(String path) throws IOException {
+		return new DecodingStream(path, getSize(path));
+	}
+
+	/**
+	 * Reads the cells of one shard from a node ahead of the decoder
+	 */
+	private class ShardReader implements Runnable {
+		private final String path;
+		private final int shard;
+		private final List<Node> candidates;
+		private final long firstStripe;
+		private final long stripes;
+		private final BlockingQueue<Object> cells = new ArrayBlockingQueue<Object>(2);
+		private volatile boolean closed;
+
+		ShardReader(String path, int shard, List<Node> candidates, long firstStripe, long stripes) {
+			this.path = path;
+			this.shard = shard;
+			this.candidates = candidates;
+			this.firstStripe = firstStripe;
+			this.stripes = stripes;
+		}
+
+		@Override
+		public void run() {
+			try {
+				read();
+			} catch (IOException e) {
+				offer(e);
+			}
+		}
+
+		private void read() throws IOException {
+			String shardPath = shardPath(path, shard);
+			long offset = HEADER_SIZE + firstStripe * cellSize;
+			long length = (stripes - firstStripe) * cellSize;
+			IOException failure = new FileNotFoundException("No node holds shard " + shard + " of " + path);
+			for (Node n : candidates) {
+				HazeFSClient client = new HazeFSClient(n.getUri().getPort(), n.getUri().getHost());
+				HazeFSReadChannel ch;
+				try {
+					client.connect();
+				} catch (IOException e) {
+					failure = e;
+					continue;
+				}
+				try {
+					ch = client.openChannel(shardPath, offset, length);
+				} catch (IOException e) {
+					failure = e;
+					disconnectQuietly(client);
+					continue;
+				}
+				try {
+					for (long s = firstStripe; s < stripes && !closed; s++) {
+						ByteBuffer cell = ByteBuffer.allocate(cellSize);
+						while (cell.hasRemaining()) {
+							if (ch.read(cell) == -1) {
+								throw new EOFException("Shard " + shard + " of " + path + " is truncated");
+							}
+						}
+						offer(cell.array());
+					}
+					return;
+				} finally {
+					disconnectQuietly(client);
+				}
+			}
+			throw failure;
+		}
+
+		private void offer(Object item) {
+			try {
+				while (!closed && !cells.offer(item, 100, TimeUnit.MILLISECONDS)) {
+					// the decoder is busy or has stopped reading
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		byte[] take() throws IOException {
+			Object item;
+			try {
+				item = cells.take();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while reading shard " + shard + " of " + path);
+			}
+			if (item instanceof IOException) {
+				throw (IOException) item;
+			}
+			return (byte[]) item;
+		}
+
+		void close() {
+			closed = true;
+			cells.clear();
+		}
+	}
+
+	private static void disconnectQuietly(HazeFSClient client) {
+		try {
+			client.disconnect();
+		} catch (IOException e) {
+			LOG.debug("Unable to disconnect from {}:{}: {}", client.getHost(), client.getPort(), e.getMessage());
+		}
+	}
+
+	/**
+	 * Decodes a file stripe by stripe from the first dataShards shards which can
+	 * be read
+	 */
+	private class DecodingStream extends InputStream {
+		private final String path;
+		private final long size;
+		private final long stripes;
+		private final List<Node> nodes;
+		private final ShardReader[] readers = new ShardReader[totalShards];
+		private final boolean[] failed = new boolean[totalShards];
+		private final List<Integer> active = new ArrayList<Integer>();
+		private long stripe = 0;
+		private byte[] buffer = new byte[0];
+		private int position;
+		private int limit;
+
+		DecodingStream(String path, long size) {
+			this.path = path;
+			this.size = size;
+			this.stripes = (size + (long) dataShards * cellSize - 1) / ((long) dataShards * cellSize);
+			this.nodes = placement.locate(path, totalShards);
+			for (int i = 0; i < dataShards; i++) {
+				start(i);
+			}
+		}
+
+		private void start(int shard) {
+			readers[shard] = new ShardReader(path, shard, shardNodes(nodes, path, shard), stripe, stripes);
+			active.add(shard);
+			executor.execute(readers[shard]);
+		}
+
+		/**
+		 * Replace a failed shard by the next one not used yet
+		 */
+		private void replace(int shard, IOException cause) throws IOException {
+			LOG.warn("Unable to read shard {} of {}, decoding it: {}", shard, path, cause.getMessage());
+			readers[shard].close();
+			readers[shard] = null;
+			failed[shard] = true;
+			active.remove(Integer.valueOf(shard));
+			for (int i = 0; i < totalShards; i++) {
+				if (readers[i] == null && !failed[i]) {
+					start(i);
+					return;
+				}
+			}
+			throw new IOException("Too many shards of " + path + " are lost, the last failure was: "
+					+ cause.getMessage());
+		}
+
+		private boolean nextStripe() throws IOException {
+			if (stripe == stripes) {
+				return false;
+			}
+			byte[][] shards = new byte[totalShards][];
+			boolean[] present = new boolean[totalShards];
+			// a failing shard adds its replacement to the active ones
+			for (int n = 0; n < active.size(); n++) {
+				int shard = active.get(n);
+				try {
+					shards[shard] = readers[shard].take();
+					present[shard] = true;
+				} catch (IOException e) {
+					replace(shard, e);
+					n--;
+				}
+			}
+			boolean complete = true;
+			for (int j = 0; j < dataShards; j++) {
+				if (!present[j]) {
+					shards[j] = new byte[cellSize];
+					complete = false;
+				}
+			}
+			if (!complete) {
+				codec.decode(shards, present, 0, cellSize);
+			}
+			long stripeSize = (long) dataShards * cellSize;
+			limit = (int) Math.min(stripeSize, size - stripe * stripeSize);
+			if (buffer.length < stripeSize) {
+				buffer = new byte[(int) stripeSize];
+			}
+			for (int j = 0; j < dataShards; j++) {
+				System.arraycopy(shards[j], 0, buffer, j * cellSize, cellSize);
+			}
+			position = 0;
+			stripe++;
+			return true;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (position == limit && !nextStripe()) {
+				return -1;
+			}
+			int n = Math.min(len, limit - position);
+			System.arraycopy(buffer, position, b, off, n);
+			position += n;
+			return n;
+		}
+
+		@Override
+		public void close() {
+			for (ShardReader r : readers) {
+				if (r != null) {
+					r.close();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Stop the threads transferring shards
+	 */
+	public void close() {
+		executor.shutdownNow();
+	}
+}
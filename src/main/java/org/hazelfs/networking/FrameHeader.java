@@ -0,0 +1,86 @@
+package org.hazelfs.networking;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * The fixed size header in front of every request and response, see
+ * {@link Constants} for the layout
+ */
+class FrameHeader {
+	private final int opcode;
+	private final short flags;
+	private final int requestId;
+	private final int paramLength;
+	private final long payloadLength;
+
+	FrameHeader(int opcode, short flags, int requestId, int paramLength, long payloadLength) {
+		super();
+		this.opcode = opcode;
+		this.flags = flags;
+		this.requestId = requestId;
+		this.paramLength = paramLength;
+		this.payloadLength = payloadLength;
+	}
+
+	/**
+	 * Decode a header from the next {@link Constants#PROTO_HEADER_SIZE} bytes
+	 * of the given buffer
+	 */
+	static FrameHeader decode(ByteBuffer buf) throws ProtocolException {
+		int magic = buf.getInt();
+		if (magic != Constants.PROTO_MAGIC) {
+			throw new ProtocolException("Invalid magic number 0x" + Integer.toHexString(magic));
+		}
+		byte version = buf.get();
+		if (version != Constants.PROTO_VERSION) {
+			throw new ProtocolException("Unsupported protocol version " + version);
+		}
+		int opcode = buf.get() & 0xff;
+		short flags = buf.getShort();
+		int requestId = buf.getInt();
+		int paramLength = buf.getInt();
+		long payloadLength = buf.getLong();
+		if (paramLength < 0 || payloadLength < 0) {
+			throw new ProtocolException("Negative length in header of request " + requestId);
+		}
+		return new FrameHeader(opcode, flags, requestId, paramLength, payloadLength);
+	}
+
+	void encode(ByteBuffer buf) {
+		buf.putInt(Constants.PROTO_MAGIC);
+		buf.put(Constants.PROTO_VERSION);
+		buf.put((byte) opcode);
+		buf.putShort(flags);
+		buf.putInt(requestId);
+		buf.putInt(paramLength);
+		buf.putLong(payloadLength);
+	}
+
+	public int getOpcode() {
+		return opcode;
+	}
+
+	public short getFlags() {
+		return flags;
+	}
+
+	/**
+	 * @return the status of a response, which is sent in the flags field
+	 */
+	public short getStatus() {
+		return flags;
+	}
+
+	public int getRequestId() {
+		return requestId;
+	}
+
+	public int getParamLength() {
+		return paramLength;
+	}
+
+	public long getPayloadLength() {
+		return payloadLength;
+	}
+}
@@ -0,0 +1,325 @@
+package org.hazelfs.networking;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.hazelfs.services.ChunkedCrc32c;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A thread-safe client for any number of nodes which does not block its
+ * callers. Every call returns a {@link HazeFSFuture} right away, a single I/O
+ * thread drives all connections with its own selector. The connections to a
+ * node are pooled, see {@link NodePool}, a connection carries one call at a
+ * time and calls queue up while all connections of a node are busy.
+ *
+ * Files are sent from and received into memory, which suits the many small
+ * files of typical application servers. Large files are better streamed with
+ * a {@link HazeFSClient}.
+ */
+public class HazeFSAsyncClient implements Closeable {
+
+	private static final Logger LOG = LoggerFactory.getLogger(HazeFSAsyncClient.class);
+
+	/** How often the pools are looked after */
+	private static final long MAINTENANCE_MILLIS = 1000;
+
+	private static final AtomicInteger COUNT = new AtomicInteger();
+
+	// only touched by the I/O thread
+	private final Map<InetSocketAddress, NodePool> pools = new HashMap<InetSocketAddress, NodePool>();
+	private final Queue<Submission> submitted = new ConcurrentLinkedQueue<Submission>();
+	private int minConnections = 1;
+	private int maxConnections = 16;
+	private long idleTimeoutMillis = 60 * 1000;
+	private long healthCheckIntervalMillis = 30 * 1000;
+	private long connectTimeoutMillis = 5 * 1000;
+	private boolean checksums = true;
+	private Selector selector;
+	private Thread thread;
+	private volatile boolean closed = false;
+
+	/**
+	 * Set the number of connections kept open to a node once it has been
+	 * used, defaults to 1
+	 */
+	public void setMinConnections(int minConnections) {
+		this.minConnections = minConnections;
+	}
+
+	public int getMinConnections() {
+		return minConnections;
+	}
+
+	/**
+	 * Set the number of connections to a node calls are spread over at most,
+	 * defaults to 16
+	 */
+	public void setMaxConnections(int maxConnections) {
+		this.maxConnections = maxConnections;
+	}
+
+	public int getMaxConnections() {
+		return maxConnections;
+	}
+
+	/**
+	 * Set how long a connection above the minimum may stay unused before it is
+	 * closed, defaults to a minute
+	 */
+	public void setIdleTimeoutMillis(long idleTimeoutMillis) {
+		this.idleTimeoutMillis = idleTimeoutMillis;
+	}
+
+	public long getIdleTimeoutMillis() {
+		return idleTimeoutMillis;
+	}
+
+	/**
+	 * Set how long an idle connection goes without a request before it is
+	 * checked, defaults to 30 seconds
+	 */
+	public void setHealthCheckIntervalMillis(long healthCheckIntervalMillis) {
+		this.healthCheckIntervalMillis = healthCheckIntervalMillis;
+	}
+
+	public long getHealthCheckIntervalMillis() {
+		return healthCheckIntervalMillis;
+	}
+
+	/**
+	 * Set how long connecting to a node may take, defaults to 5 seconds
+	 */
+	public void setConnectTimeoutMillis(long connectTimeoutMillis) {
+		this.connectTimeoutMillis = connectTimeoutMillis;
+	}
+
+	public long getConnectTimeoutMillis() {
+		return connectTimeoutMillis;
+	}
+
+	/**
+	 * Send the checksums of the chunks of uploads along with the data and check
+	 * downloaded files against the checksums the nodes keep for them.
+	 * Defaults to true.
+	 */
+	public void setChecksums(boolean checksums) {
+		this.checksums = checksums;
+	}
+
+	/**
+	 * Start the I/O thread, the settings must not be changed afterwards
+	 */
+	public void start() throws IOException {
+		selector = Selector.open();
+		thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				loop();
+			}
+		}, "hazelfs-async-client-" + COUNT.getAndIncrement());
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Receive a file into memory
+	 *
+	 * @return the content of the file, failing with a
+	 *         {@link java.io.FileNotFoundException} if it does not exist
+	 */
+	public HazeFSFuture<ByteBuffer> open(InetSocketAddress node, final String path) {
+		final String location = "hazefs://" + node.getHostString() + ":" + node.getPort() + "/" + path;
+		return submit(node, new AsyncCall<ByteBuffer>(Constants.PROTO_REQUEST_FILE, flags(), path) {
+			@Override
+			protected ByteBuffer result(byte[] param, ByteBuffer payload) throws IOException {
+				if (param.length > 0) {
+					int[] expected = new int[param.length / 4];
+					ByteBuffer.wrap(param).asIntBuffer().get(expected);
+					new ChunkedCrc32c(location, payload.remaining(), expected).update(payload);
+				}
+				return payload;
+			}
+		});
+	}
+
+	/**
+	 * Create a file with the remaining bytes of the given buffer, which must
+	 * not be changed until the call is done
+	 */
+	public HazeFSFuture<Void> create(InetSocketAddress node, String path, ByteBuffer data) {
+		ByteBuffer content = data.duplicate();
+		ByteBuffer trailer = ByteBuffer.allocate(0);
+		if (checksums) {
+			ChunkedCrc32c crc = new ChunkedCrc32c(path, content.remaining());
+			try {
+				crc.update(content);
+			} catch (IOException e) {
+				// the checksums are computed over exactly the given size
+				throw new IllegalStateException(e);
+			}
+			trailer = ByteBuffer.allocate(4 * crc.getChecksums().length);
+			trailer.asIntBuffer().put(crc.getChecksums());
+		}
+		return submit(node, new AsyncCall<Void>(Constants.PROTO_CREATE_FILE, flags(), path, content, trailer) {
+			@Override
+			protected Void result(byte[] param, ByteBuffer payload) {
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Remove a file, failing with a {@link java.io.FileNotFoundException} if it
+	 * does not exist
+	 */
+	public HazeFSFuture<Void> delete(InetSocketAddress node, String path) {
+		return submit(node, new AsyncCall<Void>(Constants.PROTO_DELETE, (short) 0, path) {
+			@Override
+			protected Void result(byte[] param, ByteBuffer payload) {
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * @return the size of a file, failing with a
+	 *         {@link java.io.FileNotFoundException} if it does not exist
+	 */
+	public HazeFSFuture<Long> getSize(InetSocketAddress node, String path) {
+		return submit(node, new AsyncCall<Long>(Constants.PROTO_STAT, (short) 0, path) {
+			@Override
+			protected Long result(byte[] param, ByteBuffer payload) {
+				return ByteBuffer.wrap(param).getLong();
+			}
+		});
+	}
+
+	private short flags() {
+		return checksums ? Constants.FLAG_CHECKSUMS : 0;
+	}
+
+	private <V> HazeFSFuture<V> submit(InetSocketAddress node, AsyncCall<V> call) {
+		if (selector == null) {
+			throw new IllegalStateException("Client has not been started");
+		}
+		submitted.add(new Submission(node, call));
+		if (closed) {
+			// the I/O thread might be gone already
+			failSubmitted(new ClosedChannelException());
+		} else {
+			selector.wakeup();
+		}
+		return call.getFuture();
+	}
+
+	/**
+	 * The body of the I/O thread
+	 */
+	private void loop() {
+		long lastMaintenance = System.currentTimeMillis();
+		try {
+			while (!closed) {
+				selector.select(MAINTENANCE_MILLIS);
+				Submission s;
+				while ((s = submitted.poll()) != null) {
+					pool(s.node).submit(s.call);
+				}
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					AsyncConnection conn = (AsyncConnection) key.attachment();
+					try {
+						if (key.isValid()) {
+							conn.handle();
+						}
+					} catch (IOException e) {
+						LOG.debug("Closing connection after I/O error: {}", e.getMessage());
+						conn.close(e);
+					}
+				}
+				long now = System.currentTimeMillis();
+				if (now - lastMaintenance >= MAINTENANCE_MILLIS) {
+					for (NodePool pool : pools.values()) {
+						pool.maintain(now);
+					}
+					lastMaintenance = now;
+				}
+			}
+		} catch (IOException e) {
+			LOG.error("I/O thread of the async client failed", e);
+		} catch (RuntimeException e) {
+			LOG.error("I/O thread of the async client failed", e);
+		} finally {
+			closed = true;
+			IOException failure = new AsynchronousCloseException();
+			for (NodePool pool : pools.values()) {
+				pool.shutdown(failure);
+			}
+			failSubmitted(failure);
+			try {
+				selector.close();
+			} catch (IOException e) {
+				LOG.debug("Unable to close selector: {}", e.getMessage());
+			}
+		}
+	}
+
+	private NodePool pool(InetSocketAddress node) {
+		NodePool pool = pools.get(node);
+		if (pool == null) {
+			pool = new NodePool(this, selector, node);
+			pools.put(node, pool);
+		}
+		return pool;
+	}
+
+	private void failSubmitted(IOException failure) {
+		Submission s;
+		while ((s = submitted.poll()) != null) {
+			s.call.getFuture().fail(failure);
+		}
+	}
+
+	/**
+	 * Stop the I/O thread, the calls that are not done yet fail
+	 */
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		if (selector == null) {
+			return;
+		}
+		selector.wakeup();
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new AsynchronousCloseException();
+		}
+	}
+
+	private static class Submission {
+		private final InetSocketAddress node;
+		private final AsyncCall<?> call;
+
+		Submission(InetSocketAddress node, AsyncCall<?> call) {
+			this.node = node;
+			this.call = call;
+		}
+	}
+}
@@ -0,0 +1,154 @@
+package org.hazelfs.networking;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+
+import org.hazelfs.services.ChecksumException;
+import org.hazelfs.services.ChunkedCrc32c;
+
+/**
+ * Reads the files of {@link HazeFSClient#getAll(Collection)} one at a time off
+ * the responses to batch requests, see {@link Constants#PROTO_GET_BATCH}. The
+ * paths are asked for in batches filling the param of a request, the next
+ * batch is requested once the previous one has been read, so only a single
+ * file is held in memory at any time.
+ *
+ * Like a download the reader has to be read to the end or closed before the
+ * client makes another request, otherwise the rest of the current batch is
+ * skipped and the reader fails.
+ */
+public class HazeFSBatchReader implements Closeable {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final HazeFSClient client;
+	private final Iterator<String> paths;
+	private final Queue<String> batch = new ArrayDeque<String>();
+	private final ByteBuffer header = ByteBuffer.allocate(BatchResponseChannel.ENTRY_HEADER_SIZE);
+	private HazeFSReadChannel current;
+	// the path that did not fit into the previous batch
+	private String next;
+	private boolean closed = false;
+
+	HazeFSBatchReader(HazeFSClient client, Collection<String> paths) {
+		super();
+		this.client = client;
+		this.paths = paths.iterator();
+	}
+
+	/**
+	 * @return the next file in the order of the paths, or null once all of
+	 *         them have been read
+	 */
+	public BatchEntry next() throws IOException {
+		if (closed) {
+			return null;
+		}
+		if (batch.isEmpty()) {
+			if (next == null && !paths.hasNext()) {
+				return null;
+			}
+			requestBatch();
+		} else if (current != client.getOpenChannel()) {
+			throw new IOException("The rest of the batch has been skipped by a later request");
+		}
+		String path = batch.poll();
+		header.clear();
+		readFully(header);
+		short status = header.getShort();
+		int count = header.getInt();
+		long length = header.getLong();
+		if (count < 0 || length < 0 || length > Integer.MAX_VALUE - 8) {
+			throw new ProtocolException("Invalid batch entry of " + length + " bytes for " + path);
+		}
+		int[] expected = new int[count];
+		if (count > 0) {
+			ByteBuffer checksums = ByteBuffer.allocate(4 * count);
+			readFully(checksums);
+			checksums.asIntBuffer().get(expected);
+		}
+		byte[] content = new byte[(int) length];
+		readFully(ByteBuffer.wrap(content));
+		String location = "hazefs://" + client.getHost() + ":" + client.getPort() + "/" + path;
+		switch (status) {
+		case Constants.STATUS_OK:
+			try {
+				if (count > 0) {
+					new ChunkedCrc32c(location, length, expected).update(ByteBuffer.wrap(content));
+				}
+			} catch (ChecksumException e) {
+				// the entry has been read, the batch goes on with the next one
+				return new BatchEntry(path, Constants.STATUS_ERROR, null, e);
+			}
+			return new BatchEntry(path, status, content, null);
+		case Constants.STATUS_NOT_FOUND:
+			return new BatchEntry(path, status, null, new FileNotFoundException("File " + location
+					+ " does not exist"));
+		default:
+			return new BatchEntry(path, status, null, new IOException("Request for " + location + " failed: "
+					+ new String(content, UTF8)));
+		}
+	}
+
+	/**
+	 * Ask for as many of the remaining paths as fit into a request, up to
+	 * {@link Constants#PROTO_MAX_BATCH_FILES}
+	 */
+	private void requestBatch() throws IOException {
+		List<byte[]> names = new ArrayList<byte[]>();
+		int size = 0;
+		while (next != null || paths.hasNext()) {
+			String path = next != null ? next : paths.next();
+			byte[] name = path.getBytes(UTF8);
+			if (name.length > Constants.PROTO_MAX_PARAM_SIZE - 2) {
+				throw new IllegalArgumentException("Path " + path + " is too long");
+			}
+			if (!names.isEmpty() && (size + 2 + name.length > Constants.PROTO_MAX_PARAM_SIZE
+					|| names.size() == Constants.PROTO_MAX_BATCH_FILES)) {
+				next = path;
+				break;
+			}
+			next = null;
+			names.add(name);
+			batch.add(path);
+			size += 2 + name.length;
+		}
+		ByteBuffer param = ByteBuffer.allocate(size);
+		for (byte[] name : names) {
+			param.putShort((short) name.length).put(name);
+		}
+		current = client.requestBatch(param.array(), batch.size());
+	}
+
+	private void readFully(ByteBuffer dst) throws IOException {
+		while (dst.hasRemaining()) {
+			if (current.read(dst) == -1) {
+				throw new EOFException("Batch ended with " + batch.size() + " files left");
+			}
+		}
+		dst.flip();
+	}
+
+	/**
+	 * Skip the rest of the current batch, the remaining paths are not asked for
+	 */
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		batch.clear();
+		if (current != null && current == client.getOpenChannel()) {
+			client.finishOpenChannel();
+		}
+	}
+}
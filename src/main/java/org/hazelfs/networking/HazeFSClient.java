@@ -1,27 +1,49 @@
 package org.hazelfs.networking;
 
+import java.io.EOFException;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.InetSocketAddress;
+import java.net.ProtocolException;
 import java.nio.ByteBuffer;
-import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.SocketChannel;
 import java.nio.charset.Charset;
-import java.nio.charset.CharsetDecoder;
-import java.nio.charset.CharsetEncoder;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
+import org.hazelfs.services.ChunkedCrc32c;
+import org.hazelfs.services.ContentChunker;
+import org.hazelfs.services.Crc32c;
+import org.hazelfs.services.DedupStorageService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 public class HazeFSClient {
 
 	private static final Logger LOG = LoggerFactory.getLogger(HazeFSClient.class);
+
+	/** The number of requests {@link #readAll(Collection)} keeps in flight */
+	static final int PIPELINE_WINDOW = 16;
+
 	private final int port;
 	private final String host;
 	private final Charset utf8 = Charset.forName("UTF-8");
-	private final CharsetEncoder encoder = utf8.newEncoder();
-	private final CharsetDecoder decoder = utf8.newDecoder();
 	private SocketChannel channel;
+	private int nextRequestId = 0;
+	private int readAhead = 8 * BufferPool.SLAB_SIZE;
+	private HazeFSReadChannel openChannel;
+	private boolean checksums = true;
 
 	public HazeFSClient(int port, String host) {
 		super();
@@ -29,115 +51,673 @@ public class HazeFSClient {
 		this.host = host;
 	}
 
+	public int getPort() {
+		return port;
+	}
+
+	public String getHost() {
+		return host;
+	}
+
 	public void connect() throws IOException {
 		channel = SocketChannel.open(new InetSocketAddress(host, port));
+		channel.socket().setTcpNoDelay(true);
 	}
 
 	public void disconnect() throws IOException {
+		HazeFSReadChannel unfinished = openChannel;
+		openChannel = null;
 		channel.close();
+		if (unfinished != null) {
+			try {
+				unfinished.close();
+			} catch (IOException e) {
+				// the rest of the download is not of interest anymore
+				LOG.debug("Dropped unfinished download: {}", e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Set the number of bytes received in the background ahead of the consumer
+	 * of a download. Zero disables read-ahead, downloads are then read straight
+	 * from the socket by the consumer.
+	 */
+	public void setReadAhead(int readAhead) {
+		this.readAhead = readAhead;
 	}
 
+	/**
+	 * Send the checksums of the chunks of uploads along with the data and check
+	 * downloaded files against the checksums the server keeps for them.
+	 * Defaults to true.
+	 */
+	public void setChecksums(boolean checksums) {
+		this.checksums = checksums;
+	}
+
+	/**
+	 * Open a file for reading. The file is streamed lazily from the server, the
+	 * stream should be closed before the next request is made, otherwise the
+	 * remaining data is skipped when the next request is sent.
+	 */
 	public InputStream open(String path) throws IOException {
-		writeInt(Constants.PROTO_REQUEST_FILE);
+		return new HazeFSInputStream(openChannel(path));
+	}
 
-		// write the length of the parameter to the server
-		CharBuffer chars = CharBuffer.wrap(path.toCharArray());
-		ByteBuffer src = encoder.encode(chars);
-		writeInt(src.limit());
+	/**
+	 * Open a file for reading as a channel. The same rules as for
+	 * {@link #open(String)} apply, additionally the channel can write the file
+	 * straight into a local {@link java.nio.channels.FileChannel}.
+	 */
+	public HazeFSReadChannel openChannel(String path) throws IOException {
+		finishOpenChannel();
+		int id = writeRequest(Constants.PROTO_REQUEST_FILE, checksums ? Constants.FLAG_CHECKSUMS : 0,
+				path.getBytes(utf8), 0);
+		FrameHeader header = readHeader();
+		byte[] param = readParam(header);
+		if (header.getRequestId() != id) {
+			throw new ProtocolException("Expected response to request " + id + " but got " + header.getRequestId());
+		}
+		checkStatus(header, param, path);
+		openChannel = new HazeFSReadChannel(channel, header.getPayloadLength(), readAhead);
+		if (param.length > 0) {
+			int[] expected = new int[param.length / 4];
+			ByteBuffer.wrap(param).asIntBuffer().get(expected);
+			openChannel.verify(path, expected);
+		}
+		return openChannel;
+	}
 
-		// write the path to the server
-		while (src.hasRemaining()) {
-			int numWritten = channel.write(src);
-			LOG.debug("wrote " + numWritten + " bytes to server");
+	/**
+	 * @return the size of a file on the server
+	 */
+	public long getSize(String path) throws IOException {
+		finishOpenChannel();
+		int id = writeRequest(Constants.PROTO_STAT, path, 0);
+		FrameHeader header = readHeader();
+		byte[] param = readParam(header);
+		if (header.getRequestId() != id) {
+			throw new ProtocolException("Expected response to request " + id + " but got " + header.getRequestId());
 		}
+		checkStatus(header, param, path);
+		return ByteBuffer.wrap(param).getLong();
+	}
+
+	/**
+	 * Remove a file from the server
+	 */
+	public void delete(String path) throws IOException {
+		finishOpenChannel();
+		int id = writeRequest(Constants.PROTO_DELETE, path, 0);
+		readResponse(id, path);
+		LOG.debug("Server removed {}", path);
+	}
 
-		// expect the long size value from the server
-		long size = readLong();
-		if (size == 0) {
-			throw new IOException("File hazefs://" + host + ":" + port + "/" + path + " does not exist");
+	/**
+	 * Read up to length bytes of a file starting at the given offset. The
+	 * returned buffer is shorter than requested if the file ends before.
+	 */
+	public ByteBuffer read(String path, long offset, int length) throws IOException {
+		HazeFSReadChannel ch = openChannel(path, offset, length);
+		ByteBuffer dst = ByteBuffer.allocate((int) ch.size());
+		try {
+			while (dst.hasRemaining()) {
+				ch.read(dst);
+			}
+		} finally {
+			ch.close();
+			openChannel = null;
 		}
-		return null;
+		dst.flip();
+		return dst;
+	}
+
+	/**
+	 * Open a part of a file for reading, see {@link #openChannel(String)}
+	 */
+	public HazeFSReadChannel openChannel(String path, long offset, long length) throws IOException {
+		finishOpenChannel();
+		byte[] name = path.getBytes(utf8);
+		ByteBuffer param = ByteBuffer.allocate(16 + name.length);
+		param.putLong(offset).putLong(length).put(name);
+		int id = writeRequest(Constants.PROTO_REQUEST_RANGE, param.array(), 0);
+		FrameHeader resp = readResponse(id, path);
+		openChannel = new HazeFSReadChannel(channel, resp.getPayloadLength(), readAhead);
+		return openChannel;
 	}
 
-	private long readLong() throws IOException {
-		ByteBuffer sizeBuffer = ByteBuffer.allocate(8);
-		while (sizeBuffer.position() < 8) {
-			channel.read(sizeBuffer);
+	/**
+	 * Fetch a number of files at once by pipelining the requests on this
+	 * connection. Files which do not exist are missing from the result.
+	 * {@link #getAll(Collection)} fetches them with fewer requests. If a request
+	 * fails no more are sent, the failure is thrown once the responses on their
+	 * way have been read.
+	 */
+	public Map<String, byte[]> readAll(Collection<String> paths) throws IOException {
+		finishOpenChannel();
+		Map<String, byte[]> result = new HashMap<String, byte[]>();
+		Map<Integer, String> inFlight = new HashMap<Integer, String>();
+		IOException failure = null;
+		Iterator<String> it = paths.iterator();
+		ByteBuffer out = BufferPool.local().acquire(BufferPool.SLAB_SIZE);
+		try {
+			while ((failure == null && it.hasNext()) || !inFlight.isEmpty()) {
+				// top up the window, sending all new requests with a single write
+				out.clear();
+				while (failure == null && it.hasNext() && inFlight.size() < PIPELINE_WINDOW
+						&& out.remaining() >= Constants.PROTO_HEADER_SIZE + Constants.PROTO_MAX_PARAM_SIZE) {
+					String path = it.next();
+					inFlight.put(encodeRequest(out, Constants.PROTO_REQUEST_FILE, path.getBytes(utf8), 0), path);
+				}
+				out.flip();
+				writeFully(out);
+
+				FrameHeader header = readHeader();
+				byte[] param = readParam(header);
+				String path = inFlight.remove(header.getRequestId());
+				if (path == null) {
+					throw new ProtocolException("Unexpected response to request " + header.getRequestId());
+				}
+				byte[] data = new byte[(int) header.getPayloadLength()];
+				readFully(ByteBuffer.wrap(data));
+				if (header.getStatus() == Constants.STATUS_NOT_FOUND) {
+					LOG.debug("File {} does not exist", path);
+					continue;
+				}
+				try {
+					checkStatus(header, param, path);
+					result.put(path, data);
+				} catch (IOException e) {
+					if (failure == null) {
+						failure = e;
+					}
+				}
+			}
+		} catch (IOException e) {
+			// responses left unread would be taken for those of the next requests
+			try {
+				disconnect();
+			} catch (IOException closing) {
+				LOG.debug("Unable to disconnect from hazefs://{}:{}: {}", host, port, closing.getMessage());
+			}
+			throw e;
+		} finally {
+			BufferPool.local().release(out);
+		}
+		if (failure != null) {
+			throw failure;
+		}
+		return result;
+	}
+
+	/**
+	 * Fetch a number of files with as few requests as possible, each request
+	 * asking for as many of the files as fit into its param. The files are
+	 * read one at a time as they arrive, so large batches never have to be
+	 * held in memory as a whole. Each file should be small enough to be kept in
+	 * memory, larger ones are better read with {@link #open(String)}.
+	 */
+	public HazeFSBatchReader getAll(Collection<String> paths) throws IOException {
+		finishOpenChannel();
+		return new HazeFSBatchReader(this, paths);
+	}
+
+	/**
+	 * Send a batch download request and open its response stream
+	 */
+	HazeFSReadChannel requestBatch(byte[] param, int files) throws IOException {
+		finishOpenChannel();
+		int id = writeRequest(Constants.PROTO_GET_BATCH, checksums ? Constants.FLAG_CHECKSUMS : 0, param, 0);
+		FrameHeader header = readResponse(id, "batch of " + files + " files");
+		openChannel = new HazeFSReadChannel(channel, header.getPayloadLength(), readAhead);
+		return openChannel;
+	}
+
+	HazeFSReadChannel getOpenChannel() {
+		return openChannel;
+	}
+
+	/**
+	 * Create a number of files with a single request. The files are sent one
+	 * after the other straight from the given arrays, a file the server is
+	 * unable to store does not keep the others from being stored.
+	 * 
+	 * @return the failures of the files which have not been stored by their
+	 *         path, empty if all of them have been
+	 */
+	public Map<String, IOException> putAll(Map<String, byte[]> files) throws IOException {
+		finishOpenChannel();
+		List<String> paths = new ArrayList<String>(files.keySet());
+		List<byte[]> names = new ArrayList<byte[]>(paths.size());
+		long payloadLength = 0;
+		for (String path : paths) {
+			byte[] name = path.getBytes(utf8);
+			if (name.length == 0 || name.length > Constants.PROTO_MAX_PARAM_SIZE - 2) {
+				throw new IllegalArgumentException("Invalid path " + path);
+			}
+			names.add(name);
+			payloadLength += 10 + name.length + files.get(path).length;
+			if (checksums) {
+				payloadLength += 4L * Crc32c.chunks(files.get(path).length);
+			}
+		}
+		String batch = "batch of " + paths.size() + " files";
+		int id = writeRequest(Constants.PROTO_PUT_BATCH, checksums ? Constants.FLAG_CHECKSUMS : 0, new byte[0],
+				payloadLength);
+		writeEntries(paths, names, files);
+		FrameHeader header = readResponse(id, batch);
+		ByteBuffer statuses = ByteBuffer.allocate((int) header.getPayloadLength());
+		readFully(statuses);
+
+		Map<String, IOException> failures = new HashMap<String, IOException>();
+		for (String path : paths) {
+			if (statuses.remaining() < 6) {
+				throw new ProtocolException("Got no status for " + path + " of a " + batch);
+			}
+			short status = statuses.getShort();
+			byte[] message = new byte[statuses.getInt()];
+			statuses.get(message);
+			if (status != Constants.STATUS_OK) {
+				failures.put(path, new IOException("Request for hazefs://" + host + ":" + port + "/" + path
+						+ " failed: " + new String(message, utf8)));
+			}
 		}
-		sizeBuffer.flip();
-		return sizeBuffer.getLong();
+		LOG.debug("Server stored {} of a {}", paths.size() - failures.size(), batch);
+		return failures;
 	}
 
-	private int readInt() throws IOException {
-		ByteBuffer sizeBuffer = ByteBuffer.allocate(4);
-		while (sizeBuffer.position() < 4) {
-			channel.read(sizeBuffer);
+	/**
+	 * Send the entries of a batch upload, see {@link BatchUploadChannel}
+	 */
+	private void writeEntries(List<String> paths, List<byte[]> names, Map<String, byte[]> files)
+			throws IOException {
+		ByteBuffer buf = BufferPool.local().acquire(BufferPool.SLAB_SIZE);
+		try {
+			buf.clear();
+			for (int i = 0; i < paths.size(); i++) {
+				byte[] name = names.get(i);
+				byte[] content = files.get(paths.get(i));
+				int[] crcs = new int[0];
+				if (checksums) {
+					ChunkedCrc32c crc = new ChunkedCrc32c(paths.get(i), content.length);
+					crc.update(ByteBuffer.wrap(content));
+					crcs = crc.getChecksums();
+				}
+				if (buf.remaining() < 10 + name.length + 4 * crcs.length) {
+					flush(buf);
+				}
+				buf.putShort((short) name.length).put(name).putLong(content.length);
+				for (int crc : crcs) {
+					buf.putInt(crc);
+				}
+				for (int done = 0; done < content.length;) {
+					if (!buf.hasRemaining()) {
+						flush(buf);
+					}
+					int length = Math.min(buf.remaining(), content.length - done);
+					buf.put(content, done, length);
+					done += length;
+				}
+			}
+			flush(buf);
+		} finally {
+			BufferPool.local().release(buf);
 		}
-		sizeBuffer.flip();
-		return sizeBuffer.getInt();
 	}
 
 	public void create(String path, InputStream data, long size) throws IOException {
-		writeInt(Constants.PROTO_CREATE_FILE);
+		finishOpenChannel();
+		int id = writeRequest(Constants.PROTO_CREATE_FILE, checksums ? Constants.FLAG_CHECKSUMS : 0,
+				path.getBytes(utf8), payloadLength(size));
 
-		// write the length of the parameter to the server
-		CharBuffer chars = CharBuffer.wrap(path.toCharArray());
-		ByteBuffer src = encoder.encode(chars);
-		writeInt(src.limit());
+		// write the stream to the server
+		writeStream(path, data, size);
 
-		// write the path to the server
-		while (src.hasRemaining()) {
-			int numWritten = channel.write(src);
-			LOG.debug("wrote " + numWritten + " bytes to server");
+		// and wait for the server to acknowledge it
+		readResponse(id, path);
+		LOG.debug("Server stored {} bytes of {}", size, path);
+	}
+
+	/**
+	 * Create a file on the server and on the given replicas. The server passes
+	 * the upload on along the chain of replicas while storing it, and answers
+	 * once the whole chain is done.
+	 * 
+	 * @param replicas
+	 *            the host:port addresses of the nodes storing the other copies
+	 * @param quorum
+	 *            the number of copies, including the server's, needed for the
+	 *            upload to succeed
+	 * @return the number of copies stored
+	 */
+	public int create(String path, InputStream data, long size, List<String> replicas, int quorum)
+			throws IOException {
+		finishOpenChannel();
+		byte[] param = ReplicaStream.encodeParam(path, quorum, replicas);
+		short flags = Constants.FLAG_REPLICATE;
+		if (checksums) {
+			flags |= Constants.FLAG_CHECKSUMS;
+		}
+		int id = writeRequest(Constants.PROTO_CREATE_FILE, flags, param, payloadLength(size));
+		writeStream(path, data, size);
+		FrameHeader header = readHeader();
+		byte[] resp = readParam(header);
+		if (header.getRequestId() != id) {
+			throw new ProtocolException("Expected response to request " + id + " but got " + header.getRequestId());
 		}
+		checkStatus(header, resp, path);
+		int copies = ByteBuffer.wrap(resp).getInt();
+		LOG.debug("Cluster stored {} copies of {} bytes of {}", copies, size, path);
+		return copies;
+	}
 
-		// request the answercode
-		int answerCode = readInt();
-		if (answerCode == Constants.PROTO_CREATE_FILE) {
-			LOG.debug("Server is ready for upload of " + path);
+	/**
+	 * Create a file on a node storing chunks, see {@link DedupStorageService},
+	 * sending only the chunks the node does not have yet. The file is read
+	 * twice, once to find and hash its chunks and once to send the missing ones.
+	 * A node which does not store chunks gets the whole file.
+	 * 
+	 * @return the number of bytes of the file which did not have to be sent
+	 */
+	public long createDeduplicated(String path, FileChannel data) throws IOException {
+		finishOpenChannel();
+		long size = data.size();
+		List<byte[]> hashes = new ArrayList<byte[]>();
+		List<Integer> lengths = new ArrayList<Integer>();
+		findChunks(data, size, hashes, lengths);
+		boolean[] stored = hashes.isEmpty() ? null : hasChunks(hashes);
+		if (stored == null) {
+			data.position(0);
+			create(path, Channels.newInputStream(data), size);
+			return 0;
 		}
+		// every missing chunk is sent once, later records refer to it
+		Set<ByteBuffer> sent = new HashSet<ByteBuffer>();
+		boolean[] inline = new boolean[hashes.size()];
+		long payloadLength = 0;
+		long skipped = 0;
+		for (int i = 0; i < inline.length; i++) {
+			inline[i] = !stored[i] && sent.add(ByteBuffer.wrap(hashes.get(i)));
+			payloadLength += DedupStorageService.RECORD_HEADER_SIZE;
+			if (inline[i]) {
+				payloadLength += lengths.get(i);
+			} else {
+				skipped += lengths.get(i);
+			}
+		}
+		byte[] name = path.getBytes(utf8);
+		ByteBuffer param = ByteBuffer.allocate(8 + name.length);
+		param.putLong(size).put(name);
+		int id = writeRequest(Constants.PROTO_CREATE_CHUNKS, param.array(), payloadLength);
+		writeChunkRecords(data, hashes, lengths, inline);
+		readResponse(id, path);
+		LOG.debug("Server stored {} bytes of {}, {} of them were not sent", size, path, skipped);
+		return skipped;
+	}
 
-		// write the streamsize to the server
-		writeLong(size);
+	/**
+	 * Cut a file into chunks the way a node storing chunks does
+	 */
+	private void findChunks(FileChannel data, long size, List<byte[]> hashes, List<Integer> lengths)
+			throws IOException {
+		ContentChunker chunker = new ContentChunker();
+		MessageDigest digest = DedupStorageService.newDigest();
+		ByteBuffer buf = BufferPool.local().acquire(BufferPool.SLAB_SIZE);
+		long position = 0;
+		int length = 0;
+		try {
+			while (position < size) {
+				buf.clear();
+				if (size - position < buf.capacity()) {
+					buf.limit((int) (size - position));
+				}
+				while (buf.hasRemaining()) {
+					if (data.read(buf, position + buf.position()) == -1) {
+						throw new EOFException("File ended after " + (position + buf.position()) + " of " + size
+								+ " bytes");
+					}
+				}
+				buf.flip();
+				position += buf.remaining();
+				while (buf.hasRemaining()) {
+					int cut = chunker.cut(buf);
+					ByteBuffer part = buf.duplicate();
+					part.limit(cut == -1 ? buf.limit() : buf.position() + cut);
+					buf.position(part.limit());
+					length += part.remaining();
+					digest.update(part);
+					if (cut != -1) {
+						hashes.add(digest.digest());
+						lengths.add(length);
+						length = 0;
+					}
+				}
+			}
+			if (length > 0) {
+				hashes.add(digest.digest());
+				lengths.add(length);
+			}
+		} finally {
+			BufferPool.local().release(buf);
+		}
+	}
 
-		// write the stream to the server
-		writeStream(data,size);
+	/**
+	 * Ask the server which of the chunks it stores, in batches fitting into the
+	 * param of a request
+	 * 
+	 * @return whether each chunk is stored, or null if the server does not
+	 *         store chunks
+	 */
+	private boolean[] hasChunks(List<byte[]> hashes) throws IOException {
+		int batch = Constants.PROTO_MAX_PARAM_SIZE / DedupStorageService.HASH_SIZE;
+		boolean[] stored = new boolean[hashes.size()];
+		for (int start = 0; start < hashes.size(); start += batch) {
+			int end = Math.min(hashes.size(), start + batch);
+			ByteBuffer param = ByteBuffer.allocate((end - start) * DedupStorageService.HASH_SIZE);
+			for (int i = start; i < end; i++) {
+				param.put(hashes.get(i));
+			}
+			int id = writeRequest(Constants.PROTO_HAS_CHUNKS, param.array(), 0);
+			FrameHeader header = readHeader();
+			byte[] resp = readParam(header);
+			if (header.getRequestId() != id) {
+				throw new ProtocolException("Expected response to request " + id + " but got " + header.getRequestId());
+			}
+			if (header.getStatus() != Constants.STATUS_OK) {
+				LOG.debug("Server hazefs://{}:{} does not store chunks: {}", host, port, new String(resp, utf8));
+				return null;
+			}
+			if (resp.length != end - start) {
+				throw new ProtocolException("Got " + resp.length + " answers for " + (end - start) + " chunks");
+			}
+			for (int i = start; i < end; i++) {
+				stored[i] = resp[i - start] != 0;
+			}
+		}
+		return stored;
 	}
 
-	private void writeStream(InputStream data, long size) throws IOException {
-		byte[] buf = new byte[512];
-		int read = 0;
-		int written = 0;
-		while (written < size) {
-			read = data.read(buf);
-			ByteBuffer src = ByteBuffer.wrap(buf,0,read);
-			while (src.hasRemaining()) {
-				written += channel.write(src);
+	/**
+	 * Send a record for every chunk of the file, with the data of the chunks
+	 * marked inline
+	 */
+	private void writeChunkRecords(FileChannel data, List<byte[]> hashes, List<Integer> lengths, boolean[] inline)
+			throws IOException {
+		ByteBuffer buf = BufferPool.local().acquire(BufferPool.SLAB_SIZE);
+		long position = 0;
+		try {
+			buf.clear();
+			for (int i = 0; i < inline.length; i++) {
+				int length = lengths.get(i);
+				if (buf.remaining() < DedupStorageService.RECORD_HEADER_SIZE) {
+					flush(buf);
+				}
+				buf.put(hashes.get(i)).putInt(length).put((byte) (inline[i] ? 1 : 0));
+				for (int done = 0; inline[i] && done < length;) {
+					if (!buf.hasRemaining()) {
+						flush(buf);
+					}
+					int limit = buf.limit();
+					buf.limit(Math.min(limit, buf.position() + length - done));
+					int read = data.read(buf, position + done);
+					buf.limit(limit);
+					if (read == -1) {
+						throw new EOFException("File ended within chunk " + i);
+					}
+					done += read;
+				}
+				position += length;
 			}
+			flush(buf);
+		} finally {
+			BufferPool.local().release(buf);
+		}
+	}
+
+	private void flush(ByteBuffer buf) throws IOException {
+		buf.flip();
+		writeFully(buf);
+		buf.clear();
+	}
+
+	void finishOpenChannel() throws IOException {
+		if (openChannel != null) {
+			openChannel.close();
+			openChannel = null;
 		}
-		LOG.debug("wrote " + written + " bytes to server");
+	}
+
+	private int writeRequest(int opcode, String path, long payloadLength) throws IOException {
+		return writeRequest(opcode, path.getBytes(utf8), payloadLength);
+	}
 
+	private int writeRequest(int opcode, byte[] param, long payloadLength) throws IOException {
+		return writeRequest(opcode, (short) 0, param, payloadLength);
 	}
 
-	private void writeInt(int type) throws IOException {
-		// write the request type to the server
-		ByteBuffer srcType = ByteBuffer.allocate(4);
-		srcType.putInt(type);
-		srcType.flip();
-		while (srcType.hasRemaining()) {
-			channel.write(srcType);
-			LOG.debug("wrote integer " + type + " to server");
+	private int writeRequest(int opcode, short flags, byte[] param, long payloadLength) throws IOException {
+		ByteBuffer buf = BufferPool.local().acquire(BufferPool.SLAB_SIZE);
+		try {
+			int id = encodeRequest(buf, opcode, flags, param, payloadLength);
+			buf.flip();
+			writeFully(buf);
+			return id;
+		} finally {
+			BufferPool.local().release(buf);
 		}
 	}
 
-	private void writeLong(long value) throws IOException {
-		// write the request type to the server
-		ByteBuffer srcType = ByteBuffer.allocate(8);
-		srcType.putLong(value);
-		srcType.flip();
-		while (srcType.hasRemaining()) {
-			channel.write(srcType);
-			LOG.debug("wrote long " + value + " to server");
+	private int encodeRequest(ByteBuffer buf, int opcode, byte[] param, long payloadLength) {
+		return encodeRequest(buf, opcode, (short) 0, param, payloadLength);
+	}
+
+	private int encodeRequest(ByteBuffer buf, int opcode, short flags, byte[] param, long payloadLength) {
+		int id = nextRequestId++;
+		new FrameHeader(opcode, flags, id, param.length, payloadLength).encode(buf);
+		buf.put(param);
+		return id;
+	}
+
+	/**
+	 * Read the response to the given request and check its status
+	 */
+	private FrameHeader readResponse(int id, String path) throws IOException {
+		FrameHeader header = readHeader();
+		byte[] param = readParam(header);
+		if (header.getRequestId() != id) {
+			throw new ProtocolException("Expected response to request " + id + " but got " + header.getRequestId());
+		}
+		checkStatus(header, param, path);
+		return header;
+	}
+
+	private void checkStatus(FrameHeader header, byte[] param, String path) throws IOException {
+		switch (header.getStatus()) {
+		case Constants.STATUS_OK:
+			return;
+		case Constants.STATUS_NOT_FOUND:
+			throw new FileNotFoundException("File hazefs://" + host + ":" + port + "/" + path + " does not exist");
+		default:
+			throw new IOException("Request for hazefs://" + host + ":" + port + "/" + path + " failed: "
+					+ new String(param, utf8));
+		}
+	}
+
+	private FrameHeader readHeader() throws IOException {
+		ByteBuffer buf = BufferPool.local().acquire(Constants.PROTO_HEADER_SIZE);
+		try {
+			readFully(buf);
+			return FrameHeader.decode(buf);
+		} finally {
+			BufferPool.local().release(buf);
+		}
+	}
+
+	private byte[] readParam(FrameHeader header) throws IOException {
+		byte[] param = new byte[header.getParamLength()];
+		ByteBuffer dst = ByteBuffer.wrap(param);
+		readFully(dst);
+		return param;
+	}
+
+	private void readFully(ByteBuffer dst) throws IOException {
+		while (dst.hasRemaining()) {
+			if (channel.read(dst) == -1) {
+				throw new EOFException("Connection closed by server hazefs://" + host + ":" + port);
+			}
+		}
+		dst.flip();
+	}
+
+	private void writeFully(ByteBuffer src) throws IOException {
+		while (src.hasRemaining()) {
+			channel.write(src);
+		}
+	}
+
+	/**
+	 * @return the length of the payload of an upload of the given size
+	 */
+	private long payloadLength(long size) {
+		return checksums ? size + 4L * Crc32c.chunks(size) : size;
+	}
+
+	/**
+	 * Send the data of an upload followed by the checksums of its chunks if
+	 * enabled
+	 */
+	private void writeStream(String path, InputStream data, long size) throws IOException {
+		ReadableByteChannel src = Channels.newChannel(data);
+		ByteBuffer buf = BufferPool.local().acquire(BufferPool.SLAB_SIZE);
+		ChunkedCrc32c crc = checksums ? new ChunkedCrc32c(path, size) : null;
+		long written = 0;
+		try {
+			while (written < size) {
+				buf.clear();
+				if (size - written < buf.capacity()) {
+					buf.limit((int) (size - written));
+				}
+				if (src.read(buf) == -1) {
+					throw new EOFException("Stream ended after " + written + " of " + size + " bytes");
+				}
+				buf.flip();
+				if (crc != null) {
+					crc.update(buf);
+				}
+				while (buf.hasRemaining()) {
+					written += channel.write(buf);
+				}
+			}
+			if (crc != null) {
+				ByteBuffer trailer = ByteBuffer.allocate(4 * crc.getChecksums().length);
+				trailer.asIntBuffer().put(crc.getChecksums());
+				writeFully(trailer);
+			}
+		} finally {
+			BufferPool.local().release(buf);
 		}
+		LOG.debug("wrote {} bytes to server", written);
 	}
 }
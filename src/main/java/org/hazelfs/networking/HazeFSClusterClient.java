@@ -0,0 +1,238 @@
+package org.hazelfs.networking;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.hazelfs.services.Node;
+import org.hazelfs.services.NodePlacement;
+import org.hazelfs.services.NodeSelector;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A client for a whole cluster instead of a single node. Every path is sent to
+ * the node the {@link NodePlacement} puts it on, so no lookup is needed and the
+ * load spreads over all nodes. Connections to the nodes are opened on first
+ * use and kept.
+ *
+ * A file written while the cluster had a different set of nodes might live on
+ * one of the following nodes of the ring, reads therefore try a few nodes in
+ * ring order. Like {@link HazeFSClient} this class is not thread safe.
+ *
+ * With more than one replica the nodes holding the copies of a path are
+ * picked from by their load, see {@link NodeSelector}: an upload goes to the
+ * least loaded of them, which passes it on to the others, and reads start with
+ * the least loaded one. An upload only goes to a node beyond the replicas if
+ * none of them has enough space left.
+ */
+public class HazeFSClusterClient {
+
+	private static final Logger LOG = LoggerFactory.getLogger(HazeFSClusterClient.class);
+
+	private final NodePlacement placement;
+	private final Map<String, HazeFSClient> clients = new HashMap<String, HazeFSClient>();
+	private int readAttempts = 3;
+	private int replicas = 1;
+	private int writeQuorum = 1;
+	private NodeSelector selector = new NodeSelector();
+
+	public HazeFSClusterClient(NodePlacement placement) {
+		super();
+		this.placement = placement;
+	}
+
+	/**
+	 * Set the number of nodes a read tries before giving up, defaults to 3
+	 */
+	public void setReadAttempts(int readAttempts) {
+		this.readAttempts = readAttempts;
+	}
+
+	/**
+	 * Set the number of copies of every file created, defaults to 1. The copies
+	 * are placed on the nodes following the primary one on the ring, where reads
+	 * look for them.
+	 */
+	public void setReplicas(int replicas) {
+		this.replicas = replicas;
+	}
+
+	/**
+	 * Set the number of copies that have to be stored for a create to succeed,
+	 * defaults to 1
+	 */
+	public void setWriteQuorum(int writeQuorum) {
+		this.writeQuorum = writeQuorum;
+	}
+
+	/**
+	 * Set how nodes are picked by their load, null always uses the nodes in ring
+	 * order
+	 */
+	public void setSelector(NodeSelector selector) {
+		this.selector = selector;
+	}
+
+	/**
+	 * @return the node new content for the path is written to
+	 */
+	public Node locate(String path) throws IOException {
+		Node n = placement.locate(path);
+		if (n == null) {
+			throw new IOException("There are no nodes to place " + path + " on");
+		}
+		return n;
+	}
+
+	/**
+	 * Create a file on the node the path is placed on. With more than one
+	 * replica the node passes the upload on to the following nodes while
+	 * storing it.
+	 */
+	public void create(String path, InputStream data, long size) throws IOException {
+		List<Node> nodes = placement.locate(path, Math.max(replicas, readAttempts));
+		if (nodes.isEmpty()) {
+			throw new IOException("There are no nodes to place " + path + " on");
+		}
+		List<Node> targets = nodes.subList(0, Math.min(replicas, nodes.size()));
+		Node n = selectForUpload(nodes, targets, size);
+		HazeFSClient client = clientFor(n);
+		try {
+			if (replicas > 1 || writeQuorum > 1) {
+				List<String> chain = new ArrayList<String>(targets.size());
+				for (Node replica : targets) {
+					if (chain.size() < replicas - 1 && !replica.getId().equals(n.getId())) {
+						chain.add(replica.getUri().getHost() + ":" + replica.getUri().getPort());
+					}
+				}
+				client.create(path, data, size, chain, writeQuorum);
+			} else {
+				client.create(path, data, size);
+			}
+		} catch (IOException e) {
+			drop(n, e);
+			throw e;
+		}
+	}
+
+	/**
+	 * Open a file for reading, see {@link HazeFSClient#open(String)}. A node
+	 * that cannot be reached is skipped for the next one.
+	 */
+	public InputStream open(String path) throws IOException {
+		FileNotFoundException notFound = null;
+		IOException failure = null;
+		for (Node n : candidates(path)) {
+			try {
+				return clientFor(n).open(path);
+			} catch (FileNotFoundException e) {
+				notFound = e;
+			} catch (IOException e) {
+				drop(n, e);
+				failure = e;
+			}
+		}
+		// a node that failed might have had the file
+		throw failure != null ? failure : notFound;
+	}
+
+	/**
+	 * @return the size of a file in the cluster
+	 */
+	public long getSize(String path) throws IOException {
+		FileNotFoundException notFound = null;
+		IOException failure = null;
+		for (Node n : candidates(path)) {
+			try {
+				return clientFor(n).getSize(path);
+			} catch (FileNotFoundException e) {
+				notFound = e;
+			} catch (IOException e) {
+				drop(n, e);
+				failure = e;
+			}
+		}
+		// a node that failed might have had the file
+		throw failure != null ? failure : notFound;
+	}
+
+	/**
+	 * @return the node of the targets an upload goes to, or one of the
+	 *         following nodes if none of the targets has enough space
+	 */
+	private Node selectForUpload(List<Node> nodes, List<Node> targets, long size) {
+		if (selector == null) {
+			return nodes.get(0);
+		}
+		Node n = selector.selectForUpload(targets, size);
+		if (n == null) {
+			n = selector.selectForUpload(nodes.subList(targets.size(), nodes.size()), size);
+		}
+		// let the node of the path refuse the upload if nobody has room
+		return n != null ? n : nodes.get(0);
+	}
+
+	/**
+	 * @return the nodes to try reading the path from, the replica picked by the
+	 *         selector first and the others in ring order
+	 */
+	private List<Node> candidates(String path) throws IOException {
+		List<Node> nodes = placement.locate(path, Math.max(replicas, readAttempts));
+		if (nodes.isEmpty()) {
+			throw new IOException("There are no nodes holding " + path);
+		}
+		if (selector != null && replicas > 1) {
+			Node best = selector.selectForRead(nodes.subList(0, Math.min(replicas, nodes.size())));
+			nodes.remove(best);
+			nodes.add(0, best);
+		}
+		return nodes.subList(0, Math.min(readAttempts, nodes.size()));
+	}
+
+	private HazeFSClient clientFor(Node n) throws IOException {
+		HazeFSClient client = clients.get(n.getId());
+		if (client == null) {
+			client = new HazeFSClient(n.getUri().getPort(), n.getUri().getHost());
+			client.connect();
+			clients.put(n.getId(), client);
+		}
+		return client;
+	}
+
+	/**
+	 * Forget the connection to a node after an error, the next request opens a
+	 * new one
+	 */
+	private void drop(Node n, IOException cause) {
+		HazeFSClient client = clients.remove(n.getId());
+		LOG.debug("Dropping connection to node {}: {}", n.getId(), cause.getMessage());
+		if (client == null) {
+			// it could not be connected to
+			return;
+		}
+		try {
+			client.disconnect();
+		} catch (IOException e) {
+			LOG.debug("Unable to disconnect from node {}: {}", n.getId(), e.getMessage());
+		}
+	}
+
+	/**
+	 * Disconnect from all nodes
+	 */
+	public void close() {
+		for (Map.Entry<String, HazeFSClient> e : clients.entrySet()) {
+			try {
+				e.getValue().disconnect();
+			} catch (IOException ex) {
+				LOG.debug("Unable to disconnect from node {}: {}", e.getKey(), ex.getMessage());
+			}
+		}
+		clients.clear();
+	}
+}
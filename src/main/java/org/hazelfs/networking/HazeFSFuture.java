@@ -0,0 +1,173 @@
+package org.hazelfs.networking;
+
+import java.io.IOException;
+import java.nio.channels.CompletionHandler;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The result of a call of the {@link HazeFSAsyncClient}. Besides blocking on
+ * {@link #get()} a caller can register {@link CompletionHandler}s, which are
+ * run on the I/O thread of the client once the call is done and must not
+ * block. A handler added to a future that is already done runs right away on
+ * the thread adding it.
+ */
+public class HazeFSFuture<V> implements Future<V> {
+
+	private static final Logger LOG = LoggerFactory.getLogger(HazeFSFuture.class);
+
+	private final List<Handler<V, ?>> handlers = new ArrayList<Handler<V, ?>>();
+	private boolean done = false;
+	private boolean cancelled = false;
+	private V result;
+	private Throwable failure;
+
+	/**
+	 * Run the handler with the given attachment once the call is done. A
+	 * cancelled call fails with a {@link CancellationException}.
+	 */
+	public <A> void addHandler(A attachment, CompletionHandler<V, ? super A> handler) {
+		Handler<V, A> h = new Handler<V, A>(attachment, handler);
+		synchronized (this) {
+			if (!done) {
+				handlers.add(h);
+				return;
+			}
+		}
+		h.run(result, failure);
+	}
+
+	/**
+	 * Finish the call successfully
+	 *
+	 * @return false if the future has been done already, e.g. cancelled
+	 */
+	boolean complete(V result) {
+		return finish(result, null, false);
+	}
+
+	/**
+	 * Finish the call with a failure
+	 *
+	 * @return false if the future has been done already, e.g. cancelled
+	 */
+	boolean fail(Throwable failure) {
+		return finish(null, failure, false);
+	}
+
+	private boolean finish(V result, Throwable failure, boolean cancel) {
+		List<Handler<V, ?>> ready;
+		synchronized (this) {
+			if (done) {
+				return false;
+			}
+			this.result = result;
+			this.failure = failure;
+			this.cancelled = cancel;
+			this.done = true;
+			ready = new ArrayList<Handler<V, ?>>(handlers);
+			handlers.clear();
+			notifyAll();
+		}
+		for (Handler<V, ?> h : ready) {
+			h.run(result, failure);
+		}
+		return true;
+	}
+
+	/**
+	 * Give up on the call. A request that has not been sent yet is dropped, one
+	 * that is on its way is finished but its result ignored.
+	 */
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		// a call finishing in the meantime wins, it is not cancelled then
+		return finish(null, new CancellationException("Call has been cancelled"), true);
+	}
+
+	@Override
+	public synchronized boolean isCancelled() {
+		return cancelled;
+	}
+
+	@Override
+	public synchronized boolean isDone() {
+		return done;
+	}
+
+	@Override
+	public synchronized V get() throws InterruptedException, ExecutionException {
+		while (!done) {
+			wait();
+		}
+		return result();
+	}
+
+	@Override
+	public synchronized V get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException,
+			TimeoutException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		while (!done) {
+			long left = deadline - System.nanoTime();
+			if (left <= 0) {
+				throw new TimeoutException("Call has not been done within " + timeout + " " + unit);
+			}
+			TimeUnit.NANOSECONDS.timedWait(this, left);
+		}
+		return result();
+	}
+
+	/**
+	 * Wait for the call and unwrap its failure
+	 */
+	public V join() throws IOException, InterruptedException {
+		try {
+			return get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		}
+	}
+
+	private V result() throws ExecutionException {
+		if (cancelled) {
+			throw (CancellationException) failure;
+		}
+		if (failure != null) {
+			throw new ExecutionException(failure);
+		}
+		return result;
+	}
+
+	private static class Handler<V, A> {
+		private final A attachment;
+		private final CompletionHandler<V, ? super A> handler;
+
+		Handler(A attachment, CompletionHandler<V, ? super A> handler) {
+			this.attachment = attachment;
+			this.handler = handler;
+		}
+
+		void run(V result, Throwable failure) {
+			try {
+				if (failure == null) {
+					handler.completed(result, attachment);
+				} else {
+					handler.failed(failure, attachment);
+				}
+			} catch (RuntimeException e) {
+				LOG.warn("Completion handler failed", e);
+			}
+		}
+	}
+}
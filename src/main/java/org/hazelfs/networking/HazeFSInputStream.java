@@ -0,0 +1,50 @@
+package org.hazelfs.networking;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An {@link InputStream} view of a {@link HazeFSReadChannel}
+ */
+class HazeFSInputStream extends InputStream {
+
+	private final HazeFSReadChannel channel;
+
+	HazeFSInputStream(HazeFSReadChannel channel) {
+		super();
+		this.channel = channel;
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		int read = read(b, 0, 1);
+		return read == -1 ? -1 : b[0] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		return channel.read(ByteBuffer.wrap(b, off, len));
+	}
+
+	@Override
+	public int available() throws IOException {
+		return channel.available();
+	}
+
+	/**
+	 * @return the channel this stream reads from
+	 */
+	public HazeFSReadChannel getChannel() {
+		return channel;
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+}
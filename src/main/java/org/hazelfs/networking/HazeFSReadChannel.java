@@ -0,0 +1,363 @@
+package org.hazelfs.networking;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.hazelfs.services.ChecksumException;
+import org.hazelfs.services.ChunkedCrc32c;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads the payload of a single response off a client connection. When a
+ * read-ahead window is configured and the payload is larger than a single
+ * slab, a background thread keeps receiving into a fixed set of reusable
+ * buffers while the consumer works on the data already received.
+ *
+ * Closing the channel skips whatever has not been read yet, so the connection
+ * can be used for the next request. When the server sent the checksums of the
+ * file every chunk is checked as soon as it has been consumed.
+ */
+public class HazeFSReadChannel implements ReadableByteChannel {
+
+	private static final Logger LOG = LoggerFactory.getLogger(HazeFSReadChannel.class);
+
+	private static final ByteBuffer END_OF_STREAM = ByteBuffer.allocate(0);
+
+	private static final ExecutorService READ_AHEAD_EXECUTOR = Executors.newCachedThreadPool(new ThreadFactory() {
+		private final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "hazelfs-read-ahead-" + count.getAndIncrement());
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	private final ReadableByteChannel socket;
+	private final long size;
+	private long position = 0;
+	private boolean closed = false;
+	private ChunkedCrc32c verifier;
+
+	// read-ahead state, only used when the filler has been started
+	private List<ByteBuffer> slabs;
+	private BufferPool slabPool;
+	private Thread slabOwner;
+	private BlockingQueue<ByteBuffer> free;
+	private BlockingQueue<ByteBuffer> filled;
+	private Future<?> filler;
+	private ByteBuffer current;
+	private volatile boolean discard = false;
+	private volatile IOException fillerFailure;
+
+	HazeFSReadChannel(ReadableByteChannel socket, long size, int readAhead) {
+		super();
+		this.socket = socket;
+		this.size = size;
+		if (readAhead > 0 && size > BufferPool.SLAB_SIZE) {
+			startFiller(Math.max(2, readAhead / BufferPool.SLAB_SIZE));
+		}
+	}
+
+	private void startFiller(int buffers) {
+		free = new ArrayBlockingQueue<ByteBuffer>(buffers);
+		filled = new ArrayBlockingQueue<ByteBuffer>(buffers + 1);
+		slabs = new ArrayList<ByteBuffer>(buffers);
+		slabPool = BufferPool.local();
+		slabOwner = Thread.currentThread();
+		for (int i = 0; i < buffers; i++) {
+			slabs.add(slabPool.acquire(BufferPool.SLAB_SIZE));
+		}
+		free.addAll(slabs);
+		filler = READ_AHEAD_EXECUTOR.submit(new Runnable() {
+			@Override
+			public void run() {
+				fill();
+			}
+		});
+	}
+
+	/**
+	 * The body of the read-ahead thread, moves the payload from the socket into
+	 * the filled queue. Once the consumer has closed the channel the rest of the
+	 * payload is read and dropped.
+	 */
+	private void fill() {
+		long received = 0;
+		try {
+			while (received < size) {
+				ByteBuffer buf = null;
+				while (buf == null && !discard) {
+					buf = free.poll(100, TimeUnit.MILLISECONDS);
+				}
+				if (buf == null) {
+					skip(size - received);
+					return;
+				}
+				buf.clear();
+				buf.limit((int) Math.min(buf.capacity(), size - received));
+				while (buf.hasRemaining()) {
+					if (socket.read(buf) == -1) {
+						throw new EOFException("Connection closed with " + (size - received - buf.position())
+								+ " bytes left to read");
+					}
+				}
+				received += buf.limit();
+				buf.flip();
+				filled.put(buf);
+			}
+		} catch (IOException e) {
+			fillerFailure = e;
+		} catch (InterruptedException e) {
+			fillerFailure = new InterruptedIOException("Read-ahead has been interrupted");
+		} finally {
+			filled.offer(END_OF_STREAM);
+		}
+	}
+
+	/**
+	 * Check the payload against the checksums the file has been stored with
+	 */
+	void verify(String path, int[] checksums) throws ChecksumException {
+		verifier = new ChunkedCrc32c(path, size, checksums);
+	}
+
+	/**
+	 * @return the number of bytes of the payload
+	 */
+	public long size() {
+		return size;
+	}
+
+	/**
+	 * @return the number of bytes of the payload not yet consumed
+	 */
+	public long remaining() {
+		return size - position;
+	}
+
+	/**
+	 * @return the number of bytes that can be read without blocking
+	 */
+	public int available() {
+		if (filler == null) {
+			return 0;
+		}
+		int available = current != null ? current.remaining() : 0;
+		for (ByteBuffer buf : filled) {
+			available += buf.remaining();
+		}
+		return available;
+	}
+
+	@Override
+	public int read(ByteBuffer dst) throws IOException {
+		if (closed) {
+			throw new ClosedChannelException();
+		}
+		if (remaining() == 0) {
+			return -1;
+		}
+		int read;
+		if (filler == null) {
+			int limit = dst.limit();
+			if (dst.remaining() > remaining()) {
+				dst.limit(dst.position() + (int) remaining());
+			}
+			try {
+				read = socket.read(dst);
+			} finally {
+				dst.limit(limit);
+			}
+			if (read == -1) {
+				throw new EOFException("Connection closed with " + remaining() + " bytes left to read");
+			}
+		} else {
+			ByteBuffer src = nextFilled();
+			read = Math.min(src.remaining(), dst.remaining());
+			ByteBuffer slice = src.duplicate();
+			slice.limit(slice.position() + read);
+			dst.put(slice);
+			src.position(src.position() + read);
+		}
+		// counted before it is checked, so closing after a mismatch skips the right amount
+		position += read;
+		if (verifier != null) {
+			ByteBuffer received = dst.duplicate();
+			received.limit(received.position());
+			received.position(received.position() - read);
+			verifier.update(received);
+		}
+		return read;
+	}
+
+	/**
+	 * Write the rest of the payload to the given file starting at the given
+	 * position. Without read-ahead the data is moved by
+	 * {@link FileChannel#transferFrom(ReadableByteChannel, long, long)} straight
+	 * from the socket, unless it has to be checked on its way.
+	 *
+	 * @return the number of bytes written to the file
+	 */
+	public long transferTo(FileChannel target, long targetPosition) throws IOException {
+		if (closed) {
+			throw new ClosedChannelException();
+		}
+		if (filler == null && verifier != null) {
+			return copyTo(target, targetPosition);
+		}
+		long transferred = 0;
+		while (remaining() > 0) {
+			long count;
+			if (filler == null) {
+				count = target.transferFrom(socket, targetPosition + transferred, remaining());
+				if (count == 0) {
+					throw new EOFException("Connection closed with " + remaining() + " bytes left to read");
+				}
+			} else {
+				ByteBuffer src = nextFilled();
+				if (verifier != null) {
+					verifier.update(src);
+				}
+				count = 0;
+				while (src.hasRemaining()) {
+					count += target.write(src, targetPosition + transferred + count);
+				}
+			}
+			position += count;
+			transferred += count;
+		}
+		return transferred;
+	}
+
+	/**
+	 * Write the rest of the payload to the given file through a buffer, so
+	 * every byte passes the checksums
+	 */
+	private long copyTo(FileChannel target, long targetPosition) throws IOException {
+		long transferred = 0;
+		ByteBuffer buf = BufferPool.local().acquire(BufferPool.SLAB_SIZE);
+		try {
+			while (remaining() > 0) {
+				buf.clear();
+				read(buf);
+				buf.flip();
+				while (buf.hasRemaining()) {
+					transferred += target.write(buf, targetPosition + transferred);
+				}
+			}
+		} finally {
+			BufferPool.local().release(buf);
+		}
+		return transferred;
+	}
+
+	/**
+	 * @return a buffer with data from the read-ahead thread, recycling the
+	 *         current one when it has been consumed
+	 */
+	private ByteBuffer nextFilled() throws IOException {
+		if (current != null && current.hasRemaining()) {
+			return current;
+		}
+		if (current != null) {
+			free.offer(current);
+			current = null;
+		}
+		try {
+			ByteBuffer buf = filled.take();
+			if (buf == END_OF_STREAM) {
+				filled.offer(END_OF_STREAM);
+				if (fillerFailure != null) {
+					throw fillerFailure;
+				}
+				throw new EOFException("Read-ahead ended with " + remaining() + " bytes left to read");
+			}
+			current = buf;
+			return current;
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted while waiting for data");
+		}
+	}
+
+	@Override
+	public boolean isOpen() {
+		return !closed;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		if (filler == null) {
+			skip(remaining());
+			return;
+		}
+		discard = true;
+		filled.clear();
+		try {
+			filler.get();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted while skipping the rest of the stream");
+		} catch (ExecutionException e) {
+			throw new IOException("Read-ahead failed", e.getCause());
+		} finally {
+			// the slabs go back to the pool they came from, whoever closes
+			for (ByteBuffer buf : slabs) {
+				if (Thread.currentThread() == slabOwner) {
+					slabPool.release(buf);
+				} else {
+					slabPool.giveBack(buf);
+				}
+			}
+			current = null;
+		}
+		if (fillerFailure != null) {
+			throw fillerFailure;
+		}
+	}
+
+	/**
+	 * Read and drop the given number of bytes from the socket
+	 */
+	private void skip(long count) throws IOException {
+		if (count == 0) {
+			return;
+		}
+		LOG.debug("skipping {} unread bytes of the payload", count);
+		ByteBuffer buf = BufferPool.local().acquire(BufferPool.SLAB_SIZE);
+		try {
+			while (count > 0) {
+				buf.clear();
+				buf.limit((int) Math.min(buf.capacity(), count));
+				int read = socket.read(buf);
+				if (read == -1) {
+					throw new EOFException("Connection closed with " + count + " bytes left to skip");
+				}
+				count -= read;
+			}
+		} finally {
+			BufferPool.local().release(buf);
+		}
+	}
+}
@@ -0,0 +1,1357 @@
+package org.hazelfs.networking;
+
+import java.io.Closeable;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+
+import org.hazelfs.services.CachedContent;
+import org.hazelfs.services.CachingStorageService;
+import org.hazelfs.services.ChecksumException;
+import org.hazelfs.services.ChunkedCrc32c;
+import org.hazelfs.services.Crc32c;
+import org.hazelfs.services.DedupStorageService;
+import org.hazelfs.services.LocationTrackingStorageService;
+import org.hazelfs.services.StorageService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A single selector thread serving the connections handed to it by the
+ * {@link HazelFSListener}. Every reactor runs its own request/response state
+ * machine, the state of each connection lives in a {@link Connection} attached
+ * to its {@link SelectionKey}.
+ *
+ * The selector thread never touches the disk. Opening, creating, writing and
+ * sending files is done by {@link DiskTask}s on the listener's
+ * {@link DiskExecutor}, and a connection waiting for its storage work stops
+ * being read from, so a slow disk pushes back on the clients using it through
+ * TCP flow control instead of stalling every connection of the reactor.
+ *
+ * A replicated upload is passed on slab by slab to the next node of its chain
+ * while it is stored, see {@link ReplicaStream}. Talking to the replica blocks
+ * on the network, it is done on separate replication threads so the disk
+ * threads of two nodes replicating to each other never wait for one another.
+ *
+ * Every chunk of an upload is checksummed while it is written. The checksums
+ * are stored with the file and, if the client sent its own, compared with
+ * those first, so data corrupted on the network never gets acknowledged.
+ *
+ * A node storing chunks, see {@link DedupStorageService}, tells clients which
+ * chunks it has and accepts uploads as chunk records, so only the chunks it
+ * does not have yet are sent. Such uploads are not replicated.
+ */
+class HazelFSReactor implements Runnable {
+
+	private static final Logger LOG = LoggerFactory.getLogger(HazelFSReactor.class);
+
+	private final String name;
+	private final StorageService storage;
+	private final CachingStorageService cache;
+	private final DedupStorageService dedup;
+	private final Selector selector;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	/** The number of reads a single upload may do before other connections are served */
+	private static final int READS_PER_WAKEUP = 8;
+	/** The number of slabs of an upload that may wait for the disk before reading stops */
+	private static final int MAX_PENDING_WRITES = 4;
+	/** The number of bytes a single disk task sends from a file to a client */
+	private static final long TRANSFER_CHUNK_SIZE = 8 * 1024 * 1024;
+	/** How often tasks rejected by a full disk queue are submitted again */
+	private static final long DEFERRED_RETRY_MILLIS = 10;
+
+	private final CharsetDecoder decoder = UTF8.newDecoder();
+	private final Queue<SocketChannel> pendingChannels = new ConcurrentLinkedQueue<SocketChannel>();
+	private final BufferPool pool = new BufferPool();
+	private final DiskExecutor disk;
+	private final Executor replication;
+	private final ListenerMetrics metrics;
+	private final Queue<DiskTask> completions = new ConcurrentLinkedQueue<DiskTask>();
+	private final ArrayDeque<DiskTask> deferred = new ArrayDeque<DiskTask>();
+
+	private volatile boolean shutdown = false;
+
+	HazelFSReactor(String name, StorageService storage, DiskExecutor disk, Executor replication,
+			ListenerMetrics metrics) throws IOException {
+		super();
+		this.name = name;
+		this.storage = storage;
+		this.cache = findCache(storage);
+		this.dedup = findDedup(storage);
+		this.disk = disk;
+		this.replication = replication;
+		this.metrics = metrics;
+		this.selector = Selector.open();
+	}
+
+	/**
+	 * @return the cache in the chain of storage decorators or null
+	 */
+	private static CachingStorageService findCache(StorageService storage) {
+		while (storage instanceof LocationTrackingStorageService) {
+			storage = ((LocationTrackingStorageService) storage).getDelegate();
+		}
+		return storage instanceof CachingStorageService ? (CachingStorageService) storage : null;
+	}
+
+	/**
+	 * @return the chunk store at the end of the chain of storage decorators or
+	 *         null
+	 */
+	private static DedupStorageService findDedup(StorageService storage) {
+		while (true) {
+			if (storage instanceof LocationTrackingStorageService) {
+				storage = ((LocationTrackingStorageService) storage).getDelegate();
+			} else if (storage instanceof CachingStorageService) {
+				storage = ((CachingStorageService) storage).getDelegate();
+			} else {
+				return storage instanceof DedupStorageService ? (DedupStorageService) storage : null;
+			}
+		}
+	}
+
+	/**
+	 * Hand an accepted connection over to this reactor. Called from the acceptor
+	 * thread, the actual registration happens on the reactor thread.
+	 */
+	void register(SocketChannel client) {
+		pendingChannels.add(client);
+		selector.wakeup();
+	}
+
+	/**
+	 * Hand a task that has been executed back to the reactor thread. Called from
+	 * the disk threads.
+	 */
+	void completed(DiskTask task) {
+		completions.add(task);
+		selector.wakeup();
+	}
+
+	@Override
+	public void run() {
+		LOG.debug("Reactor {} entering main loop", name);
+		try {
+			while (!shutdown) {
+				selector.select(deferred.isEmpty() ? 0 : DEFERRED_RETRY_MILLIS);
+				long start = System.nanoTime();
+				registerPendingChannels();
+				completeDiskTasks();
+				submitDeferred();
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					Connection conn = (Connection) key.attachment();
+					if (!key.isValid() || conn == null) {
+						continue;
+					}
+					try {
+						if (key.isReadable()) {
+							readRequest(conn);
+						}
+						if (conn.isOpen() && key.isWritable()) {
+							writeResponse(conn);
+						}
+					} catch (IOException e) {
+						// only drop the failing connection, the other clients of this
+						// reactor are not affected
+						LOG.warn("Closing connection from {} after I/O error: {}", conn, e.getMessage());
+						LOG.debug("I/O error on connection from {}", conn, e);
+						close(conn);
+					} catch (RuntimeException e) {
+						LOG.error("Closing connection from {} after unexpected failure", conn, e);
+						close(conn);
+					}
+				}
+				metrics.getSelectorLoops().record(System.nanoTime() - start);
+			}
+		} catch (IOException e) {
+			LOG.error("Reactor {} failed", name, e);
+		} finally {
+			for (SelectionKey key : selector.keys()) {
+				Connection conn = (Connection) key.attachment();
+				if (conn != null) {
+					close(conn);
+				}
+			}
+			// the disk executor outlives the reactors, but whatever it has not
+			// accepted yet has to be done here, e.g. removing partial uploads
+			DiskTask task;
+			while ((task = deferred.poll()) != null) {
+				task.run();
+			}
+			try {
+				selector.close();
+			} catch (IOException e) {
+				LOG.warn("Unable to close selector of reactor {}", name, e);
+			}
+		}
+		LOG.debug("Reactor {} stopped", name);
+	}
+
+	/**
+	 * Close the connection and remove an upload it has left behind
+	 */
+	private void close(Connection conn) {
+		Request req = conn.getRequest();
+		if (conn.isOpen()) {
+			metrics.connectionClosed();
+			// the rest of the transfers in progress is never going to happen
+			long unread = 0;
+			if (req.getState() == Request.State.READ_PAYLOAD) {
+				unread = req.getStreamSize() - req.getStreamRead();
+			}
+			metrics.inFlight(-unread - conn.getUnsentBytes());
+		}
+		conn.close();
+		if (req != null && req.getState() == Request.State.READ_PAYLOAD) {
+			abandonUpload(conn, req);
+		}
+	}
+
+	/**
+	 * Hand a task to the disk executor, holding it back if the executor's queue
+	 * is full
+	 *
+	 * @return false if the task has been deferred
+	 */
+	private boolean submit(DiskTask task) {
+		// keep the order of the tasks by not overtaking deferred ones
+		if (deferred.isEmpty() && disk.trySubmit(task)) {
+			return true;
+		}
+		deferred.add(task);
+		return false;
+	}
+
+	private void submitDeferred() {
+		DiskTask task;
+		while ((task = deferred.peek()) != null && disk.trySubmit(task)) {
+			deferred.poll();
+		}
+	}
+
+	private void completeDiskTasks() {
+		DiskTask task;
+		while ((task = completions.poll()) != null) {
+			Connection conn = task.getConnection();
+			try {
+				task.complete(task.getFailure());
+			} catch (IOException e) {
+				LOG.warn("Closing connection from {} after I/O error: {}", conn, e.getMessage());
+				LOG.debug("I/O error on connection from {}", conn, e);
+				close(conn);
+			}
+		}
+	}
+
+	private void registerPendingChannels() throws IOException {
+		SocketChannel client;
+		while ((client = pendingChannels.poll()) != null) {
+			client.configureBlocking(false);
+			SelectionKey key = client.register(selector, SelectionKey.OP_READ);
+			Connection conn = new Connection(client, key, pool);
+			key.attach(conn);
+			metrics.connectionOpened();
+			LOG.debug("Reactor {} serving connection from {}", name, conn);
+		}
+	}
+
+	private void writeResponse(Connection conn) throws IOException {
+		Response resp;
+		while (!conn.isWriteSuspended() && (resp = conn.currentResponse()) != null) {
+			if (resp.getState() == Response.State.WRITE_HEADER) {
+				ByteBuffer buf = resp.getBuffer();
+				metrics.sent(conn.getChannel().write(buf));
+				if (buf.hasRemaining()) {
+					return;
+				}
+				resp.setState(Response.State.WRITE_STREAM);
+				metrics.inFlight(resp.getStreamSize());
+			}
+			if (resp.getData() != null) {
+				// cached content goes straight from memory to the socket
+				ByteBuffer data = resp.getData();
+				int written = conn.getChannel().write(data);
+				metrics.sent(written);
+				metrics.inFlight(-written);
+				resp.setBytesWritten(resp.getBytesWritten() + written);
+				if (data.hasRemaining()) {
+					return;
+				}
+			} else if (resp.getBytesWritten() < resp.getStreamSize()) {
+				// sending from the file might have to wait for the disk
+				conn.setWriteSuspended(true);
+				submit(new TransferTask(conn, resp));
+				return;
+			}
+			finishResponse(conn, resp);
+		}
+	}
+
+	/**
+	 * Release the response that has just been written and record its latency
+	 */
+	private void finishResponse(Connection conn, Response resp) {
+		metrics.requestDone(resp.getType(), System.nanoTime() - resp.getStartNanos());
+		conn.finishResponse();
+	}
+
+	/**
+	 * Sends the next chunk of a response's stream. The kernel moves the bytes
+	 * from the page cache to the socket, the channel is non-blocking so this
+	 * might only send a part of the chunk and the next task resumes from
+	 * bytesWritten once the socket is writable again.
+	 */
+	private class TransferTask extends DiskTask {
+		private final Response resp;
+		private long written;
+
+		TransferTask(Connection conn, Response resp) {
+			super(HazelFSReactor.this, conn);
+			this.resp = resp;
+		}
+
+		@Override
+		protected void execute() throws IOException {
+			long remaining = resp.getStreamSize() - resp.getBytesWritten();
+			long position = resp.getOffset() + resp.getBytesWritten();
+			written = resp.getSrc().transferTo(position, Math.min(remaining, TRANSFER_CHUNK_SIZE),
+					getConnection().getChannel());
+			if (written == 0 && position >= resp.getSrc().size()) {
+				throw new IOException("File " + resp.getPath() + " has been truncated while sending it");
+			}
+		}
+
+		@Override
+		protected void complete(IOException failure) throws IOException {
+			Connection conn = getConnection();
+			if (!conn.isOpen()) {
+				return;
+			}
+			if (failure != null) {
+				throw failure;
+			}
+			metrics.sent(written);
+			metrics.inFlight(-written);
+			resp.setBytesWritten(resp.getBytesWritten() + written);
+			conn.setWriteSuspended(false);
+			if (resp.getBytesWritten() == resp.getStreamSize()) {
+				if (LOG.isDebugEnabled()) {
+					LOG.debug("wrote {} bytes of {} to client {}", resp.getBytesWritten(), resp.getPath(), conn);
+				}
+				finishResponse(conn, resp);
+				writeResponse(conn);
+			}
+		}
+	}
+
+	private void readRequest(Connection conn) throws IOException {
+		// keep on reading as long as there are complete requests, so pipelined
+		// requests are picked up in a single wakeup
+		boolean complete = true;
+		while (complete && conn.canAcceptRequest()) {
+			Request req = conn.getRequest();
+			switch (req.getState()) {
+			case READ_HEADER:
+				complete = readHeader(conn, req);
+				break;
+			case READ_PARAM:
+				complete = readParam(conn, req);
+				break;
+			case READ_PAYLOAD:
+				complete = readStream(conn, req);
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Read from the client into the given buffer, closing the connection when
+	 * the client has gone away
+	 * 
+	 * @return true if the buffer has been filled
+	 */
+	private boolean read(Connection conn, ByteBuffer buf) throws IOException {
+		int read = conn.getChannel().read(buf);
+		if (read == -1) {
+			close(conn);
+			return false;
+		}
+		metrics.received(read);
+		return !buf.hasRemaining();
+	}
+
+	private boolean readHeader(Connection conn, Request req) throws IOException {
+		ByteBuffer buf = req.getBuffer();
+		if (!read(conn, buf)) {
+			return false;
+		}
+		buf.flip();
+		req.setHeader(FrameHeader.decode(buf));
+		req.setStartNanos(System.nanoTime());
+		if (req.getParamSize() > Constants.PROTO_MAX_PARAM_SIZE) {
+			throw new ProtocolException("Parameter of request " + req.getId() + " exceeds " + Constants.PROTO_MAX_PARAM_SIZE + " bytes");
+		}
+		pool.release(buf);
+		req.setBuffer(pool.acquire(req.getParamSize()));
+		req.setState(Request.State.READ_PARAM);
+		if (LOG.isDebugEnabled()) {
+			LOG.debug("Request {} of type {} from {}", req.getId(), req.getType(), conn);
+		}
+		return true;
+	}
+
+	private boolean readParam(Connection conn, Request req) throws IOException {
+		ByteBuffer buf = req.getBuffer();
+		if (buf.hasRemaining() && !read(conn, buf)) {
+			return false;
+		}
+		buf.flip();
+		if (req.getType() == Constants.PROTO_REQUEST_RANGE) {
+			if (buf.remaining() < 16) {
+				throw new ProtocolException("Range request " + req.getId() + " without offset and length");
+			}
+			req.setOffset(buf.getLong());
+			req.setLength(buf.getLong());
+		} else if (req.getType() == Constants.PROTO_CREATE_FILE && req.isReplicated()) {
+			ReplicaStream.decodeParam(buf, req);
+		} else if (req.getType() == Constants.PROTO_CREATE_CHUNKS) {
+			if (buf.remaining() < 8) {
+				throw new ProtocolException("Chunk upload " + req.getId() + " without the size of the file");
+			}
+			req.setLength(buf.getLong());
+		} else if (req.getType() == Constants.PROTO_HAS_CHUNKS) {
+			byte[] hashes = new byte[buf.remaining()];
+			buf.get(hashes);
+			req.setHashes(hashes);
+		} else if (req.getType() == Constants.PROTO_GET_BATCH) {
+			req.setPaths(BatchResponseChannel.decodePaths(buf));
+		}
+		req.setParam(decoder.decode(buf).toString());
+		pool.release(buf);
+		req.setBuffer(null);
+		if (LOG.isDebugEnabled()) {
+			LOG.debug("Request param {} with size {} from {}", req.getParam(), req.getParamSize(), conn);
+		}
+		switch (req.getType()) {
+		case Constants.PROTO_REQUEST_FILE:
+		case Constants.PROTO_REQUEST_RANGE:
+		case Constants.PROTO_STAT:
+			Response cached = createCachedResponse(req);
+			if (cached != null) {
+				conn.respond(cached);
+			} else {
+				conn.prepareResponse();
+				submit(new LookupTask(conn, req));
+			}
+			conn.expectRequest();
+			break;
+		case Constants.PROTO_HAS_CHUNKS:
+			conn.prepareResponse();
+			submit(new HasChunksTask(conn, req));
+			conn.expectRequest();
+			break;
+		case Constants.PROTO_GET_BATCH:
+			conn.prepareResponse();
+			submit(new BatchLookupTask(conn, req));
+			conn.expectRequest();
+			break;
+		case Constants.PROTO_DELETE:
+			conn.prepareResponse();
+			submit(new DeleteTask(conn, req));
+			conn.expectRequest();
+			break;
+		case Constants.PROTO_CREATE_FILE:
+		case Constants.PROTO_CREATE_CHUNKS:
+		case Constants.PROTO_PUT_BATCH:
+			// nothing can be written before the file exists
+			req.setCreating(true);
+			conn.setReadSuspended(true);
+			submit(new CreateTask(conn, req));
+			if (req.isReplicated() && !req.getChain().isEmpty()) {
+				// connect to the replica while the file is created
+				req.setReplica(new ReplicaStream(req.getParam(), req.getDataSize(), req.getChain(), req.hasChecksums()));
+				req.setForwarding(true);
+				replication.execute(new ConnectReplicaTask(conn, req));
+			}
+			startPayload(conn, req);
+			break;
+		default:
+			req.setFailure(new ProtocolException("Unknown request type " + req.getType()));
+			startPayload(conn, req);
+			break;
+		}
+		return true;
+	}
+
+	private void startPayload(Connection conn, Request req) throws IOException {
+		req.setState(Request.State.READ_PAYLOAD);
+		metrics.inFlight(req.getStreamSize());
+		req.setBuffer(pool.acquire(BufferPool.SLAB_SIZE));
+		if (req.hasTrailer()) {
+			// the payload has to split into a file and exactly the checksums of its chunks
+			long dataSize = req.getDataSize();
+			if (dataSize < 0 || dataSize + 4L * Crc32c.chunks(dataSize) != req.getStreamSize()) {
+				throw new ProtocolException("Payload of " + req.getStreamSize() + " bytes of request " + req.getId()
+						+ " is no file followed by the checksums of its chunks");
+			}
+		}
+		long chunks = Crc32c.chunks(req.getDataSize());
+		if (chunks > Integer.MAX_VALUE / 4) {
+			throw new ProtocolException("Payload of request " + req.getId() + " exceeds the maximum file size");
+		}
+		req.setChecksums(new int[(int) chunks]);
+		if (req.hasTrailer()) {
+			req.setTrailer(ByteBuffer.allocate(4 * (int) chunks));
+		}
+		if (req.getStreamSize() == 0) {
+			req.setPayloadRead(true);
+			conn.setReadSuspended(true);
+			finishPayload(conn, req);
+		}
+	}
+
+	/**
+	 * Looks up the file of a download or stat request and opens it
+	 */
+	private class LookupTask extends DiskTask {
+		private final Request req;
+		private Response resp;
+
+		LookupTask(Connection conn, Request req) {
+			super(HazelFSReactor.this, conn);
+			this.req = req;
+		}
+
+		@Override
+		protected void execute() throws IOException {
+			CachedContent cached = null;
+			long size;
+			try {
+				if (cache != null && req.getType() != Constants.PROTO_STAT) {
+					cached = cache.load(req.getParam());
+				}
+				size = cached != null ? cached.getSize() : storage.getSize(req.getParam());
+			} catch (FileNotFoundException e) {
+				size = -1;
+			}
+			resp = createResponse(req, size, cached);
+			addChecksums(req, resp);
+			if (resp.getStreamSize() > 0 && resp.getData() == null) {
+				resp.setSrc(storage.open(resp.getPath()));
+			}
+		}
+
+		@Override
+		protected void complete(IOException failure) throws IOException {
+			Connection conn = getConnection();
+			if (!conn.isOpen()) {
+				if (resp != null) {
+					closeQuietly(resp.getSrc());
+					closeQuietly(resp.getDataOwner());
+				}
+				return;
+			}
+			if (failure != null) {
+				LOG.warn("Request {} from {} failed: {}", req.getId(), conn, failure.getMessage());
+				if (resp != null) {
+					closeQuietly(resp.getDataOwner());
+				}
+				resp = new Response(req);
+				resp.setStatus(Constants.STATUS_ERROR);
+				resp.setParam(String.valueOf(failure.getMessage()).getBytes(UTF8));
+			} else if (resp.getStreamSize() > 0) {
+				LOG.debug("sending file {} to client {}", resp.getPath(), conn);
+			}
+			conn.respondPrepared(resp);
+		}
+	}
+
+	/**
+	 * @return the response to a download or stat request served from the
+	 *         cache, or null if the file is not cached
+	 */
+	private Response createCachedResponse(Request req) throws IOException {
+		CachedContent cached = cache == null ? null : cache.getCached(req.getParam());
+		if (cached == null) {
+			return null;
+		}
+		Response resp = createResponse(req, cached.getSize(), cached);
+		try {
+			addChecksums(req, resp);
+		} catch (IOException e) {
+			closeQuietly(resp.getDataOwner());
+			throw e;
+		}
+		return resp;
+	}
+
+	/**
+	 * Answer a download asking for checksums with the ones kept for the file.
+	 * Content in memory has been checked when it was cached, its checksums are
+	 * computed from it instead of being read from the storage, which keeps the
+	 * disk away from the reactor thread.
+	 */
+	private void addChecksums(Request req, Response resp) throws IOException {
+		if (!req.hasChecksums() || req.getType() != Constants.PROTO_REQUEST_FILE || resp.getStreamSize() == 0) {
+			return;
+		}
+		int[] checksums;
+		if (resp.getData() != null) {
+			ChunkedCrc32c crc = new ChunkedCrc32c(resp.getPath(), resp.getStreamSize());
+			crc.update(resp.getData());
+			checksums = crc.getChecksums();
+		} else {
+			checksums = storage.getChecksums(resp.getPath());
+		}
+		if (checksums == null || checksums.length != Crc32c.chunks(resp.getStreamSize())) {
+			// unknown, the client reads the file unchecked
+			return;
+		}
+		ByteBuffer param = ByteBuffer.allocate(4 * checksums.length);
+		param.asIntBuffer().put(checksums);
+		resp.setParam(param.array());
+	}
+
+	/**
+	 * @param size
+	 *            the size of the file, or -1 if there is no file
+	 * @param cached
+	 *            the content of the file if it is in memory, or null. It is
+	 *            closed with the response or right away if it is not sent.
+	 */
+	private Response createResponse(Request req, long size, CachedContent cached) {
+		Response resp;
+		switch (req.getType()) {
+		case Constants.PROTO_REQUEST_FILE:
+			resp = createFileResponse(req, size);
+			break;
+		case Constants.PROTO_REQUEST_RANGE:
+			resp = createRangeResponse(req, size);
+			break;
+		default:
+			resp = createStatResponse(req, size);
+			break;
+		}
+		if (cached != null && resp.getStreamSize() > 0) {
+			ByteBuffer content = cached.getContent();
+			content.position((int) resp.getOffset());
+			content.limit((int) (resp.getOffset() + resp.getStreamSize()));
+			resp.setData(content);
+			resp.setDataOwner(cached);
+		} else if (cached != null) {
+			cached.close();
+		}
+		return resp;
+	}
+
+	private Response createFileResponse(Request req, long size) {
+		Response resp = new Response(req);
+		resp.setPath(req.getParam());
+		if (size < 0) {
+			LOG.warn("Unable to find file {}", req.getParam());
+			resp.setStatus(Constants.STATUS_NOT_FOUND);
+		} else {
+			resp.setStreamSize(size);
+		}
+		return resp;
+	}
+
+	private Response createStatResponse(Request req, long size) {
+		Response resp = new Response(req);
+		if (size < 0) {
+			resp.setStatus(Constants.STATUS_NOT_FOUND);
+		} else {
+			resp.setParam(ByteBuffer.allocate(8).putLong(size).array());
+		}
+		return resp;
+	}
+
+	private Response createRangeResponse(Request req, long size) {
+		Response resp = new Response(req);
+		resp.setPath(req.getParam());
+		if (size < 0) {
+			LOG.warn("Unable to find file {}", req.getParam());
+			resp.setStatus(Constants.STATUS_NOT_FOUND);
+		} else if (req.getOffset() < 0 || req.getLength() < 0 || req.getOffset() > size) {
+			resp.setStatus(Constants.STATUS_ERROR);
+			resp.setParam(("Invalid range " + req.getOffset() + "+" + req.getLength() + " for a file of " + size
+					+ " bytes").getBytes(UTF8));
+		} else {
+			resp.setOffset(req.getOffset());
+			resp.setStreamSize(Math.min(req.getLength(), size - req.getOffset()));
+		}
+		return resp;
+	}
+
+	/**
+	 * Creates the output file of an upload, reading the payload resumes once it
+	 * exists
+	 */
+	private class CreateTask extends DiskTask {
+		private final Request req;
+		private FileChannel output;
+
+		CreateTask(Connection conn, Request req) {
+			super(HazelFSReactor.this, conn);
+			this.req = req;
+		}
+
+		@Override
+		protected void execute() throws IOException {
+			if (req.getType() == Constants.PROTO_PUT_BATCH) {
+				// the files are created as their entries arrive
+				output = new BatchUploadChannel(storage, req.hasChecksums(), req.getStreamSize());
+			} else if (req.getType() != Constants.PROTO_CREATE_CHUNKS) {
+				output = storage.create(req.getParam(), req.getDataSize());
+			} else if (dedup == null) {
+				throw new IOException("Node does not store chunks");
+			} else {
+				// the content goes through the decorators of the storage
+				output = dedup.receiveChunks(req.getParam(), storage.create(req.getParam(), req.getLength()));
+			}
+		}
+
+		@Override
+		protected void complete(IOException failure) throws IOException {
+			req.setCreating(false);
+			if (failure != null) {
+				// the payload still has to be consumed to get to the next request
+				req.setFailure(failure);
+			} else {
+				req.setOutput(output);
+			}
+			Connection conn = getConnection();
+			if (!conn.isOpen()) {
+				abandonUpload(conn, req);
+				return;
+			}
+			LOG.debug("creating file {}", req.getParam());
+			resumePayload(conn, req);
+		}
+	}
+
+	/**
+	 * Looks up and opens the files of a batch download. A file which cannot be
+	 * read gets an error entry instead of failing the whole batch.
+	 */
+	private class BatchLookupTask extends DiskTask {
+		private final Request req;
+		private BatchResponseChannel entries;
+
+		BatchLookupTask(Connection conn, Request req) {
+			super(HazelFSReactor.this, conn);
+			this.req = req;
+		}
+
+		@Override
+		protected void execute() throws IOException {
+			if (req.getPaths().size() > Constants.PROTO_MAX_BATCH_FILES) {
+				throw new IOException("Batch of " + req.getPaths().size() + " files exceeds the maximum of "
+						+ Constants.PROTO_MAX_BATCH_FILES);
+			}
+			entries = new BatchResponseChannel();
+			for (String path : req.getPaths()) {
+				try {
+					lookup(path);
+				} catch (IOException e) {
+					LOG.warn("Unable to read {} of batch request {}: {}", path, req.getId(), e.getMessage());
+					entries.addError(e.getMessage());
+				}
+			}
+		}
+
+		private void lookup(String path) throws IOException {
+			CachedContent cached = null;
+			if (cache != null) {
+				cached = cache.getCached(path);
+				if (cached == null) {
+					cached = cache.load(path);
+				}
+			}
+			if (cached != null) {
+				ByteBuffer content = cached.getContent();
+				int[] checksums = null;
+				if (req.hasChecksums()) {
+					ChunkedCrc32c crc = new ChunkedCrc32c(path, content.remaining());
+					crc.update(content);
+					checksums = crc.getChecksums();
+				}
+				entries.addContent(content, checksums, cached);
+				return;
+			}
+			long size;
+			try {
+				size = storage.getSize(path);
+			} catch (FileNotFoundException e) {
+				entries.addNotFound();
+				return;
+			}
+			int[] checksums = req.hasChecksums() ? storage.getChecksums(path) : null;
+			if (checksums != null && checksums.length != Crc32c.chunks(size)) {
+				// unknown, the client reads the file unchecked
+				checksums = null;
+			}
+			entries.addFile(storage.open(path), size, checksums);
+		}
+
+		@Override
+		protected void complete(IOException failure) throws IOException {
+			Connection conn = getConnection();
+			if (!conn.isOpen()) {
+				closeQuietly(entries);
+				return;
+			}
+			Response resp = new Response(req);
+			if (failure != null) {
+				closeQuietly(entries);
+				LOG.warn("Request {} from {} failed: {}", req.getId(), conn, failure.getMessage());
+				resp.setStatus(Constants.STATUS_ERROR);
+				resp.setParam(String.valueOf(failure.getMessage()).getBytes(UTF8));
+			} else {
+				resp.setPath("batch of " + entries.getEntries() + " files");
+				resp.setSrc(entries);
+				resp.setStreamSize(entries.size());
+			}
+			conn.respondPrepared(resp);
+		}
+	}
+
+	/**
+	 * Removes a file
+	 */
+	private class DeleteTask extends DiskTask {
+		private final Request req;
+		private final Response resp;
+
+		DeleteTask(Connection conn, Request req) {
+			super(HazelFSReactor.this, conn);
+			this.req = req;
+			this.resp = new Response(req);
+		}
+
+		@Override
+		protected void execute() throws IOException {
+			try {
+				storage.delete(req.getParam());
+			} catch (FileNotFoundException e) {
+				resp.setStatus(Constants.STATUS_NOT_FOUND);
+			}
+		}
+
+		@Override
+		protected void complete(IOException failure) throws IOException {
+			Connection conn = getConnection();
+			if (!conn.isOpen()) {
+				return;
+			}
+			if (failure != null) {
+				LOG.warn("Request {} from {} failed: {}", req.getId(), conn, failure.getMessage());
+				resp.setStatus(Constants.STATUS_ERROR);
+				resp.setParam(String.valueOf(failure.getMessage()).getBytes(UTF8));
+			}
+			conn.respondPrepared(resp);
+		}
+	}
+
+	/**
+	 * Answers which of the chunks asked for are stored
+	 */
+	private class HasChunksTask extends DiskTask {
+		private final Request req;
+		private final Response resp;
+
+		HasChunksTask(Connection conn, Request req) {
+			super(HazelFSReactor.this, conn);
+			this.req = req;
+			this.resp = new Response(req);
+		}
+
+		@Override
+		protected void execute() throws IOException {
+			if (dedup == null) {
+				throw new IOException("Node does not store chunks");
+			}
+			byte[] hashes = req.getHashes();
+			byte[] present = new byte[hashes.length / DedupStorageService.HASH_SIZE];
+			byte[] hash = new byte[DedupStorageService.HASH_SIZE];
+			for (int i = 0; i < present.length; i++) {
+				System.arraycopy(hashes, i * hash.length, hash, 0, hash.length);
+				present[i] = (byte) (dedup.contains(hash) ? 1 : 0);
+			}
+			resp.setParam(present);
+		}
+
+		@Override
+		protected void complete(IOException failure) throws IOException {
+			Connection conn = getConnection();
+			if (!conn.isOpen()) {
+				return;
+			}
+			if (failure != null) {
+				LOG.warn("Request {} from {} failed: {}", req.getId(), conn, failure.getMessage());
+				resp.setStatus(Constants.STATUS_ERROR);
+				resp.setParam(String.valueOf(failure.getMessage()).getBytes(UTF8));
+			}
+			conn.respondPrepared(resp);
+		}
+	}
+
+	/**
+	 * Receive the payload of an upload into the request's slab and hand it to a
+	 * disk thread whenever the slab is full, so the disk sees large positional
+	 * writes no matter how the data trickles in from the network.
+	 * 
+	 * @return true if the whole payload has been read
+	 */
+	private boolean readStream(Connection conn, Request req) throws IOException {
+		for (int i = 0; i < READS_PER_WAKEUP && conn.canAcceptRequest(); i++) {
+			boolean data = req.getStreamRead() < req.getDataSize();
+			// the checksums following the data are read as a whole
+			ByteBuffer dst = data ? req.getBuffer() : req.getTrailer();
+			if (data) {
+				// never read past the end of the data into the checksums or the
+				// next request
+				long unread = req.getDataSize() - req.getStreamRead();
+				dst.limit((int) Math.min(dst.capacity(), dst.position() + unread));
+			}
+			int read = conn.getChannel().read(dst);
+			if (read == -1) {
+				close(conn);
+				return false;
+			}
+			metrics.received(read);
+			metrics.inFlight(-read);
+			req.setStreamRead(req.getStreamRead() + read);
+			if (data && (!dst.hasRemaining() || req.getStreamRead() == req.getDataSize())) {
+				flushStream(conn, req);
+			}
+			if (req.getStreamRead() == req.getStreamSize()) {
+				if (req.getTrailer() != null) {
+					req.getTrailer().flip();
+				}
+				req.setPayloadRead(true);
+				conn.setReadSuspended(true);
+				finishPayload(conn, req);
+				return true;
+			}
+			if (read == 0) {
+				return false;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Pass the filled slab on to a disk thread and continue with a fresh one.
+	 * Reading stops while too many slabs of this upload wait for the disk.
+	 */
+	private void flushStream(Connection conn, Request req) {
+		ByteBuffer src = req.getBuffer();
+		src.flip();
+		if (req.getOutput() == null || req.getFailure() != null) {
+			// the upload is being dropped
+			src.clear();
+			return;
+		}
+		req.setBuffer(pool.acquire(BufferPool.SLAB_SIZE));
+		long position = req.getStreamWritten();
+		req.setStreamWritten(position + src.remaining());
+		req.setPendingWrites(req.getPendingWrites() + 1);
+		boolean accepted = true;
+		if (req.getReplica() != null) {
+			// the slab is written locally once the replica has it
+			req.getForwards().add(new ForwardTask(conn, req, src, position));
+			forward(req);
+		} else {
+			accepted = submit(new WriteTask(conn, req, src, position));
+		}
+		if (!accepted || req.getPendingWrites() >= MAX_PENDING_WRITES) {
+			conn.setReadSuspended(true);
+		}
+	}
+
+	/**
+	 * Writes a slab of an upload and computes its checksum on the way, a slab
+	 * is exactly one chunk of the file
+	 */
+	private class WriteTask extends DiskTask {
+		private final Request req;
+		private final FileChannel output;
+		private final ByteBuffer src;
+		private final long position;
+		private int checksum;
+
+		WriteTask(Connection conn, Request req, ByteBuffer src, long position) {
+			super(HazelFSReactor.this, conn);
+			this.req = req;
+			this.output = req.getOutput();
+			this.src = src;
+			this.position = position;
+		}
+
+		@Override
+		protected void execute() throws IOException {
+			checksum = Crc32c.compute(src);
+			while (src.hasRemaining()) {
+				output.write(src, position + src.position());
+			}
+		}
+
+		@Override
+		protected void complete(IOException failure) throws IOException {
+			pool.release(src);
+			req.setPendingWrites(req.getPendingWrites() - 1);
+			req.getChecksums()[(int) (position / Crc32c.CHUNK_SIZE)] = checksum;
+			Connection conn = getConnection();
+			if (failure != null && req.getFailure() == null) {
+				// keep the connection but drop the rest of the upload
+				LOG.warn("Unable to write {}: {}", req.getParam(), failure.getMessage());
+				req.setFailure(failure);
+			}
+			if (!conn.isOpen()) {
+				abandonUpload(conn, req);
+				return;
+			}
+			if (req.getFailure() != null) {
+				dropReplica(req);
+			}
+			resumePayload(conn, req);
+		}
+	}
+
+	/**
+	 * Pass the next slab of a replicated upload on to the replica. The slabs have
+	 * to arrive in order, so only one is sent at a time.
+	 */
+	private void forward(Request req) {
+		if (!req.isForwarding() && !req.getForwards().isEmpty()) {
+			req.setForwarding(true);
+			replication.execute(req.getForwards().poll());
+		}
+	}
+
+	private class ConnectReplicaTask extends DiskTask {
+		private final Request req;
+		private final ReplicaStream replica;
+
+		ConnectReplicaTask(Connection conn, Request req) {
+			super(HazelFSReactor.this, conn);
+			this.req = req;
+			this.replica = req.getReplica();
+		}
+
+		@Override
+		protected void execute() throws IOException {
+			replica.connect();
+		}
+
+		@Override
+		protected void complete(IOException failure) throws IOException {
+			forwarded(getConnection(), req, replica, failure);
+		}
+	}
+
+	private class ForwardTask extends DiskTask {
+		private final Request req;
+		private final ReplicaStream replica;
+		private final ByteBuffer src;
+		private final long position;
+
+		ForwardTask(Connection conn, Request req, ByteBuffer src, long position) {
+			super(HazelFSReactor.this, conn);
+			this.req = req;
+			this.replica = req.getReplica();
+			this.src = src;
+			this.position = position;
+		}
+
+		@Override
+		protected void execute() throws IOException {
+			replica.write(src.duplicate());
+		}
+
+		@Override
+		protected void complete(IOException failure) throws IOException {
+			writeLocally();
+			forwarded(getConnection(), req, replica, failure);
+		}
+
+		/**
+		 * Write the slab to the local copy, or drop it with the upload
+		 */
+		void writeLocally() {
+			if (getConnection().isOpen() && req.getFailure() == null) {
+				submit(new WriteTask(getConnection(), req, src, position));
+			} else {
+				pool.release(src);
+				req.setPendingWrites(req.getPendingWrites() - 1);
+			}
+		}
+	}
+
+	/**
+	 * Continue a replicated upload after the replica has been sent something.
+	 * If that failed the upload goes on without the replica, with one copy less.
+	 */
+	private void forwarded(Connection conn, Request req, ReplicaStream replica, IOException failure)
+			throws IOException {
+		req.setForwarding(false);
+		if (failure != null && req.getReplica() == replica) {
+			LOG.warn("Unable to replicate {} to {}: {}", req.getParam(), replica, failure.getMessage());
+			dropReplica(req);
+		}
+		if (!conn.isOpen()) {
+			dropReplica(req);
+			abandonUpload(conn, req);
+			return;
+		}
+		forward(req);
+		resumePayload(conn, req);
+	}
+
+	/**
+	 * Stop passing an upload on, the replica removes what it got so far. The
+	 * slabs it has not been sent yet are still stored locally.
+	 */
+	private void dropReplica(Request req) {
+		closeQuietly(req.getReplica());
+		req.setReplica(null);
+		DiskTask task;
+		while ((task = req.getForwards().poll()) != null) {
+			((ForwardTask) task).writeLocally();
+		}
+	}
+
+	/**
+	 * Continue an upload after some of its disk work has been done
+	 */
+	private void resumePayload(Connection conn, Request req) throws IOException {
+		if (req.isPayloadRead()) {
+			finishPayload(conn, req);
+		} else if (!req.isCreating() && req.getPendingWrites() < MAX_PENDING_WRITES) {
+			conn.setReadSuspended(false);
+		}
+	}
+
+	/**
+	 * Respond to an upload once the whole payload has been read and written. The
+	 * checksums of the written slabs have to match the ones the client sent.
+	 * The output is closed on a disk thread after the checksums have been
+	 * stored, and removed if the upload failed.
+	 */
+	private void finishPayload(Connection conn, final Request req) throws IOException {
+		if (req.isCreating() || req.getPendingWrites() > 0 || req.isForwarding()) {
+			return;
+		}
+		final FileChannel output = req.getOutput();
+		if (output == null) {
+			dropReplica(req);
+			respond(conn, req);
+			return;
+		}
+		req.setOutput(null);
+		if (req.getFailure() == null) {
+			verifyChecksums(req);
+		}
+		submit(new DiskTask(this, conn) {
+			@Override
+			protected void execute() throws IOException {
+				try {
+					// the storage computes the checksums of files received as
+					// chunk records itself, a batch those of its entries
+					if (req.getFailure() == null && req.getType() == Constants.PROTO_CREATE_FILE) {
+						storage.putChecksums(req.getParam(), req.getChecksums());
+					}
+				} catch (IOException e) {
+					req.setFailure(e);
+				} finally {
+					try {
+						output.close();
+					} catch (IOException e) {
+						if (req.getFailure() == null) {
+							req.setFailure(e);
+						}
+					}
+				}
+				if (output instanceof BatchUploadChannel) {
+					req.setStatuses(((BatchUploadChannel) output).getStatuses());
+				}
+				if (req.getFailure() != null) {
+					removePartialUpload(req);
+				}
+			}
+
+			@Override
+			protected void complete(IOException failure) throws IOException {
+				if (failure != null) {
+					req.setFailure(failure);
+				}
+				Connection conn = getConnection();
+				if (!conn.isOpen()) {
+					dropReplica(req);
+					return;
+				}
+				if (LOG.isDebugEnabled()) {
+					LOG.debug("received {} bytes of {} from {}", req.getStreamRead(), req.getParam(), conn);
+				}
+				if (req.getReplica() == null || req.getFailure() != null) {
+					dropReplica(req);
+					respond(conn, req);
+				} else {
+					replication.execute(new FinishReplicaTask(conn, req));
+					req.setReplica(null);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Fail an upload whose data does not match the checksums sent by its client
+	 */
+	private void verifyChecksums(Request req) {
+		if (req.getTrailer() == null) {
+			return;
+		}
+		IntBuffer expected = req.getTrailer().duplicate().asIntBuffer();
+		int[] checksums = req.getChecksums();
+		for (int i = 0; i < checksums.length; i++) {
+			if (checksums[i] != expected.get(i)) {
+				req.setFailure(new ChecksumException("Chunk " + i + " of " + req.getParam()
+						+ " has been corrupted on its way to the server"));
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Waits for the replica to store a replicated upload before the upload is
+	 * answered. The replica gets the checksums of the client after the data.
+	 */
+	private class FinishReplicaTask extends DiskTask {
+		private final Request req;
+		private final ReplicaStream replica;
+		private int copies;
+
+		FinishReplicaTask(Connection conn, Request req) {
+			super(HazelFSReactor.this, conn);
+			this.req = req;
+			this.replica = req.getReplica();
+		}
+
+		@Override
+		protected void execute() throws IOException {
+			try {
+				if (req.getTrailer() != null) {
+					replica.write(req.getTrailer().duplicate());
+				}
+				copies = replica.finish();
+			} finally {
+				replica.close();
+			}
+		}
+
+		@Override
+		protected void complete(IOException failure) throws IOException {
+			if (failure != null) {
+				LOG.warn("Replica {} did not store {}: {}", replica, req.getParam(), failure.getMessage());
+			} else {
+				req.setCopies(copies);
+			}
+			if (getConnection().isOpen()) {
+				respond(getConnection(), req);
+			}
+		}
+	}
+
+	private void respond(Connection conn, Request req) {
+		Response resp = new Response(req);
+		int copies = 1 + req.getCopies();
+		if (req.getFailure() == null && req.isReplicated() && copies < req.getQuorum()) {
+			// the local copy is kept, the client may upload the file again
+			req.setFailure(new IOException("Only " + copies + " of " + req.getQuorum() + " required copies of "
+					+ req.getParam() + " have been stored"));
+		}
+		if (req.getFailure() != null) {
+			LOG.warn("Request {} from {} failed: {}", req.getId(), conn, req.getFailure().getMessage());
+			resp.setStatus(Constants.STATUS_ERROR);
+			resp.setParam(String.valueOf(req.getFailure().getMessage()).getBytes(UTF8));
+		} else if (req.isReplicated()) {
+			resp.setParam(ByteBuffer.allocate(4).putInt(copies).array());
+		} else if (req.getStatuses() != null) {
+			resp.setData(req.getStatuses());
+			resp.setStreamSize(req.getStatuses().remaining());
+		}
+		conn.respond(resp);
+		conn.expectRequest();
+	}
+
+	/**
+	 * Remove the file of an upload whose client went away, once no disk work of
+	 * the upload is left
+	 */
+	private void abandonUpload(Connection conn, final Request req) {
+		final FileChannel output = req.getOutput();
+		dropReplica(req);
+		if (output == null || req.isCreating() || req.getPendingWrites() > 0 || req.isForwarding()) {
+			return;
+		}
+		req.setOutput(null);
+		submit(new DiskTask(this, conn) {
+			@Override
+			protected void execute() throws IOException {
+				closeQuietly(output);
+				removePartialUpload(req);
+			}
+
+			@Override
+			protected void complete(IOException failure) {
+				// nothing left to do on the reactor
+			}
+		});
+	}
+
+	private void removePartialUpload(Request req) {
+		if (req.getType() == Constants.PROTO_PUT_BATCH) {
+			// the batch has removed the entry it has been cut off in itself
+			return;
+		}
+		try {
+			storage.delete(req.getParam());
+		} catch (IOException e) {
+			LOG.warn("Unable to remove partial upload {}", req.getParam(), e);
+		}
+	}
+
+	private static void closeQuietly(Closeable c) {
+		if (c == null) {
+			return;
+		}
+		try {
+			c.close();
+		} catch (IOException e) {
+			LOG.warn("Unable to close {}", c, e);
+		}
+	}
+
+	void shutdown() {
+		this.shutdown = true;
+		selector.wakeup();
+	}
+}
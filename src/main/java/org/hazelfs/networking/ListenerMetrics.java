@@ -0,0 +1,187 @@
+package org.hazelfs.networking;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.hazelfs.services.LatencyHistogram;
+import org.hazelfs.services.StripedCounter;
+
+/**
+ * Counters and latencies of a {@link HazelFSListener}, updated by its reactors
+ * and disk threads without any locking. A request's latency runs from reading
+ * its header to writing the last byte of its response.
+ */
+public class ListenerMetrics implements ListenerMetricsMBean {
+
+	/** The names of the opcodes by their number, for reporting */
+	private static final String[] OPCODES = { null, "REQUEST_FILE", "CREATE_FILE", "REQUEST_RANGE", "STAT",
+			"CREATE_CHUNKS", "HAS_CHUNKS", "GET_BATCH", "PUT_BATCH",
+			"DELETE" };
+
+	private final LatencyHistogram[] requests = new LatencyHistogram[OPCODES.length];
+	// requests with an opcode the listener does not know
+	private final LatencyHistogram unknownRequests = new LatencyHistogram();
+	private final LatencyHistogram selectorLoops = new LatencyHistogram();
+	private final LatencyHistogram diskTasks = new LatencyHistogram();
+	private final StripedCounter bytesIn = new StripedCounter();
+	private final StripedCounter bytesOut = new StripedCounter();
+	private final StripedCounter inFlightBytes = new StripedCounter();
+	private final StripedCounter activeConnections = new StripedCounter();
+	private final StripedCounter acceptedConnections = new StripedCounter();
+	private volatile DiskExecutor disk;
+
+	public ListenerMetrics() {
+		super();
+		for (int i = 1; i < OPCODES.length; i++) {
+			requests[i] = new LatencyHistogram();
+		}
+	}
+
+	/**
+	 * @return the latencies of the requests by the name of their opcode
+	 */
+	public Map<String, LatencyHistogram> getRequestLatencies() {
+		Map<String, LatencyHistogram> latencies = new LinkedHashMap<String, LatencyHistogram>();
+		for (int i = 1; i < OPCODES.length; i++) {
+			latencies.put(OPCODES[i], requests[i]);
+		}
+		latencies.put("UNKNOWN", unknownRequests);
+		return latencies;
+	}
+
+	/**
+	 * @return the number of requests per latency bucket summed up over all
+	 *         opcodes, see {@link LatencyHistogram#getCounts()}
+	 */
+	public long[] getRequestCounts() {
+		long[] counts = unknownRequests.getCounts();
+		for (int i = 1; i < requests.length; i++) {
+			long[] c = requests[i].getCounts();
+			for (int j = 0; j < counts.length; j++) {
+				counts[j] += c[j];
+			}
+		}
+		return counts;
+	}
+
+	/**
+	 * @return the time a reactor spends handling the keys of one selection
+	 */
+	public LatencyHistogram getSelectorLoops() {
+		return selectorLoops;
+	}
+
+	/**
+	 * @return the time disk threads spend blocked on a single storage task
+	 */
+	public LatencyHistogram getDiskTasks() {
+		return diskTasks;
+	}
+
+	void requestDone(int type, long nanos) {
+		if (type > 0 && type < requests.length) {
+			requests[type].record(nanos);
+		} else {
+			unknownRequests.record(nanos);
+		}
+	}
+
+	void received(long bytes) {
+		bytesIn.add(bytes);
+	}
+
+	void sent(long bytes) {
+		bytesOut.add(bytes);
+	}
+
+	/**
+	 * Count bytes announced by a request as about to be transferred, or
+	 * transferred or dropped when negative
+	 */
+	void inFlight(long bytes) {
+		inFlightBytes.add(bytes);
+	}
+
+	void connectionOpened() {
+		acceptedConnections.increment();
+		activeConnections.increment();
+	}
+
+	void connectionClosed() {
+		activeConnections.decrement();
+	}
+
+	void setDiskExecutor(DiskExecutor disk) {
+		this.disk = disk;
+	}
+
+	@Override
+	public long getRequests() {
+		long count = unknownRequests.getCount();
+		for (int i = 1; i < requests.length; i++) {
+			count += requests[i].getCount();
+		}
+		return count;
+	}
+
+	@Override
+	public long getBytesIn() {
+		return bytesIn.sum();
+	}
+
+	@Override
+	public long getBytesOut() {
+		return bytesOut.sum();
+	}
+
+	@Override
+	public long getInFlightBytes() {
+		return inFlightBytes.sum();
+	}
+
+	@Override
+	public long getActiveConnections() {
+		return activeConnections.sum();
+	}
+
+	@Override
+	public long getAcceptedConnections() {
+		return acceptedConnections.sum();
+	}
+
+	@Override
+	public long getDiskNanos() {
+		return diskTasks.getTotal();
+	}
+
+	@Override
+	public int getDiskQueueDepth() {
+		DiskExecutor d = disk;
+		return d == null ? 0 : d.getQueueDepth();
+	}
+
+	@Override
+	public long getBufferPoolHits() {
+		return BufferPool.getHits();
+	}
+
+	@Override
+	public long getBufferPoolMisses() {
+		return BufferPool.getMisses();
+	}
+
+	@Override
+	public long getBufferPoolAllocatedBytes() {
+		return BufferPool.getAllocatedBytes();
+	}
+
+	@Override
+	public long getBufferPoolUsedBytes() {
+		return BufferPool.getUsedBytes();
+	}
+
+	@Override
+	public long getBufferPoolPooledBytes() {
+		return BufferPool.getPooledBytes();
+	}
+}
@@ -0,0 +1,54 @@
+package org.hazelfs.networking;
+
+/**
+ * The JMX view of the {@link ListenerMetrics} of a node, the latencies are
+ * registered as {@link org.hazelfs.services.LatencyHistogramMBean}s of their
+ * own. The buffer pool figures cover all pools of the JVM.
+ */
+public interface ListenerMetricsMBean {
+
+	/**
+	 * @return the number of requests answered
+	 */
+	public long getRequests();
+
+	public long getBytesIn();
+
+	public long getBytesOut();
+
+	/**
+	 * @return the bytes of the uploads and downloads in progress that are still
+	 *         to be transferred
+	 */
+	public long getInFlightBytes();
+
+	public long getActiveConnections();
+
+	public long getAcceptedConnections();
+
+	/**
+	 * @return the time disk threads have spent on storage tasks
+	 */
+	public long getDiskNanos();
+
+	/**
+	 * @return the number of storage tasks waiting for a disk thread
+	 */
+	public int getDiskQueueDepth();
+
+	public long getBufferPoolHits();
+
+	public long getBufferPoolMisses();
+
+	public long getBufferPoolAllocatedBytes();
+
+	/**
+	 * @return the bytes of the buffers handed out and not released yet
+	 */
+	public long getBufferPoolUsedBytes();
+
+	/**
+	 * @return the bytes of the buffers kept for reuse
+	 */
+	public long getBufferPoolPooledBytes();
+}
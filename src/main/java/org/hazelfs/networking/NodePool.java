@@ -0,0 +1,177 @@
+package org.hazelfs.networking;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The connections of a {@link HazeFSAsyncClient} to one node and the calls
+ * waiting for one of them. Connections are opened as calls queue up, up to
+ * the maximum, and closed again once they have been idle for too long, down
+ * to the minimum. Idle connections are checked with a stat request every now
+ * and then, so a node that has gone away is noticed before a call is sent to
+ * it. Only the I/O thread of the client touches a pool.
+ */
+class NodePool {
+
+	private static final Logger LOG = LoggerFactory.getLogger(NodePool.class);
+
+	private final HazeFSAsyncClient client;
+	private final Selector selector;
+	private final InetSocketAddress address;
+	private final Set<AsyncConnection> connections = new HashSet<AsyncConnection>();
+	// the least recently used connection first
+	private final ArrayDeque<AsyncConnection> idle = new ArrayDeque<AsyncConnection>();
+	private final ArrayDeque<AsyncCall<?>> waiting = new ArrayDeque<AsyncCall<?>>();
+	private boolean shutdown = false;
+
+	NodePool(HazeFSAsyncClient client, Selector selector, InetSocketAddress address) {
+		super();
+		this.client = client;
+		this.selector = selector;
+		this.address = address;
+	}
+
+	InetSocketAddress getAddress() {
+		return address;
+	}
+
+	void submit(AsyncCall<?> call) {
+		waiting.add(call);
+		dispatch();
+	}
+
+	/**
+	 * Hand the waiting calls to idle connections and open more connections for
+	 * the ones left over
+	 */
+	private void dispatch() {
+		if (shutdown) {
+			return;
+		}
+		AsyncCall<?> call;
+		while (!idle.isEmpty() && (call = waiting.poll()) != null) {
+			if (!call.getFuture().isDone()) {
+				// the most recently used connection, so the others can time out
+				idle.pollLast().start(call, false);
+			}
+		}
+		while (waiting.size() > getConnecting() && connections.size() < client.getMaxConnections()) {
+			connect();
+		}
+	}
+
+	private int getConnecting() {
+		int connecting = 0;
+		for (AsyncConnection conn : connections) {
+			if (!conn.isConnected()) {
+				connecting++;
+			}
+		}
+		return connecting;
+	}
+
+	private void connect() {
+		AsyncConnection conn;
+		try {
+			conn = new AsyncConnection(this, selector);
+		} catch (IOException e) {
+			LOG.debug("Unable to connect to {}: {}", this, e.getMessage());
+			failWaiting(e);
+			return;
+		}
+		connections.add(conn);
+		if (conn.isConnected()) {
+			released(conn);
+		}
+	}
+
+	/**
+	 * Take back a connection which has been connected or has finished its call
+	 */
+	void released(AsyncConnection conn) {
+		if (connections.contains(conn)) {
+			idle.add(conn);
+			dispatch();
+		}
+	}
+
+	void closed(AsyncConnection conn, IOException failure) {
+		connections.remove(conn);
+		idle.remove(conn);
+		if (!conn.isConnected() && connections.isEmpty() && !waiting.isEmpty()) {
+			// none of the connections tried got through
+			LOG.warn("Unable to connect to {}: {}", this, failure.getMessage());
+			failWaiting(failure);
+		}
+		dispatch();
+	}
+
+	private void failWaiting(IOException failure) {
+		AsyncCall<?> call;
+		while ((call = waiting.poll()) != null) {
+			call.getFuture().fail(failure);
+		}
+	}
+
+	/**
+	 * Time out connects, close and check idle connections and open the minimum
+	 * number of connections
+	 */
+	void maintain(long now) {
+		for (AsyncConnection conn : new ArrayList<AsyncConnection>(connections)) {
+			if (!conn.isConnected() && now - conn.getCreated() > client.getConnectTimeoutMillis()) {
+				conn.close(new SocketTimeoutException("Unable to connect to " + this + " within "
+						+ client.getConnectTimeoutMillis() + " ms"));
+			}
+		}
+		for (AsyncConnection conn : new ArrayList<AsyncConnection>(idle)) {
+			if (connections.size() > client.getMinConnections()
+					&& now - conn.getLastUsed() > client.getIdleTimeoutMillis()) {
+				LOG.debug("Closing idle connection to {}", this);
+				conn.close(null);
+			} else if (now - conn.getLastActive() > client.getHealthCheckIntervalMillis()) {
+				// any answer will do, a connection that is gone fails the call
+				idle.remove(conn);
+				conn.start(new AsyncCall<Void>(Constants.PROTO_STAT, (short) 0, "") {
+					@Override
+					protected Void result(byte[] param, ByteBuffer payload) {
+						return null;
+					}
+				}, true);
+			}
+		}
+		while (waiting.isEmpty() && connections.size() < client.getMinConnections()) {
+			int before = connections.size();
+			connect();
+			if (connections.size() == before) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Close all connections and fail all calls
+	 */
+	void shutdown(IOException failure) {
+		shutdown = true;
+		failWaiting(failure);
+		for (AsyncConnection conn : new ArrayList<AsyncConnection>(connections)) {
+			conn.close(failure);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return address.getHostString() + ":" + address.getPort();
+	}
+}
@@ -0,0 +1,363 @@
+package org.hazelfs.networking;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hazelfs.services.Node;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Downloads a file over several connections at once, optionally from several
+ * nodes holding a copy of it. The file is cut into ranges which are fetched
+ * concurrently and written positionally into a local {@link FileChannel}.
+ *
+ * Every connection sizes its next range by the throughput it achieved on the
+ * previous one, and a connection running out of work takes over the back half
+ * of the range with the most bytes left, so a slow source does not hold up the
+ * whole download.
+ */
+public class ParallelFetcher {
+
+	private static final Logger LOG = LoggerFactory.getLogger(ParallelFetcher.class);
+
+	private final List<URI> candidates;
+	private int connectionsPerSource = 4;
+	private long minRangeSize = 1024 * 1024;
+	private long maxRangeSize = 64 * 1024 * 1024;
+	private long targetRangeMillis = 250;
+
+	/**
+	 * @param candidates
+	 *            the hazefs:// URIs of the nodes that might hold the file
+	 */
+	public ParallelFetcher(Collection<URI> candidates) {
+		super();
+		if (candidates.isEmpty()) {
+			throw new IllegalArgumentException("At least one source is needed");
+		}
+		this.candidates = new ArrayList<URI>(candidates);
+	}
+
+	/**
+	 * Create a fetcher using the given nodes, e.g. the values of the Hazelcast
+	 * node map, as candidate sources
+	 */
+	public static ParallelFetcher forNodes(Collection<Node> nodes) {
+		List<URI> uris = new ArrayList<URI>(nodes.size());
+		for (Node n : nodes) {
+			uris.add(n.getUri());
+		}
+		return new ParallelFetcher(uris);
+	}
+
+	public void setConnectionsPerSource(int connectionsPerSource) {
+		this.connectionsPerSource = connectionsPerSource;
+	}
+
+	public void setMinRangeSize(long minRangeSize) {
+		this.minRangeSize = minRangeSize;
+	}
+
+	public void setMaxRangeSize(long maxRangeSize) {
+		this.maxRangeSize = maxRangeSize;
+	}
+
+	/**
+	 * Set the time a single range request should take, ranges are sized by the
+	 * throughput of the connection to meet it
+	 */
+	public void setTargetRangeMillis(long targetRangeMillis) {
+		this.targetRangeMillis = targetRangeMillis;
+	}
+
+	/**
+	 * Download a file into the given channel, starting at position 0
+	 *
+	 * @return the size of the file
+	 */
+	public long fetch(String path, FileChannel target) throws IOException {
+		long size = -1;
+		List<URI> sources = new ArrayList<URI>();
+		for (URI uri : candidates) {
+			long sourceSize = stat(uri, path);
+			if (sourceSize < 0) {
+				continue;
+			}
+			if (size >= 0 && sourceSize != size) {
+				LOG.warn("Ignoring {} holding {} with {} instead of {} bytes", uri, path, sourceSize, size);
+				continue;
+			}
+			size = sourceSize;
+			sources.add(uri);
+		}
+		if (sources.isEmpty()) {
+			throw new FileNotFoundException("None of " + candidates + " holds " + path);
+		}
+		LOG.debug("fetching {} bytes of {} from {}", size, path, sources);
+
+		Download download = new Download(path, size, target);
+		ExecutorService executor = Executors.newFixedThreadPool(sources.size() * connectionsPerSource);
+		try {
+			List<Future<Void>> workers = new ArrayList<Future<Void>>();
+			for (URI uri : sources) {
+				for (int i = 0; i < connectionsPerSource; i++) {
+					workers.add(executor.submit(new Worker(uri, download)));
+				}
+			}
+			IOException failure = null;
+			for (Future<Void> worker : workers) {
+				try {
+					worker.get();
+				} catch (ExecutionException e) {
+					failure = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(
+							e.getCause());
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while fetching " + path, e);
+				}
+			}
+			if (download.written.get() != size) {
+				throw new IOException("Fetched only " + download.written.get() + " of " + size + " bytes of " + path,
+						failure);
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		return size;
+	}
+
+	/**
+	 * @return the size of the file on the given node or -1 if it is not there
+	 */
+	private long stat(URI uri, String path) {
+		HazeFSClient client = new HazeFSClient(uri.getPort(), uri.getHost());
+		try {
+			client.connect();
+			try {
+				return client.getSize(path);
+			} finally {
+				client.disconnect();
+			}
+		} catch (FileNotFoundException e) {
+			return -1;
+		} catch (IOException e) {
+			LOG.warn("Unable to query {} for {}: {}", uri, path, e.getMessage());
+			return -1;
+		}
+	}
+
+	/**
+	 * A part of the file in progress. The end can be moved forward by another
+	 * worker stealing the back of the range.
+	 */
+	private static class Range {
+		private final long start;
+		private long end;
+		private long progress;
+
+		Range(long start, long end) {
+			this.start = start;
+			this.end = end;
+			this.progress = start;
+		}
+	}
+
+	/**
+	 * The state shared by the workers of one download
+	 */
+	private class Download {
+		private final String path;
+		private final long size;
+		private final FileChannel target;
+		private final AtomicLong written = new AtomicLong();
+		private final List<Range> inFlight = new ArrayList<Range>();
+		private final Deque<Range> retries = new ArrayDeque<Range>();
+		private long nextOffset = 0;
+
+		Download(String path, long size, FileChannel target) {
+			this.path = path;
+			this.size = size;
+			this.target = target;
+		}
+
+		/**
+		 * @return the next range to fetch or null if there is no work left. Waits
+		 *         while the other workers still have ranges in flight which might
+		 *         be handed back after a failure.
+		 */
+		synchronized Range claim(long rangeSize) throws InterruptedException {
+			while (true) {
+				Range range = retries.pollFirst();
+				if (range == null && nextOffset < size) {
+					range = new Range(nextOffset, Math.min(size, nextOffset + rangeSize));
+					nextOffset = range.end;
+				}
+				if (range == null) {
+					range = steal();
+				}
+				if (range != null) {
+					inFlight.add(range);
+					return range;
+				}
+				if (inFlight.isEmpty()) {
+					return null;
+				}
+				wait();
+			}
+		}
+
+		/**
+		 * Split the range with the most bytes left and hand out its back half
+		 */
+		private Range steal() {
+			Range victim = null;
+			for (Range r : inFlight) {
+				synchronized (r) {
+					if (victim == null || r.end - r.progress > victim.end - victim.progress) {
+						victim = r;
+					}
+				}
+			}
+			if (victim == null) {
+				return null;
+			}
+			synchronized (victim) {
+				long left = victim.end - victim.progress;
+				if (left < 2 * minRangeSize) {
+					return null;
+				}
+				long split = victim.progress + left / 2;
+				Range stolen = new Range(split, victim.end);
+				victim.end = split;
+				LOG.debug("stealing {} bytes of {} at offset {}", stolen.end - stolen.start, path, split);
+				return stolen;
+			}
+		}
+
+		synchronized void finished(Range range) {
+			inFlight.remove(range);
+			notifyAll();
+		}
+
+		/**
+		 * Hand the unfinished part of a range back after a source failed
+		 */
+		synchronized void failed(Range range) {
+			inFlight.remove(range);
+			synchronized (range) {
+				if (range.progress < range.end) {
+					retries.add(new Range(range.progress, range.end));
+				}
+			}
+			notifyAll();
+		}
+	}
+
+	private class Worker implements Callable<Void> {
+		private final URI source;
+		private final Download download;
+		private HazeFSClient client;
+
+		Worker(URI source, Download download) {
+			this.source = source;
+			this.download = download;
+		}
+
+		@Override
+		public Void call() throws IOException {
+			long rangeSize = minRangeSize;
+			ByteBuffer buf = BufferPool.local().acquire(BufferPool.SLAB_SIZE);
+			try {
+				Range range;
+				while ((range = claim(rangeSize)) != null) {
+					long start = System.nanoTime();
+					try {
+						fetchRange(range, buf);
+					} catch (IOException e) {
+						LOG.warn("Fetching {} from {} failed: {}", download.path, source, e.getMessage());
+						download.failed(range);
+						throw e;
+					}
+					download.finished(range);
+					rangeSize = nextRangeSize(range.progress - range.start, System.nanoTime() - start);
+				}
+			} finally {
+				BufferPool.local().release(buf);
+				if (client != null) {
+					client.disconnect();
+				}
+			}
+			return null;
+		}
+
+		private Range claim(long rangeSize) throws IOException {
+			try {
+				return download.claim(rangeSize);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while fetching " + download.path, e);
+			}
+		}
+
+		private long nextRangeSize(long bytes, long nanos) {
+			long size = bytes * targetRangeMillis * 1000000L / Math.max(1, nanos);
+			return Math.max(minRangeSize, Math.min(maxRangeSize, size));
+		}
+
+		private void fetchRange(Range range, ByteBuffer buf) throws IOException {
+			if (client == null) {
+				client = new HazeFSClient(source.getPort(), source.getHost());
+				client.setReadAhead(0);
+				client.connect();
+			}
+			HazeFSReadChannel ch = client.openChannel(download.path, range.start, range.end - range.start);
+			while (ch.remaining() > 0) {
+				buf.clear();
+				buf.limit((int) Math.min(buf.capacity(), ch.remaining()));
+				while (buf.hasRemaining()) {
+					ch.read(buf);
+				}
+				buf.flip();
+				long position;
+				synchronized (range) {
+					// only write what is left of the range after a steal
+					position = range.progress;
+					if (position + buf.remaining() > range.end) {
+						buf.limit((int) (range.end - position));
+					}
+					range.progress += buf.remaining();
+				}
+				int count = buf.remaining();
+				while (buf.hasRemaining()) {
+					download.target.write(buf, position + count - buf.remaining());
+				}
+				download.written.addAndGet(count);
+				synchronized (range) {
+					if (range.progress >= range.end && ch.remaining() > 0) {
+						// the back of the range has been stolen, dropping the connection is
+						// cheaper than receiving the rest from a slow source
+						client.disconnect();
+						client = null;
+						return;
+					}
+				}
+			}
+			ch.close();
+		}
+	}
+}
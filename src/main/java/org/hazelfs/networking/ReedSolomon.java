@@ -0,0 +1,206 @@
+package org.hazelfs.networking;
+
+/**
+ * A systematic Reed-Solomon code over GF(2^8). The data shards are stored as
+ * they are and the parity shards are computed from them with a Cauchy matrix,
+ * any square part of which is invertible, so the data can be recovered from
+ * any dataShards of the dataShards + parityShards shards.
+ */
+public class ReedSolomon {
+
+	/** The generator polynomial x^8 + x^4 + x^3 + x^2 + 1 of the field */
+	private static final int POLYNOMIAL = 0x11d;
+	private static final int[] EXP = new int[512];
+	private static final int[] LOG = new int[256];
+	/** MUL[a][b] is the product of a and b, a row serves as lookup table for a */
+	private static final byte[][] MUL = new byte[256][256];
+
+	static {
+		int x = 1;
+		for (int i = 0; i < 255; i++) {
+			EXP[i] = x;
+			LOG[x] = i;
+			x <<= 1;
+			if (x > 0xff) {
+				x ^= POLYNOMIAL;
+			}
+		}
+		for (int i = 255; i < EXP.length; i++) {
+			EXP[i] = EXP[i - 255];
+		}
+		for (int a = 0; a < 256; a++) {
+			for (int b = 0; b < 256; b++) {
+				MUL[a][b] = (byte) multiply(a, b);
+			}
+		}
+	}
+
+	private final int dataShards;
+	private final int parityShards;
+	/** The rows of the encoding matrix below the identity of the data shards */
+	private final int[][] parity;
+
+	public ReedSolomon(int dataShards, int parityShards) {
+		super();
+		if (dataShards < 1 || parityShards < 0 || dataShards + parityShards > 256) {
+			throw new IllegalArgumentException("Unsupported code with " + dataShards + " data and " + parityShards
+					+ " parity shards");
+		}
+		this.dataShards = dataShards;
+		this.parityShards = parityShards;
+		this.parity = new int[parityShards][dataShards];
+		for (int i = 0; i < parityShards; i++) {
+			for (int j = 0; j < dataShards; j++) {
+				// 1 / (x_i + y_j) with x_i = dataShards + i and y_j = j, which
+				// never coincide
+				parity[i][j] = inverse((dataShards + i) ^ j);
+			}
+		}
+	}
+
+	public int getDataShards() {
+		return dataShards;
+	}
+
+	public int getParityShards() {
+		return parityShards;
+	}
+
+	/**
+	 * Compute the parity shards from the data shards
+	 *
+	 * @param shards
+	 *            the data shards followed by the parity shards to fill, all
+	 *            with at least offset + length bytes
+	 */
+	public void encode(byte[][] shards, int offset, int length) {
+		for (int i = 0; i < parityShards; i++) {
+			byte[] out = shards[dataShards + i];
+			for (int b = offset; b < offset + length; b++) {
+				out[b] = 0;
+			}
+			for (int j = 0; j < dataShards; j++) {
+				addMultiple(out, shards[j], parity[i][j], offset, length);
+			}
+		}
+	}
+
+	/**
+	 * Reconstruct the missing data shards from the present ones
+	 *
+	 * @param present
+	 *            which of the shards hold data, at least dataShards of them
+	 *            have to
+	 */
+	public void decode(byte[][] shards, boolean[] present, int offset, int length) {
+		int[] rows = new int[dataShards];
+		int n = 0;
+		for (int i = 0; i < shards.length && n < dataShards; i++) {
+			if (present[i]) {
+				rows[n++] = i;
+			}
+		}
+		if (n < dataShards) {
+			throw new IllegalArgumentException("Decoding needs " + dataShards + " shards but only " + n
+					+ " are present");
+		}
+		int[][] matrix = new int[dataShards][];
+		for (int r = 0; r < dataShards; r++) {
+			matrix[r] = row(rows[r]);
+		}
+		int[][] decoding = invert(matrix);
+		for (int j = 0; j < dataShards; j++) {
+			if (present[j]) {
+				continue;
+			}
+			byte[] out = shards[j];
+			for (int b = offset; b < offset + length; b++) {
+				out[b] = 0;
+			}
+			for (int r = 0; r < dataShards; r++) {
+				addMultiple(out, shards[rows[r]], decoding[j][r], offset, length);
+			}
+		}
+	}
+
+	/**
+	 * @return the row of the encoding matrix producing the given shard
+	 */
+	private int[] row(int shard) {
+		if (shard >= dataShards) {
+			return parity[shard - dataShards].clone();
+		}
+		int[] row = new int[dataShards];
+		row[shard] = 1;
+		return row;
+	}
+
+	/**
+	 * out[b] ^= factor * in[b]
+	 */
+	private static void addMultiple(byte[] out, byte[] in, int factor, int offset, int length) {
+		if (factor == 0) {
+			return;
+		}
+		byte[] table = MUL[factor];
+		for (int b = offset; b < offset + length; b++) {
+			out[b] ^= table[in[b] & 0xff];
+		}
+	}
+
+	/**
+	 * Gauss-Jordan elimination of a square matrix, in GF(2^8) adding and
+	 * subtracting are both xor
+	 */
+	private static int[][] invert(int[][] matrix) {
+		int size = matrix.length;
+		int[][] inv = new int[size][size];
+		for (int i = 0; i < size; i++) {
+			inv[i][i] = 1;
+		}
+		for (int col = 0; col < size; col++) {
+			int pivot = col;
+			while (matrix[pivot][col] == 0) {
+				pivot++;
+				if (pivot == size) {
+					throw new IllegalStateException("Singular decoding matrix");
+				}
+			}
+			swap(matrix, col, pivot);
+			swap(inv, col, pivot);
+			int scale = inverse(matrix[col][col]);
+			for (int c = 0; c < size; c++) {
+				matrix[col][c] = multiply(matrix[col][c], scale);
+				inv[col][c] = multiply(inv[col][c], scale);
+			}
+			for (int r = 0; r < size; r++) {
+				int factor = matrix[r][col];
+				if (r == col || factor == 0) {
+					continue;
+				}
+				for (int c = 0; c < size; c++) {
+					matrix[r][c] ^= multiply(factor, matrix[col][c]);
+					inv[r][c] ^= multiply(factor, inv[col][c]);
+				}
+			}
+		}
+		return inv;
+	}
+
+	private static void swap(int[][] m, int a, int b) {
+		int[] t = m[a];
+		m[a] = m[b];
+		m[b] = t;
+	}
+
+	private static int multiply(int a, int b) {
+		if (a == 0 || b == 0) {
+			return 0;
+		}
+		return EXP[LOG[a] + LOG[b]];
+	}
+
+	private static int inverse(int a) {
+		return EXP[255 - LOG[a]];
+	}
+}
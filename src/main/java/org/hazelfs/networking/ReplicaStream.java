@@ -0,0 +1,179 @@
+package org.hazelfs.networking;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.hazelfs.services.Crc32c;
+
+/**
+ * The upload of a file to the next node of a replication chain. A node storing
+ * a replicated upload passes every slab on through this stream before writing
+ * it locally, so the copies are written at the same time instead of one after
+ * the other. Apart from the constructor all methods block, they are called from
+ * the listener's replication threads, never from the disk threads, so a slow
+ * replica cannot hold up the local storage work.
+ *
+ * The parameter of a replicated {@link Constants#PROTO_CREATE_FILE} request
+ * is:
+ *
+ * <pre>
+ * short  quorum          copies needed, including the receiving node's
+ * short  count           number of nodes following the receiving node
+ * count times
+ *   short  length
+ *   byte[] address       UTF-8 host:port of the node
+ * byte[] path            UTF-8, the rest of the parameter
+ * </pre>
+ *
+ * A successful response carries the number of copies stored as an int. An
+ * upload with checksums is passed on with the checksums its client sent, so
+ * every node of the chain checks the data it received.
+ */
+class ReplicaStream implements Closeable {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final String path;
+	private final long size;
+	private final List<String> chain;
+	private final boolean checksums;
+	private final SocketChannel channel;
+
+	/**
+	 * @param chain
+	 *            the addresses of the nodes to store the file on, the upload
+	 *            goes to the first one which passes it on to the others
+	 * @param checksums
+	 *            true if the data is followed by the checksums of its chunks
+	 */
+	ReplicaStream(String path, long size, List<String> chain, boolean checksums) throws IOException {
+		super();
+		this.path = path;
+		this.size = size;
+		this.chain = chain;
+		this.checksums = checksums;
+		this.channel = SocketChannel.open();
+	}
+
+	/**
+	 * Connect to the first node of the chain and start the upload
+	 */
+	void connect() throws IOException {
+		URI uri = URI.create("hazefs://" + chain.get(0));
+		channel.connect(new InetSocketAddress(uri.getHost(), uri.getPort()));
+		channel.socket().setTcpNoDelay(true);
+		// the head of the chain checks the quorum, the rest only report their
+		// copies
+		byte[] param = encodeParam(path, 1, chain.subList(1, chain.size()));
+		ByteBuffer buf = ByteBuffer.allocate(Constants.PROTO_HEADER_SIZE + param.length);
+		short flags = Constants.FLAG_REPLICATE;
+		long payload = size;
+		if (checksums) {
+			flags |= Constants.FLAG_CHECKSUMS;
+			payload += 4L * Crc32c.chunks(size);
+		}
+		new FrameHeader(Constants.PROTO_CREATE_FILE, flags, 0, param.length, payload).encode(buf);
+		buf.put(param);
+		buf.flip();
+		write(buf);
+	}
+
+	static byte[] encodeParam(String path, int quorum, List<String> chain) {
+		byte[] name = path.getBytes(UTF8);
+		List<byte[]> addresses = new ArrayList<byte[]>(chain.size());
+		int length = 4 + name.length;
+		for (String a : chain) {
+			byte[] bytes = a.getBytes(UTF8);
+			addresses.add(bytes);
+			length += 2 + bytes.length;
+		}
+		ByteBuffer buf = ByteBuffer.allocate(length);
+		buf.putShort((short) quorum).putShort((short) chain.size());
+		for (byte[] a : addresses) {
+			buf.putShort((short) a.length).put(a);
+		}
+		buf.put(name);
+		return buf.array();
+	}
+
+	/**
+	 * Read the quorum and the chain from the start of a replicated create
+	 * request's parameter into the request, leaving the path in the buffer
+	 */
+	static void decodeParam(ByteBuffer buf, Request req) throws ProtocolException {
+		if (buf.remaining() < 4) {
+			throw new ProtocolException("Replicated create " + req.getId() + " without quorum and chain");
+		}
+		req.setQuorum(buf.getShort());
+		int count = buf.getShort();
+		List<String> chain = new ArrayList<String>(count);
+		for (int i = 0; i < count; i++) {
+			int length = buf.remaining() < 2 ? -1 : buf.getShort();
+			if (length < 0 || length > buf.remaining()) {
+				throw new ProtocolException("Invalid replication chain in request " + req.getId());
+			}
+			byte[] a = new byte[length];
+			buf.get(a);
+			chain.add(new String(a, UTF8));
+		}
+		req.setChain(chain);
+	}
+
+	/**
+	 * Send the remaining bytes of the buffer to the replica
+	 */
+	void write(ByteBuffer src) throws IOException {
+		while (src.hasRemaining()) {
+			channel.write(src);
+		}
+	}
+
+	/**
+	 * Wait for the replica to store the whole upload
+	 *
+	 * @return the number of copies stored by the replica and its successors
+	 */
+	int finish() throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(Constants.PROTO_HEADER_SIZE);
+		readFully(buf);
+		FrameHeader header = FrameHeader.decode(buf);
+		buf = ByteBuffer.allocate(header.getParamLength());
+		readFully(buf);
+		if (header.getStatus() != Constants.STATUS_OK) {
+			throw new IOException("Replica " + this + " failed: " + UTF8.decode(buf));
+		}
+		return buf.remaining() >= 4 ? buf.getInt() : 1;
+	}
+
+	private void readFully(ByteBuffer dst) throws IOException {
+		while (dst.hasRemaining()) {
+			if (channel.read(dst) == -1) {
+				throw new EOFException("Connection closed by replica " + this);
+			}
+		}
+		dst.flip();
+	}
+
+	/**
+	 * Close the connection, before {@link #finish()} this makes the replica drop
+	 * the upload
+	 */
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	@Override
+	public String toString() {
+		return chain.get(0);
+	}
+}
@@ -0,0 +1,339 @@
+package org.hazelfs.networking;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.List;
+
+import org.hazelfs.services.Crc32c;
+
+class Request {
+	public enum State {
+		READ_HEADER, READ_PARAM, READ_PAYLOAD;
+	}
+
+	private FrameHeader header;
+	private ByteBuffer buffer;
+	private State state = State.READ_HEADER;
+	private String param;
+	private long offset;
+	private long length;
+	private long streamRead;
+	private long streamWritten;
+	private FileChannel output;
+	private IOException failure;
+	private boolean creating;
+	private int pendingWrites;
+	private boolean payloadRead;
+	private int quorum;
+	private List<String> chain;
+	private ReplicaStream replica;
+	private ArrayDeque<DiskTask> forwards = new ArrayDeque<DiskTask>();
+	private boolean forwarding;
+	private int copies;
+	private int[] checksums;
+	private ByteBuffer trailer;
+	private byte[] hashes;
+	private List<String> paths;
+	private ByteBuffer statuses;
+	private long startNanos;
+
+	public FrameHeader getHeader() {
+		return header;
+	}
+
+	public void setHeader(FrameHeader header) {
+		this.header = header;
+	}
+
+	public long getStreamRead() {
+		return streamRead;
+	}
+
+	public void setStreamRead(long streamRead) {
+		this.streamRead = streamRead;
+	}
+
+	public long getStreamWritten() {
+		return streamWritten;
+	}
+
+	public void setStreamWritten(long streamWritten) {
+		this.streamWritten = streamWritten;
+	}
+
+	public FileChannel getOutput() {
+		return output;
+	}
+
+	public void setOutput(FileChannel output) {
+		this.output = output;
+	}
+
+	public long getStreamSize() {
+		return header.getPayloadLength();
+	}
+
+	/**
+	 * @return the number of bytes of the file in the payload, which is followed
+	 *         by the checksums of its chunks if the request has them
+	 */
+	public long getDataSize() {
+		if (!hasTrailer()) {
+			return getStreamSize();
+		}
+		long chunks = (getStreamSize() + Crc32c.CHUNK_SIZE + 3) / (Crc32c.CHUNK_SIZE + 4);
+		return getStreamSize() - 4 * chunks;
+	}
+
+	public State getState() {
+		return state;
+	}
+
+	public void setState(State state) {
+		this.state = state;
+	}
+
+	public int getType() {
+		return header.getOpcode();
+	}
+
+	public int getId() {
+		return header.getRequestId();
+	}
+
+	public void setBuffer(ByteBuffer buffer) {
+		this.buffer = buffer;
+	}
+
+	public String getParam() {
+		return param;
+	}
+
+	public void setParam(String param) {
+		this.param = param;
+	}
+
+	public long getOffset() {
+		return offset;
+	}
+
+	public void setOffset(long offset) {
+		this.offset = offset;
+	}
+
+	public long getLength() {
+		return length;
+	}
+
+	public void setLength(long length) {
+		this.length = length;
+	}
+
+	public ByteBuffer getBuffer() {
+		return buffer;
+	}
+
+	public int getParamSize() {
+		return header.getParamLength();
+	}
+
+	/**
+	 * @return the error that made the server discard the payload of this
+	 *         request, or null
+	 */
+	public IOException getFailure() {
+		return failure;
+	}
+
+	public void setFailure(IOException failure) {
+		this.failure = failure;
+	}
+
+	/**
+	 * @return true while the output file is being created on a disk thread
+	 */
+	public boolean isCreating() {
+		return creating;
+	}
+
+	public void setCreating(boolean creating) {
+		this.creating = creating;
+	}
+
+	/**
+	 * @return the number of slabs of the payload handed to a disk thread and not
+	 *         yet written
+	 */
+	public int getPendingWrites() {
+		return pendingWrites;
+	}
+
+	public void setPendingWrites(int pendingWrites) {
+		this.pendingWrites = pendingWrites;
+	}
+
+	/**
+	 * @return true once the whole payload has been received from the client
+	 */
+	public boolean isPayloadRead() {
+		return payloadRead;
+	}
+
+	public void setPayloadRead(boolean payloadRead) {
+		this.payloadRead = payloadRead;
+	}
+
+	public boolean isReplicated() {
+		return getType() == Constants.PROTO_CREATE_FILE && (header.getFlags() & Constants.FLAG_REPLICATE) != 0;
+	}
+
+	public boolean hasChecksums() {
+		return (header.getFlags() & Constants.FLAG_CHECKSUMS) != 0;
+	}
+
+	/**
+	 * @return true if the payload ends with the checksums of the chunks of the
+	 *         data, the entries of a batch upload carry their own instead
+	 */
+	public boolean hasTrailer() {
+		return hasChecksums() && getType() != Constants.PROTO_PUT_BATCH;
+	}
+
+	/**
+	 * @return the number of copies a replicated upload needs to succeed
+	 */
+	public int getQuorum() {
+		return quorum;
+	}
+
+	public void setQuorum(int quorum) {
+		this.quorum = quorum;
+	}
+
+	/**
+	 * @return the addresses of the nodes a replicated upload is passed on to
+	 */
+	public List<String> getChain() {
+		return chain;
+	}
+
+	public void setChain(List<String> chain) {
+		this.chain = chain;
+	}
+
+	/**
+	 * @return the upload to the next node of the chain, or null
+	 */
+	public ReplicaStream getReplica() {
+		return replica;
+	}
+
+	public void setReplica(ReplicaStream replica) {
+		this.replica = replica;
+	}
+
+	/**
+	 * @return the tasks passing the received slabs on to the replica, in the
+	 *         order of the stream
+	 */
+	public ArrayDeque<DiskTask> getForwards() {
+		return forwards;
+	}
+
+	/**
+	 * @return true while the replica is being connected to or a slab is being
+	 *         passed on to it
+	 */
+	public boolean isForwarding() {
+		return forwarding;
+	}
+
+	public void setForwarding(boolean forwarding) {
+		this.forwarding = forwarding;
+	}
+
+	/**
+	 * @return the number of copies the nodes following this one in the chain
+	 *         have stored
+	 */
+	public int getCopies() {
+		return copies;
+	}
+
+	public void setCopies(int copies) {
+		this.copies = copies;
+	}
+
+	/**
+	 * @return the checksums of the chunks of an upload, filled in as the slabs
+	 *         are written
+	 */
+	public int[] getChecksums() {
+		return checksums;
+	}
+
+	public void setChecksums(int[] checksums) {
+		this.checksums = checksums;
+	}
+
+	/**
+	 * @return the buffer receiving the checksums the client sent after the data
+	 *         of an upload, or null
+	 */
+	public ByteBuffer getTrailer() {
+		return trailer;
+	}
+
+	public void setTrailer(ByteBuffer trailer) {
+		this.trailer = trailer;
+	}
+
+	/**
+	 * @return the chunk hashes a PROTO_HAS_CHUNKS request asks for
+	 */
+	public byte[] getHashes() {
+		return hashes;
+	}
+
+	public void setHashes(byte[] hashes) {
+		this.hashes = hashes;
+	}
+
+	/**
+	 * @return the paths a PROTO_GET_BATCH request asks for
+	 */
+	public List<String> getPaths() {
+		return paths;
+	}
+
+	public void setPaths(List<String> paths) {
+		this.paths = paths;
+	}
+
+	/**
+	 * @return the statuses of the entries of a batch upload once it has been
+	 *         stored, or null
+	 */
+	public ByteBuffer getStatuses() {
+		return statuses;
+	}
+
+	public void setStatuses(ByteBuffer statuses) {
+		this.statuses = statuses;
+	}
+
+	/**
+	 * @return the {@link System#nanoTime()} the header of the request has been
+	 *         read at
+	 */
+	public long getStartNanos() {
+		return startNanos;
+	}
+
+	public void setStartNanos(long startNanos) {
+		this.startNanos = startNanos;
+	}
+
+}
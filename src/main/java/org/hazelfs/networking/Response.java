@@ -0,0 +1,165 @@
+package org.hazelfs.networking;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+class Response {
+	public enum State {
+		WRITE_HEADER, WRITE_STREAM;
+	}
+
+	private final int requestId;
+	private final int type;
+	private final long startNanos;
+	private short status = Constants.STATUS_OK;
+	private byte[] param = new byte[0];
+	private String path;
+	private FileChannel src;
+	private ByteBuffer data;
+	private Closeable dataOwner;
+	private long offset;
+	private State state = State.WRITE_HEADER;
+	private ByteBuffer buffer;
+	private long streamSize;
+	private long bytesWritten;
+
+	public Response(Request req) {
+		this.requestId = req.getId();
+		this.type = req.getType();
+		this.startNanos = req.getStartNanos();
+	}
+
+	/**
+	 * Fill the given buffer with the header and parameter of this response
+	 */
+	public void prepare(ByteBuffer buf) {
+		new FrameHeader(type, status, requestId, param.length, streamSize).encode(buf);
+		buf.put(param);
+		buf.flip();
+		this.buffer = buf;
+	}
+
+	public int getHeaderSize() {
+		return Constants.PROTO_HEADER_SIZE + param.length;
+	}
+
+	public State getState() {
+		return state;
+	}
+
+	public void setState(State state) {
+		this.state = state;
+	}
+
+	public int getRequestId() {
+		return requestId;
+	}
+
+	public int getType() {
+		return type;
+	}
+
+	/**
+	 * @return the {@link System#nanoTime()} the request has been read at
+	 */
+	public long getStartNanos() {
+		return startNanos;
+	}
+
+	public short getStatus() {
+		return status;
+	}
+
+	public void setStatus(short status) {
+		this.status = status;
+	}
+
+	public byte[] getParam() {
+		return param;
+	}
+
+	public void setParam(byte[] param) {
+		this.param = param;
+	}
+
+	public String getPath() {
+		return path;
+	}
+
+	public void setPath(String path) {
+		this.path = path;
+	}
+
+	/**
+	 * @return the position in the file the stream starts at
+	 */
+	public long getOffset() {
+		return offset;
+	}
+
+	public void setOffset(long offset) {
+		this.offset = offset;
+	}
+
+	public long getStreamSize() {
+		return streamSize;
+	}
+
+	public void setStreamSize(long streamSize) {
+		this.streamSize = streamSize;
+	}
+
+	public long getBytesWritten() {
+		return bytesWritten;
+	}
+
+	public void setBytesWritten(long bytesWritten) {
+		this.bytesWritten = bytesWritten;
+	}
+
+	public FileChannel getSrc() {
+		return src;
+	}
+
+	public void setSrc(FileChannel src) {
+		this.src = src;
+	}
+
+	/**
+	 * @return the stream's content when it is sent from memory instead of a
+	 *         file, or null
+	 */
+	public ByteBuffer getData() {
+		return data;
+	}
+
+	public void setData(ByteBuffer data) {
+		this.data = data;
+	}
+
+	/**
+	 * @return what the data belongs to, closed once the response is done with
+	 *         it, or null
+	 */
+	public Closeable getDataOwner() {
+		return dataOwner;
+	}
+
+	public void setDataOwner(Closeable dataOwner) {
+		this.dataOwner = dataOwner;
+	}
+
+	public ByteBuffer getBuffer() {
+		return buffer;
+	}
+
+	public void setBuffer(ByteBuffer buffer) {
+		this.buffer = buffer;
+	}
+
+	@Override
+	public String toString() {
+		return "response to request " + requestId;
+	}
+}
@@ -0,0 +1,167 @@
+package org.hazelfs.services;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The direct memory of one stripe of a {@link CachingStorageService}. The
+ * memory is made of pages which are allocated once, when first needed, and
+ * never handed back to the garbage collector, so the cache cannot hold more
+ * direct memory than its capacity however many files it evicts. A page in use
+ * is cut into slots of one power of two size class, and goes back to the free
+ * pages once all of its slots are free again.
+ *
+ * Not thread safe, the stripe owning the arena guards it.
+ */
+class CacheArena {
+
+	/** The smallest slot handed out */
+	static final int MIN_SLOT_SIZE = 512;
+
+	private final int pageSize;
+	private final int maxPages;
+	private final List<ByteBuffer> freePages = new ArrayList<ByteBuffer>();
+	// the pages of each size class with at least one free slot
+	private final List<ArrayDeque<Page>> partial = new ArrayList<ArrayDeque<Page>>();
+	private int pages = 0;
+	private long usedBytes = 0;
+
+	/**
+	 * @param pageSize
+	 *            a power of two, the size of the largest slot
+	 */
+	CacheArena(int pageSize, int maxPages) {
+		super();
+		this.pageSize = pageSize;
+		this.maxPages = maxPages;
+		for (int size = MIN_SLOT_SIZE; size <= pageSize; size <<= 1) {
+			partial.add(new ArrayDeque<Page>());
+		}
+	}
+
+	int getPageSize() {
+		return pageSize;
+	}
+
+	long getCapacity() {
+		return (long) pageSize * maxPages;
+	}
+
+	/**
+	 * @return the bytes of the slots handed out
+	 */
+	long getUsedBytes() {
+		return usedBytes;
+	}
+
+	/**
+	 * @return the size of the slot a buffer of the given size is put into
+	 */
+	static int slotSize(int size) {
+		return size <= MIN_SLOT_SIZE ? MIN_SLOT_SIZE : Integer.highestOneBit(size - 1) << 1;
+	}
+
+	/**
+	 * @return a cleared slot with its limit set to the requested size, or null
+	 *         if all pages are used up
+	 */
+	Slot allocate(int size) {
+		if (size > pageSize) {
+			return null;
+		}
+		int slotSize = slotSize(size);
+		ArrayDeque<Page> candidates = partial.get(sizeClass(slotSize));
+		Page page = candidates.peekFirst();
+		if (page == null) {
+			ByteBuffer memory = newPage();
+			if (memory == null) {
+				return null;
+			}
+			page = new Page(memory, slotSize);
+			candidates.addFirst(page);
+		}
+		Slot slot = page.free.pollFirst();
+		if (page.free.isEmpty()) {
+			candidates.pollFirst();
+		}
+		usedBytes += slotSize;
+		slot.buf.clear();
+		slot.buf.limit(size);
+		return slot;
+	}
+
+	private ByteBuffer newPage() {
+		if (!freePages.isEmpty()) {
+			return freePages.remove(freePages.size() - 1);
+		}
+		if (pages == maxPages) {
+			return null;
+		}
+		pages++;
+		return ByteBuffer.allocateDirect(pageSize);
+	}
+
+	/**
+	 * Hand a slot back, nobody may use its buffer any more
+	 */
+	void free(Slot slot) {
+		Page page = slot.page;
+		ArrayDeque<Page> candidates = partial.get(sizeClass(page.slotSize));
+		if (page.free.isEmpty()) {
+			candidates.addLast(page);
+		}
+		page.free.addFirst(slot);
+		usedBytes -= page.slotSize;
+		if (page.free.size() == page.slots) {
+			candidates.remove(page);
+			freePages.add(page.memory);
+		}
+	}
+
+	private int sizeClass(int slotSize) {
+		return Integer.numberOfTrailingZeros(slotSize) - Integer.numberOfTrailingZeros(MIN_SLOT_SIZE);
+	}
+
+	/**
+	 * A piece of memory handed out by the arena
+	 */
+	static class Slot {
+		private final ByteBuffer buf;
+		private final Page page;
+
+		Slot(ByteBuffer buf, Page page) {
+			this.buf = buf;
+			this.page = page;
+		}
+
+		ByteBuffer getBuffer() {
+			return buf;
+		}
+
+		int getSize() {
+			return page.slotSize;
+		}
+	}
+
+	private static class Page {
+		private final ByteBuffer memory;
+		private final int slotSize;
+		private final int slots;
+		private final ArrayDeque<Slot> free = new ArrayDeque<Slot>();
+
+		Page(ByteBuffer memory, int slotSize) {
+			this.memory = memory;
+			this.slotSize = slotSize;
+			this.slots = memory.capacity() / slotSize;
+			for (int i = 0; i < slots; i++) {
+				memory.clear();
+				memory.position(i * slotSize);
+				memory.limit((i + 1) * slotSize);
+				free.add(new Slot(memory.slice(), this));
+			}
+			memory.clear();
+		}
+	}
+}
@@ -0,0 +1,44 @@
+package org.hazelfs.services;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+
+/**
+ * The content of a file held by a {@link CachingStorageService}. The memory
+ * is not reused for another file until the content has been closed, so it
+ * must be closed once it has been sent.
+ */
+public class CachedContent implements Closeable {
+
+	private final CachingStorageService cache;
+	private final CachingStorageService.Entry entry;
+	private final ByteBuffer content;
+	private boolean closed = false;
+
+	CachedContent(CachingStorageService cache, CachingStorageService.Entry entry, ByteBuffer content) {
+		super();
+		this.cache = cache;
+		this.entry = entry;
+		this.content = content;
+	}
+
+	/**
+	 * @return a read-only view of the whole content
+	 */
+	public ByteBuffer getContent() {
+		return content.duplicate();
+	}
+
+	public int getSize() {
+		return content.remaining();
+	}
+
+	@Override
+	public synchronized void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		cache.unpin(entry);
+	}
+}
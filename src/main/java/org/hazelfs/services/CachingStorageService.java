@@ -0,0 +1,470 @@
+package org.hazelfs.services;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link StorageService} decorator keeping small, frequently read files in
+ * direct buffers outside of the heap. Eviction follows a segmented LRU: files
+ * enter a probation segment and are promoted to the protected segment when
+ * they are hit again, so a burst of files read only once cannot push the hot
+ * set out of the cache.
+ *
+ * The files are spread over stripes by their path, each with its own lock,
+ * segments and {@link CacheArena}, so the reactors looking up files do not all
+ * wait for one monitor. The content lives in the arenas, which never hold more
+ * than the capacity, and is handed out as {@link CachedContent} which keeps its
+ * memory from being reused until it has been closed.
+ *
+ * Creating or deleting a file drops it from the cache, and a file is not
+ * cached while it is being written.
+ */
+public class CachingStorageService implements StorageService {
+
+	private static final Logger LOG = LoggerFactory.getLogger(CachingStorageService.class);
+
+	/** The share of the capacity reserved for files that have been hit more than once */
+	private static final double PROTECTED_RATIO = 0.8;
+
+	private static final int MAX_STRIPES = 16;
+
+	/**
+	 * The number of pages a stripe gets at least, unless the capacity is tiny,
+	 * so the probation segment of a stripe holds files of a page
+	 */
+	private static final int MIN_STRIPE_PAGES = 8;
+
+	private final StorageService delegate;
+	private final Stripe[] stripes;
+	private int maxObjectSize = 1024 * 1024;
+	private final StripedCounter hits = new StripedCounter();
+	private final StripedCounter misses = new StripedCounter();
+	private final StripedCounter evictions = new StripedCounter();
+
+	/**
+	 * @param capacity
+	 *            the number of bytes of file content to keep in memory
+	 */
+	public CachingStorageService(StorageService delegate, long capacity) {
+		super();
+		this.delegate = delegate;
+		int pageSize = (int) Math.max(CacheArena.MIN_SLOT_SIZE,
+				Math.min(Crc32c.CHUNK_SIZE, Long.highestOneBit(Math.max(capacity, 1))));
+		long pages = capacity / pageSize;
+		int count = (int) Math.max(1, Math.min(MAX_STRIPES, pages / MIN_STRIPE_PAGES));
+		stripes = new Stripe[count];
+		for (int i = 0; i < count; i++) {
+			stripes[i] = new Stripe(new CacheArena(pageSize, (int) (pages / count + (i < pages % count ? 1 : 0))));
+		}
+	}
+
+	public StorageService getDelegate() {
+		return delegate;
+	}
+
+	/**
+	 * Set the size of the largest file that is cached, defaults to 1 MB. Files
+	 * larger than a page of the arenas, 1 MB, are never cached.
+	 */
+	public void setMaxObjectSize(int maxObjectSize) {
+		this.maxObjectSize = maxObjectSize;
+	}
+
+	private Stripe stripe(String path) {
+		int h = path.hashCode();
+		return stripes[((h ^ (h >>> 16)) & 0x7fffffff) % stripes.length];
+	}
+
+	/**
+	 * @return the cached content of the file, which has to be closed, or null
+	 *         if it is not in the cache
+	 */
+	public CachedContent getCached(String path) {
+		Stripe s = stripe(path);
+		synchronized (s) {
+			Entry entry = s.protectedSegment.get(path);
+			if (entry == null) {
+				entry = s.probation.remove(path);
+				if (entry != null) {
+					// the second hit makes the file part of the hot set
+					s.probationBytes -= entry.slot.getSize();
+					s.protectedSegment.put(path, entry);
+					s.protectedBytes += entry.slot.getSize();
+					s.demote();
+				}
+			}
+			if (entry == null) {
+				misses.increment();
+				return null;
+			}
+			hits.increment();
+			return s.pin(this, entry);
+		}
+	}
+
+	/**
+	 * Read a file into the cache if it is small enough. Blocks on the disk, the
+	 * read path of the listener calls this from its disk threads after a miss.
+	 * The content is checked against the file's checksums while it is read.
+	 *
+	 * @return the cached content of the file, which has to be closed, or null
+	 *         if it has not been cached
+	 * @throws ChecksumException
+	 *             if the stored file is corrupt
+	 */
+	public CachedContent load(String path) throws IOException {
+		Stripe s = stripe(path);
+		long size;
+		try {
+			size = delegate.getSize(path);
+		} catch (FileNotFoundException e) {
+			// not there or still being written, the caller looks it up itself
+			return null;
+		}
+		// there is nothing to keep of an empty file
+		if (size == 0 || size > maxObjectSize || size > s.arena.getCapacity() - s.protectedCapacity) {
+			return null;
+		}
+		Object token = new Object();
+		CacheArena.Slot slot;
+		synchronized (s) {
+			if (s.writing.contains(path)) {
+				return null;
+			}
+			slot = s.allocate((int) size);
+			if (slot == null) {
+				return null;
+			}
+			s.loading.put(path, token);
+		}
+		boolean inserted = false;
+		try {
+			ByteBuffer content = slot.getBuffer();
+			FileChannel ch = delegate.open(path);
+			try {
+				while (content.hasRemaining()) {
+					if (ch.read(content, content.position()) == -1) {
+						break;
+					}
+				}
+			} finally {
+				ch.close();
+			}
+			if (content.hasRemaining()) {
+				return null;
+			}
+			content.flip();
+			// a corrupt copy must not be served from memory either
+			int[] checksums = delegate.getChecksums(path);
+			if (checksums != null) {
+				new ChunkedCrc32c(path, size, checksums).update(content);
+			}
+			CachedContent cached = insert(s, path, token, slot);
+			inserted = cached != null;
+			return cached;
+		} finally {
+			synchronized (s) {
+				if (s.loading.get(path) == token) {
+					s.loading.remove(path);
+				}
+				if (!inserted) {
+					s.arena.free(slot);
+				}
+			}
+		}
+	}
+
+	private CachedContent insert(Stripe s, String path, Object token, CacheArena.Slot slot) {
+		synchronized (s) {
+			if (s.loading.get(path) != token) {
+				// the file has been changed while it was read
+				return null;
+			}
+			if (s.protectedSegment.containsKey(path) || s.probation.containsKey(path)) {
+				// loaded by someone else in the meantime
+				return null;
+			}
+			Entry entry = new Entry(s, slot);
+			s.probation.put(path, entry);
+			s.probationBytes += slot.getSize();
+			LOG.debug("cached {} bytes of {}", slot.getBuffer().remaining(), path);
+			return s.pin(this, entry);
+		}
+	}
+
+	/**
+	 * Drop a reference to an entry handed out with a {@link CachedContent}
+	 */
+	void unpin(Entry entry) {
+		synchronized (entry.stripe) {
+			entry.stripe.release(entry);
+		}
+	}
+
+	private void invalidate(String path) {
+		Stripe s = stripe(path);
+		synchronized (s) {
+			s.loading.remove(path);
+			Entry entry = s.probation.remove(path);
+			if (entry != null) {
+				s.probationBytes -= entry.slot.getSize();
+				s.release(entry);
+			}
+			entry = s.protectedSegment.remove(path);
+			if (entry != null) {
+				s.protectedBytes -= entry.slot.getSize();
+				s.release(entry);
+			}
+		}
+	}
+
+	/**
+	 * A file in the cache. It is referenced by its segment as long as it is in
+	 * the cache and by every {@link CachedContent} not closed yet, its slot is
+	 * freed with the last reference.
+	 */
+	static class Entry {
+		private final Stripe stripe;
+		private final CacheArena.Slot slot;
+		private int refs = 1;
+
+		Entry(Stripe stripe, CacheArena.Slot slot) {
+			this.stripe = stripe;
+			this.slot = slot;
+		}
+	}
+
+	/**
+	 * The files of the paths hashed to one lock
+	 */
+	private class Stripe {
+		private final CacheArena arena;
+		private final long protectedCapacity;
+		// access ordered, the eldest entry is the least recently used one
+		private final LinkedHashMap<String, Entry> probation = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+		private final LinkedHashMap<String, Entry> protectedSegment = new LinkedHashMap<String, Entry>(16, 0.75f,
+				true);
+		private long probationBytes = 0;
+		private long protectedBytes = 0;
+		private final Set<String> writing = new HashSet<String>();
+		private final Map<String, Object> loading = new HashMap<String, Object>();
+
+		Stripe(CacheArena arena) {
+			this.arena = arena;
+			this.protectedCapacity = (long) (arena.getCapacity() * PROTECTED_RATIO);
+		}
+
+		CachedContent pin(CachingStorageService cache, Entry entry) {
+			entry.refs++;
+			ByteBuffer content = entry.slot.getBuffer().duplicate();
+			content.rewind();
+			return new CachedContent(cache, entry, content.asReadOnlyBuffer());
+		}
+
+		void release(Entry entry) {
+			if (--entry.refs == 0) {
+				arena.free(entry.slot);
+			}
+		}
+
+		/**
+		 * Move the least recently used files of the protected segment back to
+		 * probation until the segment fits
+		 */
+		void demote() {
+			Iterator<Map.Entry<String, Entry>> it = protectedSegment.entrySet().iterator();
+			while (protectedBytes > protectedCapacity && it.hasNext()) {
+				Map.Entry<String, Entry> eldest = it.next();
+				it.remove();
+				protectedBytes -= eldest.getValue().slot.getSize();
+				probation.put(eldest.getKey(), eldest.getValue());
+				probationBytes += eldest.getValue().slot.getSize();
+			}
+		}
+
+		/**
+		 * Get a slot for a file, evicting files not in use until one is free. The
+		 * files of the same slot size go first, as their slots fit right away,
+		 * probation before the protected segment.
+		 *
+		 * @return the slot or null if not enough files could be evicted
+		 */
+		CacheArena.Slot allocate(int size) {
+			CacheArena.Slot slot = arena.allocate(size);
+			int slotSize = CacheArena.slotSize(size);
+			while (slot == null && (evict(probation, slotSize) || evict(protectedSegment, slotSize)
+					|| evict(probation, 0) || evict(protectedSegment, 0))) {
+				slot = arena.allocate(size);
+			}
+			return slot;
+		}
+
+		/**
+		 * Evict the least recently used file of the segment that is not in use
+		 *
+		 * @param slotSize
+		 *            the slot size of the file, or 0 for any
+		 * @return false if there is no such file
+		 */
+		private boolean evict(LinkedHashMap<String, Entry> segment, int slotSize) {
+			Iterator<Entry> it = segment.values().iterator();
+			while (it.hasNext()) {
+				Entry entry = it.next();
+				if (entry.refs == 1 && (slotSize == 0 || entry.slot.getSize() == slotSize)) {
+					it.remove();
+					if (segment == probation) {
+						probationBytes -= entry.slot.getSize();
+					} else {
+						protectedBytes -= entry.slot.getSize();
+					}
+					release(entry);
+					evictions.increment();
+					return true;
+				}
+			}
+			return false;
+		}
+
+		void clear() {
+			loading.clear();
+			for (Entry entry : new ArrayList<Entry>(probation.values())) {
+				release(entry);
+			}
+			for (Entry entry : new ArrayList<Entry>(protectedSegment.values())) {
+				release(entry);
+			}
+			probation.clear();
+			protectedSegment.clear();
+			probationBytes = 0;
+			protectedBytes = 0;
+		}
+	}
+
+	@Override
+	public FileChannel open(String path) throws IOException {
+		return delegate.open(path);
+	}
+
+	@Override
+	public FileChannel create(String path) throws IOException {
+		return track(path, delegate.create(path));
+	}
+
+	@Override
+	public FileChannel create(String path, long size) throws IOException {
+		return track(path, delegate.create(path, size));
+	}
+
+	/**
+	 * Keep the file out of the cache until the channel it is written through is
+	 * closed
+	 */
+	private FileChannel track(final String path, FileChannel ch) {
+		final Stripe s = stripe(path);
+		synchronized (s) {
+			s.writing.add(path);
+		}
+		invalidate(path);
+		return new ForwardingFileChannel(ch) {
+			@Override
+			protected void implCloseChannel() throws IOException {
+				try {
+					super.implCloseChannel();
+				} finally {
+					synchronized (s) {
+						s.writing.remove(path);
+					}
+					invalidate(path);
+				}
+			}
+		};
+	}
+
+	@Override
+	public void delete(String path) throws IOException {
+		invalidate(path);
+		delegate.delete(path);
+	}
+
+	@Override
+	public void format() throws IOException {
+		for (Stripe s : stripes) {
+			synchronized (s) {
+				s.clear();
+			}
+		}
+		delegate.format();
+	}
+
+	@Override
+	public long getSize(String path) throws IOException {
+		return delegate.getSize(path);
+	}
+
+	@Override
+	public List<String> list(String prefix) throws IOException {
+		return delegate.list(prefix);
+	}
+
+	@Override
+	public long getCapacity() {
+		return delegate.getCapacity();
+	}
+
+	@Override
+	public long getFreeSpace() {
+		return delegate.getFreeSpace();
+	}
+
+	@Override
+	public void putChecksums(String path, int[] checksums) throws IOException {
+		delegate.putChecksums(path, checksums);
+	}
+
+	@Override
+	public int[] getChecksums(String path) throws IOException {
+		return delegate.getChecksums(path);
+	}
+
+	/**
+	 * @return the number of lookups served from memory
+	 */
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	public long getEvictions() {
+		return evictions.sum();
+	}
+
+	/**
+	 * @return the number of bytes of file content held in memory, counting the
+	 *         whole slots the files are kept in
+	 */
+	public long getCachedBytes() {
+		long bytes = 0;
+		for (Stripe s : stripes) {
+			synchronized (s) {
+				bytes += s.probationBytes + s.protectedBytes;
+			}
+		}
+		return bytes;
+	}
+}
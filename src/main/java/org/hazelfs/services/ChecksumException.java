@@ -0,0 +1,15 @@
+package org.hazelfs.services;
+
+import java.io.IOException;
+
+/**
+ * Thrown when the content of a file does not match the checksums kept for it
+ */
+public class ChecksumException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	public ChecksumException(String message) {
+		super(message);
+	}
+}
@@ -0,0 +1,124 @@
+package org.hazelfs.services;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Turns the chunk records of an upload back into the content of the file, see
+ * {@link DedupStorageService#receiveChunks(String, FileChannel)}. The data of a
+ * record has to match the hash it is sent with. Chunks sent with their data
+ * are stored right away and kept until the upload is done, so later records
+ * may refer to them without sending them again.
+ */
+class ChunkRecordChannel extends SequentialWriteChannel {
+
+	private final DedupStorageService owner;
+	private final String path;
+	private final FileChannel output;
+	private final MessageDigest digest = DedupStorageService.newDigest();
+	private final ByteBuffer header = ByteBuffer.allocate(DedupStorageService.RECORD_HEADER_SIZE);
+	private final List<byte[]> received = new ArrayList<byte[]>();
+	private byte[] hash;
+	// the data of the current record, null while its header is read
+	private ByteBuffer data;
+	private ByteBuffer buffer;
+	private long written = 0;
+
+	ChunkRecordChannel(DedupStorageService owner, String path, FileChannel output) {
+		super();
+		this.owner = owner;
+		this.path = path;
+		this.output = output;
+	}
+
+	@Override
+	protected void consume(ByteBuffer src) throws IOException {
+		while (src.hasRemaining()) {
+			if (data == null) {
+				if (fill(header, src)) {
+					startRecord();
+				}
+			} else if (fill(data, src)) {
+				data.flip();
+				digest.update(data.duplicate());
+				if (!Arrays.equals(hash, digest.digest())) {
+					throw new ChecksumException("A chunk of " + path + " does not match its hash");
+				}
+				owner.store(hash, data);
+				received.add(hash);
+				append();
+			}
+		}
+	}
+
+	/**
+	 * @return true if the buffer has been filled
+	 */
+	private static boolean fill(ByteBuffer dst, ByteBuffer src) {
+		int length = Math.min(dst.remaining(), src.remaining());
+		ByteBuffer part = src.duplicate();
+		part.limit(part.position() + length);
+		dst.put(part);
+		src.position(src.position() + length);
+		return !dst.hasRemaining();
+	}
+
+	private void startRecord() throws IOException {
+		header.flip();
+		hash = new byte[DedupStorageService.HASH_SIZE];
+		header.get(hash);
+		int length = header.getInt();
+		boolean inline = header.get() != 0;
+		header.clear();
+		if (length <= 0 || length > DedupStorageService.MAX_RECORD_SIZE) {
+			throw new IOException("Invalid chunk record of " + length + " bytes for " + path);
+		}
+		if (buffer == null || buffer.capacity() < length) {
+			buffer = ByteBuffer.allocate(Math.max(length, ContentChunker.DEFAULT_MAX_SIZE));
+		}
+		buffer.clear();
+		buffer.limit(length);
+		data = buffer;
+		if (!inline) {
+			owner.readChunk(hash, data);
+			data.flip();
+			append();
+		}
+	}
+
+	/**
+	 * Write the data of the current record to the file
+	 */
+	private void append() throws IOException {
+		while (data.hasRemaining()) {
+			written += output.write(data, written);
+		}
+		data = null;
+	}
+
+	@Override
+	protected void finish(IOException failure) throws IOException {
+		try {
+			if (failure == null && (data != null || header.position() > 0)) {
+				throw new IOException("Chunk records of " + path + " end within a record");
+			}
+		} finally {
+			// the file holds its own references to the chunks once it is closed
+			try {
+				output.close();
+			} finally {
+				owner.release(received);
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return path + " from chunk records";
+	}
+}
@@ -0,0 +1,95 @@
+package org.hazelfs.services;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Computes the {@link Crc32c} of every chunk of a file while its content
+ * passes by in buffers of any size, optionally checking each chunk against the
+ * checksum it is expected to have as soon as the chunk is complete.
+ */
+public class ChunkedCrc32c {
+
+	private final String path;
+	private final long size;
+	private final int[] checksums;
+	private final int[] expected;
+	private final Crc32c crc = new Crc32c();
+	private long position;
+
+	public ChunkedCrc32c(String path, long size) {
+		super();
+		this.path = path;
+		this.size = size;
+		this.checksums = new int[count(size)];
+		this.expected = null;
+	}
+
+	/**
+	 * @param expected
+	 *            the checksums the chunks of the file have been stored with
+	 */
+	public ChunkedCrc32c(String path, long size, int[] expected) throws ChecksumException {
+		super();
+		this.path = path;
+		this.size = size;
+		this.checksums = new int[count(size)];
+		if (expected.length != checksums.length) {
+			throw new ChecksumException("Got " + expected.length + " checksums for the " + checksums.length
+					+ " chunks of " + path);
+		}
+		this.expected = expected;
+	}
+
+	private static int count(long size) {
+		long chunks = Crc32c.chunks(size);
+		if (size < 0 || chunks > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Unable to checksum a file of " + size + " bytes");
+		}
+		return (int) chunks;
+	}
+
+	/**
+	 * Add the remaining bytes of the buffer, its position is not changed
+	 */
+	public void update(ByteBuffer data) throws ChecksumException {
+		ByteBuffer buf = data.duplicate();
+		if (buf.remaining() > size - position) {
+			throw new ChecksumException("Got more than the " + size + " bytes of " + path);
+		}
+		while (buf.hasRemaining()) {
+			int length = (int) Math.min(buf.remaining(), Crc32c.CHUNK_SIZE - position % Crc32c.CHUNK_SIZE);
+			int limit = buf.limit();
+			buf.limit(buf.position() + length);
+			crc.update(buf);
+			buf.limit(limit);
+			position += length;
+			if (position % Crc32c.CHUNK_SIZE == 0 || position == size) {
+				finishChunk();
+			}
+		}
+	}
+
+	private void finishChunk() throws ChecksumException {
+		int chunk = (int) ((position - 1) / Crc32c.CHUNK_SIZE);
+		checksums[chunk] = (int) crc.getValue();
+		crc.reset();
+		if (expected != null && expected[chunk] != checksums[chunk]) {
+			throw new ChecksumException("Chunk " + chunk + " of " + path + " does not match its checksum");
+		}
+	}
+
+	/**
+	 * @return the number of bytes added so far
+	 */
+	public long getPosition() {
+		return position;
+	}
+
+	/**
+	 * @return the checksums of the chunks, complete once all bytes of the file
+	 *         have been added
+	 */
+	public int[] getChecksums() {
+		return checksums;
+	}
+}
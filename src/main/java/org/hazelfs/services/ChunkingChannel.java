@@ -0,0 +1,117 @@
+package org.hazelfs.services;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The channel a file of a {@link DedupStorageService} is written through.
+ * The content is cut into chunks as it comes in, every chunk is stored as soon
+ * as it is complete, and the manifest of the file is committed when the
+ * channel is closed. The checksums of the file are computed on the way.
+ */
+class ChunkingChannel extends SequentialWriteChannel {
+
+	private final DedupStorageService owner;
+	private final String path;
+	private final ContentChunker chunker;
+	private final MessageDigest digest = DedupStorageService.newDigest();
+	private final ByteBuffer chunk;
+	private final List<byte[]> hashes = new ArrayList<byte[]>();
+	private int[] lengths = new int[64];
+	private final Crc32c crc = new Crc32c();
+	private int[] checksums = new int[16];
+	private long size = 0;
+
+	ChunkingChannel(DedupStorageService owner, String path, ContentChunker chunker) {
+		super();
+		this.owner = owner;
+		this.path = path;
+		this.chunker = chunker;
+		this.chunk = ByteBuffer.allocate(chunker.getMaxSize());
+	}
+
+	@Override
+	protected void consume(ByteBuffer src) throws IOException {
+		while (src.hasRemaining()) {
+			int cut = chunker.cut(src);
+			ByteBuffer part = src.duplicate();
+			part.limit(cut == -1 ? src.limit() : src.position() + cut);
+			src.position(part.limit());
+			checksum(part.duplicate());
+			chunk.put(part);
+			if (cut != -1) {
+				storeChunk();
+			}
+		}
+	}
+
+	private void storeChunk() throws IOException {
+		chunk.flip();
+		digest.update(chunk.duplicate());
+		byte[] hash = digest.digest();
+		owner.store(hash, chunk);
+		if (hashes.size() == lengths.length) {
+			lengths = Arrays.copyOf(lengths, 2 * lengths.length);
+		}
+		lengths[hashes.size()] = chunk.remaining();
+		hashes.add(hash);
+		chunk.clear();
+	}
+
+	/**
+	 * Add the data to the checksum of every {@link Crc32c#CHUNK_SIZE} bytes of
+	 * the file
+	 */
+	private void checksum(ByteBuffer data) {
+		while (data.hasRemaining()) {
+			int length = (int) Math.min(data.remaining(), Crc32c.CHUNK_SIZE - size % Crc32c.CHUNK_SIZE);
+			int limit = data.limit();
+			data.limit(data.position() + length);
+			crc.update(data);
+			data.limit(limit);
+			size += length;
+			if (size % Crc32c.CHUNK_SIZE == 0) {
+				finishChecksum();
+			}
+		}
+	}
+
+	private void finishChecksum() {
+		int index = (int) ((size - 1) / Crc32c.CHUNK_SIZE);
+		if (index == checksums.length) {
+			checksums = Arrays.copyOf(checksums, 2 * checksums.length);
+		}
+		checksums[index] = (int) crc.getValue();
+		crc.reset();
+	}
+
+	@Override
+	protected void finish(IOException failure) throws IOException {
+		if (failure == null && chunk.position() > 0) {
+			try {
+				storeChunk();
+			} catch (IOException e) {
+				owner.abort(path, hashes);
+				throw e;
+			}
+		}
+		if (failure != null) {
+			owner.abort(path, hashes);
+			return;
+		}
+		if (size % Crc32c.CHUNK_SIZE != 0) {
+			finishChecksum();
+		}
+		owner.commit(path, new DedupStorageService.Manifest(hashes, Arrays.copyOf(lengths, hashes.size())),
+				Arrays.copyOf(checksums, (int) Crc32c.chunks(size)));
+	}
+
+	@Override
+	public String toString() {
+		return path + " in chunks";
+	}
+}
@@ -0,0 +1,168 @@
+package org.hazelfs.services;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * Places paths on nodes by hashing both onto a ring of 64 bit positions. Every
+ * node owns a number of virtual nodes spread over the ring, optionally in
+ * proportion to its capacity, and a path belongs to the first node found
+ * clockwise from the path's position. Adding or removing a node only moves the
+ * paths of the ranges next to its virtual nodes.
+ *
+ * Lookups work on an immutable snapshot of the ring and need no locking,
+ * changes copy the ring.
+ */
+public class ConsistentHashRing {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final ThreadLocal<MessageDigest> MD5 = new ThreadLocal<MessageDigest>() {
+		@Override
+		protected MessageDigest initialValue() {
+			try {
+				return MessageDigest.getInstance("MD5");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException("MD5 is not available", e);
+			}
+		}
+	};
+
+	private final int virtualNodes;
+	private long referenceCapacity = 0;
+	private volatile NavigableMap<Long, Node> ring = new TreeMap<Long, Node>();
+	private final Map<String, Node> nodes = new HashMap<String, Node>();
+
+	/**
+	 * @param virtualNodes
+	 *            the number of positions a node of the reference capacity takes
+	 *            on the ring
+	 */
+	public ConsistentHashRing(int virtualNodes) {
+		super();
+		if (virtualNodes < 1) {
+			throw new IllegalArgumentException("A node needs at least one virtual node");
+		}
+		this.virtualNodes = virtualNodes;
+	}
+
+	/**
+	 * Weight nodes by their capacity. A node of the given capacity gets the
+	 * configured number of virtual nodes, others get proportionally more or
+	 * less. Nodes of unknown capacity are not weighted. Must be called before
+	 * nodes are added.
+	 */
+	public void setReferenceCapacity(long referenceCapacity) {
+		this.referenceCapacity = referenceCapacity;
+	}
+
+	/**
+	 * Add a node or replace the node with the same id
+	 */
+	public synchronized void addNode(Node node) {
+		TreeMap<Long, Node> next = new TreeMap<Long, Node>(ring);
+		Node old = nodes.put(node.getId(), node);
+		if (old != null) {
+			removePositions(next, old);
+		}
+		for (int i = 0; i < virtualNodesOf(node); i++) {
+			next.put(position(node.getId() + "#" + i), node);
+		}
+		ring = next;
+	}
+
+	public synchronized void removeNode(String id) {
+		Node old = nodes.remove(id);
+		if (old == null) {
+			return;
+		}
+		TreeMap<Long, Node> next = new TreeMap<Long, Node>(ring);
+		removePositions(next, old);
+		ring = next;
+	}
+
+	private void removePositions(TreeMap<Long, Node> target, Node node) {
+		for (int i = 0; i < virtualNodesOf(node); i++) {
+			long pos = position(node.getId() + "#" + i);
+			// a colliding position might belong to another node
+			if (target.get(pos) != null && target.get(pos).getId().equals(node.getId())) {
+				target.remove(pos);
+			}
+		}
+	}
+
+	private int virtualNodesOf(Node node) {
+		if (referenceCapacity <= 0 || node.getCapacity() <= 0) {
+			return virtualNodes;
+		}
+		return (int) Math.max(1, Math.round((double) virtualNodes * node.getCapacity() / referenceCapacity));
+	}
+
+	/**
+	 * @return the node the path belongs to or null if the ring is empty
+	 */
+	public Node locate(String path) {
+		NavigableMap<Long, Node> r = ring;
+		if (r.isEmpty()) {
+			return null;
+		}
+		Map.Entry<Long, Node> e = r.ceilingEntry(position(path));
+		return e != null ? e.getValue() : r.firstEntry().getValue();
+	}
+
+	/**
+	 * @return up to count distinct nodes in ring order starting with the node
+	 *         the path belongs to, e.g. the nodes to place copies on
+	 */
+	public List<Node> locate(String path, int count) {
+		NavigableMap<Long, Node> r = ring;
+		List<Node> result = new ArrayList<Node>(count);
+		if (r.isEmpty()) {
+			return result;
+		}
+		long pos = position(path);
+		// clockwise from the path's position, wrapping around at the end
+		collect(r.tailMap(pos, true).values(), count, result);
+		collect(r.headMap(pos, false).values(), count, result);
+		return result;
+	}
+
+	private static void collect(Collection<Node> nodes, int count, List<Node> result) {
+		Iterator<Node> it = nodes.iterator();
+		while (result.size() < count && it.hasNext()) {
+			Node n = it.next();
+			if (!result.contains(n)) {
+				result.add(n);
+			}
+		}
+	}
+
+	/**
+	 * @return the nodes on the ring
+	 */
+	public synchronized List<Node> getNodes() {
+		return new ArrayList<Node>(nodes.values());
+	}
+
+	/**
+	 * @return the position of a key on the ring, taken from the first 8 bytes
+	 *         of its MD5 digest
+	 */
+	static long position(String key) {
+		byte[] digest = MD5.get().digest(key.getBytes(UTF8));
+		long pos = 0;
+		for (int i = 0; i < 8; i++) {
+			pos = (pos << 8) | (digest[i] & 0xff);
+		}
+		return pos;
+	}
+}
@@ -0,0 +1,100 @@
+package org.hazelfs.services;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Finds content defined chunk boundaries in a stream with a Gear rolling hash.
+ * A boundary depends only on the bytes right before it, so inserting or
+ * removing bytes in a file moves the boundaries near the change but leaves the
+ * chunks of the rest of the file as they were, which is what makes similar
+ * files share most of their chunks.
+ *
+ * Chunks are at least the minimum and at most the maximum size, the hash is
+ * not computed over the first minimum bytes of a chunk at all.
+ */
+public class ContentChunker {
+
+	public static final int DEFAULT_MIN_SIZE = 16 * 1024;
+	public static final int DEFAULT_AVERAGE_SIZE = 64 * 1024;
+	public static final int DEFAULT_MAX_SIZE = 256 * 1024;
+
+	// a fixed seed, clients and nodes have to find the same boundaries
+	private static final long[] GEAR = new long[256];
+	static {
+		Random random = new Random(0x485A4653L);
+		for (int i = 0; i < GEAR.length; i++) {
+			GEAR[i] = random.nextLong();
+		}
+	}
+
+	private final int minSize;
+	private final int maxSize;
+	private final long mask;
+	private long hash;
+	private int length;
+
+	public ContentChunker() {
+		this(DEFAULT_MIN_SIZE, DEFAULT_AVERAGE_SIZE, DEFAULT_MAX_SIZE);
+	}
+
+	/**
+	 * @param averageSize
+	 *            the expected distance between two boundaries past the
+	 *            minimum size, has to be a power of two
+	 */
+	public ContentChunker(int minSize, int averageSize, int maxSize) {
+		super();
+		if (Integer.bitCount(averageSize) != 1 || minSize < 0 || maxSize < minSize || maxSize <= 0) {
+			throw new IllegalArgumentException("Invalid chunk sizes " + minSize + "/" + averageSize + "/" + maxSize);
+		}
+		this.minSize = minSize;
+		this.maxSize = maxSize;
+		// the high bits of the hash depend on the last 64 bytes, the low ones
+		// only on the last few
+		int bits = Integer.numberOfTrailingZeros(averageSize);
+		this.mask = bits == 0 ? 0 : -1L << (64 - bits);
+	}
+
+	/**
+	 * Look for the end of the current chunk in the remaining bytes of the
+	 * buffer, its position is not changed
+	 *
+	 * @return the number of remaining bytes up to and including the last byte
+	 *         of the chunk, or -1 if the chunk goes on past the buffer
+	 */
+	public int cut(ByteBuffer buf) {
+		int start = buf.position();
+		for (int i = start; i < buf.limit(); i++) {
+			length++;
+			if (length <= minSize) {
+				if (length == maxSize) {
+					return finish(i - start + 1);
+				}
+				continue;
+			}
+			hash = (hash << 1) + GEAR[buf.get(i) & 0xff];
+			if ((hash & mask) == 0 || length == maxSize) {
+				return finish(i - start + 1);
+			}
+		}
+		return -1;
+	}
+
+	private int finish(int cut) {
+		hash = 0;
+		length = 0;
+		return cut;
+	}
+
+	/**
+	 * @return the number of bytes of the current chunk seen so far
+	 */
+	public int getLength() {
+		return length;
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+}
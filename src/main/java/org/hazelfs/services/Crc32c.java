@@ -0,0 +1,183 @@
+package org.hazelfs.services;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.zip.Checksum;
+
+/**
+ * The CRC32C (Castagnoli) checksum the stored files are protected with, one
+ * for every {@link #CHUNK_SIZE} bytes of a file. On Java 9 and later the work
+ * is done by java.util.zip.CRC32C, which the JVM backs with the CRC32
+ * instructions of the CPU, older JVMs get a table driven implementation
+ * computing eight bytes per step.
+ */
+public class Crc32c implements Checksum {
+
+	/** The number of bytes of a file covered by a single checksum, the slab size of the listener */
+	public static final int CHUNK_SIZE = 1024 * 1024;
+
+	/** The reversed Castagnoli polynomial */
+	private static final int POLYNOMIAL = 0x82F63B78;
+	/** TABLE[k][b] is the CRC of byte b followed by k zero bytes */
+	private static final int[][] TABLE = new int[8][256];
+	private static final Constructor<?> JDK_CRC32C;
+	private static final Method JDK_UPDATE_BUFFER;
+
+	static {
+		for (int b = 0; b < 256; b++) {
+			int crc = b;
+			for (int i = 0; i < 8; i++) {
+				crc = (crc & 1) != 0 ? (crc >>> 1) ^ POLYNOMIAL : crc >>> 1;
+			}
+			TABLE[0][b] = crc;
+		}
+		for (int b = 0; b < 256; b++) {
+			for (int k = 1; k < 8; k++) {
+				TABLE[k][b] = (TABLE[k - 1][b] >>> 8) ^ TABLE[0][TABLE[k - 1][b] & 0xff];
+			}
+		}
+		Constructor<?> jdk = null;
+		Method updateBuffer = null;
+		try {
+			Class<?> c = Class.forName("java.util.zip.CRC32C");
+			updateBuffer = c.getMethod("update", ByteBuffer.class);
+			jdk = c.getConstructor();
+		} catch (ClassNotFoundException e) {
+			// before Java 9
+		} catch (NoSuchMethodException e) {
+			updateBuffer = null;
+		}
+		JDK_CRC32C = jdk;
+		JDK_UPDATE_BUFFER = updateBuffer;
+	}
+
+	private final Checksum jdk;
+	private int crc = 0xffffffff;
+	/** Copies the content of direct buffers for the table driven implementation */
+	private byte[] scratch;
+
+	public Crc32c() {
+		super();
+		this.jdk = newJdkChecksum();
+	}
+
+	private static Checksum newJdkChecksum() {
+		if (JDK_CRC32C == null) {
+			return null;
+		}
+		try {
+			return (Checksum) JDK_CRC32C.newInstance();
+		} catch (InstantiationException e) {
+			return null;
+		} catch (IllegalAccessException e) {
+			return null;
+		} catch (InvocationTargetException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return true if the checksums are computed by the JDK's intrinsic
+	 */
+	public static boolean isAccelerated() {
+		return JDK_CRC32C != null;
+	}
+
+	/**
+	 * @return the number of checksums of a file of the given size
+	 */
+	public static long chunks(long size) {
+		return (size + CHUNK_SIZE - 1) / CHUNK_SIZE;
+	}
+
+	/**
+	 * @return the checksum of the remaining bytes of the buffer, its position is
+	 *         not changed
+	 */
+	public static int compute(ByteBuffer buf) {
+		Crc32c crc = new Crc32c();
+		crc.update(buf.duplicate());
+		return (int) crc.getValue();
+	}
+
+	@Override
+	public void update(int b) {
+		if (jdk != null) {
+			jdk.update(b);
+		} else {
+			crc = (crc >>> 8) ^ TABLE[0][(crc ^ b) & 0xff];
+		}
+	}
+
+	@Override
+	public void update(byte[] b, int off, int len) {
+		if (jdk != null) {
+			jdk.update(b, off, len);
+		} else {
+			updateTable(b, off, len);
+		}
+	}
+
+	/**
+	 * Update the checksum with the remaining bytes of the buffer, leaving its
+	 * position at its limit
+	 */
+	public void update(ByteBuffer buf) {
+		if (jdk != null) {
+			try {
+				JDK_UPDATE_BUFFER.invoke(jdk, buf);
+				return;
+			} catch (IllegalAccessException e) {
+				throw new IllegalStateException("Unable to call " + JDK_UPDATE_BUFFER, e);
+			} catch (InvocationTargetException e) {
+				throw new IllegalStateException("Unable to call " + JDK_UPDATE_BUFFER, e.getCause());
+			}
+		}
+		if (buf.hasArray()) {
+			updateTable(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+			buf.position(buf.limit());
+			return;
+		}
+		if (scratch == null) {
+			scratch = new byte[8192];
+		}
+		while (buf.hasRemaining()) {
+			int len = Math.min(scratch.length, buf.remaining());
+			buf.get(scratch, 0, len);
+			updateTable(scratch, 0, len);
+		}
+	}
+
+	private void updateTable(byte[] b, int off, int len) {
+		int c = crc;
+		int end = off + len;
+		for (; off + 8 <= end; off += 8) {
+			int low = c ^ ((b[off] & 0xff) | (b[off + 1] & 0xff) << 8 | (b[off + 2] & 0xff) << 16 | b[off + 3] << 24);
+			c = TABLE[7][low & 0xff] ^ TABLE[6][(low >>> 8) & 0xff] ^ TABLE[5][(low >>> 16) & 0xff]
+					^ TABLE[4][low >>> 24] ^ TABLE[3][b[off + 4] & 0xff] ^ TABLE[2][b[off + 5] & 0xff]
+					^ TABLE[1][b[off + 6] & 0xff] ^ TABLE[0][b[off + 7] & 0xff];
+		}
+		for (; off < end; off++) {
+			c = (c >>> 8) ^ TABLE[0][(c ^ b[off]) & 0xff];
+		}
+		crc = c;
+	}
+
+	@Override
+	public long getValue() {
+		if (jdk != null) {
+			return jdk.getValue();
+		}
+		return ~crc & 0xffffffffL;
+	}
+
+	@Override
+	public void reset() {
+		if (jdk != null) {
+			jdk.reset();
+		}
+		crc = 0xffffffff;
+	}
+}
@@ -0,0 +1,611 @@
+package org.hazelfs.services;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link StorageService} storing every distinct chunk of content only once.
+ * Files are split into chunks at content defined boundaries found by a
+ * {@link ContentChunker} while they are written, each chunk is stored in a
+ * file named after its SHA-256 and a file itself is a manifest listing its
+ * chunks. Files sharing most of their content, like successive backups or VM
+ * images, share most of their chunks on disk.
+ *
+ * Chunks are reference counted, deleting a file removes the chunks no other
+ * file uses. The counts are kept in memory and rebuilt from the manifests by
+ * {@link #initStorage()}, which also removes chunks left behind by uploads
+ * that did not finish.
+ *
+ * Clients can ask which chunks are stored already with {@link #contains(byte[])}
+ * and upload a file as chunk records, see {@link #receiveChunks(String, FileChannel)},
+ * sending only the data of the chunks the node does not have.
+ */
+public class DedupStorageService implements StorageService {
+
+	private static final Logger LOG = LoggerFactory.getLogger(DedupStorageService.class);
+
+	public static final String HASH_ALGORITHM = "SHA-256";
+	public static final int HASH_SIZE = 32;
+	/**
+	 * The size of the header of a chunk record: the hash of the chunk, its
+	 * length as an int and a byte which is 1 if the data of the chunk follows
+	 */
+	public static final int RECORD_HEADER_SIZE = HASH_SIZE + 5;
+	/** The largest chunk a chunk record may carry */
+	public static final int MAX_RECORD_SIZE = 4 * 1024 * 1024;
+
+	private static final int MANIFEST_MAGIC = 0x48464D31;
+	private static final String TMP_SUFFIX = ".tmp";
+
+	private final File storageDirectory;
+	private final File chunkDirectory;
+	private final File manifestDirectory;
+	private final File checksumDirectory;
+	private int minChunkSize = ContentChunker.DEFAULT_MIN_SIZE;
+	private int averageChunkSize = ContentChunker.DEFAULT_AVERAGE_SIZE;
+	private int maxChunkSize = ContentChunker.DEFAULT_MAX_SIZE;
+
+	private final TreeMap<String, Manifest> manifests = new TreeMap<String, Manifest>();
+	private final Set<String> writing = new HashSet<String>();
+	private final Map<String, Chunk> chunks = new HashMap<String, Chunk>();
+	private final AtomicLong nextTmp = new AtomicLong();
+	private long storedBytes = 0;
+	private long logicalBytes = 0;
+
+	/**
+	 * The chunks of a file in order
+	 */
+	static class Manifest {
+		private final List<byte[]> hashes;
+		private final int[] lengths;
+		private final long[] offsets;
+		private final long size;
+
+		Manifest(List<byte[]> hashes, int[] lengths) {
+			this.hashes = hashes;
+			this.lengths = lengths;
+			this.offsets = new long[lengths.length];
+			long offset = 0;
+			for (int i = 0; i < lengths.length; i++) {
+				offsets[i] = offset;
+				offset += lengths[i];
+			}
+			this.size = offset;
+		}
+
+		List<byte[]> getHashes() {
+			return hashes;
+		}
+
+		int getLength(int chunk) {
+			return lengths[chunk];
+		}
+
+		long getOffset(int chunk) {
+			return offsets[chunk];
+		}
+
+		long getSize() {
+			return size;
+		}
+
+		/**
+		 * @return the chunk holding the byte at the given position of the file
+		 */
+		int indexOf(long position) {
+			int i = Arrays.binarySearch(offsets, position);
+			return i >= 0 ? i : -i - 2;
+		}
+	}
+
+	private static class Chunk {
+		private final int length;
+		private int references = 1;
+
+		Chunk(int length) {
+			this.length = length;
+		}
+	}
+
+	public DedupStorageService(String storageDirectory) {
+		this.storageDirectory = new File(storageDirectory);
+		this.chunkDirectory = new File(storageDirectory, "chunks");
+		this.manifestDirectory = new File(storageDirectory, "manifests");
+		this.checksumDirectory = new File(storageDirectory, "checksums");
+	}
+
+	/**
+	 * Set the sizes of the chunks, defaults to 16 KB minimum, 64 KB average and
+	 * 256 KB maximum. Clients uploading chunk records should use the same
+	 * sizes, the node's chunks match theirs only then.
+	 */
+	public void setChunkSizes(int minChunkSize, int averageChunkSize, int maxChunkSize) {
+		// fails right away on sizes the chunker does not accept
+		new ContentChunker(minChunkSize, averageChunkSize, maxChunkSize);
+		this.minChunkSize = minChunkSize;
+		this.averageChunkSize = averageChunkSize;
+		this.maxChunkSize = maxChunkSize;
+	}
+
+	public synchronized void initStorage() throws IOException {
+		if (!storageDirectory.exists()) {
+			storageDirectory.mkdir();
+		}
+		if (!storageDirectory.isDirectory() || !storageDirectory.canWrite() || !storageDirectory.canRead()) {
+			throw new IOException("Unable to use " + storageDirectory.getAbsolutePath() + " as a storage directory");
+		}
+		chunkDirectory.mkdir();
+		manifestDirectory.mkdir();
+		checksumDirectory.mkdir();
+		manifests.clear();
+		chunks.clear();
+		storedBytes = 0;
+		logicalBytes = 0;
+		loadManifests(manifestDirectory, "");
+		removeUnusedChunks();
+		LOG.info("Opened {} files of {} bytes in {} chunks of {} bytes at {}", manifests.size(), logicalBytes,
+				chunks.size(), storedBytes, storageDirectory.getAbsolutePath());
+	}
+
+	private void loadManifests(File dir, String prefix) throws IOException {
+		File[] found = dir.listFiles();
+		for (File f : found == null ? new File[0] : found) {
+			if (f.isDirectory()) {
+				loadManifests(f, prefix + f.getName() + "/");
+			} else if (f.getName().endsWith(TMP_SUFFIX)) {
+				f.delete();
+			} else {
+				Manifest manifest = readManifest(f);
+				for (int i = 0; i < manifest.hashes.size(); i++) {
+					String key = key(manifest.hashes.get(i));
+					Chunk chunk = chunks.get(key);
+					if (chunk != null) {
+						chunk.references++;
+					} else {
+						chunks.put(key, new Chunk(manifest.lengths[i]));
+						storedBytes += manifest.lengths[i];
+					}
+				}
+				manifests.put(prefix + f.getName(), manifest);
+				logicalBytes += manifest.size;
+			}
+		}
+	}
+
+	/**
+	 * Remove the chunks of uploads which have not been finished
+	 */
+	private void removeUnusedChunks() {
+		File[] dirs = chunkDirectory.listFiles();
+		int removed = 0;
+		for (File dir : dirs == null ? new File[0] : dirs) {
+			File[] found = dir.isDirectory() ? dir.listFiles() : new File[] { dir };
+			for (File f : found == null ? new File[0] : found) {
+				if (!chunks.containsKey(f.getName()) && f.delete()) {
+					removed++;
+				}
+			}
+		}
+		if (removed > 0) {
+			LOG.info("Removed {} unused chunks from {}", removed, chunkDirectory.getAbsolutePath());
+		}
+	}
+
+	@Override
+	public FileChannel create(String path) throws IOException {
+		File f = manifestFile(path);
+		synchronized (this) {
+			if (manifests.containsKey(path) || writing.contains(path) || f.exists()) {
+				throw new IOException("Unable to overwrite file " + path);
+			}
+			writing.add(path);
+		}
+		try {
+			removeChecksums(path);
+			return new ChunkingChannel(this, path, new ContentChunker(minChunkSize, averageChunkSize,
+					maxChunkSize));
+		} catch (IOException e) {
+			abort(path, new ArrayList<byte[]>());
+			throw e;
+		}
+	}
+
+	@Override
+	public FileChannel create(String path, long size) throws IOException {
+		if (size > storageDirectory.getUsableSpace()) {
+			throw new IOException("Not enough space left for " + size + " bytes of " + path);
+		}
+		return create(path);
+	}
+
+	/**
+	 * Receive a file as a sequence of chunk records, each one a header of
+	 * {@link #RECORD_HEADER_SIZE} bytes optionally followed by the data of the
+	 * chunk. The chunks without data have to be stored already. The content of
+	 * the chunks is written in order to the output, which is closed with the
+	 * returned channel.
+	 *
+	 * @param output
+	 *            the channel of a file created by this storage, through any
+	 *            decorators in front of it
+	 */
+	public FileChannel receiveChunks(String path, FileChannel output) {
+		return new ChunkRecordChannel(this, path, output);
+	}
+
+	/**
+	 * @return true if a chunk with the given hash is stored
+	 */
+	public synchronized boolean contains(byte[] hash) {
+		return chunks.containsKey(key(hash));
+	}
+
+	@Override
+	public FileChannel open(String path) throws IOException {
+		Manifest manifest;
+		synchronized (this) {
+			manifest = manifests.get(path);
+		}
+		if (manifest == null) {
+			throw new IOException("File " + path + " does not exist");
+		}
+		return new ManifestChannel(this, path, manifest);
+	}
+
+	@Override
+	public void delete(String path) throws IOException {
+		Manifest manifest;
+		synchronized (this) {
+			manifest = manifests.remove(path);
+			if (manifest == null) {
+				throw new FileNotFoundException("File " + path + " does not exist");
+			}
+			logicalBytes -= manifest.size;
+		}
+		LOG.debug("deleting file {}", path);
+		File f = manifestFile(path);
+		if (!f.delete()) {
+			LOG.warn("Unable to delete {}", f.getAbsolutePath());
+		}
+		removeChecksums(path);
+		release(manifest.hashes);
+	}
+
+	@Override
+	public synchronized long getSize(String path) throws IOException {
+		Manifest manifest = manifests.get(path);
+		if (manifest == null) {
+			throw new FileNotFoundException("File " + path + " does not exist");
+		}
+		return manifest.size;
+	}
+
+	@Override
+	public synchronized List<String> list(String prefix) throws IOException {
+		List<String> paths = new ArrayList<String>();
+		for (String path : manifests.tailMap(prefix).keySet()) {
+			if (!path.startsWith(prefix)) {
+				break;
+			}
+			paths.add(path);
+		}
+		return paths;
+	}
+
+	@Override
+	public long getCapacity() {
+		return storageDirectory.getTotalSpace();
+	}
+
+	@Override
+	public long getFreeSpace() {
+		return storageDirectory.getUsableSpace();
+	}
+
+	@Override
+	public void format() throws IOException {
+		synchronized (this) {
+			manifests.clear();
+			chunks.clear();
+			storedBytes = 0;
+			logicalBytes = 0;
+		}
+		FileUtils.deleteDirectory(storageDirectory);
+	}
+
+	@Override
+	public void putChecksums(String path, int[] checksums) throws IOException {
+		File f = checksumFile(path);
+		ByteBuffer buf = ByteBuffer.allocate(4 * checksums.length);
+		buf.asIntBuffer().put(checksums);
+		writeAtomically(f, buf.array());
+	}
+
+	@Override
+	public int[] getChecksums(String path) throws IOException {
+		File f = checksumFile(path);
+		if (!f.isFile()) {
+			return null;
+		}
+		IntBuffer buf = ByteBuffer.wrap(Files.readAllBytes(f.toPath())).asIntBuffer();
+		int[] checksums = new int[buf.remaining()];
+		buf.get(checksums);
+		return checksums;
+	}
+
+	private void removeChecksums(String path) throws IOException {
+		File f = checksumFile(path);
+		if (f.exists() && !f.delete()) {
+			throw new IOException("Unable to delete " + f.getAbsolutePath());
+		}
+	}
+
+	/**
+	 * Store a chunk unless it is stored already, either way the chunk gets
+	 * another reference which has to be released
+	 *
+	 * @return true if the chunk has been written
+	 */
+	boolean store(byte[] hash, ByteBuffer data) throws IOException {
+		String key = key(hash);
+		synchronized (this) {
+			if (reference(key)) {
+				return false;
+			}
+		}
+		// written outside the lock, a concurrent upload of the same chunk just
+		// throws its copy away
+		File tmp = new File(chunkDirectory, key + "." + nextTmp.incrementAndGet() + TMP_SUFFIX);
+		try {
+			FileChannel ch = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+			try {
+				ByteBuffer src = data.duplicate();
+				while (src.hasRemaining()) {
+					ch.write(src);
+				}
+			} finally {
+				ch.close();
+			}
+			synchronized (this) {
+				if (reference(key)) {
+					return false;
+				}
+				File f = chunkFile(key);
+				File dir = f.getParentFile();
+				if (!dir.isDirectory() && !dir.mkdirs()) {
+					throw new IOException("Unable to create " + dir.getAbsolutePath());
+				}
+				Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.ATOMIC_MOVE);
+				chunks.put(key, new Chunk(data.remaining()));
+				storedBytes += data.remaining();
+				return true;
+			}
+		} finally {
+			if (tmp.exists()) {
+				tmp.delete();
+			}
+		}
+	}
+
+	private boolean reference(String key) {
+		Chunk chunk = chunks.get(key);
+		if (chunk == null) {
+			return false;
+		}
+		chunk.references++;
+		return true;
+	}
+
+	/**
+	 * Drop a reference to each of the chunks, removing those no longer used
+	 */
+	synchronized void release(List<byte[]> hashes) {
+		for (byte[] hash : hashes) {
+			String key = key(hash);
+			Chunk chunk = chunks.get(key);
+			if (chunk == null || --chunk.references > 0) {
+				continue;
+			}
+			chunks.remove(key);
+			storedBytes -= chunk.length;
+			File f = chunkFile(key);
+			if (!f.delete()) {
+				LOG.warn("Unable to delete chunk {}", f.getAbsolutePath());
+			}
+		}
+	}
+
+	/**
+	 * Read a stored chunk into the remaining bytes of the buffer
+	 */
+	void readChunk(byte[] hash, ByteBuffer dst) throws IOException {
+		FileChannel ch = openChunk(hash);
+		try {
+			if (ch.size() != dst.remaining()) {
+				throw new IOException("Chunk " + key(hash) + " has " + ch.size() + " bytes instead of "
+						+ dst.remaining());
+			}
+			while (dst.hasRemaining()) {
+				if (ch.read(dst, ch.size() - dst.remaining()) == -1) {
+					throw new IOException("Chunk " + key(hash) + " has been truncated");
+				}
+			}
+		} finally {
+			ch.close();
+		}
+	}
+
+	FileChannel openChunk(byte[] hash) throws IOException {
+		File f = chunkFile(key(hash));
+		if (!f.isFile()) {
+			throw new IOException("Chunk " + key(hash) + " is not stored");
+		}
+		return FileChannel.open(f.toPath(), StandardOpenOption.READ);
+	}
+
+	/**
+	 * Make a file written by a {@link ChunkingChannel} visible
+	 */
+	void commit(String path, Manifest manifest, int[] checksums) throws IOException {
+		try {
+			putChecksums(path, checksums);
+			writeManifest(path, manifest);
+		} catch (IOException e) {
+			removeChecksums(path);
+			abort(path, manifest.hashes);
+			throw e;
+		}
+		synchronized (this) {
+			writing.remove(path);
+			manifests.put(path, manifest);
+			logicalBytes += manifest.size;
+		}
+	}
+
+	/**
+	 * Drop a file that has not been written completely
+	 */
+	synchronized void abort(String path, List<byte[]> hashes) {
+		writing.remove(path);
+		release(hashes);
+	}
+
+	private void writeManifest(String path, Manifest manifest) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(16 + manifest.hashes.size() * (HASH_SIZE + 4));
+		buf.putInt(MANIFEST_MAGIC).putLong(manifest.size).putInt(manifest.hashes.size());
+		for (int i = 0; i < manifest.hashes.size(); i++) {
+			buf.put(manifest.hashes.get(i)).putInt(manifest.lengths[i]);
+		}
+		writeAtomically(manifestFile(path), buf.array());
+	}
+
+	private Manifest readManifest(File f) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+		try {
+			if (in.readInt() != MANIFEST_MAGIC) {
+				throw new IOException("Invalid manifest " + f.getAbsolutePath());
+			}
+			long size = in.readLong();
+			int count = in.readInt();
+			List<byte[]> hashes = new ArrayList<byte[]>(count);
+			int[] lengths = new int[count];
+			for (int i = 0; i < count; i++) {
+				byte[] hash = new byte[HASH_SIZE];
+				in.readFully(hash);
+				hashes.add(hash);
+				lengths[i] = in.readInt();
+			}
+			Manifest manifest = new Manifest(hashes, lengths);
+			if (manifest.size != size) {
+				throw new IOException("Chunks of manifest " + f.getAbsolutePath() + " do not add up to " + size
+						+ " bytes");
+			}
+			return manifest;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Readers see either the old or the new content of the file, never a part
+	 * of it
+	 */
+	private void writeAtomically(File f, byte[] content) throws IOException {
+		File dir = f.getParentFile();
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Unable to create " + dir.getAbsolutePath());
+		}
+		File tmp = new File(dir, f.getName() + TMP_SUFFIX);
+		OutputStream out = new FileOutputStream(tmp);
+		try {
+			out.write(content);
+		} finally {
+			out.close();
+		}
+		Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private File manifestFile(String path) throws IOException {
+		if (path.isEmpty() || path.endsWith(TMP_SUFFIX) || path.contains("..")) {
+			throw new IOException("Invalid path " + path);
+		}
+		return new File(manifestDirectory, path);
+	}
+
+	private File checksumFile(String path) throws IOException {
+		manifestFile(path);
+		return new File(checksumDirectory, path);
+	}
+
+	private File chunkFile(String key) {
+		return new File(chunkDirectory, key.substring(0, 2) + File.separator + key);
+	}
+
+	private static String key(byte[] hash) {
+		StringBuilder key = new StringBuilder(2 * hash.length);
+		for (byte b : hash) {
+			key.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		}
+		return key.toString();
+	}
+
+	/**
+	 * @return a new digest computing the hashes chunks are stored by
+	 */
+	public static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance(HASH_ALGORITHM);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(HASH_ALGORITHM + " is not available", e);
+		}
+	}
+
+	/**
+	 * @return the number of distinct chunks stored
+	 */
+	public synchronized int getChunkCount() {
+		return chunks.size();
+	}
+
+	/**
+	 * @return the number of bytes of the distinct chunks on disk
+	 */
+	public synchronized long getStoredBytes() {
+		return storedBytes;
+	}
+
+	/**
+	 * @return the number of bytes of all files, counting shared chunks once per
+	 *         use
+	 */
+	public synchronized long getLogicalBytes() {
+		return logicalBytes;
+	}
+}
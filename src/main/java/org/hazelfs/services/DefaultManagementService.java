@@ -1,14 +1,23 @@
 package org.hazelfs.services;
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.net.Inet4Address;
 import java.net.URI;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
 import org.hazelfs.networking.HazelFSListener;
+import org.hazelfs.networking.ListenerMetrics;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -18,11 +27,14 @@ import org.springframework.stereotype.Service;
 import com.hazelcast.config.Config;
 import com.hazelcast.core.Hazelcast;
 import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.IMap;
 
 @Service("managementService")
 public class DefaultManagementService implements ManagementService {
 
 	private static final Logger LOG = LoggerFactory.getLogger(DefaultManagementService.class);
+	/** The JMX domain the metrics of the nodes are registered in */
+	public static final String JMX_DOMAIN = "org.hazelfs";
 
 	@Autowired
 	@Qualifier("hazelCastConfig")
@@ -33,35 +45,138 @@ public class DefaultManagementService implements ManagementService {
 	private StorageService storageService;
 
 	private Map<String, HazelcastInstance> localHCInstances = new HashMap<String, HazelcastInstance>();
-	private Map<String, Node> localNodes = new HashMap<String, Node>();
+	// read by the rebalancers of the nodes
+	private Map<String, Node> localNodes = new ConcurrentHashMap<String, Node>();
 	private Map<String, HazelFSListener> localTCPServices = new HashMap<String, HazelFSListener>();
+	private Map<String, FileLocator> localLocators = new HashMap<String, FileLocator>();
+	private Map<String, NodePlacement> localPlacements = new HashMap<String, NodePlacement>();
+	private Map<String, Rebalancer> localRebalancers = new HashMap<String, Rebalancer>();
+	private Map<String, List<ObjectName>> localMBeans = new HashMap<String, List<ObjectName>>();
+	private Map<String, LoadPublisher> localPublishers = new HashMap<String, LoadPublisher>();
 	private ExecutorService executor;
+	private int reactorCount = Runtime.getRuntime().availableProcessors();
+	private int replicas = 1;
+	private long rebalanceBandwidth = 32 * 1024 * 1024;
+	private int rebalanceTransfers = 2;
+	private long scrubBandwidth = 8 * 1024 * 1024;
+	private long loadIntervalSeconds = 5;
+	// the local nodes share the storage, so it is scrubbed once for all of them
+	private Scrubber scrubber;
 
 	public void startNode(String id) throws IOException {
 		LOG.debug("starting new hazelcast instance");
 		hazelCastConfig.setProperty("hazelcast.logging.type", "slf4j");
 		HazelcastInstance instance = Hazelcast.newHazelcastInstance(hazelCastConfig);
 		Map<String, Node> nodeMap = instance.getMap(ManagementService.NODE_MAP_NAME);
-		Node n = createAndRunNode(id);
+		Node n = createAndRunNode(id, instance);
+		if (scrubber == null && scrubBandwidth > 0) {
+			scrubber = new Scrubber(storageService);
+			scrubber.setMaxBandwidth(scrubBandwidth);
+			scrubber.start();
+		}
 		localNodes.put(n.getId(), n);
 		localHCInstances.put(n.getId(), instance);
 		nodeMap.put(id, n);
+		// keep the load of the node in the node map up to date for the clients
+		LoadPublisher publisher = new LoadPublisher(n, instance, localTCPServices.get(id).getMetrics(), storageService);
+		publisher.setIntervalSeconds(loadIntervalSeconds);
+		publisher.start();
+		localPublishers.put(id, publisher);
 	}
 
-	private Node createAndRunNode(String id) throws IOException {
+	private Node createAndRunNode(final String id, HazelcastInstance instance) throws IOException {
 		int port = getNextFreePort(ManagementService.NODE_DEFAULT_PORT);
 		URI u = URI.create("hazefs://" + Inet4Address.getLocalHost().getHostAddress() + ":"
 				+ port);
-		LOG.info("starting hazefs node at " + u.toASCIIString());
-		Node n = new Node(id, u);
+		LOG.info("starting hazefs node at {}", u.toASCIIString());
+		Node n = new Node(id, u, storageService.getCapacity());
+		// record the files written through this node in the cluster's file map
+		IMap<String, FileLocation> fileMap = instance.getMap(ManagementService.FILE_MAP_NAME);
+		final LocationTrackingStorageService storage = new LocationTrackingStorageService(storageService, id, fileMap);
+		Thread publisher = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					LOG.info("published {} files of node {}", storage.publish(), id);
+				} catch (IOException e) {
+					LOG.error("Unable to publish the files of node {}", id, e);
+				}
+			}
+		}, "hazelfs-publish-" + id);
+		publisher.setDaemon(true);
+		publisher.start();
+		// move files around whenever nodes join or leave
+		NodePlacement placement = new NodePlacement(instance);
+		Rebalancer rebalancer = new Rebalancer(id, storage, instance, placement);
+		rebalancer.setLocalNodeIds(localNodes.keySet());
+		rebalancer.setReplicas(replicas);
+		rebalancer.setMaxBandwidth(rebalanceBandwidth);
+		rebalancer.setMaxTransfers(rebalanceTransfers);
+		rebalancer.start();
+		localPlacements.put(id, placement);
+		localRebalancers.put(id, rebalancer);
 		// start the TCP service for this node
-		HazelFSListener tcp = new HazelFSListener(port, storageService);
+		HazelFSListener tcp = new HazelFSListener(port, storage, reactorCount);
 		this.executor = Executors.newSingleThreadExecutor();
 		executor.submit(tcp);
 		localTCPServices.put(id, tcp);
+		registerMBeans(id, tcp);
 		return n;
 	}
 
+	/**
+	 * Make the metrics of the node's listener and of the storage available over
+	 * JMX, a node that cannot be registered keeps on running without them
+	 */
+	private void registerMBeans(String id, HazelFSListener tcp) {
+		List<ObjectName> names = new ArrayList<ObjectName>();
+		ListenerMetrics metrics = tcp.getMetrics();
+		registerMBean(names, id, "Listener", null, metrics);
+		for (Map.Entry<String, LatencyHistogram> e : metrics.getRequestLatencies().entrySet()) {
+			registerMBean(names, id, "RequestLatency", e.getKey(), e.getValue());
+		}
+		registerMBean(names, id, "ReactorLatency", "SelectorLoop", metrics.getSelectorLoops());
+		registerMBean(names, id, "ReactorLatency", "DiskTask", metrics.getDiskTasks());
+		if (storageService instanceof PosixStorageService) {
+			StorageMetrics storage = ((PosixStorageService) storageService).getMetrics();
+			registerMBean(names, id, "Storage", null, storage);
+			registerMBean(names, id, "StorageLatency", "Create", storage.getCreates());
+			registerMBean(names, id, "StorageLatency", "Open", storage.getOpens());
+			registerMBean(names, id, "StorageLatency", "Delete", storage.getDeletes());
+			registerMBean(names, id, "StorageLatency", "Lookup", storage.getLookups());
+			registerMBean(names, id, "StorageLatency", "Checksums", storage.getChecksums());
+			registerMBean(names, id, "StorageLatency", "Io", storage.getIo());
+		}
+		localMBeans.put(id, names);
+	}
+
+	private static void registerMBean(List<ObjectName> names, String id, String type, String name, Object mbean) {
+		String objectName = JMX_DOMAIN + ":type=" + type + ",node=" + ObjectName.quote(id)
+				+ (name == null ? "" : ",name=" + name);
+		try {
+			ObjectName on = new ObjectName(objectName);
+			ManagementFactory.getPlatformMBeanServer().registerMBean(mbean, on);
+			names.add(on);
+		} catch (JMException e) {
+			LOG.warn("Unable to register {} with JMX: {}", objectName, e.getMessage());
+		}
+	}
+
+	private void unregisterMBeans(String id) {
+		List<ObjectName> names = localMBeans.remove(id);
+		if (names == null) {
+			return;
+		}
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		for (ObjectName on : names) {
+			try {
+				server.unregisterMBean(on);
+			} catch (JMException e) {
+				LOG.warn("Unable to unregister {} from JMX: {}", on, e.getMessage());
+			}
+		}
+	}
+
 	private int getNextFreePort(int port) {
 		boolean free = true;
 		while (!isPortFree(port)) {
@@ -83,6 +198,13 @@ public class DefaultManagementService implements ManagementService {
 	public void shutdownNode(String id) {
 		HazelcastInstance instance = localHCInstances.get(id);
 
+		// stop moving files before the node's own removal triggers a pass
+		localRebalancers.remove(id).close();
+		localPlacements.remove(id).close();
+
+		// stop publishing the load before the node leaves the node map
+		localPublishers.remove(id).close();
+
 		// remove the node from the maps
 		localNodes.remove(id);
 		instance.getMap(ManagementService.NODE_MAP_NAME).remove(id);
@@ -90,13 +212,24 @@ public class DefaultManagementService implements ManagementService {
 		// Stop the TCP Service for the Node
 		HazelFSListener service = localTCPServices.get(id);
 		service.shutdown();
+		unregisterMBeans(id);
 		
 		// wait 1 sec then crush it!
 		executor.shutdownNow();
 		
+		FileLocator locator = localLocators.remove(id);
+		if (locator != null) {
+			locator.close();
+		}
+
 		// remove the HazelCast instances from the map and stop them
 		localHCInstances.remove(id);
 		instance.getLifecycleService().shutdown();
+
+		if (localNodes.isEmpty() && scrubber != null) {
+			scrubber.close();
+			scrubber = null;
+		}
 	}
 
 	@Override
@@ -107,6 +240,62 @@ public class DefaultManagementService implements ManagementService {
 		}
 	}
 
+	/**
+	 * Set the number of selector threads each node's listener uses to serve its
+	 * connections. Defaults to the number of available processors.
+	 */
+	public void setReactorCount(int reactorCount) {
+		this.reactorCount = reactorCount;
+	}
+
+	/**
+	 * Set the number of nodes every file is placed on, defaults to 1
+	 */
+	public void setReplicas(int replicas) {
+		this.replicas = replicas;
+	}
+
+	/**
+	 * Set the bytes per second a node may spend on moving files to other nodes,
+	 * defaults to 32 MB
+	 */
+	public void setRebalanceBandwidth(long rebalanceBandwidth) {
+		this.rebalanceBandwidth = rebalanceBandwidth;
+	}
+
+	/**
+	 * Set the number of files a node moves at the same time, defaults to 2
+	 */
+	public void setRebalanceTransfers(int rebalanceTransfers) {
+		this.rebalanceTransfers = rebalanceTransfers;
+	}
+
+	/**
+	 * Set the bytes per second spent on checking the stored files against their
+	 * checksums, defaults to 8 MB, 0 disables scrubbing
+	 */
+	public void setScrubBandwidth(long scrubBandwidth) {
+		this.scrubBandwidth = scrubBandwidth;
+	}
+
+	/**
+	 * Set how often every node publishes its load to the clients, defaults to 5
+	 * seconds
+	 */
+	public void setLoadIntervalSeconds(long loadIntervalSeconds) {
+		this.loadIntervalSeconds = loadIntervalSeconds;
+	}
+
+	@Override
+	public Scrubber getScrubber() {
+		return scrubber;
+	}
+
+	@Override
+	public Rebalancer getRebalancer(String id) {
+		return localRebalancers.get(id);
+	}
+
 	@Override
 	public Map<String, Node> getLocalNodes() {
 		return localNodes;
@@ -116,4 +305,18 @@ public class DefaultManagementService implements ManagementService {
 		return storageService;
 	}
 
+	@Override
+	public synchronized FileLocator getFileLocator(String id) {
+		FileLocator locator = localLocators.get(id);
+		if (locator == null) {
+			HazelcastInstance instance = localHCInstances.get(id);
+			if (instance == null) {
+				throw new IllegalArgumentException("There is no local node with id " + id);
+			}
+			locator = new FileLocator(instance);
+			localLocators.put(id, locator);
+		}
+		return locator;
+	}
+
 }
@@ -0,0 +1,67 @@
+package org.hazelfs.services;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The value of the cluster wide file map: which nodes hold a file, its size
+ * and the version of its content. Instances are immutable, changes create a
+ * new instance that replaces the old one in the map.
+ */
+public class FileLocation implements Serializable {
+	private static final long serialVersionUID = 1L;
+	private final Set<String> nodeIds;
+	private final long size;
+	private final long version;
+
+	public FileLocation(Set<String> nodeIds, long size, long version) {
+		super();
+		this.nodeIds = Collections.unmodifiableSet(new HashSet<String>(nodeIds));
+		this.size = size;
+		this.version = version;
+	}
+
+	/**
+	 * @return the ids of the nodes holding the current version of the file
+	 */
+	public Set<String> getNodeIds() {
+		return nodeIds;
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	/**
+	 * @return a number increased every time the file is created with a
+	 *         different content
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * @return a copy of this location with the given node added
+	 */
+	public FileLocation withNode(String nodeId) {
+		Set<String> ids = new HashSet<String>(nodeIds);
+		ids.add(nodeId);
+		return new FileLocation(ids, size, version);
+	}
+
+	/**
+	 * @return a copy of this location without the given node
+	 */
+	public FileLocation withoutNode(String nodeId) {
+		Set<String> ids = new HashSet<String>(nodeIds);
+		ids.remove(nodeId);
+		return new FileLocation(ids, size, version);
+	}
+
+	@Override
+	public String toString() {
+		return "version " + version + " with " + size + " bytes on " + nodeIds;
+	}
+}
@@ -0,0 +1,171 @@
+package org.hazelfs.services;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.hazelcast.core.EntryEvent;
+import com.hazelcast.core.EntryListener;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.IMap;
+
+/**
+ * Resolves paths to the nodes holding them using the cluster wide file map.
+ * Locations are kept in a bounded near cache which is invalidated by the
+ * map's entry events, so repeated lookups of a path are answered locally. The
+ * node map is mirrored completely, it only has an entry per node.
+ */
+public class FileLocator {
+
+	private final IMap<String, FileLocation> fileMap;
+	private final IMap<String, Node> nodeMap;
+	private final Map<String, Node> nodes = new ConcurrentHashMap<String, Node>();
+	private final Map<String, FileLocation> nearCache;
+	private final AtomicLong invalidations = new AtomicLong();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	private final EntryListener<String, FileLocation> fileListener = new EntryListener<String, FileLocation>() {
+		@Override
+		public void entryAdded(EntryEvent<String, FileLocation> event) {
+			invalidate(event.getKey());
+		}
+
+		@Override
+		public void entryRemoved(EntryEvent<String, FileLocation> event) {
+			invalidate(event.getKey());
+		}
+
+		@Override
+		public void entryUpdated(EntryEvent<String, FileLocation> event) {
+			invalidate(event.getKey());
+		}
+
+		@Override
+		public void entryEvicted(EntryEvent<String, FileLocation> event) {
+			invalidate(event.getKey());
+		}
+	};
+
+	private final EntryListener<String, Node> nodeListener = new EntryListener<String, Node>() {
+		@Override
+		public void entryAdded(EntryEvent<String, Node> event) {
+			nodes.put(event.getKey(), event.getValue());
+		}
+
+		@Override
+		public void entryRemoved(EntryEvent<String, Node> event) {
+			nodes.remove(event.getKey());
+		}
+
+		@Override
+		public void entryUpdated(EntryEvent<String, Node> event) {
+			nodes.put(event.getKey(), event.getValue());
+		}
+
+		@Override
+		public void entryEvicted(EntryEvent<String, Node> event) {
+			nodes.remove(event.getKey());
+		}
+	};
+
+	public FileLocator(HazelcastInstance instance) {
+		this(instance, 100000);
+	}
+
+	/**
+	 * @param maxEntries
+	 *            the number of locations kept in the near cache
+	 */
+	public FileLocator(HazelcastInstance instance, final int maxEntries) {
+		super();
+		this.fileMap = instance.getMap(ManagementService.FILE_MAP_NAME);
+		this.nodeMap = instance.getMap(ManagementService.NODE_MAP_NAME);
+		this.nearCache = new LinkedHashMap<String, FileLocation>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, FileLocation> eldest) {
+				return size() > maxEntries;
+			}
+		};
+		// listen before reading so no change slips through in between
+		fileMap.addEntryListener(fileListener, false);
+		nodeMap.addEntryListener(nodeListener, true);
+		nodes.putAll(nodeMap);
+	}
+
+	private void invalidate(String path) {
+		invalidations.incrementAndGet();
+		synchronized (nearCache) {
+			nearCache.remove(path);
+		}
+	}
+
+	/**
+	 * @return the location of the file or null if no node holds it
+	 */
+	public FileLocation locate(String path) {
+		synchronized (nearCache) {
+			FileLocation loc = nearCache.get(path);
+			if (loc != null) {
+				hits.incrementAndGet();
+				return loc;
+			}
+		}
+		misses.incrementAndGet();
+		long seen = invalidations.get();
+		FileLocation loc = fileMap.get(path);
+		if (loc != null) {
+			synchronized (nearCache) {
+				// an invalidation during the lookup might have been for this path
+				if (invalidations.get() == seen) {
+					nearCache.put(path, loc);
+				}
+			}
+		}
+		return loc;
+	}
+
+	/**
+	 * @return the hazefs:// URIs of the running nodes holding the file, empty if
+	 *         there are none
+	 */
+	public List<URI> resolve(String path) {
+		List<URI> uris = new ArrayList<URI>();
+		FileLocation loc = locate(path);
+		if (loc == null) {
+			return uris;
+		}
+		for (String id : loc.getNodeIds()) {
+			Node n = nodes.get(id);
+			if (n != null) {
+				uris.add(n.getUri());
+			}
+		}
+		return uris;
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Stop listening to the cluster's maps
+	 */
+	public void close() {
+		fileMap.removeEntryListener(fileListener);
+		nodeMap.removeEntryListener(nodeListener);
+		synchronized (nearCache) {
+			nearCache.clear();
+		}
+	}
+}
@@ -0,0 +1,29 @@
+package org.hazelfs.services;
+
+/**
+ * What a storage service knows about a stored file without touching the disk
+ */
+public class FileMetadata {
+
+	private final long size;
+	private final long lastModified;
+
+	public FileMetadata(long size, long lastModified) {
+		super();
+		this.size = size;
+		this.lastModified = lastModified;
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	public long getLastModified() {
+		return lastModified;
+	}
+
+	@Override
+	public String toString() {
+		return size + " bytes, modified " + lastModified;
+	}
+}
@@ -0,0 +1,162 @@
+package org.hazelfs.services;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of durations in nanoseconds with log-linear buckets in
+ * the style of HdrHistogram. Every power of two is split into
+ * {@link #SUB_BUCKETS} buckets, so a percentile is off by at most 1/32 of its
+ * value no matter whether it is a microsecond or a minute, and recording is a
+ * single atomic increment with no allocation.
+ */
+public class LatencyHistogram implements LatencyHistogramMBean {
+
+	private static final int SUB_BUCKET_BITS = 5;
+	static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	/** Enough buckets for any positive long */
+	private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final StripedCounter total = new StripedCounter();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Record a duration, negative ones are counted as 0
+	 */
+	public void record(long nanos) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+		counts.incrementAndGet(bucket(nanos));
+		total.add(nanos);
+		long current;
+		while (nanos > (current = max.get()) && !max.compareAndSet(current, nanos)) {
+			// retry with the new maximum
+		}
+	}
+
+	static int bucket(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	/**
+	 * @return the highest value falling into the bucket
+	 */
+	static long highestValue(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		int shift = bucket / SUB_BUCKETS - 1;
+		long lowest = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+		return lowest + (1L << shift) - 1;
+	}
+
+	public long getCount() {
+		long count = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			count += counts.get(i);
+		}
+		return count;
+	}
+
+	/**
+	 * @param quantile
+	 *            between 0 and 1, e.g. 0.99 for the 99th percentile
+	 * @return the duration in nanoseconds the given share of the recorded
+	 *         durations does not exceed, or 0 if nothing has been recorded
+	 */
+	public long getPercentile(double quantile) {
+		return Math.min(getPercentile(getCounts(), quantile), max.get());
+	}
+
+	/**
+	 * @return a copy of the number of durations recorded per bucket, e.g. to
+	 *         compute the percentiles of an interval from the difference of two
+	 *         copies
+	 */
+	public long[] getCounts() {
+		long[] snapshot = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = counts.get(i);
+		}
+		return snapshot;
+	}
+
+	/**
+	 * @param counts
+	 *            bucket counts as returned by {@link #getCounts()}
+	 * @return the highest duration in nanoseconds of the bucket the given share
+	 *         of the counted durations falls into, or 0 if nothing is counted
+	 */
+	public static long getPercentile(long[] counts, double quantile) {
+		long count = 0;
+		for (long c : counts) {
+			count += c;
+		}
+		if (count == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(quantile * count));
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if (seen >= rank) {
+				return highestValue(i);
+			}
+		}
+		return highestValue(counts.length - 1);
+	}
+
+	/**
+	 * @return the longest duration recorded in nanoseconds
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * @return the sum of all durations recorded in nanoseconds
+	 */
+	public long getTotal() {
+		return total.sum();
+	}
+
+	@Override
+	public long getMeanMicros() {
+		long count = getCount();
+		return count == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(total.sum() / count);
+	}
+
+	@Override
+	public long getP50Micros() {
+		return TimeUnit.NANOSECONDS.toMicros(getPercentile(0.5));
+	}
+
+	@Override
+	public long getP99Micros() {
+		return TimeUnit.NANOSECONDS.toMicros(getPercentile(0.99));
+	}
+
+	@Override
+	public long getP999Micros() {
+		return TimeUnit.NANOSECONDS.toMicros(getPercentile(0.999));
+	}
+
+	@Override
+	public long getMaxMicros() {
+		return TimeUnit.NANOSECONDS.toMicros(max.get());
+	}
+
+	@Override
+	public String toString() {
+		return "count=" + getCount() + " p50=" + getP50Micros() + "us p99=" + getP99Micros() + "us p999="
+				+ getP999Micros() + "us max=" + getMaxMicros() + "us";
+	}
+}
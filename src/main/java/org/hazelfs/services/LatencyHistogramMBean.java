@@ -0,0 +1,19 @@
+package org.hazelfs.services;
+
+/**
+ * The JMX view of a {@link LatencyHistogram}, durations in microseconds
+ */
+public interface LatencyHistogramMBean {
+
+	public long getCount();
+
+	public long getMeanMicros();
+
+	public long getP50Micros();
+
+	public long getP99Micros();
+
+	public long getP999Micros();
+
+	public long getMaxMicros();
+}
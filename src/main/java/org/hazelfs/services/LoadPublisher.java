@@ -0,0 +1,103 @@
+package org.hazelfs.services;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.hazelfs.networking.ListenerMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.IMap;
+
+/**
+ * Refreshes the {@link NodeLoad} of a local node in the cluster wide node map
+ * at a fixed interval. The p99 published is the one of the requests answered
+ * since the previous refresh, so it follows what the node is doing right now
+ * instead of what it has done since it started.
+ */
+public class LoadPublisher {
+
+	private static final Logger LOG = LoggerFactory.getLogger(LoadPublisher.class);
+
+	private final Node node;
+	private final IMap<String, Node> nodeMap;
+	private final ListenerMetrics metrics;
+	private final StorageService storage;
+	private long intervalSeconds = 5;
+	private long[] previousCounts;
+	private ScheduledExecutorService scheduler;
+
+	public LoadPublisher(Node node, HazelcastInstance instance, ListenerMetrics metrics, StorageService storage) {
+		super();
+		this.node = node;
+		this.nodeMap = instance.getMap(ManagementService.NODE_MAP_NAME);
+		this.metrics = metrics;
+		this.storage = storage;
+		this.previousCounts = metrics.getRequestCounts();
+	}
+
+	/**
+	 * Set how often the load is published, defaults to 5 seconds
+	 */
+	public void setIntervalSeconds(long intervalSeconds) {
+		this.intervalSeconds = intervalSeconds;
+	}
+
+	public void start() {
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "hazelfs-load-" + node.getId());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					publish();
+				} catch (RuntimeException e) {
+					// e.g. the cluster is shutting down, the next run tries again
+					LOG.debug("Unable to publish the load of node {}: {}", node.getId(), e.getMessage());
+				}
+			}
+		}, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * @return the current load of the node, the p99 being the one of the
+	 *         requests answered since the previous call
+	 */
+	public synchronized NodeLoad measure() {
+		long[] counts = metrics.getRequestCounts();
+		long[] recent = new long[counts.length];
+		for (int i = 0; i < counts.length; i++) {
+			recent[i] = counts[i] - previousCounts[i];
+		}
+		previousCounts = counts;
+		long p99 = TimeUnit.NANOSECONDS.toMicros(LatencyHistogram.getPercentile(recent, 0.99));
+		return new NodeLoad(metrics.getActiveConnections(), metrics.getInFlightBytes(), metrics.getDiskQueueDepth(),
+				storage.getFreeSpace(), p99, System.currentTimeMillis());
+	}
+
+	/**
+	 * Measure the load and put it into the node map. A node that has been
+	 * removed from the map is not added again.
+	 */
+	public void publish() {
+		NodeLoad load = measure();
+		if (nodeMap.replace(node.getId(), node.withLoad(load)) == null) {
+			LOG.debug("Node {} has left the node map, not publishing its load", node.getId());
+		}
+	}
+
+	public void close() {
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+		}
+	}
+}
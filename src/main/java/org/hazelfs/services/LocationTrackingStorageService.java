@@ -0,0 +1,178 @@
+package org.hazelfs.services;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.hazelcast.core.IMap;
+
+/**
+ * A {@link StorageService} decorator recording in the cluster wide file map
+ * that its node holds a file once the file has been written, and removing the
+ * node from the map when the file is deleted.
+ *
+ * A file created with the size already recorded for it is taken to be another
+ * copy of the same version. A different size starts a new version held only by
+ * this node.
+ */
+public class LocationTrackingStorageService implements StorageService {
+
+	private static final Logger LOG = LoggerFactory.getLogger(LocationTrackingStorageService.class);
+
+	private final StorageService delegate;
+	private final String nodeId;
+	private final IMap<String, FileLocation> fileMap;
+
+	public LocationTrackingStorageService(StorageService delegate, String nodeId, IMap<String, FileLocation> fileMap) {
+		super();
+		this.delegate = delegate;
+		this.nodeId = nodeId;
+		this.fileMap = fileMap;
+	}
+
+	public StorageService getDelegate() {
+		return delegate;
+	}
+
+	/**
+	 * Record every file already stored by the delegate, e.g. after a restart
+	 *
+	 * @return the number of files recorded
+	 */
+	public int publish() throws IOException {
+		List<String> paths = delegate.list("");
+		for (String path : paths) {
+			try {
+				register(path, delegate.getSize(path));
+			} catch (FileNotFoundException e) {
+				// deleted since it was listed
+			}
+		}
+		return paths.size();
+	}
+
+	private void register(String path, long size) {
+		try {
+			fileMap.lock(path);
+			try {
+				FileLocation loc = fileMap.get(path);
+				if (loc == null || loc.getSize() != size) {
+					long version = loc == null ? 1 : loc.getVersion() + 1;
+					loc = new FileLocation(Collections.singleton(nodeId), size, version);
+				} else {
+					loc = loc.withNode(nodeId);
+				}
+				fileMap.put(path, loc);
+			} finally {
+				fileMap.unlock(path);
+			}
+			LOG.debug("registered {} on node {}", path, nodeId);
+		} catch (RuntimeException e) {
+			// the file is stored, it just cannot be found through the map
+			LOG.warn("Unable to register {} on node {}: {}", path, nodeId, e.getMessage());
+		}
+	}
+
+	private void unregister(String path) {
+		try {
+			fileMap.lock(path);
+			try {
+				FileLocation loc = fileMap.get(path);
+				if (loc == null || !loc.getNodeIds().contains(nodeId)) {
+					return;
+				}
+				loc = loc.withoutNode(nodeId);
+				if (loc.getNodeIds().isEmpty()) {
+					fileMap.remove(path);
+				} else {
+					fileMap.put(path, loc);
+				}
+			} finally {
+				fileMap.unlock(path);
+			}
+		} catch (RuntimeException e) {
+			LOG.warn("Unable to unregister {} on node {}: {}", path, nodeId, e.getMessage());
+		}
+	}
+
+	@Override
+	public FileChannel open(String path) throws IOException {
+		return delegate.open(path);
+	}
+
+	@Override
+	public FileChannel create(String path) throws IOException {
+		return track(path, delegate.create(path));
+	}
+
+	@Override
+	public FileChannel create(String path, long size) throws IOException {
+		return track(path, delegate.create(path, size));
+	}
+
+	/**
+	 * Register the file once the channel it is written through is closed
+	 */
+	private FileChannel track(final String path, FileChannel ch) {
+		return new ForwardingFileChannel(ch) {
+			@Override
+			protected void implCloseChannel() throws IOException {
+				super.implCloseChannel();
+				try {
+					register(path, delegate.getSize(path));
+				} catch (FileNotFoundException e) {
+					// deleted as soon as it was written
+				}
+			}
+		};
+	}
+
+	@Override
+	public void delete(String path) throws IOException {
+		delegate.delete(path);
+		unregister(path);
+	}
+
+	@Override
+	public void format() throws IOException {
+		for (String path : delegate.list("")) {
+			unregister(path);
+		}
+		delegate.format();
+	}
+
+	@Override
+	public long getSize(String path) throws IOException {
+		return delegate.getSize(path);
+	}
+
+	@Override
+	public List<String> list(String prefix) throws IOException {
+		return delegate.list(prefix);
+	}
+
+	@Override
+	public long getCapacity() {
+		return delegate.getCapacity();
+	}
+
+	@Override
+	public long getFreeSpace() {
+		return delegate.getFreeSpace();
+	}
+
+	@Override
+	public void putChecksums(String path, int[] checksums) throws IOException {
+		delegate.putChecksums(path, checksums);
+	}
+
+	@Override
+	public int[] getChecksums(String path) throws IOException {
+		return delegate.getChecksums(path);
+	}
+}
@@ -5,6 +5,7 @@ import java.util.Map;
 
 public interface ManagementService {
 	public static final String NODE_MAP_NAME = "node-map";
+	public static final String FILE_MAP_NAME = "file-map";
 	public static final int NODE_DEFAULT_PORT = 3827;
 
 	public void startNode(String id) throws IOException;
@@ -16,4 +17,22 @@ public interface ManagementService {
 	public Map<String, Node> getLocalNodes();
 
 	public StorageService getStorageService();
+
+	/**
+	 * @return a locator resolving paths through the cluster the given local
+	 *         node is a member of
+	 */
+	public FileLocator getFileLocator(String id);
+
+	/**
+	 * @return the rebalancer of the given local node, which reports the progress
+	 *         of moving files after the cluster changed
+	 */
+	public Rebalancer getRebalancer(String id);
+
+	/**
+	 * @return the scrubber checking the files of the storage in the background,
+	 *         or null if no node is running
+	 */
+	public Scrubber getScrubber();
 }
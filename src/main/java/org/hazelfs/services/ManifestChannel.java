@@ -0,0 +1,189 @@
+package org.hazelfs.services;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A read-only {@link FileChannel} over the chunks listed in the manifest of a
+ * file of a {@link DedupStorageService}. Reads and transfers end at the end of
+ * a chunk, transfers to other channels use the chunk's file so downloads are
+ * still sent by the kernel.
+ */
+class ManifestChannel extends FileChannel {
+
+	private final DedupStorageService owner;
+	private final String path;
+	private final DedupStorageService.Manifest manifest;
+	private long position = 0;
+	private int index = -1;
+	private FileChannel current;
+
+	ManifestChannel(DedupStorageService owner, String path, DedupStorageService.Manifest manifest) {
+		super();
+		this.owner = owner;
+		this.path = path;
+		this.manifest = manifest;
+	}
+
+	/**
+	 * @return the channel of the given chunk, the last one opened is kept open
+	 */
+	private FileChannel chunk(int i) throws IOException {
+		if (i != index) {
+			if (current != null) {
+				current.close();
+				current = null;
+			}
+			current = owner.openChunk(manifest.getHashes().get(i));
+			index = i;
+		}
+		return current;
+	}
+
+	@Override
+	public int read(ByteBuffer dst) throws IOException {
+		int read = read(dst, position);
+		if (read > 0) {
+			position += read;
+		}
+		return read;
+	}
+
+	@Override
+	public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+		long total = 0;
+		for (int i = offset; i < offset + length; i++) {
+			int read = read(dsts[i]);
+			if (read == -1) {
+				return total == 0 ? -1 : total;
+			}
+			total += read;
+			if (dsts[i].hasRemaining()) {
+				break;
+			}
+		}
+		return total;
+	}
+
+	@Override
+	public synchronized int read(ByteBuffer dst, long position) throws IOException {
+		ensureOpen();
+		if (position >= manifest.getSize()) {
+			return -1;
+		}
+		int i = manifest.indexOf(position);
+		long offset = position - manifest.getOffset(i);
+		ByteBuffer window = dst.duplicate();
+		window.limit((int) Math.min(window.limit(), window.position() + manifest.getLength(i) - offset));
+		int read = chunk(i).read(window, offset);
+		if (read == -1) {
+			throw new EOFException("Chunk " + i + " of " + path + " is shorter than " + manifest.getLength(i)
+					+ " bytes");
+		}
+		dst.position(dst.position() + read);
+		return read;
+	}
+
+	@Override
+	public int write(ByteBuffer src) throws IOException {
+		throw new NonWritableChannelException();
+	}
+
+	@Override
+	public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+		throw new NonWritableChannelException();
+	}
+
+	@Override
+	public int write(ByteBuffer src, long position) throws IOException {
+		throw new NonWritableChannelException();
+	}
+
+	@Override
+	public long position() throws IOException {
+		return position;
+	}
+
+	@Override
+	public FileChannel position(long newPosition) throws IOException {
+		if (newPosition < 0) {
+			throw new IllegalArgumentException("Negative position " + newPosition);
+		}
+		this.position = newPosition;
+		return this;
+	}
+
+	@Override
+	public long size() throws IOException {
+		ensureOpen();
+		return manifest.getSize();
+	}
+
+	@Override
+	public FileChannel truncate(long size) throws IOException {
+		throw new NonWritableChannelException();
+	}
+
+	@Override
+	public void force(boolean metaData) throws IOException {
+		ensureOpen();
+	}
+
+	@Override
+	public synchronized long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+		ensureOpen();
+		if (position >= manifest.getSize()) {
+			return 0;
+		}
+		int i = manifest.indexOf(position);
+		long offset = position - manifest.getOffset(i);
+		return chunk(i).transferTo(offset, Math.min(count, manifest.getLength(i) - offset), target);
+	}
+
+	@Override
+	public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+		throw new NonWritableChannelException();
+	}
+
+	@Override
+	public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+		throw new IOException("Files made of chunks cannot be mapped");
+	}
+
+	@Override
+	public FileLock lock(long position, long size, boolean shared) throws IOException {
+		throw new IOException("Files made of chunks cannot be locked");
+	}
+
+	@Override
+	public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+		throw new IOException("Files made of chunks cannot be locked");
+	}
+
+	private void ensureOpen() throws IOException {
+		if (!isOpen()) {
+			throw new ClosedChannelException();
+		}
+	}
+
+	@Override
+	protected synchronized void implCloseChannel() throws IOException {
+		if (current != null) {
+			current.close();
+			current = null;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return path + " in chunks";
+	}
+}
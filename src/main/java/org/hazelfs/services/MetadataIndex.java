@@ -0,0 +1,322 @@
+package org.hazelfs.services;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The in-memory path to {@link FileMetadata} map of a
+ * {@link PosixStorageService}. Every change is appended to a journal, and a
+ * snapshot of the whole map replaces the journal from time to time, so a
+ * restart only reads the snapshot and a short journal. Without a snapshot the
+ * storage directory is scanned in parallel.
+ *
+ * Changes made to the storage directory behind the service's back are not
+ * noticed until the index directory is removed. An index written in another
+ * format is dropped and the directory scanned again.
+ */
+class MetadataIndex {
+
+	private static final Logger LOG = LoggerFactory.getLogger(MetadataIndex.class);
+
+	/** The directory inside the storage directory holding the index files */
+	static final String INDEX_DIRECTORY = ".hazelfs-index";
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	/** Identifies the format of the snapshot and journals, changes with the records */
+	private static final int SNAPSHOT_MAGIC = 0x485A4959;
+	private static final String SNAPSHOT_FILE = "snapshot";
+	private static final String JOURNAL_PREFIX = "journal-";
+	private static final byte RECORD_PUT = 1;
+	private static final byte RECORD_DELETE = 2;
+
+	private final File storageDirectory;
+	private final File indexDirectory;
+	private final ConcurrentHashMap<String, FileMetadata> entries = new ConcurrentHashMap<String, FileMetadata>();
+	private long generation = 0;
+	private FileChannel journal;
+	private long journalRecords = 0;
+
+	MetadataIndex(File storageDirectory) {
+		super();
+		this.storageDirectory = storageDirectory;
+		this.indexDirectory = new File(storageDirectory, INDEX_DIRECTORY);
+	}
+
+	/**
+	 * Restore the index from the snapshot and journals, or scan the storage
+	 * directory if there is no snapshot
+	 */
+	synchronized void load() throws IOException {
+		indexDirectory.mkdir();
+		long start = System.currentTimeMillis();
+		File snapshot = new File(indexDirectory, SNAPSHOT_FILE);
+		if (snapshot.exists() && !isCurrentFormat(snapshot)) {
+			LOG.warn("Dropping the index of {} written in another format", storageDirectory.getAbsolutePath());
+			File[] old = indexDirectory.listFiles();
+			for (File f : old == null ? new File[0] : old) {
+				f.delete();
+			}
+		}
+		if (snapshot.exists()) {
+			generation = readSnapshot(snapshot);
+			long valid = 0;
+			for (long gen = generation;; gen++) {
+				File f = journalFile(gen);
+				if (!f.exists()) {
+					break;
+				}
+				valid = replayJournal(f);
+				generation = gen;
+			}
+			// a torn record at the end must not be followed by new ones
+			if (journalFile(generation).length() > valid) {
+				FileChannel ch = FileChannel.open(journalFile(generation).toPath(), StandardOpenOption.WRITE);
+				try {
+					ch.truncate(valid);
+				} finally {
+					ch.close();
+				}
+			}
+			LOG.info("Restored {} entries of {} in {} ms", entries.size(), storageDirectory.getAbsolutePath(),
+					System.currentTimeMillis() - start);
+		} else {
+			new ForkJoinPool().invoke(new ScanAction(storageDirectory, ""));
+			LOG.info("Scanned {} files of {} in {} ms", entries.size(), storageDirectory.getAbsolutePath(),
+					System.currentTimeMillis() - start);
+		}
+		journal = FileChannel.open(journalFile(generation).toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		snapshot();
+	}
+
+	private static boolean isCurrentFormat(File snapshot) throws IOException {
+		DataInputStream in = new DataInputStream(new FileInputStream(snapshot));
+		try {
+			return in.readInt() == SNAPSHOT_MAGIC;
+		} catch (EOFException e) {
+			return false;
+		} finally {
+			in.close();
+		}
+	}
+
+	private File journalFile(long gen) {
+		return new File(indexDirectory, JOURNAL_PREFIX + gen);
+	}
+
+	/**
+	 * Stats the files of a directory and forks a task for every subdirectory
+	 */
+	private class ScanAction extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final File dir;
+		private final String prefix;
+
+		ScanAction(File dir, String prefix) {
+			this.dir = dir;
+			this.prefix = prefix;
+		}
+
+		@Override
+		protected void compute() {
+			File[] children = dir.listFiles();
+			if (children == null) {
+				return;
+			}
+			List<ScanAction> subdirs = new ArrayList<ScanAction>();
+			for (File f : children) {
+				if (f.isDirectory()) {
+					if (!f.equals(indexDirectory)) {
+						subdirs.add(new ScanAction(f, prefix + f.getName() + "/"));
+					}
+				} else {
+					entries.put(prefix + f.getName(), new FileMetadata(f.length(), f.lastModified()));
+				}
+			}
+			invokeAll(subdirs);
+		}
+	}
+
+	private long readSnapshot(File f) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+		try {
+			if (in.readInt() != SNAPSHOT_MAGIC) {
+				throw new IOException("Corrupt index snapshot " + f.getAbsolutePath());
+			}
+			long gen = in.readLong();
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				String path = readPath(in);
+				entries.put(path, new FileMetadata(in.readLong(), in.readLong()));
+			}
+			return gen;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Apply the records of a journal, a record cut short by a crash ends it
+	 *
+	 * @return the number of bytes of complete records
+	 */
+	private long replayJournal(File f) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+		long valid = 0;
+		try {
+			while (true) {
+				byte type = in.readByte();
+				String path = readPath(in);
+				long length = 3 + path.getBytes(UTF8).length;
+				if (type == RECORD_PUT) {
+					entries.put(path, new FileMetadata(in.readLong(), in.readLong()));
+					length += 16;
+				} else if (type == RECORD_DELETE) {
+					entries.remove(path);
+				} else {
+					throw new IOException("Corrupt record of type " + type + " in " + f.getAbsolutePath());
+				}
+				valid += length;
+				journalRecords++;
+			}
+		} catch (EOFException e) {
+			// end of the journal
+		} finally {
+			in.close();
+		}
+		return valid;
+	}
+
+	private static String readPath(DataInputStream in) throws IOException {
+		byte[] path = new byte[in.readUnsignedShort()];
+		in.readFully(path);
+		return new String(path, UTF8);
+	}
+
+	FileMetadata get(String path) {
+		return entries.get(path);
+	}
+
+	synchronized void put(String path, FileMetadata metadata) throws IOException {
+		entries.put(path, metadata);
+		append(RECORD_PUT, path, metadata);
+	}
+
+	synchronized void remove(String path) throws IOException {
+		if (entries.remove(path) != null) {
+			append(RECORD_DELETE, path, null);
+		}
+	}
+
+	private void append(byte type, String path, FileMetadata metadata) throws IOException {
+		if (journal == null) {
+			return;
+		}
+		byte[] name = path.getBytes(UTF8);
+		ByteBuffer record = ByteBuffer.allocate(1 + 2 + name.length + 16);
+		record.put(type).putShort((short) name.length).put(name);
+		if (metadata != null) {
+			record.putLong(metadata.getSize()).putLong(metadata.getLastModified());
+		}
+		record.flip();
+		while (record.hasRemaining()) {
+			journal.write(record);
+		}
+		journalRecords++;
+	}
+
+	/**
+	 * @return the paths starting with the given prefix in lexicographic order
+	 */
+	List<String> list(String prefix) {
+		List<String> paths = new ArrayList<String>();
+		for (String path : entries.keySet()) {
+			if (path.startsWith(prefix)) {
+				paths.add(path);
+			}
+		}
+		Collections.sort(paths);
+		return paths;
+	}
+
+	int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Write the whole index to a new snapshot and drop the journals it covers.
+	 * Changes made while the snapshot is written go to a new journal.
+	 */
+	void snapshot() throws IOException {
+		Map<String, FileMetadata> copy;
+		long gen;
+		synchronized (this) {
+			if (journalRecords == 0 && new File(indexDirectory, SNAPSHOT_FILE).exists()) {
+				return;
+			}
+			copy = new HashMap<String, FileMetadata>(entries);
+			gen = ++generation;
+			journal.close();
+			journal = FileChannel.open(journalFile(gen).toPath(), StandardOpenOption.CREATE,
+					StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+			journalRecords = 0;
+		}
+		File tmp = new File(indexDirectory, SNAPSHOT_FILE + ".tmp");
+		FileOutputStream fos = new FileOutputStream(tmp);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+		try {
+			out.writeInt(SNAPSHOT_MAGIC);
+			out.writeLong(gen);
+			out.writeInt(copy.size());
+			for (Map.Entry<String, FileMetadata> e : copy.entrySet()) {
+				byte[] name = e.getKey().getBytes(UTF8);
+				out.writeShort(name.length);
+				out.write(name);
+				out.writeLong(e.getValue().getSize());
+				out.writeLong(e.getValue().getLastModified());
+			}
+			out.flush();
+			fos.getFD().sync();
+		} finally {
+			out.close();
+		}
+		Files.move(tmp.toPath(), new File(indexDirectory, SNAPSHOT_FILE).toPath(),
+				StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		for (long old = gen - 1; journalFile(old).delete(); old--) {
+			// drop the journals up to the snapshot
+		}
+		LOG.debug("wrote snapshot {} with {} entries", gen, copy.size());
+	}
+
+	synchronized void close() throws IOException {
+		if (journal != null) {
+			journal.close();
+			journal = null;
+		}
+		entries.clear();
+	}
+}
@@ -0,0 +1,85 @@
+package org.hazelfs.services;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Times every read, write and transfer of a file channel and counts the bytes
+ * moved in the {@link StorageMetrics} of its storage
+ */
+class MeteredFileChannel extends ForwardingFileChannel {
+
+	private final StorageMetrics metrics;
+
+	MeteredFileChannel(FileChannel delegate, StorageMetrics metrics) {
+		super(delegate);
+		this.metrics = metrics;
+	}
+
+	@Override
+	public int read(ByteBuffer dst) throws IOException {
+		long start = System.nanoTime();
+		int read = super.read(dst);
+		metrics.read(read, System.nanoTime() - start);
+		return read;
+	}
+
+	@Override
+	public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+		long start = System.nanoTime();
+		long read = super.read(dsts, offset, length);
+		metrics.read(read, System.nanoTime() - start);
+		return read;
+	}
+
+	@Override
+	public int read(ByteBuffer dst, long position) throws IOException {
+		long start = System.nanoTime();
+		int read = super.read(dst, position);
+		metrics.read(read, System.nanoTime() - start);
+		return read;
+	}
+
+	@Override
+	public int write(ByteBuffer src) throws IOException {
+		long start = System.nanoTime();
+		int written = super.write(src);
+		metrics.written(written, System.nanoTime() - start);
+		return written;
+	}
+
+	@Override
+	public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+		long start = System.nanoTime();
+		long written = super.write(srcs, offset, length);
+		metrics.written(written, System.nanoTime() - start);
+		return written;
+	}
+
+	@Override
+	public int write(ByteBuffer src, long position) throws IOException {
+		long start = System.nanoTime();
+		int written = super.write(src, position);
+		metrics.written(written, System.nanoTime() - start);
+		return written;
+	}
+
+	@Override
+	public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+		long start = System.nanoTime();
+		long transferred = super.transferTo(position, count, target);
+		metrics.read(transferred, System.nanoTime() - start);
+		return transferred;
+	}
+
+	@Override
+	public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+		long start = System.nanoTime();
+		long transferred = super.transferFrom(src, position, count);
+		metrics.written(transferred, System.nanoTime() - start);
+		return transferred;
+	}
+}
@@ -8,12 +8,28 @@ public class Node implements Serializable {
 	private final String id;
 	private final URI uri;
 	private final int port;
+	private final long capacity;
+	private final NodeLoad load;
 
 	protected Node(String id, URI uri) {
+		this(id, uri, 0);
+	}
+
+	/**
+	 * @param capacity
+	 *            the number of bytes the node can store, 0 if unknown
+	 */
+	protected Node(String id, URI uri, long capacity) {
+		this(id, uri, capacity, null);
+	}
+
+	private Node(String id, URI uri, long capacity, NodeLoad load) {
 		super();
 		this.id = id;
 		this.uri = uri;
 		this.port = uri.getPort();
+		this.capacity = capacity;
+		this.load = load;
 	}
 
 	public String getId() {
@@ -27,4 +43,31 @@ public class Node implements Serializable {
 	public URI getUri() {
 		return uri;
 	}
+
+	public long getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * @return the load the node has published last or null if it has not
+	 *         published any yet
+	 */
+	public NodeLoad getLoad() {
+		return load;
+	}
+
+	/**
+	 * @return a copy of this node carrying the given load
+	 */
+	public Node withLoad(NodeLoad load) {
+		return new Node(id, uri, capacity, load);
+	}
+
+	/**
+	 * @return true if the other node takes the same place in the cluster, i.e.
+	 *         it differs at most in its load
+	 */
+	public boolean isSamePlacement(Node other) {
+		return other != null && id.equals(other.id) && uri.equals(other.uri) && capacity == other.capacity;
+	}
 }
@@ -0,0 +1,71 @@
+package org.hazelfs.services;
+
+import java.io.Serializable;
+
+/**
+ * How busy a node was when it last published its load, see
+ * {@link LoadPublisher}. Clients use it to steer around nodes that are hot or
+ * nearly full, see {@link NodeSelector}.
+ */
+public class NodeLoad implements Serializable {
+	private static final long serialVersionUID = 1L;
+	private final long activeConnections;
+	private final long inFlightBytes;
+	private final int diskQueueDepth;
+	private final long freeSpace;
+	private final long p99Micros;
+	private final long timestamp;
+
+	/**
+	 * @param inFlightBytes
+	 *            the bytes of uploads and downloads in progress that are still
+	 *            to be transferred
+	 * @param freeSpace
+	 *            the bytes that can still be stored, -1 if unknown
+	 * @param p99Micros
+	 *            the 99th percentile of the latency of the requests answered
+	 *            since the last load has been published
+	 * @param timestamp
+	 *            the time the load has been measured at in milliseconds
+	 */
+	public NodeLoad(long activeConnections, long inFlightBytes, int diskQueueDepth, long freeSpace, long p99Micros,
+			long timestamp) {
+		super();
+		this.activeConnections = activeConnections;
+		this.inFlightBytes = inFlightBytes;
+		this.diskQueueDepth = diskQueueDepth;
+		this.freeSpace = freeSpace;
+		this.p99Micros = p99Micros;
+		this.timestamp = timestamp;
+	}
+
+	public long getActiveConnections() {
+		return activeConnections;
+	}
+
+	public long getInFlightBytes() {
+		return inFlightBytes;
+	}
+
+	public int getDiskQueueDepth() {
+		return diskQueueDepth;
+	}
+
+	public long getFreeSpace() {
+		return freeSpace;
+	}
+
+	public long getP99Micros() {
+		return p99Micros;
+	}
+
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	@Override
+	public String toString() {
+		return activeConnections + " connections, " + inFlightBytes + " bytes in flight, " + diskQueueDepth
+				+ " queued disk tasks, " + freeSpace + " bytes free, p99 " + p99Micros + "us";
+	}
+}
@@ -0,0 +1,140 @@
+package org.hazelfs.services;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.hazelcast.core.EntryEvent;
+import com.hazelcast.core.EntryListener;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.IMap;
+
+/**
+ * Decides which nodes a path is placed on without asking the cluster. The
+ * running nodes of the cluster wide node map are kept on a
+ * {@link ConsistentHashRing}, which is changed node by node as entries of the
+ * map are added or removed.
+ *
+ * The nodes refresh their {@link NodeLoad} in the map every few seconds. Such
+ * an update does not touch the ring, but the nodes returned carry the latest
+ * load.
+ */
+public class NodePlacement {
+
+	private static final Logger LOG = LoggerFactory.getLogger(NodePlacement.class);
+
+	private final IMap<String, Node> nodeMap;
+	private final ConsistentHashRing ring;
+	// the latest version of every node, which differs from the one on the ring in its load
+	private final Map<String, Node> current = new ConcurrentHashMap<String, Node>();
+
+	private final EntryListener<String, Node> nodeListener = new EntryListener<String, Node>() {
+		@Override
+		public void entryAdded(EntryEvent<String, Node> event) {
+			add(event.getValue());
+		}
+
+		@Override
+		public void entryRemoved(EntryEvent<String, Node> event) {
+			remove(event.getKey());
+		}
+
+		@Override
+		public void entryUpdated(EntryEvent<String, Node> event) {
+			update(event.getValue());
+		}
+
+		@Override
+		public void entryEvicted(EntryEvent<String, Node> event) {
+			remove(event.getKey());
+		}
+	};
+
+	public NodePlacement(HazelcastInstance instance) {
+		this(instance, new ConsistentHashRing(160));
+	}
+
+	/**
+	 * @param ring
+	 *            an empty ring configured with the number of virtual nodes and
+	 *            the capacity weighting to use
+	 */
+	public NodePlacement(HazelcastInstance instance, ConsistentHashRing ring) {
+		super();
+		this.nodeMap = instance.getMap(ManagementService.NODE_MAP_NAME);
+		this.ring = ring;
+		// listen before reading so no node slips through in between
+		nodeMap.addEntryListener(nodeListener, true);
+		for (Node n : nodeMap.values()) {
+			add(n);
+		}
+	}
+
+	private void add(Node n) {
+		LOG.debug("placing files on node {} at {}", n.getId(), n.getUri());
+		current.put(n.getId(), n);
+		ring.addNode(n);
+	}
+
+	private void update(Node n) {
+		Node old = current.put(n.getId(), n);
+		if (!n.isSamePlacement(old)) {
+			add(n);
+		}
+	}
+
+	private void remove(String id) {
+		LOG.debug("no longer placing files on node {}", id);
+		current.remove(id);
+		ring.removeNode(id);
+	}
+
+	/**
+	 * @return the latest version of a node of the ring
+	 */
+	private Node fresh(Node n) {
+		if (n == null) {
+			return null;
+		}
+		Node latest = current.get(n.getId());
+		return latest != null ? latest : n;
+	}
+
+	/**
+	 * @return the node a new file is created on or null if there are no nodes
+	 */
+	public Node locate(String path) {
+		return fresh(ring.locate(path));
+	}
+
+	/**
+	 * @return up to count distinct nodes for the path, the first one being the
+	 *         node returned by {@link #locate(String)}
+	 */
+	public List<Node> locate(String path, int count) {
+		return fresh(ring.locate(path, count));
+	}
+
+	public List<Node> getNodes() {
+		return fresh(ring.getNodes());
+	}
+
+	private List<Node> fresh(List<Node> nodes) {
+		List<Node> result = new ArrayList<Node>(nodes.size());
+		for (Node n : nodes) {
+			result.add(fresh(n));
+		}
+		return result;
+	}
+
+	/**
+	 * Stop following the node map
+	 */
+	public void close() {
+		nodeMap.removeEntryListener(nodeListener);
+	}
+}
@@ -0,0 +1,139 @@
+package org.hazelfs.services;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Picks nodes by the load they publish, see {@link NodeLoad}, with the power of
+ * two choices: two eligible nodes are drawn at random and the less loaded one
+ * wins. Unlike always taking the least loaded node, this keeps all clients
+ * acting on the same slightly stale loads from piling onto one node while still
+ * steering clear of the hot ones.
+ *
+ * The cost of a node estimates how long a new request waits there: the work
+ * queued on the node times its recent p99. A node that has not published a
+ * load yet costs nothing, one whose load has not changed for longer than
+ * {@link #setMaxLoadAgeMillis(long)} is avoided. The age is measured with the
+ * clock of the selector from when it first saw the load, the clocks of the
+ * nodes need not agree with it.
+ */
+public class NodeSelector {
+
+	/** The bytes in flight counted as much as one more request */
+	private static final long BYTES_PER_REQUEST = 1024 * 1024;
+
+	private final Random random;
+	private long maxLoadAgeMillis = 60 * 1000;
+	private long minFreeSpace = 0;
+	/** The load last seen of every node along with when it has been seen first */
+	private final ConcurrentMap<String, SeenLoad> seen = new ConcurrentHashMap<String, SeenLoad>();
+
+	private static class SeenLoad {
+		final long timestamp;
+		final long receivedMillis;
+
+		SeenLoad(long timestamp, long receivedMillis) {
+			this.timestamp = timestamp;
+			this.receivedMillis = receivedMillis;
+		}
+	}
+
+	public NodeSelector() {
+		this(new Random());
+	}
+
+	public NodeSelector(Random random) {
+		super();
+		this.random = random;
+	}
+
+	/**
+	 * Set how old a published load may get before the node is considered
+	 * unresponsive, defaults to a minute
+	 */
+	public void setMaxLoadAgeMillis(long maxLoadAgeMillis) {
+		this.maxLoadAgeMillis = maxLoadAgeMillis;
+	}
+
+	/**
+	 * Set the bytes a node has to keep free on top of an upload to be eligible
+	 * for it, defaults to 0
+	 */
+	public void setMinFreeSpace(long minFreeSpace) {
+		this.minFreeSpace = minFreeSpace;
+	}
+
+	/**
+	 * @return the node an upload of the given size goes to or null if none of
+	 *         the candidates has enough free space
+	 */
+	public Node selectForUpload(List<Node> candidates, long size) {
+		List<Node> eligible = new ArrayList<Node>(candidates.size());
+		for (Node n : candidates) {
+			NodeLoad load = n.getLoad();
+			// the uploads in flight are going to take their space as well
+			if (load == null || load.getFreeSpace() < 0
+					|| load.getFreeSpace() - load.getInFlightBytes() - minFreeSpace >= size) {
+				eligible.add(n);
+			}
+		}
+		return choose(eligible);
+	}
+
+	/**
+	 * @return the replica to read from or null if there are none
+	 */
+	public Node selectForRead(List<Node> replicas) {
+		return choose(replicas);
+	}
+
+	private Node choose(List<Node> nodes) {
+		if (nodes.isEmpty()) {
+			return null;
+		}
+		if (nodes.size() == 1) {
+			return nodes.get(0);
+		}
+		int first = random.nextInt(nodes.size());
+		int second = random.nextInt(nodes.size() - 1);
+		if (second >= first) {
+			second++;
+		}
+		Node a = nodes.get(first);
+		Node b = nodes.get(second);
+		return cost(b) < cost(a) ? b : a;
+	}
+
+	/**
+	 * @return the estimated wait of a new request on the node, comparable
+	 *         between nodes only
+	 */
+	public double cost(Node n) {
+		NodeLoad load = n.getLoad();
+		if (load == null) {
+			return 0;
+		}
+		if (age(n.getId(), load) > maxLoadAgeMillis) {
+			return Double.MAX_VALUE;
+		}
+		double queued = 1 + load.getActiveConnections() + load.getDiskQueueDepth()
+				+ (double) load.getInFlightBytes() / BYTES_PER_REQUEST;
+		return queued * (1 + load.getP99Micros());
+	}
+
+	/**
+	 * @return the milliseconds since the load of the node has been seen first
+	 */
+	private long age(String id, NodeLoad load) {
+		long now = System.currentTimeMillis();
+		SeenLoad last = seen.get(id);
+		if (last == null || last.timestamp != load.getTimestamp()) {
+			seen.put(id, new SeenLoad(load.getTimestamp(), now));
+			return 0;
+		}
+		return now - last.receivedMillis;
+	}
+}
@@ -2,34 +2,79 @@ package org.hazelfs.services;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
 import java.nio.file.LinkOption;
 import java.nio.file.OpenOption;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
 import java.nio.file.WatchKey;
 import java.nio.file.WatchService;
 import java.nio.file.WatchEvent.Kind;
 import java.nio.file.WatchEvent.Modifier;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.io.FileUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Stores every file as a plain file under the storage directory. Sizes and
+ * modification times are answered from a {@link MetadataIndex} kept in memory
+ * once {@link #initStorage()} has been called, a file only shows up in it when
+ * the channel it has been written through is closed. The checksums of a file
+ * are kept in a file of the same name below the index directory.
+ *
+ * Every operation and every read and write of the channels handed out is
+ * recorded in the service's {@link StorageMetrics}.
+ */
 public class PosixStorageService implements StorageService {
 
 	private static final Logger LOG = LoggerFactory.getLogger(PosixStorageService.class);
+	/** The subdirectory of the index directory holding the checksums of the files */
+	private static final String CHECKSUM_DIRECTORY = "checksums";
 	private final File storageDirectory;
+	/** The absolute storage directory every path is resolved against */
+	private final Path root;
+	private long snapshotIntervalSeconds = 300;
+	private volatile MetadataIndex index;
+	private final StorageMetrics metrics = new StorageMetrics();
+	private ScheduledExecutorService snapshotter;
 
 	public PosixStorageService(String storageDirectory) {
 		this.storageDirectory = new File(storageDirectory);
+		this.root = this.storageDirectory.getAbsoluteFile().toPath().normalize();
+	}
+
+	/**
+	 * Set how often the metadata index is written to a snapshot, defaults to 5
+	 * minutes
+	 */
+	public void setSnapshotIntervalSeconds(long snapshotIntervalSeconds) {
+		this.snapshotIntervalSeconds = snapshotIntervalSeconds;
+	}
+
+	/**
+	 * @return the counters and latencies of this storage
+	 */
+	public StorageMetrics getMetrics() {
+		return metrics;
 	}
 
 	public void initStorage() throws IOException {
@@ -39,49 +84,295 @@ public class PosixStorageService implements StorageService {
 		if (!storageDirectory.isDirectory() || !storageDirectory.canWrite() || !storageDirectory.canRead()) {
 			throw new IOException("Unable to use " + storageDirectory.getAbsolutePath() + " as a storage directory");
 		}
+		final MetadataIndex idx = new MetadataIndex(storageDirectory);
+		idx.load();
+		this.index = idx;
+		snapshotter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "hazelfs-snapshot-" + storageDirectory.getName());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		snapshotter.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					idx.snapshot();
+				} catch (IOException e) {
+					LOG.error("Unable to write a snapshot of the index of {}", storageDirectory.getAbsolutePath(), e);
+				}
+			}
+		}, snapshotIntervalSeconds, snapshotIntervalSeconds, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Write a last snapshot of the metadata index and stop maintaining it
+	 */
+	public void shutdown() throws IOException {
+		MetadataIndex idx = index;
+		if (idx == null) {
+			return;
+		}
+		index = null;
+		snapshotter.shutdownNow();
+		idx.snapshot();
+		idx.close();
 	}
 
 	@Override
-	public FileChannel create(String path) throws IOException {
-		File f = new File(storageDirectory, path);
-		if (f.exists()) {
-			throw new IOException("Unabel to overwrite file " + path);
+	public FileChannel create(final String path) throws IOException {
+		long start = System.nanoTime();
+		try {
+			final String key = relativePath(path);
+			final File f = file(key);
+			if (f.exists()) {
+				throw new IOException("Unable to overwrite file " + path);
+			}
+			removeChecksums(path);
+			FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+			final MetadataIndex idx = index;
+			if (idx == null) {
+				return new MeteredFileChannel(ch, metrics);
+			}
+			return new MeteredFileChannel(ch, metrics) {
+				@Override
+				protected void implCloseChannel() throws IOException {
+					super.implCloseChannel();
+					if (f.exists()) {
+						idx.put(key, new FileMetadata(f.length(), f.lastModified()));
+					}
+				}
+			};
+		} catch (IOException e) {
+			metrics.failed();
+			throw e;
+		} finally {
+			metrics.getCreates().record(System.nanoTime() - start);
 		}
-		return FileChannel.open(f.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+	}
+
+	/**
+	 * @return the path relative to the storage directory with "." and ".."
+	 *         resolved, the key of the file in the index
+	 * @throws IOException
+	 *             if the path leaves the storage directory or lies in the index
+	 *             directory
+	 */
+	private String relativePath(String path) throws IOException {
+		Path resolved;
+		try {
+			resolved = root.resolve(path).normalize();
+		} catch (InvalidPathException e) {
+			throw new IOException("Invalid path " + path, e);
+		}
+		if (!resolved.startsWith(root) || resolved.equals(root)) {
+			throw new IOException("Invalid path " + path);
+		}
+		Path relative = root.relativize(resolved);
+		if (relative.getName(0).toString().equals(MetadataIndex.INDEX_DIRECTORY)) {
+			throw new IOException("Invalid path " + path);
+		}
+		return relative.toString().replace(File.separatorChar, '/');
+	}
+
+	private File file(String path) throws IOException {
+		return new File(root.toFile(), relativePath(path));
 	}
 
 	@Override
-	public void delete(String path) throws IOException {
-		File f = new File(storageDirectory, path);
-		if (!f.exists()){
-			throw new IOException("File " + f.getAbsolutePath() + " does not exist");
+	public FileChannel create(String path, long size) throws IOException {
+		if (size > storageDirectory.getUsableSpace()) {
+			throw new IOException("Not enough space left for " + size + " bytes of " + path);
 		}
-		if (f.isDirectory()){
-			throw new IOException("Unable to delete directories");
+		FileChannel ch = create(path);
+		if (size > 0) {
+			// set the final length right away so the file does not grow with every write
+			ch.write(ByteBuffer.allocate(1), size - 1);
 		}
-		LOG.debug("deleting file " + f.getAbsolutePath());
+		return ch;
 	}
 
 	@Override
-	public FileChannel open(String path) throws IOException {
-		File f = new File(storageDirectory, path);
-		if (!f.exists()){
-			throw new IOException("File " + f.getAbsolutePath() + " does not exist");
+	public void delete(String path) throws IOException {
+		long start = System.nanoTime();
+		try {
+			File f = file(path);
+			if (!f.exists()){
+				throw new FileNotFoundException("File " + f.getAbsolutePath() + " does not exist");
+			}
+			if (f.isDirectory()){
+				throw new IOException("Unable to delete directories");
+			}
+			LOG.debug("deleting file {}", f.getAbsolutePath());
+			if (!f.delete()) {
+				throw new IOException("Unable to delete " + f.getAbsolutePath());
+			}
+			removeChecksums(path);
+			MetadataIndex idx = index;
+			if (idx != null) {
+				idx.remove(relativePath(path));
+			}
+		} catch (IOException e) {
+			metrics.failed();
+			throw e;
+		} finally {
+			metrics.getDeletes().record(System.nanoTime() - start);
 		}
-		if (f.isDirectory()){
-			throw new IOException("Unable to open directories");
+	}
+
+	@Override
+	public FileChannel open(String path) throws IOException {
+		long start = System.nanoTime();
+		try {
+			File f = file(path);
+			if (!f.exists()){
+				throw new IOException("File " + f.getAbsolutePath() + " does not exist");
+			}
+			if (f.isDirectory()){
+				throw new IOException("Unable to open directories");
+			}
+			return new MeteredFileChannel(FileChannel.open(f.toPath(), StandardOpenOption.READ), metrics);
+		} catch (IOException e) {
+			metrics.failed();
+			throw e;
+		} finally {
+			metrics.getOpens().record(System.nanoTime() - start);
 		}
-		return FileChannel.open(f.toPath(), StandardOpenOption.READ);
 	}
 	
 	@Override
 	public void format() throws IOException {
+		MetadataIndex idx = index;
+		if (idx != null) {
+			index = null;
+			snapshotter.shutdownNow();
+			idx.close();
+		}
 		FileUtils.deleteDirectory(storageDirectory);
 	}
 	
+	@Override
+	public long getCapacity() {
+		return storageDirectory.getTotalSpace();
+	}
+
+	@Override
+	public long getFreeSpace() {
+		return storageDirectory.getUsableSpace();
+	}
+
+	/**
+	 * The checksums of a file are kept in the index directory, so they never
+	 * show up as files themselves
+	 */
+	private File checksumFile(String path) throws IOException {
+		return root.resolve(MetadataIndex.INDEX_DIRECTORY).resolve(CHECKSUM_DIRECTORY).resolve(relativePath(path))
+				.toFile();
+	}
+
+	@Override
+	public void putChecksums(String path, int[] checksums) throws IOException {
+		long start = System.nanoTime();
+		try {
+			File f = checksumFile(path);
+			File dir = f.getParentFile();
+			if (!dir.isDirectory() && !dir.mkdirs()) {
+				throw new IOException("Unable to create " + dir.getAbsolutePath());
+			}
+			ByteBuffer buf = ByteBuffer.allocate(4 * checksums.length);
+			buf.asIntBuffer().put(checksums);
+			// readers see either the old or the new checksums, never a part of them
+			File tmp = new File(dir, f.getName() + ".tmp");
+			OutputStream out = new FileOutputStream(tmp);
+			try {
+				out.write(buf.array());
+			} finally {
+				out.close();
+			}
+			Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			metrics.failed();
+			throw e;
+		} finally {
+			metrics.getChecksums().record(System.nanoTime() - start);
+		}
+	}
+
+	@Override
+	public int[] getChecksums(String path) throws IOException {
+		long start = System.nanoTime();
+		try {
+			File f = checksumFile(path);
+			if (!f.isFile()) {
+				return null;
+			}
+			IntBuffer buf = ByteBuffer.wrap(Files.readAllBytes(f.toPath())).asIntBuffer();
+			int[] checksums = new int[buf.remaining()];
+			buf.get(checksums);
+			return checksums;
+		} catch (IOException e) {
+			metrics.failed();
+			throw e;
+		} finally {
+			metrics.getChecksums().record(System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Drop the checksums of a file whose content is gone or about to change
+	 */
+	void removeChecksums(String path) throws IOException {
+		File f = checksumFile(path);
+		if (f.exists() && !f.delete()) {
+			throw new IOException("Unable to delete " + f.getAbsolutePath());
+		}
+	}
+
 	@Override
 	public long getSize(String path) throws IOException {
-		File f = new File(storageDirectory,path);
-		return f.length();
+		FileMetadata metadata = getMetadata(path);
+		if (metadata == null) {
+			throw new FileNotFoundException("File " + path + " does not exist");
+		}
+		return metadata.getSize();
+	}
+
+	/**
+	 * @return what is known about the file or null if it does not exist
+	 */
+	public FileMetadata getMetadata(String path) throws IOException {
+		long start = System.nanoTime();
+		try {
+			MetadataIndex idx = index;
+			if (idx != null) {
+				return idx.get(relativePath(path));
+			}
+			File f = file(path);
+			return f.isFile() ? new FileMetadata(f.length(), f.lastModified()) : null;
+		} catch (IOException e) {
+			metrics.failed();
+			throw e;
+		} finally {
+			metrics.getLookups().record(System.nanoTime() - start);
+		}
+	}
+
+	@Override
+	public List<String> list(String prefix) throws IOException {
+		long start = System.nanoTime();
+		try {
+			MetadataIndex idx = index;
+			if (idx == null) {
+				throw new IOException("Listing needs an initialized storage at " + storageDirectory.getAbsolutePath());
+			}
+			return idx.list(prefix);
+		} catch (IOException e) {
+			metrics.failed();
+			throw e;
+		} finally {
+			metrics.getLookups().record(System.nanoTime() - start);
+		}
 	}
 }
@@ -0,0 +1,433 @@
+package org.hazelfs.services;
+
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hazelfs.networking.HazeFSClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.hazelcast.core.EntryEvent;
+import com.hazelcast.core.EntryListener;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.IMap;
+import com.hazelcast.core.MembershipEvent;
+import com.hazelcast.core.MembershipListener;
+
+/**
+ * Moves the files of a node to the nodes the {@link NodePlacement} puts them
+ * on whenever the cluster changes. A pass goes over the local files, copies
+ * every file to the nodes that should hold it but do not according to the file
+ * map, and removes the local copy if this node is not one of them. Only one of
+ * the nodes holding a file moves it.
+ *
+ * Files are sent over the nodes' listener protocol by a few transfer threads
+ * sharing a {@link TokenBucket}, so rebalancing never takes more than the
+ * configured bandwidth away from the clients.
+ *
+ * A node that crashes stays in the node map, so when a member leaves the
+ * cluster the nodes that cannot be connected to anymore are removed from it.
+ */
+public class Rebalancer {
+
+	private static final Logger LOG = LoggerFactory.getLogger(Rebalancer.class);
+
+	private final String nodeId;
+	private final StorageService storage;
+	private final NodePlacement placement;
+	private final HazelcastInstance instance;
+	private final IMap<String, FileLocation> fileMap;
+	private final IMap<String, Node> nodeMap;
+	private Set<String> localNodeIds;
+	private int replicas = 1;
+	private int maxTransfers = 2;
+	private long delaySeconds = 5;
+	private TokenBucket bandwidth = new TokenBucket(32 * 1024 * 1024, 1024 * 1024);
+
+	private ScheduledExecutorService scheduler;
+	private ExecutorService transfers;
+	private final AtomicBoolean scheduled = new AtomicBoolean();
+	private volatile boolean running;
+	private final AtomicLong plannedFiles = new AtomicLong();
+	private final AtomicLong movedFiles = new AtomicLong();
+	private final AtomicLong movedBytes = new AtomicLong();
+	private final AtomicLong failedFiles = new AtomicLong();
+
+	// the nodes refresh their load in the node map all the time, which moves no file
+	private final ConcurrentMap<String, Node> knownNodes = new ConcurrentHashMap<String, Node>();
+
+	private final EntryListener<String, Node> nodeListener = new EntryListener<String, Node>() {
+		@Override
+		public void entryAdded(EntryEvent<String, Node> event) {
+			knownNodes.put(event.getKey(), event.getValue());
+			schedule();
+		}
+
+		@Override
+		public void entryRemoved(EntryEvent<String, Node> event) {
+			knownNodes.remove(event.getKey());
+			schedule();
+		}
+
+		@Override
+		public void entryUpdated(EntryEvent<String, Node> event) {
+			Node old = knownNodes.put(event.getKey(), event.getValue());
+			if (!event.getValue().isSamePlacement(old)) {
+				schedule();
+			}
+		}
+
+		@Override
+		public void entryEvicted(EntryEvent<String, Node> event) {
+			knownNodes.remove(event.getKey());
+			schedule();
+		}
+	};
+
+	private final MembershipListener membershipListener = new MembershipListener() {
+		@Override
+		public void memberAdded(MembershipEvent event) {
+			schedule();
+		}
+
+		@Override
+		public void memberRemoved(MembershipEvent event) {
+			scheduler.execute(new Runnable() {
+				@Override
+				public void run() {
+					removeUnreachableNodes();
+				}
+			});
+		}
+	};
+
+	/**
+	 * @param storage
+	 *            the storage of the node, which has to keep the file map up to
+	 *            date, see {@link LocationTrackingStorageService}
+	 */
+	public Rebalancer(String nodeId, StorageService storage, HazelcastInstance instance, NodePlacement placement) {
+		super();
+		this.nodeId = nodeId;
+		this.storage = storage;
+		this.instance = instance;
+		this.placement = placement;
+		this.fileMap = instance.getMap(ManagementService.FILE_MAP_NAME);
+		this.nodeMap = instance.getMap(ManagementService.NODE_MAP_NAME);
+		this.localNodeIds = Collections.singleton(nodeId);
+	}
+
+	/**
+	 * Set the ids of the nodes storing into the same storage as this one, e.g.
+	 * all nodes started by one {@link DefaultManagementService}. Files are never
+	 * copied between them.
+	 */
+	public void setLocalNodeIds(Set<String> localNodeIds) {
+		this.localNodeIds = localNodeIds;
+	}
+
+	/**
+	 * Set the number of nodes every file is placed on, defaults to 1
+	 */
+	public void setReplicas(int replicas) {
+		this.replicas = replicas;
+	}
+
+	/**
+	 * Set the number of files sent at the same time, defaults to 2. Must be
+	 * called before the rebalancer is started.
+	 */
+	public void setMaxTransfers(int maxTransfers) {
+		this.maxTransfers = maxTransfers;
+	}
+
+	/**
+	 * Set the bytes per second all transfers of this node may send together,
+	 * defaults to 32 MB, 0 removes the limit
+	 */
+	public void setMaxBandwidth(long bytesPerSecond) {
+		this.bandwidth = new TokenBucket(bytesPerSecond, 1024 * 1024);
+	}
+
+	/**
+	 * Set how long to wait after a change of the cluster before moving files, so
+	 * a number of nodes joining at once cause a single pass. Defaults to 5
+	 * seconds.
+	 */
+	public void setDelaySeconds(long delaySeconds) {
+		this.delaySeconds = delaySeconds;
+	}
+
+	public void start() {
+		scheduler = Executors.newSingleThreadScheduledExecutor(threadFactory("hazelfs-rebalance-" + nodeId));
+		transfers = Executors.newFixedThreadPool(maxTransfers, threadFactory("hazelfs-rebalance-" + nodeId + "-"));
+		nodeMap.addEntryListener(nodeListener, true);
+		for (Node n : nodeMap.values()) {
+			knownNodes.putIfAbsent(n.getId(), n);
+		}
+		instance.getCluster().addMembershipListener(membershipListener);
+		schedule();
+	}
+
+	private static ThreadFactory threadFactory(final String name) {
+		return new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, name.endsWith("-") ? name + count.getAndIncrement() : name);
+				t.setDaemon(true);
+				return t;
+			}
+		};
+	}
+
+	/**
+	 * Run a pass after the configured delay unless one is already waiting
+	 */
+	public void schedule() {
+		if (!scheduled.compareAndSet(false, true)) {
+			return;
+		}
+		scheduler.schedule(new Runnable() {
+			@Override
+			public void run() {
+				scheduled.set(false);
+				running = true;
+				try {
+					rebalance();
+				} catch (IOException e) {
+					LOG.error("Unable to rebalance the files of node {}", nodeId, e);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} finally {
+					running = false;
+				}
+			}
+		}, delaySeconds, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Move all local files not placed on this node, waiting for the transfers to
+	 * finish
+	 */
+	void rebalance() throws IOException, InterruptedException {
+		Set<String> live = new HashSet<String>();
+		for (Node n : placement.getNodes()) {
+			live.add(n.getId());
+		}
+		List<Future<?>> moves = new ArrayList<Future<?>>();
+		for (final String path : storage.list("")) {
+			final List<Node> copies = new ArrayList<Node>();
+			final boolean remove = plan(path, live, copies);
+			if (copies.isEmpty() && !remove) {
+				continue;
+			}
+			plannedFiles.incrementAndGet();
+			moves.add(transfers.submit(new Runnable() {
+				@Override
+				public void run() {
+					move(path, copies, remove);
+				}
+			}));
+		}
+		for (Future<?> f : moves) {
+			try {
+				f.get();
+			} catch (ExecutionException e) {
+				LOG.error("Unexpected failure while rebalancing node {}", nodeId, e.getCause());
+			}
+		}
+		if (!moves.isEmpty()) {
+			LOG.info("Node {} rebalanced {} files, {} of {} moved and {} failed so far", nodeId, moves.size(),
+					movedFiles.get(), plannedFiles.get(), failedFiles.get());
+		}
+	}
+
+	/**
+	 * Decide what to do with a local file
+	 *
+	 * @param copies
+	 *            receives the nodes to copy the file to
+	 * @return true if the local copy is to be removed once the copies exist
+	 */
+	boolean plan(String path, Set<String> live, List<Node> copies) {
+		List<Node> targets = placement.locate(path, replicas);
+		if (targets.isEmpty()) {
+			return false;
+		}
+		FileLocation loc = fileMap.get(path);
+		Set<String> holders = new TreeSet<String>(loc == null ? Collections.singleton(nodeId) : loc.getNodeIds());
+		holders.retainAll(live);
+		// only one of the nodes holding the file moves it
+		if (!holders.isEmpty() && !holders.iterator().next().equals(nodeId)) {
+			return false;
+		}
+		boolean keep = false;
+		for (Node target : targets) {
+			if (localNodeIds.contains(target.getId())) {
+				keep = true;
+			} else if (!holders.contains(target.getId())) {
+				copies.add(target);
+			}
+		}
+		return !keep;
+	}
+
+	private void move(String path, List<Node> copies, boolean remove) {
+		try {
+			for (Node target : copies) {
+				copy(path, target);
+			}
+			if (remove) {
+				storage.delete(path);
+			}
+			movedFiles.incrementAndGet();
+			LOG.debug("moved {} from node {} to {}", path, nodeId, copies);
+		} catch (IOException e) {
+			failedFiles.incrementAndGet();
+			LOG.warn("Unable to move {} from node {}: {}", path, nodeId, e.getMessage());
+		}
+	}
+
+	private void copy(String path, Node target) throws IOException {
+		long size = storage.getSize(path);
+		FileChannel src = storage.open(path);
+		try {
+			HazeFSClient client = new HazeFSClient(target.getUri().getPort(), target.getUri().getHost());
+			client.connect();
+			try {
+				// the file map does not list the target, so a file there is left over
+				// from a transfer that failed and would keep the upload from creating it
+				try {
+					client.delete(path);
+					LOG.debug("removed a partial copy of {} from node {}", path, target.getId());
+				} catch (FileNotFoundException e) {
+					// nothing left over
+				}
+				client.create(path, new ThrottledInputStream(Channels.newInputStream(src), bandwidth), size);
+			} finally {
+				client.disconnect();
+			}
+			movedBytes.addAndGet(size);
+		} finally {
+			src.close();
+		}
+	}
+
+	/**
+	 * Remove the nodes which cannot be connected to from the node map, the
+	 * change of the map triggers a pass on every node
+	 */
+	private void removeUnreachableNodes() {
+		for (Node n : placement.getNodes()) {
+			Socket s = new Socket();
+			try {
+				s.connect(new InetSocketAddress(n.getUri().getHost(), n.getUri().getPort()), 2000);
+			} catch (IOException e) {
+				LOG.info("Removing unreachable node {} at {}", n.getId(), n.getUri());
+				nodeMap.remove(n.getId());
+			} finally {
+				try {
+					s.close();
+				} catch (IOException e) {
+					LOG.debug("Unable to close probe of node {}: {}", n.getId(), e.getMessage());
+				}
+			}
+		}
+		schedule();
+	}
+
+	/**
+	 * @return true while a pass is moving files
+	 */
+	public boolean isRunning() {
+		return running;
+	}
+
+	/**
+	 * @return the number of files passes have decided to move
+	 */
+	public long getPlannedFiles() {
+		return plannedFiles.get();
+	}
+
+	public long getMovedFiles() {
+		return movedFiles.get();
+	}
+
+	public long getMovedBytes() {
+		return movedBytes.get();
+	}
+
+	public long getFailedFiles() {
+		return failedFiles.get();
+	}
+
+	/**
+	 * Stop following the cluster and abort running transfers
+	 */
+	public void close() {
+		nodeMap.removeEntryListener(nodeListener);
+		instance.getCluster().removeMembershipListener(membershipListener);
+		scheduler.shutdownNow();
+		transfers.shutdownNow();
+	}
+
+	/**
+	 * Takes permits from a {@link TokenBucket} for every byte read
+	 */
+	private static class ThrottledInputStream extends FilterInputStream {
+		private final TokenBucket bucket;
+
+		ThrottledInputStream(InputStream in, TokenBucket bucket) {
+			super(in);
+			this.bucket = bucket;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = super.read(b, off, len);
+			if (n > 0) {
+				try {
+					bucket.acquire(n);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted while throttling");
+				}
+			}
+			return n;
+		}
+	}
+}
@@ -0,0 +1,229 @@
+package org.hazelfs.services;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads all files of a storage in the background and checks them against
+ * their checksums, so a file that has rotted on disk is found before a client
+ * asks for it. The scrubber runs on a low priority thread and takes its reads
+ * from a {@link TokenBucket}, a pass over a large store takes long but never
+ * competes with the clients for the disk.
+ *
+ * Corrupt files are reported, and removed if configured so. Removing a file
+ * through a {@link LocationTrackingStorageService} takes the node off the file
+ * map, so the next rebalance copies the file back from a node holding an
+ * intact copy.
+ */
+public class Scrubber {
+
+	private static final Logger LOG = LoggerFactory.getLogger(Scrubber.class);
+
+	private final StorageService storage;
+	private TokenBucket bandwidth = new TokenBucket(8 * 1024 * 1024, Crc32c.CHUNK_SIZE);
+	private long intervalHours = 24;
+	private boolean removeCorrupt = false;
+
+	private ScheduledExecutorService scheduler;
+	private volatile boolean running;
+	private final Set<String> corruptFiles = new TreeSet<String>();
+	private final AtomicLong passes = new AtomicLong();
+	private final AtomicLong scrubbedFiles = new AtomicLong();
+	private final AtomicLong scrubbedBytes = new AtomicLong();
+
+	public Scrubber(StorageService storage) {
+		super();
+		this.storage = storage;
+	}
+
+	/**
+	 * Set the bytes per second the scrubber may read, defaults to 8 MB
+	 */
+	public void setMaxBandwidth(long bytesPerSecond) {
+		this.bandwidth = new TokenBucket(bytesPerSecond, Crc32c.CHUNK_SIZE);
+	}
+
+	/**
+	 * Set the time between the end of a pass and the start of the next one, defaults to 24 hours
+	 */
+	public void setIntervalHours(long intervalHours) {
+		this.intervalHours = intervalHours;
+	}
+
+	/**
+	 * Remove the files found corrupt instead of only reporting them, defaults
+	 * to false
+	 */
+	public void setRemoveCorrupt(boolean removeCorrupt) {
+		this.removeCorrupt = removeCorrupt;
+	}
+
+	public void start() {
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "hazelfs-scrubber");
+				t.setDaemon(true);
+				t.setPriority(Thread.MIN_PRIORITY);
+				return t;
+			}
+		});
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					scrub();
+				} catch (IOException e) {
+					LOG.error("Unable to scrub the storage", e);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}, intervalHours, intervalHours, TimeUnit.HOURS);
+	}
+
+	/**
+	 * Check every file of the storage that has checksums once
+	 *
+	 * @return the number of corrupt files found
+	 */
+	public int scrub() throws IOException, InterruptedException {
+		running = true;
+		int corrupt = 0;
+		ByteBuffer buf = ByteBuffer.allocateDirect(Crc32c.CHUNK_SIZE);
+		try {
+			for (String path : storage.list("")) {
+				if (Thread.currentThread().isInterrupted()) {
+					throw new InterruptedException("Scrubbing has been interrupted");
+				}
+				if (!scrub(path, buf)) {
+					corrupt++;
+				}
+			}
+		} finally {
+			running = false;
+		}
+		passes.incrementAndGet();
+		LOG.info("Scrubbed {} files so far, found {} corrupt files in this pass", scrubbedFiles.get(), corrupt);
+		return corrupt;
+	}
+
+	/**
+	 * @return false if the file does not match its checksums
+	 */
+	private boolean scrub(String path, ByteBuffer buf) throws InterruptedException {
+		int[] checksums = null;
+		try {
+			checksums = storage.getChecksums(path);
+			long size = storage.getSize(path);
+			if (checksums == null || size == 0) {
+				return true;
+			}
+			FileChannel ch = storage.open(path);
+			try {
+				ChunkedCrc32c crc = new ChunkedCrc32c(path, size, checksums);
+				long position = 0;
+				while (position < size) {
+					buf.clear();
+					buf.limit((int) Math.min(buf.capacity(), size - position));
+					bandwidth.acquire(buf.remaining());
+					while (buf.hasRemaining()) {
+						if (ch.read(buf, position + buf.position()) == -1) {
+							throw new ChecksumException("File " + path + " is shorter than its " + size + " bytes");
+						}
+					}
+					buf.flip();
+					crc.update(buf);
+					position += buf.remaining();
+					scrubbedBytes.addAndGet(buf.remaining());
+				}
+			} finally {
+				ch.close();
+			}
+			scrubbedFiles.incrementAndGet();
+			return true;
+		} catch (ChecksumException e) {
+			return !corrupt(path, checksums, e);
+		} catch (IOException e) {
+			// most likely removed while it was read
+			LOG.debug("Unable to scrub {}: {}", path, e.getMessage());
+			return true;
+		}
+	}
+
+	/**
+	 * Report a file that failed the check, unless it has been replaced while it
+	 * was read
+	 *
+	 * @return true if the file is corrupt
+	 */
+	private boolean corrupt(String path, int[] checksums, ChecksumException e) {
+		try {
+			if (!Arrays.equals(checksums, storage.getChecksums(path))) {
+				return false;
+			}
+			LOG.error("Found corrupt file {}: {}", path, e.getMessage());
+			synchronized (corruptFiles) {
+				corruptFiles.add(path);
+			}
+			if (removeCorrupt) {
+				storage.delete(path);
+				LOG.warn("Removed corrupt file {}", path);
+			}
+		} catch (IOException ex) {
+			LOG.warn("Unable to handle corrupt file {}", path, ex);
+		}
+		return true;
+	}
+
+	/**
+	 * @return true while a pass is reading files
+	 */
+	public boolean isRunning() {
+		return running;
+	}
+
+	/**
+	 * @return the number of complete passes
+	 */
+	public long getPasses() {
+		return passes.get();
+	}
+
+	public long getScrubbedFiles() {
+		return scrubbedFiles.get();
+	}
+
+	public long getScrubbedBytes() {
+		return scrubbedBytes.get();
+	}
+
+	/**
+	 * @return the paths of the files found corrupt so far
+	 */
+	public List<String> getCorruptFiles() {
+		synchronized (corruptFiles) {
+			return new ArrayList<String>(corruptFiles);
+		}
+	}
+
+	public void close() {
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+		}
+	}
+}
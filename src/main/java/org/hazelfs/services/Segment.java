@@ -0,0 +1,144 @@
+package org.hazelfs.services;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A large file holding the content of many small objects of a
+ * {@link SegmentStorageService}. Segments created by the running process are
+ * memory mapped and written through the mapping, segments found on startup are
+ * only read from.
+ *
+ * Apart from the channel and the mapping all fields are guarded by the owning
+ * storage service.
+ */
+class Segment {
+
+	private final int id;
+	private final File file;
+	private final FileChannel channel;
+	private final MappedByteBuffer mapped;
+	private long appendPosition;
+	private long liveBytes = 0;
+	private int references = 0;
+	private boolean retired = false;
+
+	private Segment(int id, File file, FileChannel channel, MappedByteBuffer mapped, long appendPosition) {
+		super();
+		this.id = id;
+		this.file = file;
+		this.channel = channel;
+		this.mapped = mapped;
+		this.appendPosition = appendPosition;
+	}
+
+	/**
+	 * Create a new segment of the given size to append to
+	 */
+	static Segment create(int id, File file, long size) throws IOException {
+		FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		return new Segment(id, file, ch, ch.map(FileChannel.MapMode.READ_WRITE, 0, size), 0);
+	}
+
+	/**
+	 * Open an existing segment for reading
+	 */
+	static Segment open(int id, File file) throws IOException {
+		FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		return new Segment(id, file, ch, null, ch.size());
+	}
+
+	/**
+	 * Copy the buffer's content into the segment at the given position. Callers
+	 * write to disjoint regions they have reserved, so no locking is needed.
+	 */
+	int write(ByteBuffer src, long position) throws IOException {
+		if (mapped == null) {
+			throw new IOException("Segment " + id + " is read only");
+		}
+		ByteBuffer dst = mapped.duplicate();
+		dst.position((int) position);
+		int count = src.remaining();
+		dst.put(src);
+		return count;
+	}
+
+	void force() {
+		if (mapped != null) {
+			mapped.force();
+		}
+	}
+
+	/**
+	 * Close the segment's channel and remove its file
+	 */
+	void delete() throws IOException {
+		channel.close();
+		if (!file.delete()) {
+			throw new IOException("Unable to delete segment " + file.getAbsolutePath());
+		}
+	}
+
+	int getId() {
+		return id;
+	}
+
+	FileChannel getChannel() {
+		return channel;
+	}
+
+	/**
+	 * @return the position the next object is appended at
+	 */
+	long getAppendPosition() {
+		return appendPosition;
+	}
+
+	void setAppendPosition(long appendPosition) {
+		this.appendPosition = appendPosition;
+	}
+
+	/**
+	 * @return the number of bytes of objects still referenced by the index
+	 */
+	long getLiveBytes() {
+		return liveBytes;
+	}
+
+	void setLiveBytes(long liveBytes) {
+		this.liveBytes = liveBytes;
+	}
+
+	/**
+	 * @return the number of open channels reading or writing this segment
+	 */
+	int getReferences() {
+		return references;
+	}
+
+	void setReferences(int references) {
+		this.references = references;
+	}
+
+	/**
+	 * @return true once compaction has moved all objects out of the segment and
+	 *         it waits for its last channel to be closed
+	 */
+	boolean isRetired() {
+		return retired;
+	}
+
+	void setRetired(boolean retired) {
+		this.retired = retired;
+	}
+
+	@Override
+	public String toString() {
+		return file.getName();
+	}
+}
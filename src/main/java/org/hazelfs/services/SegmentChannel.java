@@ -0,0 +1,213 @@
+package org.hazelfs.services;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A {@link FileChannel} over the region of a {@link Segment} holding a single
+ * object, positions are relative to the start of the object. Transfers to
+ * other channels use the segment's channel, so downloads of small objects are
+ * still sent by the kernel.
+ */
+class SegmentChannel extends FileChannel {
+
+	private final SegmentStorageService owner;
+	private final String path;
+	private final SegmentStorageService.Location location;
+	private final boolean writable;
+	private long position = 0;
+
+	SegmentChannel(SegmentStorageService owner, String path, SegmentStorageService.Location location,
+			boolean writable) {
+		super();
+		this.owner = owner;
+		this.path = path;
+		this.location = location;
+		this.writable = writable;
+	}
+
+	SegmentStorageService.Location getLocation() {
+		return location;
+	}
+
+	String getPath() {
+		return path;
+	}
+
+	boolean isWritable() {
+		return writable;
+	}
+
+	@Override
+	public int read(ByteBuffer dst) throws IOException {
+		int read = read(dst, position);
+		if (read > 0) {
+			position += read;
+		}
+		return read;
+	}
+
+	@Override
+	public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+		long total = 0;
+		for (int i = offset; i < offset + length; i++) {
+			int read = read(dsts[i]);
+			if (read == -1) {
+				return total == 0 ? -1 : total;
+			}
+			total += read;
+			if (dsts[i].hasRemaining()) {
+				break;
+			}
+		}
+		return total;
+	}
+
+	@Override
+	public int read(ByteBuffer dst, long position) throws IOException {
+		ensureOpen();
+		long left = location.getLength() - position;
+		if (left <= 0) {
+			return -1;
+		}
+		ByteBuffer window = dst.duplicate();
+		window.limit((int) Math.min(window.limit(), window.position() + left));
+		int read = location.getSegment().getChannel().read(window, location.getOffset() + position);
+		if (read > 0) {
+			dst.position(dst.position() + read);
+		}
+		return read;
+	}
+
+	@Override
+	public int write(ByteBuffer src) throws IOException {
+		int written = write(src, position);
+		position += written;
+		return written;
+	}
+
+	@Override
+	public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+		long total = 0;
+		for (int i = offset; i < offset + length; i++) {
+			total += write(srcs[i]);
+		}
+		return total;
+	}
+
+	@Override
+	public int write(ByteBuffer src, long position) throws IOException {
+		ensureOpen();
+		if (!writable) {
+			throw new NonWritableChannelException();
+		}
+		if (position < 0 || position + src.remaining() > location.getLength()) {
+			throw new IOException("Writing " + src.remaining() + " bytes at " + position + " exceeds the "
+					+ location.getLength() + " bytes reserved for " + path);
+		}
+		return location.getSegment().write(src, location.getOffset() + position);
+	}
+
+	@Override
+	public long position() throws IOException {
+		return position;
+	}
+
+	@Override
+	public FileChannel position(long newPosition) throws IOException {
+		if (newPosition < 0) {
+			throw new IllegalArgumentException("Negative position " + newPosition);
+		}
+		this.position = newPosition;
+		return this;
+	}
+
+	@Override
+	public long size() throws IOException {
+		ensureOpen();
+		return location.getLength();
+	}
+
+	@Override
+	public FileChannel truncate(long size) throws IOException {
+		throw new IOException("Objects in a segment have a fixed size");
+	}
+
+	@Override
+	public void force(boolean metaData) throws IOException {
+		ensureOpen();
+		location.getSegment().force();
+	}
+
+	@Override
+	public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+		ensureOpen();
+		long left = location.getLength() - position;
+		if (left <= 0) {
+			return 0;
+		}
+		return location.getSegment().getChannel()
+				.transferTo(location.getOffset() + position, Math.min(count, left), target);
+	}
+
+	@Override
+	public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate((int) Math.min(count, 64 * 1024));
+		long transferred = 0;
+		while (transferred < count) {
+			buf.clear();
+			buf.limit((int) Math.min(buf.capacity(), count - transferred));
+			int read = src.read(buf);
+			if (read <= 0) {
+				break;
+			}
+			buf.flip();
+			transferred += write(buf, position + transferred);
+		}
+		return transferred;
+	}
+
+	@Override
+	public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+		if (mode != MapMode.READ_ONLY) {
+			throw new IOException("Objects in a segment can only be mapped read only");
+		}
+		if (position < 0 || position + size > location.getLength()) {
+			throw new IOException("Mapping exceeds the " + location.getLength() + " bytes of " + path);
+		}
+		return location.getSegment().getChannel().map(mode, location.getOffset() + position, size);
+	}
+
+	@Override
+	public FileLock lock(long position, long size, boolean shared) throws IOException {
+		throw new IOException("Objects in a segment cannot be locked");
+	}
+
+	@Override
+	public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+		throw new IOException("Objects in a segment cannot be locked");
+	}
+
+	private void ensureOpen() throws IOException {
+		if (!isOpen()) {
+			throw new ClosedChannelException();
+		}
+	}
+
+	@Override
+	protected void implCloseChannel() throws IOException {
+		owner.closed(this);
+	}
+
+	@Override
+	public String toString() {
+		return path + " in " + location.getSegment();
+	}
+}
@@ -0,0 +1,535 @@
+package org.hazelfs.services;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link StorageService} appending small objects to large segment files
+ * instead of creating a file per object, so millions of small objects cost
+ * neither inodes nor an open() per request. Objects larger than the small
+ * object size, or created without knowing their size, are stored as plain
+ * files by a {@link PosixStorageService}.
+ *
+ * The location of every small object is kept in memory and logged to an index
+ * file which is replayed on startup. A background task copies the live objects
+ * out of segments consisting mostly of deleted objects and removes them.
+ */
+public class SegmentStorageService implements StorageService {
+
+	private static final Logger LOG = LoggerFactory.getLogger(SegmentStorageService.class);
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String SEGMENT_PREFIX = "segment-";
+	private static final String INDEX_FILE = "index.log";
+	private static final byte RECORD_PUT = 1;
+	private static final byte RECORD_DELETE = 2;
+
+	private final File storageDirectory;
+	private final File segmentDirectory;
+	private final PosixStorageService files;
+	private long segmentSize = 64 * 1024 * 1024;
+	private int smallObjectSize = 64 * 1024;
+	private double compactionThreshold = 0.5;
+	private long compactionIntervalSeconds = 60;
+
+	private final Map<String, Location> index = new HashMap<String, Location>();
+	private final Set<String> reserved = new HashSet<String>();
+	private final Map<Integer, Segment> segments = new TreeMap<Integer, Segment>();
+	private Segment active;
+	private int nextSegmentId = 0;
+	private FileChannel indexLog;
+	private long indexRecords = 0;
+	private ScheduledExecutorService compactor;
+
+	/**
+	 * Where an object lives inside a segment
+	 */
+	static class Location {
+		private final Segment segment;
+		private final long offset;
+		private final int length;
+
+		Location(Segment segment, long offset, int length) {
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		Segment getSegment() {
+			return segment;
+		}
+
+		long getOffset() {
+			return offset;
+		}
+
+		int getLength() {
+			return length;
+		}
+	}
+
+	public SegmentStorageService(String storageDirectory) {
+		this.storageDirectory = new File(storageDirectory);
+		this.segmentDirectory = new File(storageDirectory, "segments");
+		this.files = new PosixStorageService(new File(storageDirectory, "files").getPath());
+	}
+
+	/**
+	 * Set the size of new segment files, defaults to 64 MB
+	 */
+	public void setSegmentSize(long segmentSize) {
+		this.segmentSize = segmentSize;
+	}
+
+	/**
+	 * Set the size up to which objects are appended to segments, defaults to 64
+	 * KB
+	 */
+	public void setSmallObjectSize(int smallObjectSize) {
+		this.smallObjectSize = smallObjectSize;
+	}
+
+	/**
+	 * Set the share of deleted bytes which makes a segment eligible for
+	 * compaction, defaults to 0.5
+	 */
+	public void setCompactionThreshold(double compactionThreshold) {
+		this.compactionThreshold = compactionThreshold;
+	}
+
+	public void setCompactionIntervalSeconds(long compactionIntervalSeconds) {
+		this.compactionIntervalSeconds = compactionIntervalSeconds;
+	}
+
+	public synchronized void initStorage() throws IOException {
+		if (!storageDirectory.exists()) {
+			storageDirectory.mkdir();
+		}
+		if (!storageDirectory.isDirectory() || !storageDirectory.canWrite() || !storageDirectory.canRead()) {
+			throw new IOException("Unable to use " + storageDirectory.getAbsolutePath() + " as a storage directory");
+		}
+		segmentDirectory.mkdir();
+		files.initStorage();
+		openSegments();
+		replayIndex();
+		dropEmptySegments();
+		active = null;
+		compactor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "hazelfs-compaction-" + storageDirectory.getName());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		compactor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					compact();
+				} catch (IOException e) {
+					LOG.error("Compaction of {} failed", storageDirectory.getAbsolutePath(), e);
+				}
+			}
+		}, compactionIntervalSeconds, compactionIntervalSeconds, TimeUnit.SECONDS);
+		LOG.info("Opened {} objects in {} segments at {}", index.size(), segments.size(),
+				storageDirectory.getAbsolutePath());
+	}
+
+	private void openSegments() throws IOException {
+		File[] found = segmentDirectory.listFiles();
+		for (File f : found == null ? new File[0] : found) {
+			if (!f.getName().startsWith(SEGMENT_PREFIX)) {
+				continue;
+			}
+			int id = Integer.parseInt(f.getName().substring(SEGMENT_PREFIX.length()));
+			segments.put(id, Segment.open(id, f));
+			nextSegmentId = Math.max(nextSegmentId, id + 1);
+		}
+	}
+
+	/**
+	 * Rebuild the index from its log. A record cut short by a crash ends the
+	 * replay and is removed from the log.
+	 */
+	private void replayIndex() throws IOException {
+		File f = new File(storageDirectory, INDEX_FILE);
+		long valid = 0;
+		if (f.exists()) {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+			try {
+				while (true) {
+					byte type = in.readByte();
+					Location loc = null;
+					long size = 1;
+					if (type == RECORD_PUT) {
+						int segmentId = in.readInt();
+						long offset = in.readLong();
+						int length = in.readInt();
+						Segment segment = segments.get(segmentId);
+						if (segment != null) {
+							loc = new Location(segment, offset, length);
+						}
+						size += 16;
+					} else if (type != RECORD_DELETE) {
+						throw new IOException("Corrupt record of type " + type + " in " + f.getAbsolutePath());
+					}
+					byte[] path = new byte[in.readUnsignedShort()];
+					in.readFully(path);
+					applyRecord(new String(path, UTF8), loc);
+					valid += size + 2 + path.length;
+					indexRecords++;
+				}
+			} catch (EOFException e) {
+				// end of the log
+			} finally {
+				in.close();
+			}
+		}
+		indexLog = FileChannel.open(f.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		if (indexLog.size() > valid) {
+			LOG.warn("Dropping {} bytes of an incomplete record from {}", indexLog.size() - valid, f);
+			indexLog.truncate(valid);
+		}
+		indexLog.position(valid);
+	}
+
+	private void applyRecord(String path, Location loc) {
+		Location old = loc == null ? index.remove(path) : index.put(path, loc);
+		if (old != null) {
+			old.segment.setLiveBytes(old.segment.getLiveBytes() - old.length);
+		}
+		if (loc != null) {
+			loc.segment.setLiveBytes(loc.segment.getLiveBytes() + loc.length);
+		}
+	}
+
+	private void dropEmptySegments() throws IOException {
+		List<Segment> empty = new ArrayList<Segment>();
+		for (Segment s : segments.values()) {
+			if (s.getLiveBytes() == 0) {
+				empty.add(s);
+			}
+		}
+		for (Segment s : empty) {
+			segments.remove(s.getId());
+			s.delete();
+		}
+	}
+
+	/**
+	 * Close the segments and stop compacting
+	 */
+	public synchronized void shutdown() throws IOException {
+		if (compactor != null) {
+			compactor.shutdownNow();
+			compactor = null;
+		}
+		for (Segment s : segments.values()) {
+			s.getChannel().close();
+		}
+		files.shutdown();
+		segments.clear();
+		index.clear();
+		reserved.clear();
+		active = null;
+		indexRecords = 0;
+		if (indexLog != null) {
+			indexLog.close();
+			indexLog = null;
+		}
+	}
+
+	@Override
+	public FileChannel create(String path) throws IOException {
+		checkAbsent(path);
+		return files.create(path);
+	}
+
+	@Override
+	public FileChannel create(String path, long size) throws IOException {
+		if (size > smallObjectSize) {
+			checkAbsent(path);
+			return files.create(path, size);
+		}
+		synchronized (this) {
+			checkAbsent(path);
+			// small objects keep their checksums with the large files
+			files.removeChecksums(path);
+			Location loc = allocate((int) size);
+			reserved.add(path);
+			return new SegmentChannel(this, path, loc, true);
+		}
+	}
+
+	private synchronized void checkAbsent(String path) throws IOException {
+		if (index.containsKey(path) || reserved.contains(path) || files.getMetadata(path) != null) {
+			throw new IOException("Unable to overwrite file " + path);
+		}
+	}
+
+	/**
+	 * Reserve space at the end of the active segment, starting a new one if it
+	 * is full. The space is referenced until the caller releases the segment.
+	 */
+	private synchronized Location allocate(int length) throws IOException {
+		if (active == null || active.getAppendPosition() + length > segmentSize) {
+			int id = nextSegmentId++;
+			active = Segment.create(id, new File(segmentDirectory, SEGMENT_PREFIX + id), segmentSize);
+			segments.put(id, active);
+			LOG.debug("started segment {}", active);
+		}
+		Location loc = new Location(active, active.getAppendPosition(), length);
+		active.setAppendPosition(active.getAppendPosition() + length);
+		active.setReferences(active.getReferences() + 1);
+		return loc;
+	}
+
+	/**
+	 * Called when a channel of a segment is closed. Closing the channel an
+	 * object has been written to makes the object visible.
+	 */
+	synchronized void closed(SegmentChannel ch) throws IOException {
+		Location loc = ch.getLocation();
+		release(loc.segment);
+		if (ch.isWritable()) {
+			reserved.remove(ch.getPath());
+			applyRecord(ch.getPath(), loc);
+			appendRecord(ch.getPath(), loc);
+		}
+	}
+
+	private void release(Segment segment) throws IOException {
+		segment.setReferences(segment.getReferences() - 1);
+		if (segment.isRetired() && segment.getReferences() == 0) {
+			segment.delete();
+			LOG.debug("removed segment {}", segment);
+		}
+	}
+
+	/**
+	 * Log a change of the index
+	 *
+	 * @param loc
+	 *            the new location of the object or null if it has been deleted
+	 */
+	private void appendRecord(String path, Location loc) throws IOException {
+		byte[] name = path.getBytes(UTF8);
+		ByteBuffer record = ByteBuffer.allocate(1 + 16 + 2 + name.length);
+		if (loc != null) {
+			record.put(RECORD_PUT).putInt(loc.segment.getId()).putLong(loc.offset).putInt(loc.length);
+		} else {
+			record.put(RECORD_DELETE);
+		}
+		record.putShort((short) name.length).put(name).flip();
+		while (record.hasRemaining()) {
+			indexLog.write(record);
+		}
+		indexRecords++;
+	}
+
+	@Override
+	public FileChannel open(String path) throws IOException {
+		synchronized (this) {
+			Location loc = index.get(path);
+			if (loc != null) {
+				loc.segment.setReferences(loc.segment.getReferences() + 1);
+				return new SegmentChannel(this, path, loc, false);
+			}
+		}
+		return files.open(path);
+	}
+
+	@Override
+	public void delete(String path) throws IOException {
+		synchronized (this) {
+			if (index.containsKey(path)) {
+				applyRecord(path, null);
+				appendRecord(path, null);
+				files.removeChecksums(path);
+				return;
+			}
+		}
+		files.delete(path);
+	}
+
+	@Override
+	public void putChecksums(String path, int[] checksums) throws IOException {
+		files.putChecksums(path, checksums);
+	}
+
+	@Override
+	public int[] getChecksums(String path) throws IOException {
+		return files.getChecksums(path);
+	}
+
+	@Override
+	public long getCapacity() {
+		return files.getCapacity();
+	}
+
+	@Override
+	public long getFreeSpace() {
+		return files.getFreeSpace();
+	}
+
+	@Override
+	public long getSize(String path) throws IOException {
+		synchronized (this) {
+			Location loc = index.get(path);
+			if (loc != null) {
+				return loc.length;
+			}
+		}
+		return files.getSize(path);
+	}
+
+	@Override
+	public List<String> list(String prefix) throws IOException {
+		List<String> paths = files.list(prefix);
+		synchronized (this) {
+			for (String path : index.keySet()) {
+				if (path.startsWith(prefix)) {
+					paths.add(path);
+				}
+			}
+		}
+		Collections.sort(paths);
+		return paths;
+	}
+
+	@Override
+	public void format() throws IOException {
+		shutdown();
+		FileUtils.deleteDirectory(storageDirectory);
+	}
+
+	/**
+	 * Move the objects out of every segment whose share of deleted bytes exceeds
+	 * the threshold and remove the segment. Segments with open channels are
+	 * left for the next run.
+	 */
+	void compact() throws IOException {
+		Map<Segment, List<String>> victims = new HashMap<Segment, List<String>>();
+		synchronized (this) {
+			for (Segment s : segments.values()) {
+				if (s != active && s.getReferences() == 0 && !s.isRetired()
+						&& s.getLiveBytes() < (1 - compactionThreshold) * segmentSize) {
+					victims.put(s, new ArrayList<String>());
+				}
+			}
+			if (victims.isEmpty()) {
+				return;
+			}
+			for (Map.Entry<String, Location> e : index.entrySet()) {
+				List<String> paths = victims.get(e.getValue().segment);
+				if (paths != null) {
+					paths.add(e.getKey());
+				}
+			}
+		}
+		ByteBuffer buf = ByteBuffer.allocateDirect(smallObjectSize);
+		for (Map.Entry<Segment, List<String>> victim : victims.entrySet()) {
+			for (String path : victim.getValue()) {
+				move(path, victim.getKey(), buf);
+			}
+			retire(victim.getKey());
+		}
+		compactIndex();
+	}
+
+	/**
+	 * Copy an object into the active segment unless it has been deleted or
+	 * replaced in the meantime
+	 */
+	private void move(String path, Segment from, ByteBuffer buf) throws IOException {
+		Location src;
+		Location dst;
+		synchronized (this) {
+			src = index.get(path);
+			if (src == null || src.segment != from) {
+				return;
+			}
+			dst = allocate(src.length);
+		}
+		try {
+			buf.clear();
+			buf.limit(src.length);
+			while (buf.hasRemaining()) {
+				if (from.getChannel().read(buf, src.offset + buf.position()) == -1) {
+					throw new EOFException("Segment " + from + " ends within " + path);
+				}
+			}
+			buf.flip();
+			dst.segment.write(buf, dst.offset);
+		} finally {
+			synchronized (this) {
+				release(dst.segment);
+				if (index.get(path) == src && !buf.hasRemaining()) {
+					applyRecord(path, dst);
+					appendRecord(path, dst);
+				}
+			}
+		}
+	}
+
+	private synchronized void retire(Segment segment) throws IOException {
+		if (segment.getLiveBytes() > 0) {
+			return;
+		}
+		segments.remove(segment.getId());
+		segment.setRetired(true);
+		if (segment.getReferences() == 0) {
+			segment.delete();
+			LOG.debug("removed segment {}", segment);
+		}
+	}
+
+	/**
+	 * Rewrite the index log from memory once most of its records are obsolete
+	 */
+	private synchronized void compactIndex() throws IOException {
+		if (indexRecords < 2 * index.size() + 1024) {
+			return;
+		}
+		File f = new File(storageDirectory, INDEX_FILE);
+		File tmp = new File(storageDirectory, INDEX_FILE + ".tmp");
+		FileChannel old = indexLog;
+		indexLog = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+		indexRecords = 0;
+		for (Map.Entry<String, Location> e : index.entrySet()) {
+			appendRecord(e.getKey(), e.getValue());
+		}
+		indexLog.force(true);
+		old.close();
+		Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		LOG.debug("rewrote index of {} with {} records", storageDirectory.getAbsolutePath(), indexRecords);
+	}
+}
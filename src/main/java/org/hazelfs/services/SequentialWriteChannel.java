@@ -0,0 +1,195 @@
+package org.hazelfs.services;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.NonReadableChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A write-only {@link FileChannel} handing the content written to it to
+ * {@link #consume(ByteBuffer)} strictly in order. The listener writes the
+ * slabs of an upload from several disk threads at once, a slab arriving ahead
+ * of its predecessors is copied and kept until the gap before it is filled.
+ */
+public abstract class SequentialWriteChannel extends FileChannel {
+
+	private final TreeMap<Long, ByteBuffer> pending = new TreeMap<Long, ByteBuffer>();
+	private long consumed = 0;
+	private long position = 0;
+	private IOException failure;
+
+	/**
+	 * Take the next bytes of the content, all remaining bytes of the buffer have
+	 * to be used up
+	 */
+	protected abstract void consume(ByteBuffer src) throws IOException;
+
+	/**
+	 * Called once when the channel is closed
+	 *
+	 * @param failure
+	 *            why the content is incomplete, or null if it is complete
+	 */
+	protected abstract void finish(IOException failure) throws IOException;
+
+	@Override
+	public int write(ByteBuffer src) throws IOException {
+		int written = write(src, position);
+		position += written;
+		return written;
+	}
+
+	@Override
+	public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+		long total = 0;
+		for (int i = offset; i < offset + length; i++) {
+			total += write(srcs[i]);
+		}
+		return total;
+	}
+
+	@Override
+	public synchronized int write(ByteBuffer src, long position) throws IOException {
+		ensureOpen();
+		if (failure != null) {
+			throw failure;
+		}
+		int length = src.remaining();
+		if (position < consumed || pending.containsKey(position)) {
+			throw new IOException("Unable to overwrite the content at " + position);
+		}
+		if (position > consumed) {
+			ByteBuffer copy = ByteBuffer.allocate(length);
+			copy.put(src).flip();
+			pending.put(position, copy);
+			return length;
+		}
+		try {
+			consume(src);
+			consumed += length;
+			Map.Entry<Long, ByteBuffer> next;
+			while ((next = pending.firstEntry()) != null && next.getKey() == consumed) {
+				pending.remove(next.getKey());
+				consumed += next.getValue().remaining();
+				consume(next.getValue());
+			}
+		} catch (IOException e) {
+			failure = e;
+			throw e;
+		}
+		return length;
+	}
+
+	@Override
+	public int read(ByteBuffer dst) throws IOException {
+		throw new NonReadableChannelException();
+	}
+
+	@Override
+	public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+		throw new NonReadableChannelException();
+	}
+
+	@Override
+	public int read(ByteBuffer dst, long position) throws IOException {
+		throw new NonReadableChannelException();
+	}
+
+	@Override
+	public long position() throws IOException {
+		return position;
+	}
+
+	@Override
+	public FileChannel position(long newPosition) throws IOException {
+		if (newPosition < 0) {
+			throw new IllegalArgumentException("Negative position " + newPosition);
+		}
+		this.position = newPosition;
+		return this;
+	}
+
+	/**
+	 * @return the number of bytes taken in order so far
+	 */
+	@Override
+	public synchronized long size() throws IOException {
+		ensureOpen();
+		return consumed;
+	}
+
+	@Override
+	public FileChannel truncate(long size) throws IOException {
+		throw new IOException("Content written in order cannot be truncated");
+	}
+
+	@Override
+	public void force(boolean metaData) throws IOException {
+		ensureOpen();
+	}
+
+	@Override
+	public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+		throw new NonReadableChannelException();
+	}
+
+	@Override
+	public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate((int) Math.min(count, 64 * 1024));
+		long transferred = 0;
+		while (transferred < count) {
+			buf.clear();
+			buf.limit((int) Math.min(buf.capacity(), count - transferred));
+			int read = src.read(buf);
+			if (read <= 0) {
+				break;
+			}
+			buf.flip();
+			transferred += write(buf, position + transferred);
+		}
+		return transferred;
+	}
+
+	@Override
+	public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+		throw new IOException("Content written in order cannot be mapped");
+	}
+
+	@Override
+	public FileLock lock(long position, long size, boolean shared) throws IOException {
+		throw new IOException("Content written in order cannot be locked");
+	}
+
+	@Override
+	public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+		throw new IOException("Content written in order cannot be locked");
+	}
+
+	private void ensureOpen() throws IOException {
+		if (!isOpen()) {
+			throw new ClosedChannelException();
+		}
+	}
+
+	@Override
+	protected synchronized void implCloseChannel() throws IOException {
+		IOException gap = null;
+		if (failure == null && !pending.isEmpty()) {
+			gap = new IOException("Content ends with a gap at " + consumed);
+			failure = gap;
+		}
+		pending.clear();
+		finish(failure);
+		// failures from writing have been thrown already, the gap has not
+		if (gap != null) {
+			throw gap;
+		}
+	}
+}
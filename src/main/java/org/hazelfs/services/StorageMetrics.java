@@ -0,0 +1,106 @@
+package org.hazelfs.services;
+
+/**
+ * Counters and latencies of the operations of a {@link PosixStorageService}.
+ * The file operations are timed as a whole, reads, writes and transfers of the
+ * channels handed out are timed per call and add up to the time spent blocked
+ * in disk I/O.
+ */
+public class StorageMetrics implements StorageMetricsMBean {
+
+	private final LatencyHistogram creates = new LatencyHistogram();
+	private final LatencyHistogram opens = new LatencyHistogram();
+	private final LatencyHistogram deletes = new LatencyHistogram();
+	private final LatencyHistogram lookups = new LatencyHistogram();
+	private final LatencyHistogram checksums = new LatencyHistogram();
+	private final LatencyHistogram io = new LatencyHistogram();
+	private final StripedCounter bytesRead = new StripedCounter();
+	private final StripedCounter bytesWritten = new StripedCounter();
+	private final StripedCounter failures = new StripedCounter();
+
+	/**
+	 * @return the latencies of creating files
+	 */
+	public LatencyHistogram getCreates() {
+		return creates;
+	}
+
+	/**
+	 * @return the latencies of opening files
+	 */
+	public LatencyHistogram getOpens() {
+		return opens;
+	}
+
+	/**
+	 * @return the latencies of deleting files
+	 */
+	public LatencyHistogram getDeletes() {
+		return deletes;
+	}
+
+	/**
+	 * @return the latencies of looking up sizes and listing files
+	 */
+	public LatencyHistogram getLookups() {
+		return lookups;
+	}
+
+	/**
+	 * @return the latencies of storing and loading checksums
+	 */
+	public LatencyHistogram getChecksums() {
+		return checksums;
+	}
+
+	/**
+	 * @return the latencies of single reads, writes and transfers of file
+	 *         channels
+	 */
+	public LatencyHistogram getIo() {
+		return io;
+	}
+
+	void read(long bytes, long nanos) {
+		if (bytes > 0) {
+			bytesRead.add(bytes);
+		}
+		io.record(nanos);
+	}
+
+	void written(long bytes, long nanos) {
+		if (bytes > 0) {
+			bytesWritten.add(bytes);
+		}
+		io.record(nanos);
+	}
+
+	void failed() {
+		failures.increment();
+	}
+
+	@Override
+	public long getBytesRead() {
+		return bytesRead.sum();
+	}
+
+	@Override
+	public long getBytesWritten() {
+		return bytesWritten.sum();
+	}
+
+	@Override
+	public long getIoCount() {
+		return io.getCount();
+	}
+
+	@Override
+	public long getIoNanos() {
+		return io.getTotal();
+	}
+
+	@Override
+	public long getFailures() {
+		return failures.sum();
+	}
+}
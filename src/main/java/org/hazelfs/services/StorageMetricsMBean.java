@@ -0,0 +1,27 @@
+package org.hazelfs.services;
+
+/**
+ * The JMX view of the {@link StorageMetrics} of a node's storage, the
+ * latencies are registered as {@link LatencyHistogramMBean}s of their own
+ */
+public interface StorageMetricsMBean {
+
+	public long getBytesRead();
+
+	public long getBytesWritten();
+
+	/**
+	 * @return the number of reads, writes and transfers of file channels
+	 */
+	public long getIoCount();
+
+	/**
+	 * @return the time spent blocked in reads, writes and transfers
+	 */
+	public long getIoNanos();
+
+	/**
+	 * @return the number of operations that failed with an I/O error
+	 */
+	public long getFailures();
+}
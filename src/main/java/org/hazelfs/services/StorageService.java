@@ -1,19 +1,64 @@
 package org.hazelfs.services;
 
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.channels.FileChannel;
+import java.util.List;
 
 public interface StorageService {
 	public FileChannel open(String path) throws IOException;
 
 	public FileChannel create(String path) throws IOException;
 
+	/**
+	 * Create a file whose final size is known up front, so the storage can
+	 * reserve the space before the data arrives
+	 */
+	public FileChannel create(String path, long size) throws IOException;
+
+	/**
+	 * @throws FileNotFoundException
+	 *             if there is no file at the path
+	 */
 	public void delete(String path) throws IOException;
 	
 	public void format() throws IOException;
-	
+
+	/**
+	 * @return the size of the file, 0 for an empty one
+	 * @throws FileNotFoundException
+	 *             if there is no file at the path
+	 */
 	public long getSize(String path) throws IOException;
+
+	/**
+	 * @return the paths of the stored files starting with the given prefix in
+	 *         lexicographic order
+	 */
+	public List<String> list(String prefix) throws IOException;
+
+	/**
+	 * @return the number of bytes the storage can hold or 0 if unknown
+	 */
+	public long getCapacity();
+
+	/**
+	 * @return the number of bytes that can still be stored or -1 if unknown
+	 */
+	public long getFreeSpace();
+
+	/**
+	 * Keep the {@link Crc32c} of every chunk of a file along with it, replacing
+	 * the checksums the file had before
+	 */
+	public void putChecksums(String path, int[] checksums) throws IOException;
+
+	/**
+	 * @return the checksums kept for the chunks of the file or null if there are
+	 *         none
+	 */
+	public int[] getChecksums(String path) throws IOException;
 	
 }
\ No newline at end of file
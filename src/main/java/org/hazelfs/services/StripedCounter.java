@@ -0,0 +1,61 @@
+package org.hazelfs.services;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter for hot paths updated by many threads. Every thread adds to one of
+ * several cells picked by its id, each cell on its own cache line, so threads
+ * updating the counter at the same time rarely touch the same memory. Reading
+ * the counter sums up the cells.
+ */
+public class StripedCounter {
+
+	/** The number of longs from one cell to the next, 64 bytes */
+	private static final int PADDING = 8;
+	private static final int STRIPES = stripes();
+
+	private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+	/**
+	 * @return a power of two of about twice the number of processors
+	 */
+	private static int stripes() {
+		int processors = Math.min(Runtime.getRuntime().availableProcessors(), 32);
+		return Integer.highestOneBit(2 * processors - 1) << 1;
+	}
+
+	public void increment() {
+		add(1);
+	}
+
+	public void decrement() {
+		add(-1);
+	}
+
+	public void add(long x) {
+		cells.getAndAdd(cell(), x);
+	}
+
+	private static int cell() {
+		// spread the sequential thread ids over the cells
+		long h = Thread.currentThread().getId() * 0x9E3779B97F4A7C15L;
+		return ((int) (h >>> 32) & (STRIPES - 1)) * PADDING;
+	}
+
+	/**
+	 * @return the sum of everything added so far, not an atomic snapshot while
+	 *         other threads keep on adding
+	 */
+	public long sum() {
+		long sum = 0;
+		for (int i = 0; i < cells.length(); i += PADDING) {
+			sum += cells.get(i);
+		}
+		return sum;
+	}
+
+	@Override
+	public String toString() {
+		return String.valueOf(sum());
+	}
+}
@@ -0,0 +1,54 @@
+package org.hazelfs.services;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the rate of an activity, e.g. the bytes per second of background
+ * transfers shared by several threads. Permits accumulate at a fixed rate up to
+ * a burst size, a caller taking more permits than available goes into debt and
+ * sleeps until the debt is paid back, so later callers wait their turn.
+ */
+public class TokenBucket {
+
+	private final long rate;
+	private final long burst;
+	private double tokens;
+	private long lastRefill = System.nanoTime();
+
+	/**
+	 * @param rate
+	 *            the permits per second, 0 for no limit
+	 * @param burst
+	 *            the number of permits that may be taken at once without waiting
+	 */
+	public TokenBucket(long rate, long burst) {
+		super();
+		this.rate = rate;
+		this.burst = burst;
+		this.tokens = burst;
+	}
+
+	/**
+	 * Take the given number of permits, waiting until the rate allows it
+	 */
+	public void acquire(long permits) throws InterruptedException {
+		if (rate <= 0) {
+			return;
+		}
+		long waitNanos;
+		synchronized (this) {
+			long now = System.nanoTime();
+			tokens = Math.min(burst, tokens + (now - lastRefill) * rate / 1e9);
+			lastRefill = now;
+			tokens -= permits;
+			waitNanos = tokens >= 0 ? 0 : (long) (-tokens * 1e9 / rate);
+		}
+		if (waitNanos > 0) {
+			TimeUnit.NANOSECONDS.sleep(waitNanos);
+		}
+	}
+
+	public long getRate() {
+		return rate;
+	}
+}
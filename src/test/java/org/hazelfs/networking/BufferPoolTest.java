@@ -0,0 +1,157 @@
+package org.hazelfs.networking;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+public class BufferPoolTest {
+
+	@Test
+	public void buffersOfTheirSizeClass() {
+		BufferPool pool = new BufferPool();
+		int[][] sizes = { { 0, 64 }, { 10, 64 }, { 64, 64 }, { 65, 4096 }, { 5000, 64 * 1024 },
+				{ BufferPool.SLAB_SIZE, BufferPool.SLAB_SIZE }, { BufferPool.SLAB_SIZE + 1, BufferPool.SLAB_SIZE + 1 } };
+		for (int[] size : sizes) {
+			ByteBuffer buf = pool.acquire(size[0]);
+			assertTrue(buf.isDirect());
+			assertEquals(0, buf.position());
+			assertEquals(size[0], buf.limit());
+			assertEquals(size[1], buf.capacity());
+			pool.release(buf);
+		}
+	}
+
+	@Test
+	public void releasedBuffersAreReused() {
+		BufferPool pool = new BufferPool();
+		long hits = BufferPool.getHits();
+		long misses = BufferPool.getMisses();
+		long allocated = BufferPool.getAllocatedBytes();
+		ByteBuffer buf = pool.acquire(100);
+		assertEquals(misses + 1, BufferPool.getMisses());
+		assertEquals(allocated + 4096, BufferPool.getAllocatedBytes());
+		buf.put((byte) 1).flip();
+		pool.release(buf);
+		// any size of the class gets the same buffer, cleared
+		ByteBuffer again = pool.acquire(4000);
+		assertSame(buf, again);
+		assertEquals(0, again.position());
+		assertEquals(4000, again.limit());
+		assertEquals(hits + 1, BufferPool.getHits());
+		assertEquals(allocated + 4096, BufferPool.getAllocatedBytes());
+		// not any other class
+		ByteBuffer small = pool.acquire(10);
+		assertNotSame(buf, small);
+		pool.release(again);
+		pool.release(small);
+		pool.release(null);
+	}
+
+	@Test
+	public void poolsAreBounded() {
+		BufferPool pool = new BufferPool();
+		long pooled = BufferPool.getPooledBytes();
+		List<ByteBuffer> slabs = new ArrayList<ByteBuffer>();
+		for (int i = 0; i < 6; i++) {
+			slabs.add(pool.acquire(BufferPool.SLAB_SIZE));
+		}
+		for (ByteBuffer slab : slabs) {
+			pool.release(slab);
+		}
+		assertEquals(pooled + 4 * BufferPool.SLAB_SIZE, BufferPool.getPooledBytes());
+		// larger buffers are never kept
+		pool.release(pool.acquire(BufferPool.SLAB_SIZE + 1));
+		assertEquals(pooled + 4 * BufferPool.SLAB_SIZE, BufferPool.getPooledBytes());
+		List<ByteBuffer> again = new ArrayList<ByteBuffer>();
+		for (int i = 0; i < 5; i++) {
+			again.add(pool.acquire(BufferPool.SLAB_SIZE));
+		}
+		assertEquals(pooled, BufferPool.getPooledBytes());
+		for (int i = 0; i < 5; i++) {
+			assertEquals(i < 4, containsSame(slabs, again.get(i)));
+			pool.release(again.get(i));
+		}
+	}
+
+	/**
+	 * Buffers equal each other by their content
+	 */
+	private static boolean containsSame(List<ByteBuffer> buffers, ByteBuffer buf) {
+		for (ByteBuffer b : buffers) {
+			if (b == buf) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Test
+	public void buffersGivenBackByOtherThreads() throws Exception {
+		final BufferPool pool = new BufferPool();
+		long used = BufferPool.getUsedBytes();
+		final ByteBuffer buf = pool.acquire(64 * 1024);
+		assertEquals(used + 64 * 1024, BufferPool.getUsedBytes());
+		Thread other = new Thread() {
+			@Override
+			public void run() {
+				pool.giveBack(buf);
+			}
+		};
+		other.start();
+		other.join();
+		assertEquals(used, BufferPool.getUsedBytes());
+		// taken over by the owner of the pool on its next acquire
+		assertSame(buf, pool.acquire(64 * 1024));
+		pool.release(buf);
+	}
+
+	@Test
+	public void everyThreadHasItsOwnPool() throws Exception {
+		assertSame(BufferPool.local(), BufferPool.local());
+		final AtomicReference<BufferPool> other = new AtomicReference<BufferPool>();
+		Thread t = new Thread() {
+			@Override
+			public void run() {
+				other.set(BufferPool.local());
+			}
+		};
+		t.start();
+		t.join();
+		assertNotSame(BufferPool.local(), other.get());
+	}
+
+	@Test
+	public void leaksAreReported() {
+		// the test logging enables debug for the pool, which tracks every buffer
+		BufferPool pool = new BufferPool();
+		int leaks = BufferPool.reportLeaks();
+		long used = BufferPool.getUsedBytes();
+		ByteBuffer buf = pool.acquire(10);
+		assertEquals(leaks + 1, BufferPool.reportLeaks());
+		pool.release(buf);
+		assertEquals(leaks, BufferPool.reportLeaks());
+		assertEquals(used, BufferPool.getUsedBytes());
+
+		// a second release is refused, so the buffer is not handed out twice
+		pool.release(buf);
+		assertEquals(used, BufferPool.getUsedBytes());
+		ByteBuffer first = pool.acquire(10);
+		ByteBuffer second = pool.acquire(10);
+		assertSame(buf, first);
+		assertNotSame(buf, second);
+		// nor is a buffer that does not come from a pool
+		pool.release(ByteBuffer.allocateDirect(64));
+		assertEquals(used + 128, BufferPool.getUsedBytes());
+		pool.release(first);
+		pool.release(second);
+		assertEquals(leaks, BufferPool.reportLeaks());
+	}
+}
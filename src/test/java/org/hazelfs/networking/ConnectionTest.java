@@ -0,0 +1,197 @@
+package org.hazelfs.networking;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ConnectionTest {
+	private ServerSocketChannel server;
+	private SocketChannel client;
+	private SocketChannel accepted;
+	private Selector selector;
+	private SelectionKey key;
+	private Connection conn;
+	private long usedBytes;
+	private int nextId = 1;
+
+	@Before
+	public void connect() throws Exception {
+		server = ServerSocketChannel.open();
+		server.bind(new InetSocketAddress("localhost", 0));
+		client = SocketChannel.open(server.getLocalAddress());
+		accepted = server.accept();
+		accepted.configureBlocking(false);
+		selector = Selector.open();
+		usedBytes = BufferPool.getUsedBytes();
+		// what the reactor does with an accepted connection
+		key = accepted.register(selector, SelectionKey.OP_READ);
+		conn = new Connection(accepted, key, new BufferPool());
+		key.attach(conn);
+	}
+
+	@After
+	public void disconnect() throws Exception {
+		conn.close();
+		selector.close();
+		client.close();
+		server.close();
+	}
+
+	private Response response(long streamSize) {
+		Request req = new Request();
+		req.setHeader(new FrameHeader(Constants.PROTO_REQUEST_FILE, (short) 0, nextId++, 0, streamSize));
+		Response resp = new Response(req);
+		resp.setStreamSize(streamSize);
+		return resp;
+	}
+
+	private boolean reading() {
+		return (key.interestOps() & SelectionKey.OP_READ) != 0;
+	}
+
+	private boolean writing() {
+		return (key.interestOps() & SelectionKey.OP_WRITE) != 0;
+	}
+
+	@Test
+	public void stateIsFoundThroughTheKey() throws Exception {
+		assertSame(conn, key.attachment());
+		assertSame(accepted, conn.getChannel());
+		assertTrue(conn.isOpen());
+		assertTrue(conn.canAcceptRequest());
+		Request first = conn.getRequest();
+		assertEquals(Constants.PROTO_HEADER_SIZE, first.getBuffer().limit());
+		conn.expectRequest();
+		assertTrue(first != conn.getRequest());
+		assertTrue(reading());
+		assertFalse(writing());
+	}
+
+	@Test
+	public void pipelinedResponsesSuspendReading() throws Exception {
+		for (int i = 0; i < Connection.MAX_PIPELINED_REQUESTS; i++) {
+			assertTrue(conn.canAcceptRequest());
+			conn.prepareResponse();
+		}
+		assertFalse(conn.canAcceptRequest());
+		assertFalse(reading());
+		conn.abandonResponse();
+		assertTrue(reading());
+		conn.prepareResponse();
+
+		// a response ready to be written still counts until it has been written
+		conn.respondPrepared(response(10));
+		assertFalse(reading());
+		assertTrue(writing());
+		assertEquals(Response.State.WRITE_HEADER, conn.currentResponse().getState());
+		conn.finishResponse();
+		assertTrue(reading());
+		assertFalse(writing());
+		assertNull(conn.currentResponse());
+
+		conn.setReadSuspended(true);
+		assertFalse(conn.canAcceptRequest());
+		assertFalse(reading());
+		conn.setReadSuspended(false);
+		assertTrue(reading());
+	}
+
+	@Test
+	public void suspendedWritesWaitForTheDisk() throws Exception {
+		conn.respond(response(10));
+		assertTrue(writing());
+		conn.setWriteSuspended(true);
+		assertTrue(conn.isWriteSuspended());
+		assertFalse(writing());
+		conn.setWriteSuspended(false);
+		assertTrue(writing());
+	}
+
+	@Test
+	public void smallResponsesOvertakeLargeOnes() throws Exception {
+		Response large = response(1L << 30);
+		Response small = response(10);
+		Response medium = response(1000);
+		conn.respond(large);
+		conn.respond(small);
+		conn.respond(medium);
+		for (Response expected : new Response[] { small, medium, large }) {
+			assertSame(expected, conn.currentResponse());
+			assertSame(expected, conn.currentResponse());
+			conn.finishResponse();
+		}
+		assertNull(conn.currentResponse());
+	}
+
+	@Test
+	public void largeResponseIsNotStarved() throws Exception {
+		Response large = response(1L << 30);
+		conn.respond(large);
+		int bypassed = 0;
+		while (true) {
+			conn.respond(response(10));
+			Response next = conn.currentResponse();
+			conn.finishResponse();
+			if (next == large) {
+				break;
+			}
+			bypassed++;
+		}
+		assertEquals(Connection.MAX_PIPELINED_REQUESTS, bypassed);
+	}
+
+	@Test
+	public void unsentBytesOfTheStream() throws Exception {
+		Response resp = response(1000);
+		conn.respond(resp);
+		assertEquals(0, conn.getUnsentBytes());
+		conn.currentResponse().setState(Response.State.WRITE_STREAM);
+		resp.setBytesWritten(400);
+		assertEquals(600, conn.getUnsentBytes());
+		conn.finishResponse();
+		assertEquals(0, conn.getUnsentBytes());
+	}
+
+	@Test
+	public void closeReleasesEverything() throws Exception {
+		File file = File.createTempFile("connection", ".tmp");
+		file.deleteOnExit();
+		FileChannel src = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		Response streaming = response(0);
+		streaming.setSrc(src);
+		conn.respond(streaming);
+		conn.currentResponse();
+		conn.respond(response(10));
+		conn.prepareResponse();
+		assertTrue(BufferPool.getUsedBytes() > usedBytes);
+
+		conn.close();
+		assertFalse(conn.isOpen());
+		assertFalse(conn.canAcceptRequest());
+		assertNull(conn.getRequest());
+		assertFalse(key.isValid());
+		assertNull(key.attachment());
+		assertFalse(src.isOpen());
+		assertFalse(accepted.isOpen());
+		assertEquals(usedBytes, BufferPool.getUsedBytes());
+		// closing again does nothing
+		conn.close();
+		assertEquals(usedBytes, BufferPool.getUsedBytes());
+		file.delete();
+	}
+}
@@ -0,0 +1,293 @@
+package org.hazelfs.networking;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.hazelfs.services.ManagementService;
+import org.hazelfs.services.PosixStorageService;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class HazeFSAsyncClientTest {
+	private static final int PORT = ManagementService.NODE_DEFAULT_PORT + 4;
+	private static final InetSocketAddress NODE = new InetSocketAddress("localhost", PORT);
+
+	private static HazelFSListener listener;
+	private static ExecutorService executor;
+
+	private HazeFSAsyncClient client;
+	private SilentNode silent;
+	private final Random random = new Random(29);
+
+	/**
+	 * Accepts connections and reads whatever comes in, but never answers
+	 */
+	private static class SilentNode implements Runnable {
+		private final ServerSocket server;
+		private final List<Socket> sockets = new ArrayList<Socket>();
+
+		SilentNode() throws IOException {
+			server = new ServerSocket();
+			server.bind(new InetSocketAddress("localhost", 0));
+			Thread t = new Thread(this, "silent-node");
+			t.setDaemon(true);
+			t.start();
+		}
+
+		InetSocketAddress getAddress() {
+			return new InetSocketAddress("localhost", server.getLocalPort());
+		}
+
+		synchronized int getAccepted() {
+			return sockets.size();
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (true) {
+					Socket socket = server.accept();
+					synchronized (this) {
+						sockets.add(socket);
+					}
+				}
+			} catch (IOException e) {
+				// closed
+			}
+		}
+
+		synchronized void close() throws IOException {
+			server.close();
+			for (Socket socket : sockets) {
+				socket.close();
+			}
+		}
+	}
+
+	@BeforeClass
+	public static void setup() throws Exception {
+		PosixStorageService storage = new PosixStorageService("target/test-async");
+		storage.format();
+		storage.initStorage();
+		listener = new HazelFSListener(PORT, storage, 1);
+		executor = Executors.newSingleThreadExecutor();
+		executor.submit(listener);
+		Thread.sleep(200);
+	}
+
+	@AfterClass
+	public static void teardown() throws Exception {
+		listener.shutdown();
+		executor.shutdownNow();
+	}
+
+	@After
+	public void close() throws Exception {
+		if (client != null) {
+			client.close();
+		}
+		if (silent != null) {
+			silent.close();
+		}
+	}
+
+	private static IOException failure(HazeFSFuture<?> future) throws Exception {
+		try {
+			future.get(5, TimeUnit.SECONDS);
+		} catch (ExecutionException e) {
+			assertTrue(String.valueOf(e.getCause()), e.getCause() instanceof IOException);
+			return (IOException) e.getCause();
+		}
+		fail("call succeeded");
+		return null;
+	}
+
+	private void awaitAccepted(int accepted) throws InterruptedException {
+		for (int i = 0; i < 100 && silent.getAccepted() < accepted; i++) {
+			Thread.sleep(20);
+		}
+		assertEquals(accepted, silent.getAccepted());
+	}
+
+	private static void awaitActiveConnections(long active) throws InterruptedException {
+		for (int i = 0; i < 250 && listener.getMetrics().getActiveConnections() != active; i++) {
+			Thread.sleep(20);
+		}
+		assertEquals(active, listener.getMetrics().getActiveConnections());
+	}
+
+	@Test
+	public void createReadAndDelete() throws Exception {
+		client = new HazeFSAsyncClient();
+		client.start();
+		byte[] data = new byte[3 * 1024 * 1024 + 7];
+		random.nextBytes(data);
+		client.create(NODE, "async-1", ByteBuffer.wrap(data)).join();
+		ByteBuffer read = client.open(NODE, "async-1").join();
+		byte[] content = new byte[read.remaining()];
+		read.get(content);
+		assertArrayEquals(data, content);
+		assertEquals(data.length, client.getSize(NODE, "async-1").join().longValue());
+		client.delete(NODE, "async-1").join();
+		assertTrue(failure(client.open(NODE, "async-1")) instanceof FileNotFoundException);
+	}
+
+	@Test
+	public void deleteEmptyFile() throws Exception {
+		client = new HazeFSAsyncClient();
+		client.start();
+		client.create(NODE, "async-empty", ByteBuffer.allocate(0)).join();
+		client.delete(NODE, "async-empty").join();
+		assertTrue(failure(client.delete(NODE, "async-empty")) instanceof FileNotFoundException);
+	}
+
+	@Test
+	public void cancelRacingCompletion() throws Exception {
+		final List<HazeFSFuture<Long>> futures = new ArrayList<HazeFSFuture<Long>>();
+		for (int i = 0; i < 100000; i++) {
+			futures.add(new HazeFSFuture<Long>());
+		}
+		Thread completer = new Thread() {
+			@Override
+			public void run() {
+				for (HazeFSFuture<Long> future : futures) {
+					future.complete(1L);
+				}
+			}
+		};
+		completer.start();
+		for (HazeFSFuture<Long> future : futures) {
+			boolean cancelled = future.cancel(true);
+			assertEquals(cancelled, future.isCancelled());
+			try {
+				assertEquals(1L, future.get().longValue());
+				assertFalse(cancelled);
+			} catch (CancellationException e) {
+				assertTrue(cancelled);
+			}
+		}
+		completer.join();
+	}
+
+	@Test
+	public void poolGrowsToTheMaximum() throws Exception {
+		silent = new SilentNode();
+		client = new HazeFSAsyncClient();
+		client.setMaxConnections(3);
+		client.start();
+		List<HazeFSFuture<Long>> calls = new ArrayList<HazeFSFuture<Long>>();
+		for (int i = 0; i < 10; i++) {
+			calls.add(client.getSize(silent.getAddress(), "silent-" + i));
+		}
+		awaitAccepted(3);
+		Thread.sleep(300);
+		assertEquals(3, silent.getAccepted());
+		// closing fails the calls in progress and those waiting alike
+		client.close();
+		for (HazeFSFuture<Long> call : calls) {
+			failure(call);
+		}
+		assertTrue(failure(client.getSize(NODE, "after-close")) instanceof ClosedChannelException);
+	}
+
+	@Test
+	public void waitingCallsFailWhenTheNodeGoesDown() throws Exception {
+		silent = new SilentNode();
+		client = new HazeFSAsyncClient();
+		client.setMaxConnections(1);
+		client.start();
+		List<HazeFSFuture<Long>> calls = new ArrayList<HazeFSFuture<Long>>();
+		for (int i = 0; i < 5; i++) {
+			calls.add(client.getSize(silent.getAddress(), "down-" + i));
+		}
+		awaitAccepted(1);
+		silent.close();
+		for (HazeFSFuture<Long> call : calls) {
+			failure(call);
+		}
+		// a node that is not there at all
+		InetSocketAddress address = silent.getAddress();
+		failure(client.getSize(address, "nowhere"));
+	}
+
+	@Test
+	public void connectTimesOut() throws Exception {
+		ServerSocket server = new ServerSocket();
+		server.bind(new InetSocketAddress("localhost", 0), 1);
+		// a full backlog leaves further connects pending
+		List<Socket> queued = new ArrayList<Socket>();
+		try {
+			for (int i = 0; i < 2; i++) {
+				queued.add(new Socket("localhost", server.getLocalPort()));
+			}
+			client = new HazeFSAsyncClient();
+			client.setConnectTimeoutMillis(300);
+			client.start();
+			long start = System.currentTimeMillis();
+			IOException failure = failure(client.getSize(new InetSocketAddress("localhost", server.getLocalPort()),
+					"pending"));
+			assertTrue(String.valueOf(failure), failure instanceof SocketTimeoutException);
+			assertTrue(System.currentTimeMillis() - start >= 300);
+		} finally {
+			for (Socket socket : queued) {
+				socket.close();
+			}
+			server.close();
+		}
+	}
+
+	@Test
+	public void idleConnectionsAreClosedDownToTheMinimum() throws Exception {
+		awaitActiveConnections(0);
+		client = new HazeFSAsyncClient();
+		client.setMaxConnections(4);
+		client.setIdleTimeoutMillis(300);
+		client.start();
+		byte[] data = new byte[1024 * 1024];
+		random.nextBytes(data);
+		client.create(NODE, "idle-1", ByteBuffer.wrap(data)).join();
+		List<HazeFSFuture<ByteBuffer>> calls = new ArrayList<HazeFSFuture<ByteBuffer>>();
+		for (int i = 0; i < 20; i++) {
+			calls.add(client.open(NODE, "idle-1"));
+		}
+		for (HazeFSFuture<ByteBuffer> call : calls) {
+			assertEquals(data.length, call.join().remaining());
+		}
+		assertTrue(listener.getMetrics().getActiveConnections() <= 4);
+		awaitActiveConnections(1);
+	}
+
+	@Test
+	public void idleConnectionsAreChecked() throws Exception {
+		client = new HazeFSAsyncClient();
+		client.setHealthCheckIntervalMillis(200);
+		client.start();
+		client.create(NODE, "checked-1", ByteBuffer.wrap(new byte[] { 1 })).join();
+		long stats = listener.getMetrics().getRequestLatencies().get("STAT").getCount();
+		Thread.sleep(2500);
+		assertTrue(listener.getMetrics().getRequestLatencies().get("STAT").getCount() > stats);
+		assertEquals(1, client.getSize(NODE, "checked-1").join().longValue());
+	}
+}
@@ -0,0 +1,279 @@
+package org.hazelfs.networking;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.hazelfs.services.ChecksumException;
+import org.hazelfs.services.Crc32c;
+import org.hazelfs.services.ManagementService;
+import org.hazelfs.services.PosixStorageService;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class HazeFSBatchTest {
+	private static final int PORT = ManagementService.NODE_DEFAULT_PORT + 3;
+	private static final String DIRECTORY = "target/test-batch";
+
+	private static PosixStorageService storage;
+	private static HazelFSListener listener;
+	private static ExecutorService executor;
+
+	private HazeFSClient client;
+	private final Random random = new Random(23);
+
+	@BeforeClass
+	public static void setup() throws Exception {
+		storage = new PosixStorageService(DIRECTORY);
+		storage.format();
+		storage.initStorage();
+		listener = new HazelFSListener(PORT, storage, 1);
+		executor = Executors.newSingleThreadExecutor();
+		executor.submit(listener);
+		Thread.sleep(200);
+	}
+
+	@AfterClass
+	public static void teardown() throws Exception {
+		listener.shutdown();
+		executor.shutdownNow();
+	}
+
+	@Before
+	public void connect() throws Exception {
+		client = new HazeFSClient(PORT, "localhost");
+		client.setChecksums(true);
+		client.connect();
+	}
+
+	@After
+	public void disconnect() throws Exception {
+		client.disconnect();
+	}
+
+	private byte[] random(int size) {
+		byte[] data = new byte[size];
+		random.nextBytes(data);
+		return data;
+	}
+
+	private static List<BatchEntry> readAll(HazeFSBatchReader reader) throws IOException {
+		List<BatchEntry> entries = new ArrayList<BatchEntry>();
+		BatchEntry entry;
+		while ((entry = reader.next()) != null) {
+			entries.add(entry);
+		}
+		return entries;
+	}
+
+	/**
+	 * Send a request frame over a connection of its own
+	 */
+	private static Socket send(int opcode, short flags, byte[] param, ByteBuffer payload, long payloadLength)
+			throws IOException {
+		Socket socket = new Socket("localhost", PORT);
+		socket.setSoTimeout(5000);
+		ByteBuffer frame = ByteBuffer.allocate(Constants.PROTO_HEADER_SIZE + param.length + payload.remaining());
+		new FrameHeader(opcode, flags, 1, param.length, payloadLength).encode(frame);
+		frame.put(param).put(payload);
+		socket.getOutputStream().write(frame.array());
+		return socket;
+	}
+
+	private static FrameHeader readResponse(Socket socket) throws IOException {
+		byte[] header = new byte[Constants.PROTO_HEADER_SIZE];
+		new DataInputStream(socket.getInputStream()).readFully(header);
+		return FrameHeader.decode(ByteBuffer.wrap(header));
+	}
+
+	private static ByteBuffer entry(String path, byte[] content, int[] checksums) throws IOException {
+		byte[] name = path.getBytes("UTF-8");
+		ByteBuffer buf = ByteBuffer.allocate(10 + name.length + 4 * checksums.length + content.length);
+		buf.putShort((short) name.length).put(name).putLong(content.length);
+		for (int checksum : checksums) {
+			buf.putInt(checksum);
+		}
+		buf.put(content).flip();
+		return buf;
+	}
+
+	private static int checksum(byte[] content) {
+		Crc32c crc = new Crc32c();
+		crc.update(ByteBuffer.wrap(content));
+		return (int) crc.getValue();
+	}
+
+	@Test
+	public void mixedEntries() throws Exception {
+		Map<String, byte[]> files = new LinkedHashMap<String, byte[]>();
+		files.put("mixed-found", random(3000));
+		files.put("mixed-existing", random(10));
+		files.put("mixed-gone", random(2000));
+		files.put("mixed-large", random(2 * 1024 * 1024 + 1));
+		byte[] existing = random(20);
+		client.putAll(Collections.singletonMap("mixed-existing", existing));
+		Map<String, IOException> failures = client.putAll(files);
+		assertEquals(1, failures.size());
+		assertTrue(failures.containsKey("mixed-existing"));
+		// known to the storage but gone from the disk
+		assertTrue(new File(DIRECTORY, "mixed-gone").delete());
+
+		List<BatchEntry> entries = readAll(client.getAll(Arrays.asList("mixed-found", "mixed-missing",
+				"mixed-gone", "mixed-existing", "mixed-large")));
+		assertEquals(5, entries.size());
+		assertArrayEquals(files.get("mixed-found"), entries.get(0).getContent());
+		assertFalse(entries.get(1).isFound());
+		assertEquals(Constants.STATUS_NOT_FOUND, entries.get(1).getStatus());
+		try {
+			entries.get(1).getContent();
+			fail("read a missing file");
+		} catch (FileNotFoundException expected) {
+			// not there
+		}
+		assertEquals(Constants.STATUS_ERROR, entries.get(2).getStatus());
+		try {
+			entries.get(2).getContent();
+			fail("read a file gone from the disk");
+		} catch (IOException expected) {
+			// the file could not be opened
+		}
+		assertArrayEquals(existing, entries.get(3).getContent());
+		assertArrayEquals(files.get("mixed-large"), entries.get(4).getContent());
+		assertEquals(3000, client.getSize("mixed-found"));
+	}
+
+	@Test
+	public void corruptedFileFailsItsEntryOnly() throws Exception {
+		Map<String, byte[]> files = new LinkedHashMap<String, byte[]>();
+		for (int i = 0; i < 3; i++) {
+			files.put("corrupted-" + i, random(5000));
+		}
+		assertTrue(client.putAll(files).isEmpty());
+		RandomAccessFile f = new RandomAccessFile(new File(DIRECTORY, "corrupted-1"), "rw");
+		try {
+			f.write(~files.get("corrupted-1")[0]);
+		} finally {
+			f.close();
+		}
+		List<BatchEntry> entries = readAll(client.getAll(files.keySet()));
+		assertArrayEquals(files.get("corrupted-0"), entries.get(0).getContent());
+		try {
+			entries.get(1).getContent();
+			fail("read a corrupted file");
+		} catch (ChecksumException expected) {
+			// the content does not match the checksums sent with it
+		}
+		assertArrayEquals(files.get("corrupted-2"), entries.get(2).getContent());
+	}
+
+	@Test
+	public void uploadChecksumMismatch() throws Exception {
+		byte[] bad = random(100);
+		byte[] good = random(200);
+		ByteBuffer first = entry("mismatch-bad", bad, new int[] { checksum(bad) + 1 });
+		ByteBuffer second = entry("mismatch-good", good, new int[] { checksum(good) });
+		ByteBuffer payload = ByteBuffer.allocate(first.remaining() + second.remaining());
+		payload.put(first).put(second).flip();
+		Socket socket = send(Constants.PROTO_PUT_BATCH, Constants.FLAG_CHECKSUMS, new byte[0], payload,
+				payload.remaining());
+		try {
+			FrameHeader response = readResponse(socket);
+			assertEquals(Constants.STATUS_OK, response.getStatus());
+			DataInputStream in = new DataInputStream(socket.getInputStream());
+			in.skipBytes(response.getParamLength());
+			assertEquals(Constants.STATUS_ERROR, in.readShort());
+			in.skipBytes(in.readInt());
+			assertEquals(Constants.STATUS_OK, in.readShort());
+			assertEquals(0, in.readInt());
+		} finally {
+			socket.close();
+		}
+		assertNull(storage.getMetadata("mismatch-bad"));
+		assertArrayEquals(good, readAll(client.getAll(Arrays.asList("mismatch-good"))).get(0).getContent());
+	}
+
+	@Test
+	public void truncatedUploadIsRemoved() throws Exception {
+		byte[] name = "truncated".getBytes("UTF-8");
+		ByteBuffer payload = ByteBuffer.allocate(10 + name.length + 100);
+		payload.putShort((short) name.length).put(name).putLong(5000).put(random(100)).flip();
+		Socket socket = send(Constants.PROTO_PUT_BATCH, (short) 0, new byte[0], payload, 10000);
+		Thread.sleep(200);
+		socket.close();
+		for (int i = 0; i < 50 && storage.getMetadata("truncated") != null; i++) {
+			Thread.sleep(20);
+		}
+		assertFalse(new File(DIRECTORY, "truncated").exists());
+		assertNull(storage.getMetadata("truncated"));
+	}
+
+	@Test
+	public void entryBeyondThePayloadFailsTheBatch() throws Exception {
+		// lengths past the end of the payload, the checksums of the second one
+		// would take 4 MB, the chunks of the last one an int cannot count
+		for (long length : new long[] { 200, 1L << 40, (1L << 51) + 1 }) {
+			byte[] name = ("beyond-" + length).getBytes("UTF-8");
+			ByteBuffer payload = ByteBuffer.allocate(100);
+			payload.putShort((short) name.length).put(name).putLong(length).position(0);
+			Socket socket = send(Constants.PROTO_PUT_BATCH, Constants.FLAG_CHECKSUMS, new byte[0], payload, 100);
+			try {
+				FrameHeader response = readResponse(socket);
+				assertEquals(Constants.STATUS_ERROR, response.getStatus());
+				byte[] message = new byte[response.getParamLength()];
+				new DataInputStream(socket.getInputStream()).readFully(message);
+				assertTrue(new String(message, "UTF-8"), new String(message, "UTF-8").startsWith("Invalid length"));
+			} finally {
+				socket.close();
+			}
+		}
+		assertNull(storage.getMetadata("beyond-200"));
+		assertNull(storage.getChecksums("beyond-200"));
+	}
+
+	@Test
+	public void tooManyFilesForABatch() throws Exception {
+		ByteBuffer param = ByteBuffer.allocate(3 * (Constants.PROTO_MAX_BATCH_FILES + 1));
+		for (int i = 0; i <= Constants.PROTO_MAX_BATCH_FILES; i++) {
+			param.putShort((short) 1).put((byte) 'a');
+		}
+		Socket socket = send(Constants.PROTO_GET_BATCH, (short) 0, param.array(), ByteBuffer.allocate(0), 0);
+		try {
+			FrameHeader response = readResponse(socket);
+			assertEquals(Constants.STATUS_ERROR, response.getStatus());
+			assertEquals(0, response.getPayloadLength());
+		} finally {
+			socket.close();
+		}
+		// the client splits them up
+		List<String> paths = new ArrayList<String>();
+		for (int i = 0; i < 3 * Constants.PROTO_MAX_BATCH_FILES; i++) {
+			paths.add("many-" + i);
+		}
+		List<BatchEntry> entries = readAll(client.getAll(paths));
+		assertEquals(paths.size(), entries.size());
+		assertEquals("many-2000", entries.get(2000).getPath());
+	}
+}
@@ -0,0 +1,200 @@
+package org.hazelfs.networking;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.commons.io.FileUtils;
+import org.hazelfs.services.ChecksumException;
+import org.hazelfs.services.ManagementService;
+import org.hazelfs.services.PosixStorageService;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class HazeFSReadChannelTest {
+	private static final int PORT = ManagementService.NODE_DEFAULT_PORT + 7;
+	private static final String DIRECTORY = "target/test-read-channel";
+	private static final int[] READ_AHEADS = { 0, 4 * BufferPool.SLAB_SIZE };
+
+	private static HazelFSListener listener;
+	private static ExecutorService executor;
+	private static byte[] data;
+
+	private HazeFSClient client;
+	private long usedBytes;
+
+	@BeforeClass
+	public static void setup() throws Exception {
+		PosixStorageService storage = new PosixStorageService(DIRECTORY);
+		storage.format();
+		storage.initStorage();
+		listener = new HazelFSListener(PORT, storage, 1);
+		executor = Executors.newSingleThreadExecutor();
+		executor.submit(listener);
+		Thread.sleep(200);
+		data = new byte[5 * BufferPool.SLAB_SIZE + 3];
+		new Random(31).nextBytes(data);
+		HazeFSClient client = new HazeFSClient(PORT, "localhost");
+		client.connect();
+		client.create("large", new ByteArrayInputStream(data), data.length);
+		client.create("corrupted", new ByteArrayInputStream(data), data.length);
+		client.disconnect();
+		RandomAccessFile f = new RandomAccessFile(new File(DIRECTORY, "corrupted"), "rw");
+		try {
+			// a byte of the third chunk
+			f.seek(2 * BufferPool.SLAB_SIZE + 10);
+			f.write(~data[2 * BufferPool.SLAB_SIZE + 10]);
+		} finally {
+			f.close();
+		}
+	}
+
+	@AfterClass
+	public static void teardown() throws Exception {
+		listener.shutdown();
+		executor.shutdownNow();
+	}
+
+	@Before
+	public void connect() throws Exception {
+		client = new HazeFSClient(PORT, "localhost");
+		client.connect();
+		// the connection is set up on both ends before the buffers are counted,
+		// the server releases the buffers of a response once it has been sent
+		client.getSize("large");
+		Thread.sleep(200);
+		usedBytes = BufferPool.getUsedBytes();
+	}
+
+	@After
+	public void disconnect() throws Exception {
+		client.disconnect();
+	}
+
+	/**
+	 * Every slab taken by a download is back in a pool once it has been closed
+	 */
+	private void assertSlabsReturned() throws InterruptedException {
+		for (int i = 0; i < 100 && BufferPool.getUsedBytes() != usedBytes; i++) {
+			Thread.sleep(20);
+		}
+		assertEquals(usedBytes, BufferPool.getUsedBytes());
+	}
+
+	private static byte[] readFully(HazeFSReadChannel ch) throws Exception {
+		ByteBuffer buf = ByteBuffer.allocate((int) ch.remaining());
+		while (buf.hasRemaining()) {
+			ch.read(buf);
+		}
+		return buf.array();
+	}
+
+	@Test
+	public void closingEarlySkipsTheRest() throws Exception {
+		for (int readAhead : READ_AHEADS) {
+			client.setReadAhead(readAhead);
+			HazeFSReadChannel ch = client.openChannel("large");
+			ByteBuffer head = ByteBuffer.allocate(1000);
+			ch.read(head);
+			ch.close();
+			// the connection is ready for the next request
+			assertEquals(data.length, client.getSize("large"));
+			InputStream in = client.open("large");
+			in.read(new byte[10]);
+			in.close();
+			ch = client.openChannel("large");
+			try {
+				assertArrayEquals(data, readFully(ch));
+			} finally {
+				ch.close();
+			}
+			assertSlabsReturned();
+		}
+	}
+
+	@Test
+	public void transferToFile() throws Exception {
+		File target = new File(DIRECTORY + "-target");
+		for (int readAhead : READ_AHEADS) {
+			for (boolean checksums : new boolean[] { false, true }) {
+				client.setReadAhead(readAhead);
+				client.setChecksums(checksums);
+				HazeFSReadChannel ch = client.openChannel("large");
+				FileChannel out = FileChannel.open(target.toPath(), StandardOpenOption.CREATE,
+						StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+				try {
+					// part of it is read before the rest is transferred
+					ByteBuffer head = ByteBuffer.allocate(100);
+					ch.read(head);
+					head.flip();
+					out.write(head, 0);
+					assertEquals(data.length - 100, ch.transferTo(out, 100));
+					assertEquals(0, ch.remaining());
+				} finally {
+					out.close();
+					ch.close();
+				}
+				assertArrayEquals(data, FileUtils.readFileToByteArray(target));
+				assertSlabsReturned();
+			}
+		}
+		target.delete();
+	}
+
+	@Test
+	public void corruptedChunkFailsRead() throws Exception {
+		for (int readAhead : READ_AHEADS) {
+			client.setReadAhead(readAhead);
+			HazeFSReadChannel ch = client.openChannel("corrupted");
+			try {
+				readFully(ch);
+				fail("read a corrupted file");
+			} catch (ChecksumException expected) {
+				// the third chunk does not match, which is known once it is complete
+				assertTrue(ch.size() - ch.remaining() >= 3 * BufferPool.SLAB_SIZE);
+			} finally {
+				ch.close();
+			}
+			assertEquals(data.length, client.getSize("corrupted"));
+			assertSlabsReturned();
+		}
+	}
+
+	@Test
+	public void corruptedChunkFailsTransfer() throws Exception {
+		File target = new File(DIRECTORY + "-corrupted");
+		for (int readAhead : READ_AHEADS) {
+			client.setReadAhead(readAhead);
+			HazeFSReadChannel ch = client.openChannel("corrupted");
+			FileChannel out = FileChannel.open(target.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING);
+			try {
+				ch.transferTo(out, 0);
+				fail("transferred a corrupted file");
+			} catch (ChecksumException expected) {
+				// the third chunk does not match
+			} finally {
+				out.close();
+				ch.close();
+			}
+			assertEquals(data.length, client.getSize("corrupted"));
+			assertSlabsReturned();
+		}
+		target.delete();
+	}
+}
@@ -0,0 +1,199 @@
+package org.hazelfs.networking;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.IOUtils;
+import org.hazelfs.services.ManagementService;
+import org.hazelfs.services.PosixStorageService;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class HazelFSListenerTest {
+	private static final int PORT = ManagementService.NODE_DEFAULT_PORT + 9;
+	private static final int REACTORS = 3;
+
+	private PosixStorageService storage;
+	private HazelFSListener listener;
+	private ExecutorService executor;
+	private Future<Integer> running;
+
+	@Before
+	public void start() throws Exception {
+		storage = new PosixStorageService("target/test-reactors");
+		storage.format();
+		storage.initStorage();
+		listener = new HazelFSListener(PORT, storage, REACTORS);
+		executor = Executors.newSingleThreadExecutor();
+		running = executor.submit(listener);
+		Thread.sleep(200);
+	}
+
+	@After
+	public void stop() throws Exception {
+		listener.shutdown();
+		executor.shutdownNow();
+		try {
+			running.get(5, TimeUnit.SECONDS);
+		} catch (ExecutionException e) {
+			// the reactors were interrupted while stopping
+		}
+	}
+
+	/**
+	 * @return the names of the reactor threads of the listener
+	 */
+	private static Set<String> reactorThreads() {
+		Set<String> names = new HashSet<String>();
+		for (Thread t : Thread.getAllStackTraces().keySet()) {
+			if (t.isAlive() && t.getName().startsWith("hazelfs-reactor-" + PORT + "-")) {
+				names.add(t.getName());
+			}
+		}
+		return names;
+	}
+
+	private static void awaitActiveConnections(HazelFSListener listener, long active) throws InterruptedException {
+		for (int i = 0; i < 100 && listener.getMetrics().getActiveConnections() != active; i++) {
+			Thread.sleep(20);
+		}
+		assertEquals(active, listener.getMetrics().getActiveConnections());
+	}
+
+	/**
+	 * Open a connection and send the header of an upload with a few bytes of its
+	 * payload, leaving the upload unfinished
+	 */
+	private static Socket stalledUpload(String path) throws IOException {
+		Socket socket = new Socket("localhost", PORT);
+		byte[] param = path.getBytes("UTF-8");
+		ByteBuffer frame = ByteBuffer.allocate(Constants.PROTO_HEADER_SIZE + param.length + 3);
+		frame.putInt(Constants.PROTO_MAGIC).put(Constants.PROTO_VERSION).put((byte) Constants.PROTO_CREATE_FILE)
+				.putShort((short) 0).putInt(1).putInt(param.length).putLong(1024 * 1024).put(param).put(new byte[3]);
+		socket.getOutputStream().write(frame.array());
+		socket.getOutputStream().flush();
+		return socket;
+	}
+
+	@Test
+	public void clientsAreServedByAllReactors() throws Exception {
+		int clients = 4 * REACTORS;
+		long accepted = listener.getMetrics().getAcceptedConnections();
+		List<Future<byte[]>> reads = new ArrayList<Future<byte[]>>();
+		final List<byte[]> contents = new ArrayList<byte[]>();
+		ExecutorService threads = Executors.newFixedThreadPool(clients);
+		try {
+			for (int i = 0; i < clients; i++) {
+				final String path = "reactor-" + i;
+				final byte[] data = new byte[100 * 1024 + i];
+				new Random(i).nextBytes(data);
+				contents.add(data);
+				reads.add(threads.submit(new Callable<byte[]>() {
+					@Override
+					public byte[] call() throws Exception {
+						HazeFSClient client = new HazeFSClient(PORT, "localhost");
+						client.connect();
+						try {
+							client.create(path, new ByteArrayInputStream(data), data.length);
+							InputStream in = client.open(path);
+							try {
+								return IOUtils.toByteArray(in);
+							} finally {
+								in.close();
+							}
+						} finally {
+							client.disconnect();
+						}
+					}
+				}));
+			}
+			for (int i = 0; i < clients; i++) {
+				assertArrayEquals(contents.get(i), reads.get(i).get(30, TimeUnit.SECONDS));
+			}
+		} finally {
+			threads.shutdownNow();
+		}
+		assertEquals(clients, listener.getMetrics().getAcceptedConnections() - accepted);
+		assertEquals(REACTORS, reactorThreads().size());
+		awaitActiveConnections(listener, 0);
+	}
+
+	@Test
+	public void stalledUploadsKeepTheReactorsServing() throws Exception {
+		// the connections are handed out round-robin, so every reactor gets one
+		List<Socket> stalled = new ArrayList<Socket>();
+		try {
+			for (int i = 0; i < REACTORS; i++) {
+				stalled.add(stalledUpload("stalled-" + i));
+			}
+			awaitActiveConnections(listener, REACTORS);
+			for (int i = 0; i < REACTORS; i++) {
+				HazeFSClient client = new HazeFSClient(PORT, "localhost");
+				client.connect();
+				try {
+					client.create("beside-stalled-" + i, new ByteArrayInputStream(new byte[] { 1, 2, 3 }), 3);
+					assertEquals(3, client.getSize("beside-stalled-" + i));
+				} finally {
+					client.disconnect();
+				}
+			}
+		} finally {
+			for (Socket socket : stalled) {
+				socket.close();
+			}
+		}
+		// the uploads that were given up are removed
+		awaitActiveConnections(listener, 0);
+		for (int i = 0; i < 100 && !storage.list("stalled-").isEmpty(); i++) {
+			Thread.sleep(20);
+		}
+		assertTrue(storage.list("stalled-").isEmpty());
+	}
+
+	@Test
+	public void shutdownStopsTheReactors() throws Exception {
+		HazeFSClient client = new HazeFSClient(PORT, "localhost");
+		client.connect();
+		client.create("before-shutdown", new ByteArrayInputStream(new byte[] { 1 }), 1);
+		assertEquals(REACTORS, reactorThreads().size());
+		listener.shutdown();
+		assertEquals(-1, running.get(5, TimeUnit.SECONDS).intValue());
+		for (int i = 0; i < 100 && !reactorThreads().isEmpty(); i++) {
+			Thread.sleep(20);
+		}
+		assertTrue(reactorThreads().isEmpty());
+		try {
+			client.getSize("before-shutdown");
+			fail("served after shutdown");
+		} catch (IOException expected) {
+			// the connection has been closed
+		} finally {
+			client.disconnect();
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void atLeastOneReactor() {
+		new HazelFSListener(PORT, storage, 0);
+	}
+}
@@ -0,0 +1,85 @@
+package org.hazelfs.networking;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class ReedSolomonTest {
+	private final Random random = new Random(17);
+
+	private byte[][] encode(ReedSolomon rs, int size) {
+		byte[][] shards = new byte[rs.getDataShards() + rs.getParityShards()][size];
+		for (int i = 0; i < rs.getDataShards(); i++) {
+			random.nextBytes(shards[i]);
+		}
+		rs.encode(shards, 0, size);
+		return shards;
+	}
+
+	/**
+	 * Lose every combination of as many shards as there are parity shards and
+	 * decode from the rest
+	 */
+	private void decodeAllLosses(int dataShards, int parityShards) {
+		ReedSolomon rs = new ReedSolomon(dataShards, parityShards);
+		byte[][] original = encode(rs, 257);
+		int total = dataShards + parityShards;
+		for (int lost = 0; lost < 1 << total; lost++) {
+			if (Integer.bitCount(lost) != parityShards) {
+				continue;
+			}
+			byte[][] shards = new byte[total][];
+			boolean[] present = new boolean[total];
+			for (int i = 0; i < total; i++) {
+				shards[i] = original[i].clone();
+				present[i] = (lost & 1 << i) == 0;
+				if (!present[i]) {
+					random.nextBytes(shards[i]);
+				}
+			}
+			rs.decode(shards, present, 0, 257);
+			for (int i = 0; i < dataShards; i++) {
+				assertArrayEquals("shard " + i + " after losing " + Integer.toBinaryString(lost), original[i],
+						shards[i]);
+			}
+		}
+	}
+
+	@Test
+	public void decodesAfterLosingAnyParityShardsWorth() {
+		decodeAllLosses(1, 1);
+		decodeAllLosses(4, 2);
+		decodeAllLosses(6, 3);
+		decodeAllLosses(10, 4);
+	}
+
+	@Test
+	public void withoutParityNothingIsLost() {
+		decodeAllLosses(3, 0);
+	}
+
+	@Test
+	public void rangesLeaveTheRestAlone() {
+		ReedSolomon rs = new ReedSolomon(4, 2);
+		byte[][] shards = encode(rs, 100);
+		byte[] data = shards[1].clone();
+		byte[] parity = shards[5].clone();
+		Arrays.fill(shards[1], 10, 60, (byte) 0);
+		Arrays.fill(shards[5], 0, 100, (byte) 0);
+		rs.encode(shards, 60, 40);
+		boolean[] present = { true, false, true, true, true, true };
+		rs.decode(shards, present, 10, 50);
+		assertArrayEquals(data, shards[1]);
+		assertArrayEquals(Arrays.copyOfRange(parity, 60, 100), Arrays.copyOfRange(shards[5], 60, 100));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void tooFewShards() {
+		ReedSolomon rs = new ReedSolomon(4, 2);
+		byte[][] shards = encode(rs, 10);
+		rs.decode(shards, new boolean[] { true, false, true, false, false, true }, 0, 10);
+	}
+}
@@ -0,0 +1,150 @@
+package org.hazelfs.services;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CachingStorageServiceTest {
+	private static final int CAPACITY = 8 * 1024 * 1024;
+
+	private PosixStorageService storage;
+	private CachingStorageService cache;
+	private final Random random = new Random(11);
+
+	@Before
+	public void setup() throws Exception {
+		storage = new PosixStorageService("target/test-cache");
+		storage.format();
+		storage.initStorage();
+		cache = new CachingStorageService(storage, CAPACITY);
+	}
+
+	@After
+	public void teardown() throws Exception {
+		storage.shutdown();
+	}
+
+	private byte[] write(String path, int size) throws IOException {
+		byte[] data = new byte[size];
+		random.nextBytes(data);
+		FileChannel ch = cache.create(path, size);
+		try {
+			ch.write(ByteBuffer.wrap(data));
+		} finally {
+			ch.close();
+		}
+		return data;
+	}
+
+	private static byte[] bytes(CachedContent cached) {
+		ByteBuffer content = cached.getContent();
+		byte[] data = new byte[content.remaining()];
+		content.get(data);
+		return data;
+	}
+
+	@Test
+	public void loadAndHit() throws Exception {
+		byte[] data = write("cache-1", 3000);
+		assertNull(cache.getCached("cache-1"));
+		CachedContent loaded = cache.load("cache-1");
+		assertArrayEquals(data, bytes(loaded));
+		loaded.close();
+		CachedContent hit = cache.getCached("cache-1");
+		assertArrayEquals(data, bytes(hit));
+		hit.close();
+		assertEquals(1, cache.getHits());
+		assertEquals(1, cache.getMisses());
+	}
+
+	@Test
+	public void secondHitProtectsFromScans() throws Exception {
+		byte[] hot = write("hot", 100 * 1024);
+		cache.load("hot").close();
+		cache.getCached("hot").close();
+		// far more files read once than fit into the cache
+		for (int i = 0; i < 200; i++) {
+			write("scan-" + i, 100 * 1024);
+			CachedContent cached = cache.load("scan-" + i);
+			assertNotNull(cached);
+			cached.close();
+		}
+		assertTrue(cache.getEvictions() > 0);
+		assertTrue(cache.getCachedBytes() <= CAPACITY);
+		assertNull(cache.getCached("scan-0"));
+		CachedContent cached = cache.getCached("hot");
+		assertNotNull(cached);
+		assertArrayEquals(hot, bytes(cached));
+		cached.close();
+	}
+
+	@Test
+	public void deleteAndOverwriteInvalidate() throws Exception {
+		write("gone", 5000);
+		cache.load("gone").close();
+		cache.delete("gone");
+		assertNull(cache.getCached("gone"));
+
+		write("changed", 5000);
+		cache.load("changed").close();
+		cache.delete("changed");
+		byte[] data = write("changed", 7000);
+		assertNull(cache.getCached("changed"));
+		CachedContent cached = cache.load("changed");
+		assertArrayEquals(data, bytes(cached));
+		cached.close();
+	}
+
+	@Test
+	public void notCachedWhileWritten() throws Exception {
+		FileChannel ch = cache.create("writing", 10);
+		try {
+			ch.write(ByteBuffer.wrap(new byte[10]));
+			assertNull(cache.load("writing"));
+		} finally {
+			ch.close();
+		}
+		CachedContent cached = cache.load("writing");
+		assertNotNull(cached);
+		cached.close();
+	}
+
+	@Test
+	public void contentInUseIsNotReused() throws Exception {
+		byte[] data = write("pinned", 100 * 1024);
+		CachedContent pinned = cache.load("pinned");
+		cache.delete("pinned");
+		for (int i = 0; i < 200; i++) {
+			write("other-" + i, 100 * 1024);
+			CachedContent cached = cache.load("other-" + i);
+			if (cached != null) {
+				cached.close();
+			}
+		}
+		assertArrayEquals(data, bytes(pinned));
+		pinned.close();
+		// closing twice must not free the memory twice
+		pinned.close();
+		write("after", 100 * 1024);
+		CachedContent cached = cache.load("after");
+		assertNotNull(cached);
+		cached.close();
+	}
+
+	@Test
+	public void largeFilesAreNotCached() throws Exception {
+		write("large", 2 * 1024 * 1024);
+		assertNull(cache.load("large"));
+	}
+}
@@ -0,0 +1,127 @@
+package org.hazelfs.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class ConsistentHashRingTest {
+	private static final int KEYS = 20000;
+
+	private static Node node(int i) {
+		return new Node("node-" + i, URI.create("hazefs://10.0.0." + i + ":5701"));
+	}
+
+	private static ConsistentHashRing ring(int nodes, int virtualNodes) {
+		ConsistentHashRing ring = new ConsistentHashRing(virtualNodes);
+		for (int i = 0; i < nodes; i++) {
+			ring.addNode(node(i));
+		}
+		return ring;
+	}
+
+	private static Map<String, String> placement(ConsistentHashRing ring) {
+		Map<String, String> placement = new HashMap<String, String>();
+		for (int i = 0; i < KEYS; i++) {
+			placement.put("key-" + i, ring.locate("key-" + i).getId());
+		}
+		return placement;
+	}
+
+	@Test
+	public void emptyRing() {
+		ConsistentHashRing ring = new ConsistentHashRing(160);
+		assertNull(ring.locate("a"));
+		assertEquals(0, ring.locate("a", 3).size());
+	}
+
+	@Test
+	public void distinctNodesInRingOrder() {
+		ConsistentHashRing ring = ring(5, 160);
+		for (int i = 0; i < 1000; i++) {
+			List<Node> nodes = ring.locate("key-" + i, 3);
+			assertEquals(3, nodes.size());
+			assertEquals(3, new HashSet<String>(ids(nodes)).size());
+			assertEquals(ring.locate("key-" + i).getId(), nodes.get(0).getId());
+		}
+		// never more nodes than there are
+		assertEquals(5, ring.locate("key", 10).size());
+	}
+
+	@Test
+	public void wrapsAroundTheEnd() {
+		ConsistentHashRing ring = ring(3, 1);
+		long last = Long.MIN_VALUE;
+		long first = Long.MAX_VALUE;
+		String firstId = null;
+		for (int i = 0; i < 3; i++) {
+			long pos = ConsistentHashRing.position("node-" + i + "#0");
+			last = Math.max(last, pos);
+			if (pos < first) {
+				first = pos;
+				firstId = "node-" + i;
+			}
+		}
+		String path = null;
+		for (int i = 0; path == null; i++) {
+			if (ConsistentHashRing.position("path-" + i) > last) {
+				path = "path-" + i;
+			}
+		}
+		assertEquals(firstId, ring.locate(path).getId());
+		List<Node> nodes = ring.locate(path, 3);
+		assertEquals(firstId, nodes.get(0).getId());
+		assertEquals(3, new HashSet<String>(ids(nodes)).size());
+	}
+
+	@Test
+	public void addingANodeMovesItsShare() {
+		ConsistentHashRing ring = ring(10, 160);
+		Map<String, String> before = placement(ring);
+		ring.addNode(node(10));
+		Map<String, String> after = placement(ring);
+		int moved = 0;
+		for (Map.Entry<String, String> e : after.entrySet()) {
+			if (!e.getValue().equals(before.get(e.getKey()))) {
+				// keys only move to the new node
+				assertEquals("node-10", e.getValue());
+				moved++;
+			}
+		}
+		double share = (double) moved / KEYS;
+		assertTrue("moved " + share, share > 0.5 / 11 && share < 1.5 / 11);
+	}
+
+	@Test
+	public void removingANodeMovesOnlyItsKeys() {
+		ConsistentHashRing ring = ring(10, 160);
+		Map<String, String> before = placement(ring);
+		ring.removeNode("node-3");
+		Map<String, String> after = placement(ring);
+		int moved = 0;
+		for (Map.Entry<String, String> e : after.entrySet()) {
+			if (!e.getValue().equals(before.get(e.getKey()))) {
+				assertEquals("node-3", before.get(e.getKey()));
+				moved++;
+			}
+		}
+		double share = (double) moved / KEYS;
+		assertTrue("moved " + share, share > 0.5 / 10 && share < 1.5 / 10);
+	}
+
+	private static List<String> ids(List<Node> nodes) {
+		List<String> ids = new ArrayList<String>();
+		for (Node n : nodes) {
+			ids.add(n.getId());
+		}
+		return ids;
+	}
+}
@@ -0,0 +1,232 @@
+package org.hazelfs.services;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DedupStorageServiceTest {
+	private static final String DIRECTORY = "target/test-dedup";
+
+	private DedupStorageService storage;
+	private final Random random = new Random(19);
+
+	@Before
+	public void setup() throws Exception {
+		storage = open();
+		storage.format();
+		storage = open();
+	}
+
+	@After
+	public void teardown() throws Exception {
+		FileUtils.deleteDirectory(new File(DIRECTORY));
+	}
+
+	private static DedupStorageService open() throws IOException {
+		DedupStorageService s = new DedupStorageService(DIRECTORY);
+		s.setChunkSizes(1024, 4096, 16 * 1024);
+		s.initStorage();
+		return s;
+	}
+
+	private byte[] random(int size) {
+		byte[] data = new byte[size];
+		random.nextBytes(data);
+		return data;
+	}
+
+	private void write(String path, byte[] data) throws IOException {
+		FileChannel ch = storage.create(path, data.length);
+		try {
+			ch.write(ByteBuffer.wrap(data));
+		} finally {
+			ch.close();
+		}
+	}
+
+	private byte[] read(String path) throws IOException {
+		FileChannel ch = storage.open(path);
+		try {
+			ByteBuffer buf = ByteBuffer.allocate((int) ch.size());
+			while (buf.hasRemaining() && ch.read(buf) != -1) {
+				// keep on reading
+			}
+			return buf.array();
+		} finally {
+			ch.close();
+		}
+	}
+
+	private void assertMissing(String path) throws IOException {
+		try {
+			storage.getSize(path);
+			fail("found " + path);
+		} catch (FileNotFoundException expected) {
+			// not there
+		}
+	}
+
+	private static int chunkFiles() {
+		return FileUtils.listFiles(new File(DIRECTORY, "chunks"), null, true).size();
+	}
+
+	private static byte[] concat(byte[] a, byte[] b) {
+		byte[] both = Arrays.copyOf(a, a.length + b.length);
+		System.arraycopy(b, 0, both, a.length, b.length);
+		return both;
+	}
+
+	@Test
+	public void overlappingFilesShareChunks() throws Exception {
+		byte[] shared = random(200 * 1024);
+		byte[] first = concat(shared, random(20 * 1024));
+		byte[] second = concat(random(10), shared);
+		write("first", first);
+		int chunks = storage.getChunkCount();
+		long stored = storage.getStoredBytes();
+		write("second", second);
+		// only the chunks around the differences are new
+		assertTrue(storage.getStoredBytes() - stored < 100 * 1024);
+		assertEquals(first.length + second.length, storage.getLogicalBytes());
+		assertEquals(storage.getChunkCount(), chunkFiles());
+
+		storage.delete("first");
+		assertArrayEquals(second, read("second"));
+		assertTrue(storage.getChunkCount() < chunks);
+		assertEquals(storage.getChunkCount(), chunkFiles());
+		storage.delete("second");
+		assertEquals(0, storage.getChunkCount());
+		assertEquals(0, storage.getStoredBytes());
+		assertEquals(0, chunkFiles());
+		try {
+			storage.delete("second");
+			fail("deleted a file twice");
+		} catch (IOException expected) {
+			// it is gone
+		}
+	}
+
+	@Test
+	public void restartRebuildsReferences() throws Exception {
+		byte[] data = random(100 * 1024);
+		write("a", data);
+		write("dir/b", data);
+		int chunks = storage.getChunkCount();
+		long stored = storage.getStoredBytes();
+		storage = open();
+		assertEquals(chunks, storage.getChunkCount());
+		assertEquals(stored, storage.getStoredBytes());
+		assertEquals(2 * data.length, storage.getLogicalBytes());
+		assertEquals(Arrays.asList("a", "dir/b"), storage.list(""));
+		assertArrayEquals(data, read("dir/b"));
+		// both files still hold their references
+		storage.delete("a");
+		assertArrayEquals(data, read("dir/b"));
+		storage.delete("dir/b");
+		assertEquals(0, chunkFiles());
+	}
+
+	@Test
+	public void unfinishedUploadIsRemoved() throws Exception {
+		write("kept", random(50 * 1024));
+		int chunks = storage.getChunkCount();
+		FileChannel ch = storage.create("unfinished");
+		ch.write(ByteBuffer.wrap(random(100 * 1024)));
+		assertTrue(storage.getChunkCount() > chunks);
+		// the node goes down before the upload is closed
+		storage = open();
+		assertEquals(chunks, storage.getChunkCount());
+		assertEquals(chunks, chunkFiles());
+		assertMissing("unfinished");
+	}
+
+	@Test
+	public void recordsWithoutData() throws Exception {
+		byte[] stored = random(800);
+		write("stored", stored);
+		byte[] fresh = random(3000);
+		MessageDigest digest = DedupStorageService.newDigest();
+		ByteBuffer records = ByteBuffer.allocate(2 * DedupStorageService.RECORD_HEADER_SIZE + fresh.length);
+		// the whole stored file is a single chunk, only its hash is sent
+		byte[] storedHash = digest.digest(stored);
+		assertEquals(1, storage.getChunkCount());
+		assertTrue(storage.contains(storedHash));
+		records.put(storedHash).putInt(stored.length).put((byte) 0);
+		records.put(digest.digest(fresh)).putInt(fresh.length).put((byte) 1).put(fresh);
+		records.flip();
+		FileChannel ch = storage.receiveChunks("received", storage.create("received"));
+		try {
+			ch.write(records);
+		} finally {
+			ch.close();
+		}
+		assertArrayEquals(concat(stored, fresh), read("received"));
+		assertEquals(storage.getChunkCount(), chunkFiles());
+
+		// a record without data of a chunk the node does not have
+		records = ByteBuffer.allocate(DedupStorageService.RECORD_HEADER_SIZE);
+		records.put(digest.digest(random(100))).putInt(100).put((byte) 0).flip();
+		ch = storage.receiveChunks("missing", storage.create("missing"));
+		try {
+			ch.write(records);
+			fail("received an unknown chunk");
+		} catch (IOException expected) {
+			// nothing to copy it from
+		} finally {
+			ch.close();
+		}
+		assertEquals(2, storage.getChunkCount());
+	}
+
+	@Test
+	public void failedLastChunkFailsClose() throws Exception {
+		FileChannel ch = storage.create("last");
+		// too short for a chunk boundary, the chunk is stored on close
+		ch.write(ByteBuffer.wrap(random(500)));
+		File chunkDirectory = new File(DIRECTORY, "chunks");
+		FileUtils.deleteDirectory(chunkDirectory);
+		FileUtils.writeByteArrayToFile(chunkDirectory, new byte[1]);
+		try {
+			ch.close();
+			fail("committed a file without its last chunk");
+		} catch (IOException expected) {
+			// the chunk could not be stored
+		} finally {
+			chunkDirectory.delete();
+			chunkDirectory.mkdir();
+		}
+		assertMissing("last");
+		byte[] data = random(500);
+		write("last", data);
+		assertArrayEquals(data, read("last"));
+	}
+
+	@Test
+	public void gapFailsClose() throws Exception {
+		FileChannel ch = storage.create("gap");
+		ch.write(ByteBuffer.wrap(random(100)), 50);
+		try {
+			ch.close();
+			fail("committed a file with a gap");
+		} catch (IOException expected) {
+			// the first 50 bytes never came
+		}
+		assertMissing("gap");
+		assertEquals(0, storage.list("").size());
+	}
+}
@@ -0,0 +1,224 @@
+package org.hazelfs.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.hazelcast.config.Config;
+import com.hazelcast.core.Hazelcast;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.IMap;
+
+public class FileLocatorTest {
+	private static HazelcastInstance instance;
+	private static IMap<String, FileLocation> fileMap;
+	private static IMap<String, Node> nodeMap;
+
+	private LocationTrackingStorageService a;
+	private LocationTrackingStorageService b;
+	private FileLocator locator;
+
+	@BeforeClass
+	public static void setup() throws Exception {
+		Config config = new Config();
+		config.getGroupConfig().setName("locator-test");
+		config.getNetworkConfig().getJoin().getMulticastConfig().setEnabled(false);
+		instance = Hazelcast.newHazelcastInstance(config);
+		fileMap = instance.getMap(ManagementService.FILE_MAP_NAME);
+		nodeMap = instance.getMap(ManagementService.NODE_MAP_NAME);
+	}
+
+	@AfterClass
+	public static void teardown() throws Exception {
+		instance.getLifecycleService().shutdown();
+	}
+
+	private static LocationTrackingStorageService storage(String nodeId) throws IOException {
+		PosixStorageService storage = new PosixStorageService("target/test-locator-" + nodeId);
+		storage.format();
+		storage.initStorage();
+		return new LocationTrackingStorageService(storage, nodeId, fileMap);
+	}
+
+	@Before
+	public void createNodes() throws Exception {
+		fileMap.clear();
+		nodeMap.clear();
+		// b stands in for another node of the cluster sharing the file map
+		a = storage("a");
+		b = storage("b");
+		locator = new FileLocator(instance);
+	}
+
+	@After
+	public void closeLocator() throws Exception {
+		locator.close();
+	}
+
+	private static void write(StorageService storage, String path, int size) throws IOException {
+		FileChannel ch = storage.create(path, size);
+		try {
+			ch.write(ByteBuffer.allocate(size));
+		} finally {
+			ch.close();
+		}
+	}
+
+	private static Set<String> ids(String... ids) {
+		return new HashSet<String>(Arrays.asList(ids));
+	}
+
+	/**
+	 * The near cache is invalidated through events, which arrive some time after
+	 * the map has changed
+	 */
+	private FileLocation awaitLocation(String path, Set<String> nodeIds) throws InterruptedException {
+		FileLocation loc = locator.locate(path);
+		for (int i = 0; i < 100 && !(loc == null ? nodeIds == null : loc.getNodeIds().equals(nodeIds)); i++) {
+			Thread.sleep(20);
+			loc = locator.locate(path);
+		}
+		if (nodeIds == null) {
+			assertNull(loc);
+		} else {
+			assertEquals(nodeIds, loc.getNodeIds());
+		}
+		return loc;
+	}
+
+	@Test
+	public void nearCacheFollowsChangesOfOtherNodes() throws Exception {
+		write(a, "shared", 100);
+		// the event of the new entry would drop it from the near cache again
+		Thread.sleep(200);
+		assertEquals(ids("a"), locator.locate("shared").getNodeIds());
+		long misses = locator.getMisses();
+		long hits = locator.getHits();
+		assertEquals(ids("a"), locator.locate("shared").getNodeIds());
+		assertEquals(hits + 1, locator.getHits());
+		assertEquals(misses, locator.getMisses());
+
+		write(b, "shared", 100);
+		awaitLocation("shared", ids("a", "b"));
+		hits = locator.getHits();
+		locator.locate("shared");
+		assertEquals(hits + 1, locator.getHits());
+
+		b.delete("shared");
+		awaitLocation("shared", ids("a"));
+		a.delete("shared");
+		awaitLocation("shared", null);
+		// a path unknown to the map is not cached
+		misses = locator.getMisses();
+		assertNull(locator.locate("shared"));
+		assertEquals(misses + 1, locator.getMisses());
+	}
+
+	@Test
+	public void nearCacheIsBounded() throws Exception {
+		locator.close();
+		locator = new FileLocator(instance, 2);
+		String[] paths = { "bounded-1", "bounded-2", "bounded-3" };
+		for (String path : paths) {
+			write(a, path, 10);
+		}
+		Thread.sleep(200);
+		for (String path : paths) {
+			locator.locate(path);
+		}
+		long misses = locator.getMisses();
+		locator.locate("bounded-3");
+		locator.locate("bounded-2");
+		assertEquals(misses, locator.getMisses());
+		locator.locate("bounded-1");
+		assertEquals(misses + 1, locator.getMisses());
+	}
+
+	@Test
+	public void versions() throws Exception {
+		write(a, "versioned", 100);
+		FileLocation first = locator.locate("versioned");
+		assertEquals(1, first.getVersion());
+		assertEquals(100, first.getSize());
+
+		// the same size is another copy of the same version
+		write(b, "versioned", 100);
+		FileLocation copy = awaitLocation("versioned", ids("a", "b"));
+		assertEquals(1, copy.getVersion());
+
+		// a different size is a new version, which only b holds
+		b.delete("versioned");
+		awaitLocation("versioned", ids("a"));
+		write(b, "versioned", 200);
+		FileLocation second = awaitLocation("versioned", ids("b"));
+		assertEquals(2, second.getVersion());
+		assertEquals(200, second.getSize());
+
+		// the old copy of a does not count for the new version
+		a.delete("versioned");
+		assertEquals(ids("b"), fileMap.get("versioned").getNodeIds());
+	}
+
+	@Test
+	public void deletedFilesAreDeregistered() throws Exception {
+		write(a, "gone-1", 10);
+		write(a, "gone-2", 0);
+		write(b, "gone-2", 0);
+		assertEquals(ids("a"), locator.locate("gone-1").getNodeIds());
+		a.delete("gone-1");
+		assertNull(fileMap.get("gone-1"));
+		awaitLocation("gone-1", null);
+
+		// formatting deregisters every file of the node
+		a.format();
+		assertEquals(ids("b"), fileMap.get("gone-2").getNodeIds());
+		b.format();
+		assertTrue(fileMap.isEmpty());
+		awaitLocation("gone-2", null);
+	}
+
+	@Test
+	public void publishRegistersStoredFiles() throws Exception {
+		StorageService stored = a.getDelegate();
+		write(stored, "stored-1", 10);
+		write(stored, "stored-empty", 0);
+		assertNull(locator.locate("stored-1"));
+		assertEquals(2, a.publish());
+		assertEquals(ids("a"), awaitLocation("stored-1", ids("a")).getNodeIds());
+		assertEquals(0, awaitLocation("stored-empty", ids("a")).getSize());
+	}
+
+	@Test
+	public void resolveToTheRunningNodes() throws Exception {
+		nodeMap.put("a", new Node("a", URI.create("hazefs://host-a:3827")));
+		write(a, "resolved", 10);
+		write(b, "resolved", 10);
+		awaitLocation("resolved", ids("a", "b"));
+		for (int i = 0; i < 100 && locator.resolve("resolved").isEmpty(); i++) {
+			Thread.sleep(20);
+		}
+		// b is not running
+		assertEquals(Arrays.asList(URI.create("hazefs://host-a:3827")), locator.resolve("resolved"));
+		nodeMap.put("b", new Node("b", URI.create("hazefs://host-b:3827")));
+		for (int i = 0; i < 100 && locator.resolve("resolved").size() < 2; i++) {
+			Thread.sleep(20);
+		}
+		assertEquals(new HashSet<URI>(Arrays.asList(URI.create("hazefs://host-a:3827"),
+				URI.create("hazefs://host-b:3827"))), new HashSet<URI>(locator.resolve("resolved")));
+		assertTrue(locator.resolve("missing").isEmpty());
+	}
+}
@@ -0,0 +1,108 @@
+package org.hazelfs.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.commons.io.IOUtils;
+import org.hazelfs.networking.HazeFSClient;
+import org.hazelfs.networking.HazeFSClusterClient;
+import org.hazelfs.networking.HazelFSListener;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.hazelcast.config.Config;
+import com.hazelcast.core.Hazelcast;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.IMap;
+
+public class HazeFSClusterClientTest {
+	private static final int PORT = ManagementService.NODE_DEFAULT_PORT + 6;
+
+	private static HazelcastInstance instance;
+	private static HazelFSListener listener;
+	private static ExecutorService executor;
+
+	@BeforeClass
+	public static void setup() throws Exception {
+		Config config = new Config();
+		config.getGroupConfig().setName("cluster-client-test");
+		config.getNetworkConfig().getJoin().getMulticastConfig().setEnabled(false);
+		instance = Hazelcast.newHazelcastInstance(config);
+		PosixStorageService storage = new PosixStorageService("target/test-cluster-client");
+		storage.format();
+		storage.initStorage();
+		listener = new HazelFSListener(PORT, storage, 1);
+		executor = Executors.newSingleThreadExecutor();
+		executor.submit(listener);
+		Thread.sleep(200);
+	}
+
+	@AfterClass
+	public static void teardown() throws Exception {
+		listener.shutdown();
+		executor.shutdownNow();
+		instance.getLifecycleService().shutdown();
+	}
+
+	@Test
+	public void readsSkipNodesThatCannotBeReached() throws Exception {
+		ServerSocket closed = new ServerSocket(0);
+		int deadPort = closed.getLocalPort();
+		closed.close();
+		IMap<String, Node> nodeMap = instance.getMap(ManagementService.NODE_MAP_NAME);
+		Node live = new Node("live", URI.create("hazefs://localhost:" + PORT));
+		Node dead = new Node("dead", URI.create("hazefs://localhost:" + deadPort));
+		nodeMap.put(live.getId(), live);
+		nodeMap.put(dead.getId(), dead);
+		NodePlacement placement = new NodePlacement(instance);
+		HazeFSClusterClient cluster = new HazeFSClusterClient(placement);
+		cluster.setReadAttempts(2);
+		try {
+			// a path the dead node comes first for
+			String path = null;
+			for (int i = 0; path == null; i++) {
+				if (placement.locate("failover-" + i).getId().equals(dead.getId())) {
+					path = "failover-" + i;
+				}
+			}
+			byte[] data = "failover".getBytes("UTF-8");
+			HazeFSClient client = new HazeFSClient(PORT, "localhost");
+			client.connect();
+			client.create(path, new ByteArrayInputStream(data), data.length);
+			client.disconnect();
+
+			for (int i = 0; i < 2; i++) {
+				assertEquals(data.length, cluster.getSize(path));
+				InputStream in = cluster.open(path);
+				try {
+					assertEquals("failover", new String(IOUtils.toByteArray(in), "UTF-8"));
+				} finally {
+					in.close();
+				}
+			}
+			try {
+				cluster.getSize(path + "-missing");
+				fail("found a missing file");
+			} catch (IOException expected) {
+				// the dead node might have had it
+				assertFalse(expected instanceof FileNotFoundException);
+			}
+		} finally {
+			cluster.close();
+			placement.close();
+			nodeMap.remove(live.getId());
+			nodeMap.remove(dead.getId());
+		}
+	}
+}
@@ -1,11 +1,39 @@
 package org.hazelfs.services;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.hazelfs.networking.BatchEntry;
+import org.hazelfs.networking.Constants;
 import org.hazelfs.networking.HazeFSClient;
 import org.hazelfs.networking.HazelFSListener;
+import org.hazelfs.networking.ParallelFetcher;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -25,6 +53,9 @@ public class HazeFSListenerTest {
 		storage.format();
 		storage.initStorage();
 		service = new HazelFSListener(ManagementService.NODE_DEFAULT_PORT, storage);
+		// a tiny disk queue makes the reactors hold work back and throttle uploads
+		service.setDiskThreads(2);
+		service.setDiskQueueSize(4);
 		executor = Executors.newSingleThreadExecutor();
 		executor.submit(service);
 	}
@@ -37,21 +68,265 @@ public class HazeFSListenerTest {
 		client.connect();
 		File f = new File ("src/test/resources/" + filename);
 		client.create(filename,this.getClass().getClassLoader().getResourceAsStream("testfile-junit-1.xml"),f.length());
-		client.open(filename);
-//		File f = new File("src/test/resources/testfile-junit-1.xml");
-//		HazePut put = new HazePut(filename,new FileInputStream(f), f.length());
-//		HazeResponse resp = client.execute(put);
-//		assertTrue(resp.getCode() == HazeResponse.RETURN_OK);
-//		resp.close();
-//		
-//		// now request the files
-//		HazeGet get = new HazeGet(filename);
-//		resp = client.execute(get);
-//		assertTrue(resp.getCode() == HazeResponse.RETURN_OK);
-//		assertTrue(resp.getStreamSize() == f.length());
+		// now request the file
+		InputStream in = client.open(filename);
+		assertArrayEquals(FileUtils.readFileToByteArray(f), IOUtils.toByteArray(in));
+		in.close();
+		client.disconnect();
+	}
+
+	@Test
+	public void pipelinedRequests() throws Exception {
+		HazeFSClient client = new HazeFSClient(ManagementService.NODE_DEFAULT_PORT, "localhost");
+		client.connect();
+		List<String> paths = new ArrayList<String>();
+		for (int i = 0; i < 50; i++) {
+			byte[] data = ("pipelined-" + i).getBytes("UTF-8");
+			client.create("pipelined-" + i, new ByteArrayInputStream(data), data.length);
+			paths.add("pipelined-" + i);
+		}
+		paths.add("pipelined-missing");
+		Map<String, byte[]> files = client.readAll(paths);
+		assertEquals(50, files.size());
+		assertEquals("pipelined-42", new String(files.get("pipelined-42"), "UTF-8"));
+
+		// a failing request leaves the connection ready for the next one
+		paths.add(3, "../pipelined-invalid");
+		try {
+			client.readAll(paths);
+			fail("read an invalid path");
+		} catch (FileNotFoundException e) {
+			fail("an invalid path is not a missing file");
+		} catch (IOException expected) {
+			assertTrue(expected.getMessage(), expected.getMessage().contains("Invalid path"));
+		}
+		assertEquals("pipelined-7".length(), client.getSize("pipelined-7"));
+		assertEquals("pipelined-9", new String(client.read("pipelined-9", 0, 100).array(), "UTF-8"));
+		client.disconnect();
+	}
+
+	@Test
+	public void requestRange() throws Exception {
+		HazeFSClient client = new HazeFSClient(ManagementService.NODE_DEFAULT_PORT, "localhost");
+		client.connect();
+		byte[] data = "0123456789abcdefghij".getBytes("UTF-8");
+		client.create("range-1", new ByteArrayInputStream(data), data.length);
+		assertEquals("abcde", new String(client.read("range-1", 10, 5).array(), "UTF-8"));
+		// ranges reaching beyond the end of the file are cut short
+		assertEquals(4, client.read("range-1", 16, 100).remaining());
+		client.disconnect();
+	}
+
+	@Test
+	public void emptyFile() throws Exception {
+		HazeFSClient client = new HazeFSClient(ManagementService.NODE_DEFAULT_PORT, "localhost");
+		client.setChecksums(true);
+		client.connect();
+		try {
+			client.create("empty-1", new ByteArrayInputStream(new byte[0]), 0);
+			// an empty file is found, only a missing one is not
+			assertEquals(0, client.getSize("empty-1"));
+			assertEquals(0, IOUtils.toByteArray(client.open("empty-1")).length);
+			assertEquals(0, client.read("empty-1", 0, 100).remaining());
+			Map<String, byte[]> files = client.readAll(Arrays.asList("empty-1", "empty-missing"));
+			assertEquals(1, files.size());
+			assertEquals(0, files.get("empty-1").length);
+			BatchEntry entry = client.getAll(Arrays.asList("empty-1")).next();
+			assertTrue(entry.isFound());
+			assertEquals(0, entry.getContent().length);
+			for (String path : new String[] { "empty-missing", "empty-1" }) {
+				if (path.equals("empty-1")) {
+					client.delete(path);
+				}
+				try {
+					client.getSize(path);
+					fail("found " + path);
+				} catch (FileNotFoundException expected) {
+					// not there
+				}
+				try {
+					client.read(path, 0, 100);
+					fail("read " + path);
+				} catch (FileNotFoundException expected) {
+					// not there
+				}
+				assertFalse(client.getAll(Arrays.asList(path)).next().isFound());
+			}
+		} finally {
+			client.disconnect();
+		}
+	}
+
+	@Test
+	public void parallelFetch() throws Exception {
+		byte[] data = new byte[3 * 1024 * 1024 + 17];
+		new Random(42).nextBytes(data);
+		HazeFSClient client = new HazeFSClient(ManagementService.NODE_DEFAULT_PORT, "localhost");
+		client.connect();
+		client.create("parallel-1", new ByteArrayInputStream(data), data.length);
+		client.disconnect();
+
+		ParallelFetcher fetcher = new ParallelFetcher(Arrays.asList(URI.create("hazefs://localhost:"
+				+ ManagementService.NODE_DEFAULT_PORT)));
+		fetcher.setMinRangeSize(256 * 1024);
+		File target = new File("target/parallel-1");
+		FileChannel ch = FileChannel.open(target.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+		try {
+			assertEquals(data.length, fetcher.fetch("parallel-1", ch));
+		} finally {
+			ch.close();
+		}
+		assertArrayEquals(data, FileUtils.readFileToByteArray(target));
+	}
+
+	@Test
+	public void uploadWithFullDiskQueue() throws Exception {
+		final byte[] data = new byte[32 * 1024 * 1024];
+		new Random(7).nextBytes(data);
+		Future<?> upload = Executors.newSingleThreadExecutor().submit(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				HazeFSClient client = new HazeFSClient(ManagementService.NODE_DEFAULT_PORT, "localhost");
+				client.connect();
+				client.create("throttled-1", new ByteArrayInputStream(data), data.length);
+				client.disconnect();
+				return null;
+			}
+		});
+		// small requests are still answered while the upload waits for the disk
+		HazeFSClient client = new HazeFSClient(ManagementService.NODE_DEFAULT_PORT, "localhost");
+		client.connect();
+		for (int i = 0; i < 20; i++) {
+			byte[] small = ("throttled-small-" + i).getBytes("UTF-8");
+			client.create("throttled-small-" + i, new ByteArrayInputStream(small), small.length);
+			assertEquals(small.length, client.getSize("throttled-small-" + i));
+		}
+		upload.get();
+		assertArrayEquals(data, IOUtils.toByteArray(client.open("throttled-1")));
+		client.disconnect();
+	}
+
+	@Test
+	public void replicatedCreate() throws Exception {
+		PosixStorageService storage = new PosixStorageService("target/test-replica");
+		storage.format();
+		storage.initStorage();
+		int port = ManagementService.NODE_DEFAULT_PORT + 1;
+		HazelFSListener replica = new HazelFSListener(port, storage, 1);
+		ExecutorService replicaExecutor = Executors.newSingleThreadExecutor();
+		replicaExecutor.submit(replica);
+		Thread.sleep(200);
+		try {
+			byte[] data = new byte[3 * 1024 * 1024 + 5];
+			new Random(3).nextBytes(data);
+			HazeFSClient client = new HazeFSClient(ManagementService.NODE_DEFAULT_PORT, "localhost");
+			client.connect();
+			assertEquals(2, client.create("replicated-1", new ByteArrayInputStream(data), data.length,
+					Arrays.asList("localhost:" + port), 2));
+			client.disconnect();
+			HazeFSClient replicaClient = new HazeFSClient(port, "localhost");
+			replicaClient.connect();
+			assertArrayEquals(data, IOUtils.toByteArray(replicaClient.open("replicated-1")));
+			replicaClient.disconnect();
+		} finally {
+			replica.shutdown();
+			replicaExecutor.shutdownNow();
+		}
+	}
+
+	@Test(expected = ChecksumException.class)
+	public void corruptedFileFailsVerification() throws Exception {
+		byte[] data = new byte[2 * 1024 * 1024 + 3];
+		new Random(5).nextBytes(data);
+		HazeFSClient client = new HazeFSClient(ManagementService.NODE_DEFAULT_PORT, "localhost");
+		client.connect();
+		try {
+			client.create("corrupted-1", new ByteArrayInputStream(data), data.length);
+			// flip a byte of the stored copy behind the storage's back
+			RandomAccessFile f = new RandomAccessFile("target/test-storage/corrupted-1", "rw");
+			try {
+				f.seek(1024 * 1024 + 7);
+				f.write(~data[1024 * 1024 + 7]);
+			} finally {
+				f.close();
+			}
+			IOUtils.toByteArray(client.open("corrupted-1"));
+		} finally {
+			client.disconnect();
+		}
+	}
+
+	/**
+	 * Send the header of a create of the given payload length with three bytes
+	 * of it and return what the server answers
+	 */
+	private static int createFrame(int port, short flags, long payloadLength) throws Exception {
+		Socket socket = new Socket("localhost", port);
+		try {
+			socket.setSoTimeout(5000);
+			byte[] path = ("malformed-" + payloadLength).getBytes("UTF-8");
+			ByteBuffer frame = ByteBuffer.allocate(Constants.PROTO_HEADER_SIZE + path.length + 3);
+			frame.putInt(Constants.PROTO_MAGIC).put(Constants.PROTO_VERSION).put((byte) Constants.PROTO_CREATE_FILE)
+					.putShort(flags).putInt(1).putInt(path.length).putLong(payloadLength).put(path).put(new byte[3]);
+			socket.getOutputStream().write(frame.array());
+			return socket.getInputStream().read();
+		} finally {
+			socket.close();
+		}
+	}
+
+	@Test
+	public void malformedChecksumTrailerClosesConnection() throws Exception {
+		// too short for a checksum, one byte short of the second checksum, and
+		// more chunks than an int can count
+		for (long payloadLength : new long[] { 3, 1024 * 1024 + 5, (1L << 51) + 1 }) {
+			assertEquals(-1, createFrame(ManagementService.NODE_DEFAULT_PORT, Constants.FLAG_CHECKSUMS, payloadLength));
+		}
+		// the reactor still serves everybody else
+		HazeFSClient client = new HazeFSClient(ManagementService.NODE_DEFAULT_PORT, "localhost");
+		client.connect();
+		client.create("after-malformed", new ByteArrayInputStream(new byte[] { 1, 2, 3 }), 3);
+		assertEquals(3, client.getSize("after-malformed"));
 		client.disconnect();
 	}
 
+	@Test
+	public void hugeFileKeepsOtherConnections() throws Exception {
+		PosixStorageService storage = new PosixStorageService("target/test-huge");
+		storage.format();
+		storage.initStorage();
+		int port = ManagementService.NODE_DEFAULT_PORT + 2;
+		// a single reactor serves both connections
+		HazelFSListener listener = new HazelFSListener(port, storage, 1);
+		ExecutorService listenerExecutor = Executors.newSingleThreadExecutor();
+		listenerExecutor.submit(listener);
+		Thread.sleep(200);
+		try {
+			HazeFSClient client = new HazeFSClient(port, "localhost");
+			client.connect();
+			client.create("before-huge", new ByteArrayInputStream(new byte[] { 1, 2 }), 2);
+			// more chunks than an int can count without any checksums
+			createFrame(port, (short) 0, (1L << 51) + 1);
+			assertEquals(2, client.getSize("before-huge"));
+			client.disconnect();
+		} finally {
+			listener.shutdown();
+			listenerExecutor.shutdownNow();
+		}
+	}
+
+	@Test(expected = FileNotFoundException.class)
+	public void requestMissingFile() throws Exception {
+		HazeFSClient client = new HazeFSClient(ManagementService.NODE_DEFAULT_PORT, "localhost");
+		client.connect();
+		try {
+			client.open("does-not-exist.xml");
+		} finally {
+			client.disconnect();
+		}
+	}
+
 
 	@AfterClass
 	public static void teardown() throws Exception {
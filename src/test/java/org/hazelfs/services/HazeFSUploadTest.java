@@ -0,0 +1,169 @@
+package org.hazelfs.services;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.commons.io.IOUtils;
+import org.hazelfs.networking.BufferPool;
+import org.hazelfs.networking.HazeFSClient;
+import org.hazelfs.networking.HazelFSListener;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class HazeFSUploadTest {
+	private static final int PORT = ManagementService.NODE_DEFAULT_PORT + 10;
+	private static final int SLAB = BufferPool.SLAB_SIZE;
+
+	private static RecordingStorageService storage;
+	private static HazelFSListener listener;
+	private static ExecutorService executor;
+
+	private HazeFSClient client;
+
+	/**
+	 * Records the length of every positional write of an upload and fails the
+	 * writes of files named failing-* after their first slab
+	 */
+	private static class RecordingStorageService extends PosixStorageService {
+		final Map<String, List<Integer>> writes = new ConcurrentHashMap<String, List<Integer>>();
+
+		RecordingStorageService(String directory) {
+			super(directory);
+		}
+
+		@Override
+		public FileChannel create(final String path, long size) throws IOException {
+			final List<Integer> lengths = Collections.synchronizedList(new ArrayList<Integer>());
+			writes.put(path, lengths);
+			return new ForwardingFileChannel(super.create(path, size)) {
+				@Override
+				public int write(ByteBuffer src, long position) throws IOException {
+					if (path.startsWith("failing-") && position >= SLAB) {
+						throw new IOException("Disk failure writing " + path);
+					}
+					lengths.add(src.remaining());
+					return super.write(src, position);
+				}
+			};
+		}
+	}
+
+	/**
+	 * Hands out the data in small pieces and pauses now and then, as a slow
+	 * network would
+	 */
+	private static class TricklingInputStream extends FilterInputStream {
+		private int reads;
+
+		TricklingInputStream(byte[] data) {
+			super(new ByteArrayInputStream(data));
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (++reads % 200 == 0) {
+				try {
+					Thread.sleep(1);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			return super.read(b, off, Math.min(len, 1000));
+		}
+	}
+
+	@BeforeClass
+	public static void setup() throws Exception {
+		storage = new RecordingStorageService("target/test-upload");
+		storage.format();
+		storage.initStorage();
+		listener = new HazelFSListener(PORT, storage, 1);
+		executor = Executors.newSingleThreadExecutor();
+		executor.submit(listener);
+		Thread.sleep(200);
+	}
+
+	@AfterClass
+	public static void teardown() throws Exception {
+		listener.shutdown();
+		executor.shutdownNow();
+	}
+
+	@Before
+	public void connect() throws Exception {
+		client = new HazeFSClient(PORT, "localhost");
+		client.connect();
+	}
+
+	@After
+	public void disconnect() throws Exception {
+		client.disconnect();
+	}
+
+	private byte[] download(String path) throws IOException {
+		InputStream in = client.open(path);
+		try {
+			return IOUtils.toByteArray(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	@Test
+	public void tricklingUploadsAreWrittenInSlabs() throws Exception {
+		Random random = new Random(47);
+		int[] sizes = { 0, 1, SLAB - 1, SLAB, SLAB + 1, 3 * SLAB + 7 };
+		for (int size : sizes) {
+			String path = "trickled-" + size;
+			byte[] data = new byte[size];
+			random.nextBytes(data);
+			client.create(path, new TricklingInputStream(data), size);
+			assertEquals(size, client.getSize(path));
+			assertArrayEquals(data, download(path));
+			// every write but the last takes a whole slab
+			List<Integer> lengths = storage.writes.get(path);
+			assertEquals((size + SLAB - 1) / SLAB, lengths.size());
+			for (int i = 0; i < lengths.size(); i++) {
+				int expected = i < lengths.size() - 1 || size % SLAB == 0 ? SLAB : size % SLAB;
+				assertEquals(path, expected, lengths.get(i).intValue());
+			}
+		}
+	}
+
+	@Test
+	public void failedWriteKeepsTheConnection() throws Exception {
+		byte[] data = new byte[3 * SLAB];
+		new Random(53).nextBytes(data);
+		try {
+			client.create("failing-1", new ByteArrayInputStream(data), data.length);
+			fail("stored despite a failing disk");
+		} catch (IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("Disk failure writing failing-1"));
+		}
+		// the rest of the upload has been consumed and the file removed
+		assertNull(storage.getMetadata("failing-1"));
+		client.create("after-failing", new ByteArrayInputStream(data), data.length);
+		assertArrayEquals(data, download("after-failing"));
+	}
+}
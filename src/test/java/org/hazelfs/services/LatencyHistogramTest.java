@@ -0,0 +1,122 @@
+package org.hazelfs.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+	private static final int BUCKETS = LatencyHistogram.bucket(Long.MAX_VALUE) + 1;
+
+	@Test
+	public void bucketsAndHighestValuesAgree() {
+		assertEquals(Long.MAX_VALUE, LatencyHistogram.highestValue(BUCKETS - 1));
+		for (int b = 0; b < BUCKETS; b++) {
+			long highest = LatencyHistogram.highestValue(b);
+			assertEquals(b, LatencyHistogram.bucket(highest));
+			if (b + 1 < BUCKETS) {
+				assertEquals(b + 1, LatencyHistogram.bucket(highest + 1));
+			}
+		}
+		Random random = new Random(41);
+		for (int i = 0; i < 100000; i++) {
+			long value = random.nextLong() >>> (1 + random.nextInt(63));
+			int b = LatencyHistogram.bucket(value);
+			assertTrue(value + " above its bucket", LatencyHistogram.highestValue(b) >= value);
+			assertTrue(value + " below its bucket", b == 0 || LatencyHistogram.highestValue(b - 1) < value);
+			// a bucket spans at most 1/32 of its values
+			long lowest = b == 0 ? 0 : LatencyHistogram.highestValue(b - 1) + 1;
+			assertTrue(LatencyHistogram.highestValue(b) - lowest <= lowest / LatencyHistogram.SUB_BUCKETS);
+		}
+	}
+
+	private static void assertPercentiles(long[] values) {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (long v : values) {
+			histogram.record(v);
+		}
+		long[] sorted = values.clone();
+		Arrays.sort(sorted);
+		assertEquals(values.length, histogram.getCount());
+		assertEquals(sorted[sorted.length - 1], histogram.getMax());
+		for (double quantile : new double[] { 0.5, 0.99, 0.999 }) {
+			long exact = sorted[(int) Math.ceil(quantile * sorted.length) - 1];
+			long estimate = histogram.getPercentile(quantile);
+			assertTrue(quantile + ": " + estimate + " for " + exact, estimate >= exact
+					&& estimate - exact <= exact / LatencyHistogram.SUB_BUCKETS);
+		}
+	}
+
+	@Test
+	public void percentilesWithinTheirBucket() {
+		Random random = new Random(43);
+		long[] uniform = new long[100000];
+		long[] exponential = new long[100000];
+		long[] logNormal = new long[100000];
+		for (int i = 0; i < uniform.length; i++) {
+			uniform[i] = i + 1;
+			exponential[i] = (long) (-Math.log(1 - random.nextDouble()) * 250000);
+			logNormal[i] = (long) Math.exp(13 + 2 * random.nextGaussian());
+		}
+		assertPercentiles(uniform);
+		assertPercentiles(exponential);
+		assertPercentiles(logNormal);
+		// few distinct values, e.g. a cache answering most requests at once
+		long[] bimodal = new long[10000];
+		for (int i = 0; i < bimodal.length; i++) {
+			bimodal[i] = i % 100 == 0 ? 40000000 : 80000;
+		}
+		assertPercentiles(bimodal);
+	}
+
+	@Test
+	public void percentilesOfIntervals() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		assertEquals(0, histogram.getPercentile(0.99));
+		for (int i = 0; i < 1000; i++) {
+			histogram.record(1000000);
+		}
+		long[] before = histogram.getCounts();
+		for (int i = 0; i < 1000; i++) {
+			histogram.record(2000);
+		}
+		histogram.record(-5);
+		long[] recent = histogram.getCounts();
+		for (int i = 0; i < recent.length; i++) {
+			recent[i] -= before[i];
+		}
+		assertEquals(2000, LatencyHistogram.getPercentile(recent, 0.99), 2000 / LatencyHistogram.SUB_BUCKETS);
+		assertEquals(0, LatencyHistogram.getPercentile(recent, 0));
+		// the maximum caps the highest value of its bucket
+		assertEquals(1000000, histogram.getPercentile(0.75));
+		assertEquals(2001, histogram.getCount());
+		assertEquals(1000 * 1000000L + 1000 * 2000L, histogram.getTotal());
+	}
+
+	@Test
+	public void recordingFromManyThreads() throws Exception {
+		final LatencyHistogram histogram = new LatencyHistogram();
+		Thread[] threads = new Thread[8];
+		for (int t = 0; t < threads.length; t++) {
+			final int offset = t;
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					for (int i = 0; i < 100000; i++) {
+						histogram.record(i + offset);
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread t : threads) {
+			t.join();
+		}
+		assertEquals(800000, histogram.getCount());
+		assertEquals(8 * (99999L * 100000 / 2) + 100000L * 28, histogram.getTotal());
+		assertEquals(99999 + 7, histogram.getMax());
+	}
+}
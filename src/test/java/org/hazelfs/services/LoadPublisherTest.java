@@ -0,0 +1,100 @@
+package org.hazelfs.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.net.URI;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.hazelfs.networking.HazeFSClient;
+import org.hazelfs.networking.HazelFSListener;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.hazelcast.config.Config;
+import com.hazelcast.core.Hazelcast;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.IMap;
+
+public class LoadPublisherTest {
+	private static final int PORT = ManagementService.NODE_DEFAULT_PORT + 5;
+
+	private static HazelcastInstance instance;
+	private static IMap<String, Node> nodeMap;
+	private static PosixStorageService storage;
+	private static HazelFSListener listener;
+	private static ExecutorService executor;
+
+	@BeforeClass
+	public static void setup() throws Exception {
+		Config config = new Config();
+		config.getGroupConfig().setName("load-test");
+		config.getNetworkConfig().getJoin().getMulticastConfig().setEnabled(false);
+		instance = Hazelcast.newHazelcastInstance(config);
+		nodeMap = instance.getMap(ManagementService.NODE_MAP_NAME);
+		storage = new PosixStorageService("target/test-load");
+		storage.format();
+		storage.initStorage();
+		listener = new HazelFSListener(PORT, storage, 1);
+		executor = Executors.newSingleThreadExecutor();
+		executor.submit(listener);
+		Thread.sleep(200);
+	}
+
+	@AfterClass
+	public static void teardown() throws Exception {
+		listener.shutdown();
+		executor.shutdownNow();
+		instance.getLifecycleService().shutdown();
+	}
+
+	private static Node node(String id, int port) {
+		return new Node(id, URI.create("hazefs://localhost:" + port));
+	}
+
+	@Test
+	public void loadOfTheNodeIsPublished() throws Exception {
+		Node node = node("published", PORT);
+		nodeMap.put(node.getId(), node);
+		LoadPublisher publisher = new LoadPublisher(node, instance, listener.getMetrics(), storage);
+		long before = System.currentTimeMillis();
+		publisher.publish();
+		NodeLoad load = nodeMap.get(node.getId()).getLoad();
+		assertNotNull(load);
+		assertTrue(load.getTimestamp() >= before && load.getTimestamp() <= System.currentTimeMillis());
+		assertTrue(load.getFreeSpace() > 0);
+		assertTrue(node.isSamePlacement(nodeMap.get(node.getId())));
+
+		// a node that has left is not brought back by its publisher
+		nodeMap.remove(node.getId());
+		publisher.publish();
+		assertFalse(nodeMap.containsKey(node.getId()));
+	}
+
+	@Test
+	public void p99CoversTheRecentRequestsOnly() throws Exception {
+		LoadPublisher publisher = new LoadPublisher(node("measured", PORT), instance, listener.getMetrics(), storage);
+		HazeFSClient client = new HazeFSClient(PORT, "localhost");
+		client.connect();
+		try {
+			byte[] data = new byte[4096];
+			client.create("measured-1", new ByteArrayInputStream(data), data.length);
+			for (int i = 0; i < 20; i++) {
+				assertEquals(data.length, client.getSize("measured-1"));
+			}
+		} finally {
+			client.disconnect();
+		}
+		// the latency of a request is recorded once its response has been sent
+		for (int i = 0; i < 100 && listener.getMetrics().getRequestLatencies().get("STAT").getCount() < 20; i++) {
+			Thread.sleep(20);
+		}
+		assertTrue(publisher.measure().getP99Micros() > 0);
+		assertEquals(0, publisher.measure().getP99Micros());
+	}
+}
@@ -0,0 +1,132 @@
+package org.hazelfs.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MetadataIndexTest {
+	private static final File DIRECTORY = new File("target/test-index");
+
+	private MetadataIndex index;
+
+	@Before
+	public void setup() throws Exception {
+		FileUtils.deleteDirectory(DIRECTORY);
+		DIRECTORY.mkdirs();
+		index = load();
+	}
+
+	@After
+	public void teardown() throws Exception {
+		index.close();
+	}
+
+	private static MetadataIndex load() throws IOException {
+		MetadataIndex idx = new MetadataIndex(DIRECTORY);
+		idx.load();
+		return idx;
+	}
+
+	private void reload() throws IOException {
+		index.close();
+		index = load();
+	}
+
+	private static File lastJournal() {
+		File last = null;
+		long lastGeneration = -1;
+		for (File f : new File(DIRECTORY, MetadataIndex.INDEX_DIRECTORY).listFiles()) {
+			if (f.getName().startsWith("journal-")) {
+				long generation = Long.parseLong(f.getName().substring("journal-".length()));
+				if (generation > lastGeneration) {
+					last = f;
+					lastGeneration = generation;
+				}
+			}
+		}
+		return last;
+	}
+
+	@Test
+	public void journalIsReplayed() throws Exception {
+		index.put("a", new FileMetadata(10, 1000));
+		index.put("dir/b", new FileMetadata(20, 2000));
+		index.put("a", new FileMetadata(11, 1001));
+		index.remove("dir/b");
+		reload();
+		assertEquals(11, index.get("a").getSize());
+		assertEquals(1001, index.get("a").getLastModified());
+		assertNull(index.get("dir/b"));
+		assertEquals(1, index.size());
+	}
+
+	@Test
+	public void snapshotAndJournalAreCombined() throws Exception {
+		for (int i = 0; i < 100; i++) {
+			index.put("file-" + i, new FileMetadata(i, i));
+		}
+		index.snapshot();
+		index.remove("file-5");
+		index.put("file-6", new FileMetadata(600, 6));
+		index.put("file-100", new FileMetadata(100, 100));
+		reload();
+		assertEquals(100, index.size());
+		assertNull(index.get("file-5"));
+		assertEquals(600, index.get("file-6").getSize());
+		assertEquals(100, index.get("file-100").getSize());
+		assertEquals(Arrays.asList("file-1", "file-10"), index.list("file-1").subList(0, 2));
+	}
+
+	@Test
+	public void tornLastRecordIsDropped() throws Exception {
+		index.put("a", new FileMetadata(10, 1000));
+		index.put("b", new FileMetadata(20, 2000));
+		index.close();
+		File journal = lastJournal();
+		long valid = journal.length();
+		// a put record of "c" cut short within its metadata
+		RandomAccessFile f = new RandomAccessFile(journal, "rw");
+		try {
+			f.seek(valid);
+			f.write(new byte[] { 1, 0, 1, 'c', 0, 0, 0 });
+		} finally {
+			f.close();
+		}
+		index = load();
+		assertEquals(20, index.get("b").getSize());
+		assertNull(index.get("c"));
+		index.put("d", new FileMetadata(40, 4000));
+		reload();
+		assertEquals(10, index.get("a").getSize());
+		assertEquals(40, index.get("d").getSize());
+		assertEquals(3, index.size());
+	}
+
+	@Test
+	public void indexOfAnotherFormatIsRescanned() throws Exception {
+		index.close();
+		FileUtils.writeByteArrayToFile(new File(DIRECTORY, "x"), new byte[7]);
+		DataOutputStream out = new DataOutputStream(new FileOutputStream(new File(new File(DIRECTORY,
+				MetadataIndex.INDEX_DIRECTORY), "snapshot")));
+		try {
+			out.writeInt(0x485A4958);
+			out.writeLong(1);
+			out.writeInt(0);
+		} finally {
+			out.close();
+		}
+		index = load();
+		assertEquals(7, index.get("x").getSize());
+	}
+}
@@ -0,0 +1,101 @@
+package org.hazelfs.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class NodeSelectorTest {
+
+	private static Node node(String id, NodeLoad load) {
+		Node n = new Node(id, URI.create("hazefs://localhost:" + (4000 + id.hashCode() % 1000)));
+		return load == null ? n : n.withLoad(load);
+	}
+
+	private static NodeLoad load(long connections, long freeSpace, long inFlightBytes, long timestamp) {
+		return new NodeLoad(connections, inFlightBytes, 0, freeSpace, 100, timestamp);
+	}
+
+	@Test
+	public void uploadsGoToNodesWithEnoughSpace() {
+		NodeSelector selector = new NodeSelector(new Random(1));
+		long now = System.currentTimeMillis();
+		Node full = node("full", load(0, 1000, 0, now));
+		Node busy = node("busy", load(0, 5000, 4500, now));
+		Node roomy = node("roomy", load(50, 5000, 0, now));
+		for (int i = 0; i < 100; i++) {
+			assertSame(roomy, selector.selectForUpload(Arrays.asList(full, busy, roomy), 2000));
+		}
+		assertNull(selector.selectForUpload(Arrays.asList(full, busy), 2000));
+		// nodes which do not know their space or have not published a load yet
+		Node unknown = node("unknown", load(0, -1, 0, now));
+		Node silent = node("silent", null);
+		assertSame(unknown, selector.selectForUpload(Arrays.asList(full, unknown), 1L << 40));
+		assertSame(silent, selector.selectForUpload(Arrays.asList(full, silent), 1L << 40));
+
+		selector.setMinFreeSpace(3001);
+		assertNull(selector.selectForUpload(Arrays.asList(roomy), 2000));
+		selector.setMinFreeSpace(3000);
+		assertSame(roomy, selector.selectForUpload(Arrays.asList(roomy), 2000));
+	}
+
+	@Test
+	public void staleLoadsAreAvoided() throws Exception {
+		NodeSelector selector = new NodeSelector(new Random(2));
+		selector.setMaxLoadAgeMillis(200);
+		// the clocks of the nodes are far off the one of the client
+		NodeLoad idle = load(0, -1, 0, 1000);
+		Node a = node("a", idle);
+		Node b = node("b", load(100, -1, 0, System.currentTimeMillis() + 3600 * 1000));
+		assertTrue(selector.cost(a) < selector.cost(b));
+		assertTrue(selector.cost(b) < Double.MAX_VALUE);
+		Thread.sleep(300);
+		// a has not published since, b has
+		b = node("b", load(100, -1, 0, System.currentTimeMillis() + 3600 * 1000 + 300));
+		assertEquals(Double.MAX_VALUE, selector.cost(a), 0);
+		for (int i = 0; i < 50; i++) {
+			assertSame(b, selector.selectForRead(Arrays.asList(a, b)));
+		}
+		// a new load brings the node back
+		a = node("a", load(0, -1, 0, 1500));
+		assertTrue(selector.cost(a) < selector.cost(b));
+		assertSame(a, selector.selectForRead(Arrays.asList(a, b)));
+	}
+
+	@Test
+	public void powerOfTwoChoices() {
+		NodeSelector selector = new NodeSelector(new Random(3));
+		long now = System.currentTimeMillis();
+		List<Node> nodes = new ArrayList<Node>();
+		for (int i = 0; i < 4; i++) {
+			nodes.add(node("node-" + i, load(i * 10, -1, 0, now)));
+		}
+		Map<String, Integer> picks = new HashMap<String, Integer>();
+		int draws = 12000;
+		for (int i = 0; i < draws; i++) {
+			String id = selector.selectForRead(nodes).getId();
+			picks.put(id, picks.containsKey(id) ? picks.get(id) + 1 : 1);
+		}
+		// of two distinct nodes drawn the less loaded wins, so the k-th least
+		// loaded of n nodes is picked with a chance of 2(n-1-k)/(n(n-1))
+		double[] expected = { 6.0 / 12, 4.0 / 12, 2.0 / 12, 0 };
+		for (int i = 0; i < 4; i++) {
+			Integer count = picks.get("node-" + i);
+			double share = count == null ? 0 : (double) count / draws;
+			assertEquals("node-" + i, expected[i], share, 0.02);
+		}
+		// a single candidate is taken as it is, none gives none
+		assertSame(nodes.get(3), selector.selectForRead(nodes.subList(3, 4)));
+		assertNull(selector.selectForRead(new ArrayList<Node>()));
+	}
+}
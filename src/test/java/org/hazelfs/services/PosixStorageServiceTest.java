@@ -0,0 +1,191 @@
+package org.hazelfs.services;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PosixStorageServiceTest {
+	private static final File PARENT = new File("target/test-posix");
+
+	private PosixStorageService storage;
+	private File outside;
+
+	@Before
+	public void setup() throws Exception {
+		FileUtils.deleteDirectory(PARENT);
+		PARENT.mkdirs();
+		outside = new File(PARENT, "outside");
+		FileUtils.writeByteArrayToFile(outside, new byte[] { 1, 2, 3 });
+		storage = new PosixStorageService(new File(PARENT, "storage").getPath());
+		storage.initStorage();
+	}
+
+	@After
+	public void teardown() throws Exception {
+		storage.shutdown();
+		FileUtils.deleteDirectory(PARENT);
+	}
+
+	private void write(String path, byte[] data) throws IOException {
+		FileChannel ch = storage.create(path, data.length);
+		try {
+			ch.write(ByteBuffer.wrap(data));
+		} finally {
+			ch.close();
+		}
+	}
+
+	private interface Operation {
+		void run(String path) throws IOException;
+	}
+
+	private static void assertRejected(String path, Operation op) {
+		try {
+			op.run(path);
+			fail("accepted " + path);
+		} catch (IOException expected) {
+			// not a path of the storage
+		}
+	}
+
+	@Test
+	public void pathsOutsideTheStorageAreRejected() throws Exception {
+		String[] paths = { "../outside", "a/../../outside", "./../outside", outside.getAbsolutePath(), "..", ".",
+				"a/.." };
+		Operation[] operations = { new Operation() {
+			@Override
+			public void run(String path) throws IOException {
+				storage.delete(path);
+			}
+		}, new Operation() {
+			@Override
+			public void run(String path) throws IOException {
+				storage.open(path).close();
+			}
+		}, new Operation() {
+			@Override
+			public void run(String path) throws IOException {
+				storage.create(path).close();
+			}
+		}, new Operation() {
+			@Override
+			public void run(String path) throws IOException {
+				storage.putChecksums(path, new int[] { 1 });
+			}
+		}, new Operation() {
+			@Override
+			public void run(String path) throws IOException {
+				storage.getChecksums(path);
+			}
+		} };
+		for (String path : paths) {
+			for (Operation op : operations) {
+				assertRejected(path, op);
+			}
+		}
+		assertTrue(outside.isFile());
+		assertEquals(3, outside.length());
+		assertFalse(new File(PARENT, "escaped").exists());
+		assertRejected("../escaped", new Operation() {
+			@Override
+			public void run(String path) throws IOException {
+				write(path, new byte[] { 4 });
+			}
+		});
+		assertFalse(new File(PARENT, "escaped").exists());
+	}
+
+	@Test
+	public void indexDirectoryIsNotReachable() throws Exception {
+		write("file", new byte[] { 1 });
+		storage.putChecksums("file", new int[] { 7 });
+		String index = MetadataIndex.INDEX_DIRECTORY;
+		String[] paths = { index, index + "/checksums/file", "./" + index + "/checksums/file",
+				"a/../" + index + "/checksums/file" };
+		for (String path : paths) {
+			assertRejected(path, new Operation() {
+				@Override
+				public void run(String path) throws IOException {
+					storage.delete(path);
+				}
+			});
+			assertRejected(path, new Operation() {
+				@Override
+				public void run(String path) throws IOException {
+					storage.open(path).close();
+				}
+			});
+			assertRejected(path, new Operation() {
+				@Override
+				public void run(String path) throws IOException {
+					storage.putChecksums(path, new int[] { 1 });
+				}
+			});
+		}
+		assertArrayEquals(new int[] { 7 }, storage.getChecksums("file"));
+		// only the directory itself is reserved, not every name starting alike
+		byte[] data = { 2, 3 };
+		write(index + "foo", data);
+		assertEquals(2, storage.getSize(index + "foo"));
+		storage.delete(index + "foo");
+		assertNull(storage.getMetadata(index + "foo"));
+	}
+
+	@Test
+	public void createSetsTheFinalLength() throws Exception {
+		FileChannel ch = storage.create("sized", 5000);
+		try {
+			assertEquals(5000, new File(PARENT, "storage/sized").length());
+			ch.write(ByteBuffer.wrap(new byte[] { 1, 2 }), 0);
+		} finally {
+			ch.close();
+		}
+		assertEquals(5000, storage.getSize("sized"));
+		// a file that does not fit fails before anything is written
+		long usable = new File(PARENT, "storage").getUsableSpace();
+		for (long size : new long[] { usable + (1L << 30), Long.MAX_VALUE }) {
+			try {
+				storage.create("unfit", size).close();
+				fail("created " + size + " bytes");
+			} catch (IOException expected) {
+				// not enough space
+			}
+		}
+		assertFalse(new File(PARENT, "storage/unfit").exists());
+	}
+
+	@Test
+	public void pathsWithinTheStorageAreResolved() throws Exception {
+		byte[] data = { 5, 6, 7 };
+		write("inside", data);
+		storage.putChecksums("inside", new int[] { 42 });
+		FileChannel ch = storage.open("a/../inside");
+		try {
+			ByteBuffer buf = ByteBuffer.allocate(3);
+			ch.read(buf);
+			assertArrayEquals(data, buf.array());
+		} finally {
+			ch.close();
+		}
+		assertArrayEquals(new int[] { 42 }, storage.getChecksums("./inside"));
+		assertEquals(3, storage.getSize("a/../inside"));
+		storage.delete("./inside");
+		assertFalse(new File(PARENT, "storage/inside").exists());
+		// the index knows the file by the same path
+		assertNull(storage.getMetadata("inside"));
+		assertTrue(storage.list("").isEmpty());
+	}
+}
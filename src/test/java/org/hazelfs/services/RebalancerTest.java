@@ -0,0 +1,260 @@
+package org.hazelfs.services;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.hazelfs.networking.HazelFSListener;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.hazelcast.config.Config;
+import com.hazelcast.core.Hazelcast;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.IMap;
+
+public class RebalancerTest {
+	private static final int PORT = ManagementService.NODE_DEFAULT_PORT + 8;
+
+	private static HazelcastInstance instance;
+	private static IMap<String, Node> nodeMap;
+	private static IMap<String, FileLocation> fileMap;
+
+	private NodePlacement placement;
+
+	@BeforeClass
+	public static void setup() throws Exception {
+		Config config = new Config();
+		config.getGroupConfig().setName("rebalance-test");
+		config.getNetworkConfig().getJoin().getMulticastConfig().setEnabled(false);
+		instance = Hazelcast.newHazelcastInstance(config);
+		nodeMap = instance.getMap(ManagementService.NODE_MAP_NAME);
+		fileMap = instance.getMap(ManagementService.FILE_MAP_NAME);
+	}
+
+	@AfterClass
+	public static void teardown() throws Exception {
+		instance.getLifecycleService().shutdown();
+	}
+
+	@Before
+	public void createPlacement() throws Exception {
+		nodeMap.clear();
+		fileMap.clear();
+		placement = new NodePlacement(instance);
+	}
+
+	@After
+	public void closePlacement() throws Exception {
+		placement.close();
+	}
+
+	private static Node node(String id, int port) {
+		return new Node(id, URI.create("hazefs://localhost:" + port));
+	}
+
+	private void join(String... ids) throws InterruptedException {
+		for (String id : ids) {
+			nodeMap.put(id, node(id, PORT));
+		}
+		awaitNodes();
+	}
+
+	private void leave(String id) throws InterruptedException {
+		nodeMap.remove(id);
+		awaitNodes();
+	}
+
+	/**
+	 * The placement follows the node map through events
+	 */
+	private void awaitNodes() throws InterruptedException {
+		for (int i = 0; i < 100 && placement.getNodes().size() != nodeMap.size(); i++) {
+			Thread.sleep(20);
+		}
+		assertEquals(nodeMap.size(), placement.getNodes().size());
+	}
+
+	private Set<String> live() {
+		Set<String> live = new HashSet<String>();
+		for (Node n : placement.getNodes()) {
+			live.add(n.getId());
+		}
+		return live;
+	}
+
+	private static List<String> ids(List<Node> nodes) {
+		List<String> ids = new ArrayList<String>();
+		for (Node n : nodes) {
+			ids.add(n.getId());
+		}
+		return ids;
+	}
+
+	/**
+	 * @return a path placed on exactly the given nodes, the first one leading
+	 */
+	private String pathOn(String... ids) {
+		for (int i = 0;; i++) {
+			String path = "file-" + i;
+			if (ids(placement.locate(path, ids.length)).equals(Arrays.asList(ids))) {
+				return path;
+			}
+		}
+	}
+
+	private void holders(String path, String... ids) {
+		fileMap.put(path, new FileLocation(new HashSet<String>(Arrays.asList(ids)), 1, 1));
+	}
+
+	@Test
+	public void joiningNodeReceivesItsFiles() throws Exception {
+		join("a");
+		Rebalancer rebalancer = new Rebalancer("a", null, instance, placement);
+		String path = "file-0";
+		List<Node> copies = new ArrayList<Node>();
+		assertFalse(rebalancer.plan(path, live(), copies));
+		assertTrue(copies.isEmpty());
+
+		join("b");
+		String moved = pathOn("b");
+		String stays = pathOn("a");
+		assertTrue(rebalancer.plan(moved, live(), copies));
+		assertEquals(Arrays.asList("b"), ids(copies));
+		copies.clear();
+		assertFalse(rebalancer.plan(stays, live(), copies));
+		assertTrue(copies.isEmpty());
+
+		// with two replicas both nodes keep every file
+		rebalancer.setReplicas(2);
+		assertFalse(rebalancer.plan(moved, live(), copies));
+		assertEquals(Arrays.asList("b"), ids(copies));
+	}
+
+	@Test
+	public void leavingNodeIsNoTarget() throws Exception {
+		join("a", "b", "c");
+		Rebalancer rebalancer = new Rebalancer("a", null, instance, placement);
+		rebalancer.setReplicas(2);
+		String path = pathOn("a", "c");
+		holders(path, "a", "c");
+		List<Node> copies = new ArrayList<Node>();
+		assertFalse(rebalancer.plan(path, live(), copies));
+		assertTrue(copies.isEmpty());
+
+		// the file map still lists the node that left, the other replica is
+		// moved to the remaining node
+		leave("c");
+		assertFalse(rebalancer.plan(path, live(), copies));
+		assertEquals(Arrays.asList("b"), ids(copies));
+
+		// nor does the node that left keep the file from being moved by b
+		holders(path, "b", "c");
+		Rebalancer other = new Rebalancer("b", null, instance, placement);
+		other.setReplicas(2);
+		copies.clear();
+		assertFalse(other.plan(path, live(), copies));
+		assertEquals(Arrays.asList("a"), ids(copies));
+	}
+
+	@Test
+	public void replicaAlreadyOnItsTarget() throws Exception {
+		join("a", "b");
+		Rebalancer rebalancer = new Rebalancer("a", null, instance, placement);
+		String path = pathOn("b");
+		holders(path, "a", "b");
+		List<Node> copies = new ArrayList<Node>();
+		// b has the file, so the local copy is only removed
+		assertTrue(rebalancer.plan(path, live(), copies));
+		assertTrue(copies.isEmpty());
+
+		rebalancer.setReplicas(2);
+		assertFalse(rebalancer.plan(path, live(), copies));
+		assertTrue(copies.isEmpty());
+
+		// only the first holder moves a file
+		Rebalancer other = new Rebalancer("b", null, instance, placement);
+		holders(pathOn("a"), "a", "b");
+		assertFalse(other.plan(pathOn("a"), live(), copies));
+		assertTrue(copies.isEmpty());
+	}
+
+	private static void write(StorageService storage, String path, byte[] data) throws IOException {
+		FileChannel ch = storage.create(path, data.length);
+		try {
+			ch.write(ByteBuffer.wrap(data));
+		} finally {
+			ch.close();
+		}
+	}
+
+	private static byte[] read(StorageService storage, String path) throws IOException {
+		FileChannel ch = storage.open(path);
+		try {
+			ByteBuffer buf = ByteBuffer.allocate((int) ch.size());
+			while (buf.hasRemaining() && ch.read(buf) >= 0) {
+				// until the end
+			}
+			return buf.array();
+		} finally {
+			ch.close();
+		}
+	}
+
+	@Test
+	public void partialCopyOnTheTargetIsReplaced() throws Exception {
+		PosixStorageService source = new PosixStorageService("target/test-rebalance-a");
+		source.format();
+		source.initStorage();
+		PosixStorageService target = new PosixStorageService("target/test-rebalance-b");
+		target.format();
+		target.initStorage();
+		HazelFSListener listener = new HazelFSListener(PORT, target, 1);
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		executor.submit(listener);
+		Thread.sleep(200);
+		nodeMap.put("a", node("a", PORT + 100));
+		nodeMap.put("b", node("b", PORT));
+		awaitNodes();
+		Rebalancer rebalancer = new Rebalancer("a", source, instance, placement);
+		rebalancer.setDelaySeconds(3600);
+		rebalancer.start();
+		try {
+			String path = pathOn("b");
+			byte[] data = new byte[256 * 1024];
+			new Random(37).nextBytes(data);
+			write(source, path, data);
+			// what an aborted transfer left behind
+			write(target, path, Arrays.copyOf(data, 1000));
+
+			rebalancer.rebalance();
+			assertEquals(0, rebalancer.getFailedFiles());
+			assertEquals(1, rebalancer.getMovedFiles());
+			assertEquals(data.length, rebalancer.getMovedBytes());
+			assertArrayEquals(data, read(target, path));
+			assertNull(source.getMetadata(path));
+		} finally {
+			rebalancer.close();
+			listener.shutdown();
+			executor.shutdownNow();
+		}
+	}
+}
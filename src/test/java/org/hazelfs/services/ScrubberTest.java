@@ -0,0 +1,197 @@
+package org.hazelfs.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ScrubberTest {
+	private static final File DIRECTORY = new File("target/test-scrubber");
+	private static final int CHUNK = Crc32c.CHUNK_SIZE;
+
+	private PosixStorageService storage;
+	private Scrubber scrubber;
+	private final Random random = new Random(59);
+
+	@Before
+	public void setup() throws Exception {
+		FileUtils.deleteDirectory(DIRECTORY);
+		storage = new PosixStorageService(DIRECTORY.getPath());
+		storage.initStorage();
+		scrubber = new Scrubber(storage);
+		scrubber.setMaxBandwidth(0);
+	}
+
+	@After
+	public void teardown() throws Exception {
+		scrubber.close();
+		storage.shutdown();
+		FileUtils.deleteDirectory(DIRECTORY);
+	}
+
+	/**
+	 * Store a file of random content with the checksums of its chunks, as an
+	 * upload does
+	 */
+	private void store(StorageService storage, String path, int size) throws IOException {
+		byte[] data = new byte[size];
+		random.nextBytes(data);
+		FileChannel ch = storage.create(path, size);
+		try {
+			ch.write(ByteBuffer.wrap(data), 0);
+		} finally {
+			ch.close();
+		}
+		ChunkedCrc32c crc = new ChunkedCrc32c(path, size);
+		crc.update(ByteBuffer.wrap(data));
+		storage.putChecksums(path, crc.getChecksums());
+	}
+
+	/**
+	 * Flip a byte of the stored file behind the back of the storage, as a
+	 * failing disk would
+	 */
+	private static void rot(String path, long position) throws IOException {
+		RandomAccessFile f = new RandomAccessFile(new File(DIRECTORY, path), "rw");
+		try {
+			f.seek(position);
+			int b = f.read();
+			f.seek(position);
+			f.write(b ^ 0x10);
+		} finally {
+			f.close();
+		}
+	}
+
+	@Test
+	public void intactFilesPass() throws Exception {
+		int[] sizes = { 0, 10, CHUNK, CHUNK + 5 };
+		long bytes = 0;
+		for (int size : sizes) {
+			store(storage, "intact-" + size, size);
+			bytes += size;
+		}
+		// files stored without checksums are skipped
+		FileChannel ch = storage.create("unchecked", 10);
+		ch.close();
+
+		assertEquals(0, scrubber.scrub());
+		assertFalse(scrubber.isRunning());
+		assertEquals(1, scrubber.getPasses());
+		assertEquals(sizes.length - 1, scrubber.getScrubbedFiles());
+		assertEquals(bytes, scrubber.getScrubbedBytes());
+		assertTrue(scrubber.getCorruptFiles().isEmpty());
+	}
+
+	@Test
+	public void rottedFilesAreReported() throws Exception {
+		store(storage, "intact", CHUNK + 5);
+		store(storage, "rotted-first", 100);
+		store(storage, "rotted-last", 2 * CHUNK + 5);
+		store(storage, "truncated", CHUNK + 5);
+		rot("rotted-first", 0);
+		rot("rotted-last", 2 * CHUNK + 4);
+		RandomAccessFile f = new RandomAccessFile(new File(DIRECTORY, "truncated"), "rw");
+		try {
+			f.setLength(CHUNK);
+		} finally {
+			f.close();
+		}
+
+		assertEquals(3, scrubber.scrub());
+		assertEquals(Arrays.asList("rotted-first", "rotted-last", "truncated"), scrubber.getCorruptFiles());
+		assertEquals(1, scrubber.getScrubbedFiles());
+		// only reported, the files are kept
+		assertEquals(100, storage.getSize("rotted-first"));
+		// and reported once however often they are found
+		assertEquals(3, scrubber.scrub());
+		assertEquals(3, scrubber.getCorruptFiles().size());
+		assertEquals(2, scrubber.getPasses());
+	}
+
+	@Test
+	public void corruptFilesAreRemovedIfConfigured() throws Exception {
+		store(storage, "intact", 100);
+		store(storage, "rotted", CHUNK + 5);
+		rot("rotted", CHUNK + 1);
+		scrubber.setRemoveCorrupt(true);
+
+		assertEquals(1, scrubber.scrub());
+		assertEquals(Collections.singletonList("rotted"), scrubber.getCorruptFiles());
+		assertEquals(Collections.singletonList("intact"), storage.list(""));
+		assertNull(storage.getChecksums("rotted"));
+		// a pass over the remaining files finds nothing
+		assertEquals(0, scrubber.scrub());
+	}
+
+	@Test
+	public void filesReplacedWhileReadAreNotCorrupt() throws Exception {
+		// the file gets new content and checksums after the scrubber has taken
+		// the old checksums
+		PosixStorageService replacing = new PosixStorageService(DIRECTORY.getPath()) {
+			@Override
+			public FileChannel open(String path) throws IOException {
+				rot(path, 0);
+				byte[] data = FileUtils.readFileToByteArray(new File(DIRECTORY, path));
+				ChunkedCrc32c crc = new ChunkedCrc32c(path, data.length);
+				crc.update(ByteBuffer.wrap(data));
+				putChecksums(path, crc.getChecksums());
+				return super.open(path);
+			}
+		};
+		store(storage, "replaced", 100);
+		storage.shutdown();
+		storage = replacing;
+		storage.initStorage();
+		scrubber = new Scrubber(storage);
+		scrubber.setMaxBandwidth(0);
+		assertEquals(0, scrubber.scrub());
+		assertTrue(scrubber.getCorruptFiles().isEmpty());
+	}
+
+	@Test
+	public void readsAreLimitedToTheBandwidth() throws Exception {
+		for (int i = 0; i < 3; i++) {
+			store(storage, "limited-" + i, CHUNK + CHUNK / 2);
+		}
+		// 4.5 MB at 3 MB/s after a burst of one chunk takes more than a second
+		scrubber.setMaxBandwidth(3 * CHUNK);
+		long start = System.nanoTime();
+		assertEquals(0, scrubber.scrub());
+		long millis = (System.nanoTime() - start) / 1000000;
+		assertTrue(millis + " ms", millis >= 1000);
+		assertEquals(9 * CHUNK / 2, scrubber.getScrubbedBytes());
+	}
+
+	@Test
+	public void interruptStopsThePass() throws Exception {
+		store(storage, "interrupted", 100);
+		Thread.currentThread().interrupt();
+		try {
+			scrubber.scrub();
+			fail("scrubbed while interrupted");
+		} catch (InterruptedException expected) {
+			// the pass has been given up
+		} finally {
+			Thread.interrupted();
+		}
+		assertFalse(scrubber.isRunning());
+		assertEquals(0, scrubber.getPasses());
+		assertEquals(0, scrubber.getScrubbedFiles());
+	}
+}
@@ -0,0 +1,190 @@
+package org.hazelfs.services;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SegmentStorageServiceTest {
+	private static final String DIRECTORY = "target/test-segments";
+
+	private SegmentStorageService storage;
+	private final Random random = new Random(13);
+
+	@Before
+	public void setup() throws Exception {
+		storage = open();
+		storage.format();
+		storage = open();
+	}
+
+	@After
+	public void teardown() throws Exception {
+		storage.shutdown();
+	}
+
+	private SegmentStorageService open() throws IOException {
+		SegmentStorageService s = new SegmentStorageService(DIRECTORY);
+		s.setSegmentSize(64 * 1024);
+		s.setSmallObjectSize(4096);
+		// compaction is started by the tests
+		s.setCompactionIntervalSeconds(3600);
+		s.initStorage();
+		return s;
+	}
+
+	private void restart() throws IOException {
+		storage.shutdown();
+		storage = open();
+	}
+
+	private byte[] write(String path, int size) throws IOException {
+		byte[] data = new byte[size];
+		random.nextBytes(data);
+		FileChannel ch = storage.create(path, size);
+		try {
+			ch.write(ByteBuffer.wrap(data));
+		} finally {
+			ch.close();
+		}
+		return data;
+	}
+
+	private byte[] read(String path) throws IOException {
+		FileChannel ch = storage.open(path);
+		try {
+			ByteBuffer buf = ByteBuffer.allocate((int) ch.size());
+			while (buf.hasRemaining() && ch.read(buf) != -1) {
+				// keep on reading
+			}
+			return buf.array();
+		} finally {
+			ch.close();
+		}
+	}
+
+	private static int segmentFiles() {
+		return new File(DIRECTORY, "segments").list().length;
+	}
+
+	private void assertMissing(String path) throws IOException {
+		try {
+			storage.getSize(path);
+			fail("found " + path);
+		} catch (FileNotFoundException expected) {
+			// not there
+		}
+	}
+
+	@Test
+	public void indexIsReplayedAfterRestart() throws Exception {
+		Map<String, byte[]> objects = new HashMap<String, byte[]>();
+		for (int i = 0; i < 50; i++) {
+			objects.put("small-" + i, write("small-" + i, 100 + random.nextInt(4000)));
+		}
+		byte[] large = write("large", 10000);
+		storage.delete("small-7");
+		objects.remove("small-7");
+		restart();
+		for (Map.Entry<String, byte[]> e : objects.entrySet()) {
+			assertArrayEquals(e.getValue(), read(e.getKey()));
+		}
+		assertArrayEquals(large, read("large"));
+		assertMissing("small-7");
+		assertEquals(50, storage.list("").size());
+	}
+
+	@Test
+	public void truncatedIndexRecordIsDropped() throws Exception {
+		byte[] first = write("first", 1000);
+		byte[] second = write("second", 2000);
+		storage.shutdown();
+		File index = new File(DIRECTORY, "index.log");
+		long valid = index.length();
+		// a put record cut short by a crash
+		RandomAccessFile f = new RandomAccessFile(index, "rw");
+		try {
+			f.seek(valid);
+			f.write(new byte[] { 1, 0, 0 });
+		} finally {
+			f.close();
+		}
+		storage = open();
+		assertEquals(valid, index.length());
+		assertArrayEquals(first, read("first"));
+		assertArrayEquals(second, read("second"));
+		byte[] third = write("third", 3000);
+		restart();
+		assertArrayEquals(third, read("third"));
+		assertArrayEquals(first, read("first"));
+	}
+
+	@Test
+	public void compactionMovesLiveObjects() throws Exception {
+		Map<String, byte[]> objects = new HashMap<String, byte[]>();
+		// about 15 objects per segment of 64 KB
+		for (int i = 0; i < 100; i++) {
+			objects.put("object-" + i, write("object-" + i, 4000));
+		}
+		int before = segmentFiles();
+		for (int i = 0; i < 100; i++) {
+			if (i % 4 != 0) {
+				storage.delete("object-" + i);
+				objects.remove("object-" + i);
+			}
+		}
+		storage.compact();
+		assertTrue("segments " + before + " -> " + segmentFiles(), segmentFiles() < before);
+		for (Map.Entry<String, byte[]> e : objects.entrySet()) {
+			assertArrayEquals(e.getValue(), read(e.getKey()));
+		}
+		restart();
+		for (Map.Entry<String, byte[]> e : objects.entrySet()) {
+			assertArrayEquals(e.getValue(), read(e.getKey()));
+		}
+		assertEquals(objects.size(), storage.list("object-").size());
+	}
+
+	@Test
+	public void deleteAndOverwrite() throws Exception {
+		write("object", 1000);
+		try {
+			write("object", 500);
+			fail("overwrote an object");
+		} catch (IOException expected) {
+			// objects are immutable
+		}
+		storage.delete("object");
+		assertMissing("object");
+		byte[] data = write("object", 500);
+		assertArrayEquals(data, read("object"));
+	}
+
+	@Test
+	public void failedOverwriteKeepsChecksums() throws Exception {
+		write("large", 10000);
+		int[] checksums = { 42 };
+		storage.putChecksums("large", checksums);
+		try {
+			write("large", 100);
+			fail("overwrote a file");
+		} catch (IOException expected) {
+			// the file stays as it is
+		}
+		assertArrayEquals(checksums, storage.getChecksums("large"));
+	}
+}
@@ -0,0 +1,52 @@
+package org.hazelfs.services;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+public class StripedCounterTest {
+
+	@Test
+	public void sumsAcrossThreads() throws Exception {
+		final StripedCounter counter = new StripedCounter();
+		final CountDownLatch start = new CountDownLatch(1);
+		Thread[] threads = new Thread[4 * Runtime.getRuntime().availableProcessors()];
+		for (int t = 0; t < threads.length; t++) {
+			final int amount = t + 1;
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					for (int i = 0; i < 100000; i++) {
+						counter.add(amount);
+						counter.increment();
+						counter.decrement();
+					}
+				}
+			};
+			threads[t].start();
+		}
+		start.countDown();
+		for (Thread t : threads) {
+			t.join();
+		}
+		long n = threads.length;
+		assertEquals(100000 * n * (n + 1) / 2, counter.sum());
+		assertEquals(String.valueOf(counter.sum()), counter.toString());
+	}
+
+	@Test
+	public void negativeSums() {
+		StripedCounter counter = new StripedCounter();
+		assertEquals(0, counter.sum());
+		counter.decrement();
+		counter.add(-41);
+		assertEquals(-42, counter.sum());
+	}
+}
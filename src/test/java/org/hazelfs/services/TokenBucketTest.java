@@ -0,0 +1,64 @@
+package org.hazelfs.services;
+
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class TokenBucketTest {
+
+	private static long take(final TokenBucket bucket, int threads, final int times, final long permits)
+			throws InterruptedException {
+		List<Thread> takers = new ArrayList<Thread>();
+		for (int i = 0; i < threads; i++) {
+			takers.add(new Thread() {
+				@Override
+				public void run() {
+					try {
+						for (int j = 0; j < times; j++) {
+							bucket.acquire(permits);
+						}
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			});
+		}
+		long start = System.nanoTime();
+		for (Thread t : takers) {
+			t.start();
+		}
+		for (Thread t : takers) {
+			t.join();
+		}
+		return (System.nanoTime() - start) / 1000000;
+	}
+
+	@Test
+	public void keepsToItsRate() throws Exception {
+		// 5 MB at 4 MB a second after a burst of 1 MB take a second
+		TokenBucket bucket = new TokenBucket(4 * 1024 * 1024, 1024 * 1024);
+		long millis = take(bucket, 1, 80, 64 * 1024);
+		assertTrue(millis + " ms", millis >= 950 && millis < 1500);
+
+		// the threads share the rate, the bucket is empty from the first run
+		millis = take(bucket, 4, 20, 64 * 1024);
+		assertTrue(millis + " ms", millis >= 1200 && millis < 1800);
+	}
+
+	@Test
+	public void burstIsNotWaitedFor() throws Exception {
+		TokenBucket bucket = new TokenBucket(1024, 64 * 1024);
+		long millis = take(bucket, 2, 8, 4096);
+		assertTrue(millis + " ms", millis < 200);
+	}
+
+	@Test
+	public void zeroRateIsUnlimited() throws Exception {
+		TokenBucket bucket = new TokenBucket(0, 0);
+		long millis = take(bucket, 2, 1000, 1L << 30);
+		assertTrue(millis + " ms", millis < 200);
+	}
+}